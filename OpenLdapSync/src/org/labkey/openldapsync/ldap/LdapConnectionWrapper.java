@@ -7,8 +7,13 @@
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
 import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
 import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.PagedResults;
+import org.apache.directory.api.ldap.model.message.controls.PagedResultsImpl;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.name.Rdn;
 import org.apache.directory.ldap.client.api.DefaultPoolableLdapConnectionFactory;
@@ -21,8 +26,10 @@
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * User: bimber
@@ -36,6 +43,10 @@
     private LdapConnection _connection = null;
     private LdapSettings _settings;
     private static final Logger _log = LogManager.getLogger(LdapConnectionWrapper.class);
+    static final int PAGE_SIZE = 500;
+
+    //keeps the OR filter used to resolve group members well below typical server filter limits
+    private static final int MEMBER_FILTER_BATCH_SIZE = 200;
     private boolean doLog = false;
 
     public LdapConnectionWrapper() throws LdapException
@@ -64,6 +75,12 @@ public boolean connect() throws LdapException
         return true;
     }
 
+    //allows tests to supply a connection, rather than connecting to a server
+    void setConnection(LdapConnection connection)
+    {
+        _connection = connection;
+    }
+
     private void ensureConnected() throws LdapException
     {
         if (_connection == null)
@@ -164,116 +181,97 @@ private List<LdapEntry> getGroupMembersUsingMemberOf(String dn) throws LdapExcep
     {
         ensureConnected();
 
-        try
-        {
-            try (EntryCursor cursor = _connection.search(_settings.getCompleteUserSearchString(), _settings.getCompleteGroupMemberFilterString(dn), SearchScope.SUBTREE, "*"))
-            {
-                List<LdapEntry> users = new ArrayList<>();
-                while (cursor.next())
-                {
-                    Entry entry = cursor.get();
-                    users.add(new LdapEntry(entry, _settings));
-                }
+        List<LdapEntry> users = new ArrayList<>();
+        pagedSearch(new Dn(_settings.getCompleteUserSearchString()), _settings.getCompleteGroupMemberFilterString(dn), SearchScope.SUBTREE, _settings.getUserAttributes(), entry -> users.add(new LdapEntry(entry, _settings)));
 
-                return users;
-            }
-        }
-        catch (Exception e)
-        {
-            throw new LdapException(e);
-        }
+        return users;
     }
 
     /**
      * Gets the group members using the memberUid attribute.
      * This method is necessary if the LDAP server has no memberOf group overlay, and so instead we need to iterate
-     * through what the LDAP search returns and find the memberUid attribute (which are the users) in each group
+     * through what the LDAP search returns and find the memberUid attribute (which are the users) in each group.
+     * The members are then resolved using OR filters of up to MEMBER_FILTER_BATCH_SIZE users per search.
      */
     public List<LdapEntry> getGroupMembersWithoutMemberOf(String dn) throws LdapException
     {
+        ensureConnected();
+
         String filter = "(objectclass=" + _settings.getGroupObjectClass() + ")";
-        try (EntryCursor cursor = _connection.search(new Dn(dn), filter, SearchScope.SUBTREE, "member", "memberUid"))
-        {
-            List<LdapEntry> users = new ArrayList<>();
-            Set<String> userIds = new HashSet<>();
+        List<LdapEntry> users = new ArrayList<>();
+        Set<String> userIds = new LinkedHashSet<>();
 
-            //iterate through the results from LDAP and gather userIds
-            while (cursor.next())
-            {
-                Entry group = cursor.get();
-                Iterator<Attribute> attributeIterator = group.getAttributes().iterator();
+        //iterate through the results from LDAP and gather userIds
+        pagedSearch(new Dn(dn), filter, SearchScope.SUBTREE, new String[]{"member", "memberUid"}, group -> {
+            Iterator<Attribute> attributeIterator = group.getAttributes().iterator();
 
-                while (attributeIterator.hasNext())
+            while (attributeIterator.hasNext())
+            {
+                Attribute a = attributeIterator.next();
+                if ("memberUid".equalsIgnoreCase(a.getId()))
                 {
-                    Attribute a = attributeIterator.next();
-                    if ("memberUid".equalsIgnoreCase(a.getId()))
-                    {
-                        a.forEach((val) -> {
-                            userIds.add("(uid=" + val + ")");
-                        });
+                    a.forEach((val) -> {
+                        userIds.add("(uid=" + val + ")");
+                    });
 
-                    }
-                    else if ("member".equalsIgnoreCase(a.getId()))
-                    {
-                        a.forEach((val) -> {
-                            try
-                            {
-                                Rdn rdn = new Dn(val.toString()).getRdn();
-                                if (!"cn".equalsIgnoreCase(rdn.getType()))
-                                {
-                                    _log.error("Member attribute was not CN: " + val + ".  was: " + rdn.getType());
-                                    return;
-                                }
-
-                                userIds.add("(" + rdn.getName() + ")");
-                            }
-                            catch (LdapInvalidDnException e)
+                }
+                else if ("member".equalsIgnoreCase(a.getId()))
+                {
+                    a.forEach((val) -> {
+                        try
+                        {
+                            Rdn rdn = new Dn(val.toString()).getRdn();
+                            if (!"cn".equalsIgnoreCase(rdn.getType()))
                             {
-                                _log.error("Invalid DN for member attribute: " + val);
+                                _log.error("Member attribute was not CN: " + val + ".  was: " + rdn.getType());
+                                return;
                             }
 
-                        });
-                    }
-                    else
-                    {
-                        _log.error("Unknown attribute: " + a.getId());
-                        continue;
-                    }
-                }
-            }
+                            userIds.add("(" + rdn.getName() + ")");
+                        }
+                        catch (LdapInvalidDnException e)
+                        {
+                            _log.error("Invalid DN for member attribute: " + val);
+                        }
 
-            if (!userIds.isEmpty())
-            {
-                String filterUsers = "(|".concat(StringUtils.join(userIds, "")).concat(")");
-                String userFilter = _settings.getCompleteUserFilterString(filterUsers);
-                try (EntryCursor LDAPUserEntry = _connection.search(_settings.getCompleteUserSearchString(), userFilter, SearchScope.SUBTREE, "*"))
+                    });
+                }
+                else
                 {
-                    while (LDAPUserEntry.next())
-                    {
-                        users.add(new LdapEntry(LDAPUserEntry.get(), _settings));
-                    }
+                    _log.error("Unknown attribute: " + a.getId());
                 }
             }
+        });
 
-            return users;
-        }
-        catch (Exception e)
+        if (!userIds.isEmpty())
         {
-            throw new LdapException(e);
+            possiblyLog("LDAP resolving " + userIds.size() + " members of: " + dn);
+
+            Dn userSearch = new Dn(_settings.getCompleteUserSearchString());
+            List<String> allIds = new ArrayList<>(userIds);
+            for (int i = 0; i < allIds.size(); i += MEMBER_FILTER_BATCH_SIZE)
+            {
+                List<String> batch = allIds.subList(i, Math.min(allIds.size(), i + MEMBER_FILTER_BATCH_SIZE));
+                String filterUsers = "(|".concat(StringUtils.join(batch, "")).concat(")");
+                String userFilter = _settings.getCompleteUserFilterString(filterUsers);
+                pagedSearch(userSearch, userFilter, SearchScope.SUBTREE, _settings.getUserAttributes(), entry -> users.add(new LdapEntry(entry, _settings)));
+            }
         }
+
+        return users;
     }
 
     public LdapEntry getGroup(String dn) throws LdapException
     {
-        return getEntry(dn, _settings.getCompleteGroupFilterString());
+        return getEntry(dn, _settings.getCompleteGroupFilterString(), _settings.getGroupAttributes());
     }
 
-    private LdapEntry getEntry(String dn, String filter) throws LdapException
+    private LdapEntry getEntry(String dn, String filter, String... attributes) throws LdapException
     {
         ensureConnected();
 
         possiblyLog("LDAP getEntry: from " + dn + ", filter: " + filter);
-        try (EntryCursor cursor = _connection.search(dn, filter, SearchScope.OBJECT, "*"))
+        try (EntryCursor cursor = _connection.search(dn, filter, SearchScope.OBJECT, attributes))
         {
             while (cursor.next())
             {
@@ -297,7 +295,7 @@ public List<LdapEntry> listAllGroups() throws LdapException
     {
         ensureConnected();
 
-        return getChildren(new Dn(_settings.getCompleteGroupSearchString()), _settings.getCompleteGroupFilterString(), _settings.getGroupObjectClass());
+        return getChildren(new Dn(_settings.getCompleteGroupSearchString()), _settings.getCompleteGroupFilterString(), _settings.getGroupObjectClass(), _settings.getGroupAttributes());
     }
 
     /**
@@ -306,45 +304,93 @@ public List<LdapEntry> listAllGroups() throws LdapException
     public List<LdapEntry> listAllUsers() throws LdapException
     {
         ensureConnected();
-        return getChildren(new Dn(_settings.getCompleteUserSearchString()), _settings.getCompleteUserFilterString(), _settings.getUserObjectClass());
+        return getChildren(new Dn(_settings.getCompleteUserSearchString()), _settings.getCompleteUserFilterString(), _settings.getUserObjectClass(), _settings.getUserAttributes());
     }
 
-    private List<LdapEntry> getChildren(Dn dn, String filter, String objectClass) throws LdapException
+    private List<LdapEntry> getChildren(Dn dn, String filter, String expectedObjectClass, String[] attributes) throws LdapException
     {
-        return getChildren(dn, filter, objectClass, new HashSet<>());
+        List<LdapEntry> entries = new ArrayList<>();
+        Set<String> encountered = new HashSet<>();
+
+        possiblyLog("LDAP getChildren: from " + dn + ", filter: " + filter);
+        pagedSearch(dn, filter, SearchScope.SUBTREE, attributes, entry -> {
+            String key = entry.getDn().getName();
+            if (!encountered.add(key))
+            {
+                _log.info("previously encountered: " + key);
+                return;
+            }
+
+            if (entry.hasObjectClass(expectedObjectClass))
+            {
+                entries.add(new LdapEntry(entry, _settings));
+            }
+        });
+
+        possiblyLog("LDAP getChildren: found " + entries.size() + " entries");
+
+        return entries;
     }
 
-    private List<LdapEntry> getChildren(Dn dn, String filter, String expectedObjectClass, HashSet<String> encountered) throws LdapException
+    /**
+     * Runs the search using the RFC 2696 paged results control, so large directories are returned in pages of PAGE_SIZE
+     * rather than hitting the server's size limit. If the server does not support paging, the results are returned in one page.
+     */
+    void pagedSearch(Dn base, String filter, SearchScope scope, String[] attributes, Consumer<Entry> consumer) throws LdapException
     {
-        List<LdapEntry> entries = new ArrayList<>();
+        ensureConnected();
 
-        possiblyLog("LDAP getChildren: from " + dn + ", filter: " + filter);
-        try (EntryCursor cursor = _connection.search(dn, filter, SearchScope.SUBTREE, "*"))
+        byte[] cookie = null;
+        int pages = 0;
+        do
         {
-            while (cursor.next())
-            {
-                Entry entry = cursor.get();
+            SearchRequest sr = new SearchRequestImpl();
+            sr.setBase(base);
+            sr.setFilter(filter);
+            sr.setScope(scope);
+            sr.addAttributes(attributes);
+
+            PagedResults pagedControl = new PagedResultsImpl();
+            pagedControl.setSize(PAGE_SIZE);
+            pagedControl.setCookie(cookie);
+            sr.addControl(pagedControl);
 
-                if (entry.hasObjectClass(expectedObjectClass))
+            try (SearchCursor cursor = _connection.search(sr))
+            {
+                while (cursor.next())
                 {
-                    entries.add(new LdapEntry(entry, _settings));
+                    if (cursor.isEntry())
+                    {
+                        consumer.accept(cursor.getEntry());
+                    }
                 }
 
-                String key = entry.getDn().getName();
-                if (encountered.contains(key))
+                SearchResultDone done = cursor.getSearchResultDone();
+                if (done != null && done.getLdapResult().getResultCode() != ResultCodeEnum.SUCCESS)
                 {
-                    _log.info("previously encountered: " + key);
-                    continue;
+                    throw new LdapException("LDAP search failed: " + done.getLdapResult().getResultCode() + ", " + done.getLdapResult().getDiagnosticMessage());
                 }
-                encountered.add(entry.getDn().getName());
+
+                PagedResults responseControl = done == null ? null : (PagedResults)done.getControl(PagedResults.OID);
+                cookie = responseControl == null ? null : responseControl.getCookie();
+            }
+            catch (LdapException e)
+            {
+                throw e;
             }
+            catch (Exception e)
+            {
+                throw new LdapException(e);
+            }
+
+            pages++;
         }
-        catch (Exception e)
+        while (cookie != null && cookie.length > 0);
+
+        if (pages > 1)
         {
-            throw new LdapException(e);
+            possiblyLog("LDAP search returned " + pages + " pages: " + base + ", filter: " + filter);
         }
-
-        return entries;
     }
 
     public String getProviderName()
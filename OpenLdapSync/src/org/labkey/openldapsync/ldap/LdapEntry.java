@@ -4,10 +4,15 @@
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
 import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.util.GeneralizedTime;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
+import org.jetbrains.annotations.Nullable;
 import org.labkey.api.security.ValidEmail;
 
+import java.text.ParseException;
+import java.util.Date;
+
 /**
  * Created with IntelliJ IDEA.
  * User: bimber
@@ -128,6 +133,26 @@ public String getIM() throws LdapInvalidAttributeValueException
         return null;
     }
 
+    /**
+     * @return The time this entry was last modified, or null if the server did not return modifyTimestamp
+     */
+    public @Nullable Date getModifyTimestamp()
+    {
+        String a = getAttribute(LdapSettings.MODIFY_TIMESTAMP_ATTR);
+        if (a == null)
+            return null;
+
+        try
+        {
+            return new GeneralizedTime(a).getDate();
+        }
+        catch (ParseException e)
+        {
+            _log.error("Invalid value for modifyTimestamp: " + a + " for entry: " + getDn());
+            return null;
+        }
+    }
+
     protected String getAttribute(String alias)
     {
         try
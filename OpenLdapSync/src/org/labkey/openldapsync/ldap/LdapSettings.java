@@ -2,6 +2,8 @@
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.collections.CaseInsensitiveHashSet;
 import org.labkey.api.data.PropertyManager;
 import org.labkey.api.security.User;
 import org.labkey.api.security.UserManager;
@@ -11,9 +13,11 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Created with IntelliJ IDEA.
@@ -25,6 +29,11 @@
 {
     public static final String PROPERTY_CATEGORY = "ldk.ldapConfig";
     public static final String PROPERTY_CATEGORY_ENCRYPTED = "ldk.ldapConfigEncrypted";
+    public static final String SYNC_STATE_CATEGORY = "ldk.ldapSyncState";
+    public static final String LAST_SYNC_PROP = "lastSyncTime";
+
+    //operational attribute, which must be requested by name
+    public static final String MODIFY_TIMESTAMP_ATTR = "modifyTimestamp";
 
     public static final String BASE_SEARCH_PROP = "baseSearchString";
     public static final String GROUP_SEARCH_PROP = "groupSearchString";
@@ -124,6 +133,9 @@ public static void setLdapSettings(Map<String, String> props, Map<String, String
         encryptedWritableProps.putAll(encryptedProps);
         encryptedWritableProps.save();
 
+        //the field mappings or search may have changed, so the next sync should check every entry
+        setLastSyncTime(null);
+
         LdapScheduler.get().onSettingsChange();
     }
 
@@ -433,6 +445,62 @@ public String getUIDMapping()
         return (String)_settings.get(UID_FIELD_PROP);
     }
 
+    /**
+     * @return The attributes needed to create or update a user, rather than requesting all attributes ("*")
+     */
+    public String[] getUserAttributes()
+    {
+        return getAttributes(getEmailMapping(), getDisplayNameMapping(), getLastNameMapping(), getFirstNameMapping(), getPhoneMapping(), getIMMapping(), getUIDMapping());
+    }
+
+    public String[] getGroupAttributes()
+    {
+        return getAttributes(getDisplayNameMapping());
+    }
+
+    private String[] getAttributes(String... mappings)
+    {
+        Set<String> ret = new CaseInsensitiveHashSet();
+        ret.add("objectClass");
+        ret.add("name");
+        ret.add(MODIFY_TIMESTAMP_ATTR);
+        if (shouldReadUserAccountControl())
+        {
+            ret.add("userAccountControl");
+        }
+
+        for (String mapping : mappings)
+        {
+            if (StringUtils.trimToNull(mapping) != null)
+            {
+                ret.add(mapping);
+            }
+        }
+
+        return ret.toArray(new String[0]);
+    }
+
+    /**
+     * @return The time the last complete sync started, or null if there has not been one since the settings last changed
+     */
+    public static @Nullable Date getLastSyncTime()
+    {
+        String val = StringUtils.trimToNull(PropertyManager.getProperties(SYNC_STATE_CATEGORY).get(LAST_SYNC_PROP));
+
+        return val == null ? null : new Date(Long.parseLong(val));
+    }
+
+    public static void setLastSyncTime(@Nullable Date date)
+    {
+        PropertyManager.PropertyMap props = PropertyManager.getWritableProperties(SYNC_STATE_CATEGORY, true);
+        props.clear();
+        if (date != null)
+        {
+            props.put(LAST_SYNC_PROP, String.valueOf(date.getTime()));
+        }
+        props.save();
+    }
+
     public String getLabKeyAdminEmail()
     {
         return (String)_settings.get(LABKEY_EMAIL_PROP);
@@ -1,9 +1,21 @@
 package org.labkey.openldapsync.ldap;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.directory.api.ldap.model.cursor.SearchCursor;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.SearchResultDoneImpl;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.PagedResults;
+import org.apache.directory.api.ldap.model.message.controls.PagedResultsImpl;
 import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.util.GeneralizedTime;
+import org.apache.directory.ldap.client.api.LdapConnection;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.junit.After;
@@ -42,12 +54,16 @@
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -60,6 +76,7 @@
 import static org.labkey.openldapsync.ldap.LdapSettings.DEFAULT_UID_VAL;
 import static org.labkey.openldapsync.ldap.LdapSettings.DISPLAYNAME_FIELD_PROP;
 import static org.labkey.openldapsync.ldap.LdapSettings.FIRSTNAME_FIELD_PROP;
+import static org.labkey.openldapsync.ldap.LdapSettings.USER_INFO_CHANGED_PROP;
 import static org.labkey.openldapsync.ldap.LdapSettings.DEFAULT_IM_VAL;
 
 /**
@@ -90,6 +107,11 @@ public class LdapSyncRunner implements Job
     private int _groupsRemoved = 0;
     private int _membershipsAdded = 0;
     private int _membershipsRemoved = 0;
+    private int _usersUnchanged = 0;
+
+    //entries modified before this time (less CLOCK_SKEW_MILLIS) were handled by the previous sync. null means check every entry
+    private Date _lastSyncTime = null;
+    private static final long CLOCK_SKEW_MILLIS = 10 * 60 * 1000;
 
     private Container _userGroupContainer = ContainerManager.getRoot();
 
@@ -131,7 +153,15 @@ public void doSync() throws LdapException
             _wrapper.setDoLog(true);
         }
 
+        _lastSyncTime = LdapSettings.getLastSyncTime();
+        Date started = new Date();
+
         performSync();
+
+        if (!_previewOnly)
+        {
+            LdapSettings.setLastSyncTime(started);
+        }
     }
 
     //This is separated to facilitate testing
@@ -177,6 +207,11 @@ else if (LdapSettings.LdapSyncMode.usersAndGroups.equals(mode))
         _log.info("LDAP sync complete");
 
         log(getSummaryText());
+        if (_usersUnchanged > 0)
+        {
+            log("Users unchanged in LDAP since the last sync: " + _usersUnchanged);
+        }
+
         updateLdapTable();
         deactivatePrincipalsPreviouslySynced();
         writeAuditTrail();
@@ -313,6 +348,7 @@ private void syncUser(LdapEntry ldapEntry) throws LdapException
         {
             //NOTE: we disable users in LK if not active in LDAP, but not the reverse since a user could be disabled in LK intentionally.
             //there can often be a lag between a person leaving and actually having their account disabled in LDAP
+            //this is checked even if the entry is unchanged, since the user could have been reactivated in LK since the last sync
             boolean isEnabled = ldapEntry.isEnabled();
             if (!isEnabled && isEnabled != existing.isActive())
             {
@@ -320,8 +356,12 @@ private void syncUser(LdapEntry ldapEntry) throws LdapException
                 _usersInactivated++;
             }
 
-
-            if (_settings.overwriteUserInfoIfChanged())
+            if (isUnchangedSinceLastSync(ldapEntry, existing))
+            {
+                //the attributes were already copied by the previous sync
+                _usersUnchanged++;
+            }
+            else if (_settings.overwriteUserInfoIfChanged())
             {
                 syncUserAttributes(ldapEntry, existing);
             }
@@ -336,6 +376,24 @@ private void syncUser(LdapEntry ldapEntry) throws LdapException
             _usersSynced.put(ldapEntry.getDn().getName(), existing.getUserId());
     }
 
+    /**
+     * An entry can only be skipped if the previous sync actually handled it, meaning it is recorded as synced to this user.
+     * A user that already existed in LabKey, or a DN newly added to a synced group, must be processed even if the LDAP entry is old.
+     */
+    private boolean isUnchangedSinceLastSync(LdapEntry ldapEntry, User existing)
+    {
+        if (_lastSyncTime == null)
+            return false;
+
+        LdapSyncModel previous = _syncedRecordMap.get(ldapEntry.getDn().getName());
+        if (previous == null || !PrincipalType.USER.equals(PrincipalType.forChar(previous.getType().charAt(0))) || !Integer.valueOf(existing.getUserId()).equals(previous.getLabkeyId()))
+            return false;
+
+        Date modified = ldapEntry.getModifyTimestamp();
+
+        return modified != null && modified.getTime() < _lastSyncTime.getTime() - CLOCK_SKEW_MILLIS;
+    }
+
     private String getNameForGroup(LdapEntry group) throws LdapException
     {
         String groupName = group.getDisplayName();
@@ -1066,6 +1124,213 @@ public void testIndividualOperations() throws Exception
             cleanUsersAndGroups();
         }
 
+        @Test
+        public void testPagedSearch() throws Exception
+        {
+            //enough entries for two full pages and a partial one
+            final int totalEntries = (2 * LdapConnectionWrapper.PAGE_SIZE) + 234;
+            MockPagedConnection connection = new MockPagedConnection(totalEntries, true, ResultCodeEnum.SUCCESS);
+            DummyConnectionWrapper wrapper = new DummyConnectionWrapper();
+            wrapper.setConnection(connection.getConnection());
+
+            List<String> found = new ArrayList<>();
+            wrapper.pagedSearch(new Dn("cn=users,dc=example,dc=com"), "(objectClass=person)", SearchScope.SUBTREE, new String[]{"cn", "mail"}, e -> found.add(e.getDn().getName()));
+
+            assertEquals("Incorrect number of entries", totalEntries, found.size());
+            assertEquals("Entries were returned more than once", totalEntries, new HashSet<>(found).size());
+            assertEquals("Incorrect number of pages requested", 3, connection._requests.size());
+            for (int i = 0; i < connection._requests.size(); i++)
+            {
+                SearchRequest sr = connection._requests.get(i);
+                assertEquals("Incorrect attributes requested", Arrays.asList("cn", "mail"), sr.getAttributes());
+
+                PagedResults control = (PagedResults)sr.getControl(PagedResults.OID);
+                assertNotNull("Paged results control not sent", control);
+                assertEquals("Incorrect page size", LdapConnectionWrapper.PAGE_SIZE, control.getSize());
+
+                //the first request has no cookie, and each later request sends the cookie from the previous response
+                if (i == 0)
+                    assertTrue("First request should not have a cookie", control.getCookie() == null || control.getCookie().length == 0);
+                else
+                    assertArrayEquals("Incorrect cookie for page: " + i, new byte[]{(byte)i}, control.getCookie());
+            }
+
+            //a server that ignores the control returns everything in one page
+            connection = new MockPagedConnection(totalEntries, false, ResultCodeEnum.SUCCESS);
+            wrapper.setConnection(connection.getConnection());
+            found.clear();
+            wrapper.pagedSearch(new Dn("cn=users,dc=example,dc=com"), "(objectClass=person)", SearchScope.SUBTREE, new String[]{"cn"}, e -> found.add(e.getDn().getName()));
+            assertEquals("Incorrect number of entries", totalEntries, found.size());
+            assertEquals("Incorrect number of pages requested", 1, connection._requests.size());
+
+            //an unsuccessful result is reported, rather than treated as the last page
+            wrapper.setConnection(new MockPagedConnection(totalEntries, true, ResultCodeEnum.SIZE_LIMIT_EXCEEDED).getConnection());
+            try
+            {
+                wrapper.pagedSearch(new Dn("cn=users,dc=example,dc=com"), "(objectClass=person)", SearchScope.SUBTREE, new String[]{"cn"}, e -> {});
+                fail("Expected the search to fail");
+            }
+            catch (LdapException e)
+            {
+                assertTrue("Incorrect message: " + e.getMessage(), e.getMessage().contains(ResultCodeEnum.SIZE_LIMIT_EXCEEDED.toString()));
+            }
+        }
+
+        @Test
+        public void testIncrementalSync() throws Exception
+        {
+            cleanUsersAndGroups();
+
+            MutatableLdapSettings settings = new MutatableLdapSettings();
+            settings.setProperty(USER_INFO_CHANGED_PROP, "true");
+
+            //the first sync creates the user
+            LdapSyncRunner runner = getRunner(settings);
+            runner.syncAllUsers();
+            assertEquals("Incorrect number of users added", 1, runner._usersAdded);
+            User u = UserManager.getUser(runner._wrapper.listAllUsers().get(0).getValidEmail());
+            assertNotNull("User not created", u);
+
+            //change an attribute on the LabKey side. an unchanged LDAP entry is skipped, so this is not overwritten
+            u.setFirstName("ChangedInLabKey");
+            UserManager.updateUser(TestContext.get().getUser(), u);
+
+            Date old = new Date(System.currentTimeMillis() - (24 * 60 * 60 * 1000));
+            runner = getIncrementalRunner(settings, u, old, true);
+            runner.syncAllUsers();
+            assertEquals("User should have been skipped", 1, runner._usersUnchanged);
+            assertEquals("Incorrect number of users modified", 0, runner._usersModified);
+            assertEquals("Attributes should not have been synced", "ChangedInLabKey", UserManager.getUser(u.getUserId()).getFirstName());
+
+            //an entry modified since the last sync is processed
+            runner = getIncrementalRunner(settings, u, new Date(), true);
+            runner.syncAllUsers();
+            assertEquals("User should not have been skipped", 0, runner._usersUnchanged);
+            assertEquals("Incorrect number of users modified", 1, runner._usersModified);
+            assertEquals("Attributes should have been synced", "Test", UserManager.getUser(u.getUserId()).getFirstName());
+
+            //an old entry is processed if the previous sync did not record it as synced to this user
+            runner = getIncrementalRunner(settings, u, old, true);
+            runner._syncedRecordMap.clear();
+            runner.syncAllUsers();
+            assertEquals("User should not have been skipped", 0, runner._usersUnchanged);
+
+            //an unchanged entry that is disabled in LDAP still disables the user, for example if the user was reactivated in LabKey
+            assertTrue("User should be active", UserManager.getUser(u.getUserId()).isActive());
+            runner = getIncrementalRunner(settings, u, old, false);
+            runner.syncAllUsers();
+            assertEquals("User should have been skipped", 1, runner._usersUnchanged);
+            assertFalse("User should have been disabled", UserManager.getUser(u.getUserId()).isActive());
+
+            cleanUsersAndGroups();
+        }
+
+        /**
+         * Creates a runner as it would be after a previous sync that recorded the LDAP user as synced to this LabKey user
+         */
+        private LdapSyncRunner getIncrementalRunner(LdapSettings settings, User u, Date modified, boolean enabled) throws Exception
+        {
+            LdapSyncRunner runner = getRunner(settings);
+            MockLdapEntry entry = (MockLdapEntry)runner._wrapper.listAllUsers().get(0);
+            entry._otherProps.put(LdapSettings.MODIFY_TIMESTAMP_ATTR, new GeneralizedTime(modified).toGeneralizedTime());
+            entry._enabled = enabled;
+
+            LdapSyncModel previous = new LdapSyncModel();
+            previous.setType(String.valueOf(PrincipalType.USER.getTypeChar()));
+            previous.setSourceId(entry.getDn().getName());
+            previous.setLabkeyId(u.getUserId());
+            runner._syncedRecordMap.put(previous.getSourceId(), previous);
+            runner._lastSyncTime = new Date();
+
+            return runner;
+        }
+
+        // Serves search results in pages, using the page index as the cookie, to test paged searches without an LDAP server
+        private static class MockPagedConnection implements InvocationHandler
+        {
+            private final int _totalEntries;
+            private final boolean _supportsPaging;
+            private final ResultCodeEnum _resultCode;
+            private final List<SearchRequest> _requests = new ArrayList<>();
+
+            public MockPagedConnection(int totalEntries, boolean supportsPaging, ResultCodeEnum resultCode)
+            {
+                _totalEntries = totalEntries;
+                _supportsPaging = supportsPaging;
+                _resultCode = resultCode;
+            }
+
+            public LdapConnection getConnection()
+            {
+                return (LdapConnection)Proxy.newProxyInstance(LdapConnection.class.getClassLoader(), new Class[]{LdapConnection.class}, this);
+            }
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                switch (method.getName())
+                {
+                    case "isConnected":
+                    case "isAuthenticated":
+                        return true;
+                    case "search":
+                        if (args.length == 1 && args[0] instanceof SearchRequest sr)
+                        {
+                            _requests.add(sr);
+                            return getCursor(sr);
+                        }
+                    default:
+                        throw new UnsupportedOperationException("Not supported: " + method.getName());
+                }
+            }
+
+            private SearchCursor getCursor(SearchRequest sr) throws LdapException
+            {
+                PagedResults control = (PagedResults)sr.getControl(PagedResults.OID);
+                byte[] cookie = control == null ? null : control.getCookie();
+                int page = _supportsPaging && cookie != null && cookie.length > 0 ? cookie[0] : 0;
+                int pageSize = _supportsPaging ? control.getSize() : _totalEntries;
+                int start = page * pageSize;
+                int end = Math.min(_totalEntries, start + pageSize);
+
+                List<Entry> entries = new ArrayList<>();
+                for (int i = start; i < end; i++)
+                {
+                    entries.add(new DefaultEntry("cn=user" + i + ",cn=users,dc=example,dc=com"));
+                }
+
+                SearchResultDone done = new SearchResultDoneImpl();
+                done.getLdapResult().setResultCode(_resultCode);
+                if (_supportsPaging)
+                {
+                    PagedResults responseControl = new PagedResultsImpl();
+                    responseControl.setCookie(end < _totalEntries ? new byte[]{(byte)(page + 1)} : new byte[0]);
+                    done.addControl(responseControl);
+                }
+
+                Iterator<Entry> it = entries.iterator();
+                Entry[] current = new Entry[1];
+                return (SearchCursor)Proxy.newProxyInstance(SearchCursor.class.getClassLoader(), new Class[]{SearchCursor.class}, (p, m, a) -> {
+                    switch (m.getName())
+                    {
+                        case "next":
+                            current[0] = it.hasNext() ? it.next() : null;
+                            return current[0] != null;
+                        case "isEntry":
+                            return current[0] != null;
+                        case "getEntry":
+                            return current[0];
+                        case "getSearchResultDone":
+                            return done;
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException("Not supported: " + m.getName());
+                    }
+                });
+            }
+        }
+
         // This can be used to return LdapEntry objects to support some degree of automated testing without needing a functional LDAP Server
         public class DummyConnectionWrapper extends LdapConnectionWrapper
         {
@@ -1129,6 +1394,7 @@ private static class MockLdapEntry extends LdapEntry
             private final Dn _dn;
 
             private final Map<String, String> _otherProps = new HashMap<>();
+            private boolean _enabled = true;
 
             //represents an LDAP user entry
             public MockLdapEntry(String dn, Map<String, String> otherProps, LdapSettings settings) throws LdapInvalidDnException
@@ -1167,7 +1433,7 @@ public String getIM()
             @Override
             public boolean isEnabled()
             {
-                return true;
+                return _enabled;
             }
         }
         
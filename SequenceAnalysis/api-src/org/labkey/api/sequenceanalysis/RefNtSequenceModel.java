@@ -15,11 +15,18 @@
  */
 package org.labkey.api.sequenceanalysis;
 
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.GZIIndex;
+import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.StringUtil;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
 import org.labkey.api.data.DbSchema;
@@ -36,26 +43,32 @@
 import org.labkey.api.util.MemTracker;
 import org.labkey.api.writer.PrintWriters;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * Represents a record in sequenceanalysis.ref_nt_sequences.  Contains methods to assist with accessing/saving the sequence data,
- * which is stored in a gzipped text file on the filesystem.
+ * which is stored in a gzipped text file on the filesystem.  New files are written with BGZF and a .gzi index, which allows a sub-region
+ * to be read without decompressing the whole sequence.  BGZF is valid gzip, so these can still be read as plain gzip.
  */
 public class RefNtSequenceModel implements Serializable
 {
     private static final Logger _log = LogManager.getLogger(RefNtSequenceModel.class);
+    private static final String BGZF_INDEX_EXTENSION = ".gzi";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final Cache<String, GZIIndex> _bgzfIndexCache = CacheManager.getStringKeyCache(100, CacheManager.HOUR, "RefNtSequenceIndexCache");
 
     private int _rowid;
     private String _name;
@@ -77,6 +90,7 @@ public class RefNtSequenceModel implements Serializable
     private String _aliases;
     private String _comments;
     private Integer _seqLength;
+    private Long _sequenceOffset;
     private Date _datedisabled;
     private String _disabledby;
 
@@ -120,6 +134,17 @@ public void setName(String name)
 
     @Nullable @Transient
     public InputStream getSequenceInputStream() throws IOException
+    {
+        return getSequenceInputStream(0);
+    }
+
+    /**
+     * @param start The 0-based position of the first base to return
+     * @return A stream positioned at start. For BGZF files this seeks using the index; older plain gzip files are decompressed up to start.
+     * If this sequence is packed into a shared file, the stream ends at the end of this sequence.
+     */
+    @Nullable @Transient
+    public InputStream getSequenceInputStream(long start) throws IOException
     {
         if (_sequenceFile != null)
         {
@@ -130,12 +155,81 @@ public InputStream getSequenceInputStream() throws IOException
                 return null;
             }
 
-            return new GZIPInputStream(new FileInputStream(d.getFile()));
+            // Seeking past the end of a BGZF file fails, so this returns an empty stream, which matches plain gzip files
+            if (_seqLength != null && start >= _seqLength)
+            {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+
+            File f = d.getFile();
+            if (IOUtil.isBlockCompressed(f.toPath()))
+            {
+                long offset = _sequenceOffset == null ? start : _sequenceOffset + start;
+                BlockCompressedInputStream is = new BlockCompressedInputStream(f);
+                if (offset > 0)
+                {
+                    is.seek(getBgzfIndex(f).getVirtualOffsetForSeek(offset));
+                }
+
+                if (_sequenceOffset != null)
+                {
+                    if (_seqLength == null)
+                    {
+                        is.close();
+                        throw new IllegalStateException("Sequence is packed in a shared file, but has no length: " + getRowid());
+                    }
+
+                    return new BoundedInputStream(is, Math.max(0, _seqLength - start));
+                }
+
+                return is;
+            }
+            else if (_sequenceOffset != null)
+            {
+                throw new IOException("Expected a block-compressed file for sequence: " + getRowid() + ", " + f.getPath());
+            }
+
+            InputStream is = new GZIPInputStream(new FileInputStream(f), READ_BUFFER_SIZE);
+            IOUtils.skip(is, start);
+
+            return is;
         }
 
         return null;
     }
 
+    private static GZIIndex getBgzfIndex(File bgzf) throws IOException
+    {
+        // Files packed during bulk import are shared by many sequences, so the index is cached rather than reloaded on every read
+        String key = bgzf.getAbsolutePath() + "||" + bgzf.lastModified();
+        GZIIndex ret = _bgzfIndexCache.get(key);
+        if (ret == null)
+        {
+            File index = new File(bgzf.getPath() + BGZF_INDEX_EXTENSION);
+            if (index.exists() && index.lastModified() >= bgzf.lastModified())
+            {
+                ret = GZIIndex.loadIndex(index.toPath());
+            }
+            else
+            {
+                // This only reads the block headers, so it is relatively cheap even for large sequences:
+                ret = GZIIndex.buildIndex(bgzf.toPath());
+            }
+
+            _bgzfIndexCache.put(key, ret);
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return The name of the index written alongside a BGZF sequence file
+     */
+    public static String getIndexFileName(String sequenceFileName)
+    {
+        return sequenceFileName + BGZF_INDEX_EXTENSION;
+    }
+
     public boolean hasSequenceFile()
     {
         if (_sequenceFile != null)
@@ -412,6 +506,38 @@ public byte[] getSequenceBases()
         return _sequenceBytes;
     }
 
+    /**
+     * Reads a sub-region of the sequence, without loading the entire sequence into memory.
+     * @param start The 0-based position of the first base
+     * @param end The 0-based, exclusive end position. If this is beyond the end of the sequence, fewer bases will be returned.
+     */
+    @Nullable @Transient
+    public byte[] getSequenceBases(long start, long end) throws IOException
+    {
+        if (start < 0 || end < start)
+        {
+            throw new IllegalArgumentException("Invalid range: " + start + "-" + end);
+        }
+
+        if (_sequenceBytes != null)
+        {
+            return Arrays.copyOfRange(_sequenceBytes, (int)Math.min(start, _sequenceBytes.length), (int)Math.min(end, _sequenceBytes.length));
+        }
+
+        try (InputStream is = getSequenceInputStream(start))
+        {
+            if (is == null)
+            {
+                return null;
+            }
+
+            byte[] buffer = new byte[Math.toIntExact(end - start)];
+            int read = IOUtils.read(is, buffer);
+
+            return read == buffer.length ? buffer : Arrays.copyOf(buffer, read);
+        }
+    }
+
     public void createFileForSequence(User u, String sequence, @Nullable File outDir) throws IOException
     {
         File output = getExpectedSequenceFile(outDir);
@@ -420,10 +546,17 @@ public void createFileForSequence(User u, String sequence, @Nullable File outDir
             output.delete();
         }
 
-        try (PrintWriter writer = PrintWriters.getPrintWriter(new GZIPOutputStream(new FileOutputStream(output))))
+        File index = new File(getIndexFileName(output.getPath()));
+        if (index.exists())
+        {
+            index.delete();
+        }
+
+        try (PrintWriter writer = PrintWriters.getPrintWriter(new BlockCompressedOutputStream(output)))
         {
             writer.write(sequence);
         }
+        GZIIndex.buildIndex(output.toPath()).writeIndex(index.toPath());
 
         Container c = getLabKeyContainer();
         ExpData d = ExperimentService.get().createData(c, new DataType("Sequence Data"));
@@ -433,6 +566,7 @@ public void createFileForSequence(User u, String sequence, @Nullable File outDir
 
         setSeqLength(sequence.length());
         setSequenceFile(d.getRowId());
+        setSequenceOffset(null);
 
         TableInfo ti = DbSchema.get("sequenceanalysis", DbSchemaType.Module).getTable("ref_nt_sequences");
 
@@ -457,7 +591,11 @@ private Container getLabKeyContainer()
 
     private File getSequenceDir(boolean create, @Nullable File outDir) throws IllegalArgumentException
     {
-        Container c = getLabKeyContainer();
+        return getSequenceDir(getLabKeyContainer(), create, outDir);
+    }
+
+    private static File getSequenceDir(Container c, boolean create, @Nullable File outDir) throws IllegalArgumentException
+    {
         File ret = outDir == null ? getReferenceSequenceDir(c) : outDir;
         if (create && !ret.exists())
         {
@@ -467,7 +605,7 @@ private File getSequenceDir(boolean create, @Nullable File outDir) throws Illega
         return ret;
     }
 
-    private File getReferenceSequenceDir(Container c) throws IllegalArgumentException
+    private static File getReferenceSequenceDir(Container c) throws IllegalArgumentException
     {
         FileContentService fileService = FileContentService.get();
         File root = fileService == null ? null : fileService.getFileRoot(c, FileContentService.ContentType.files);
@@ -484,53 +622,62 @@ public void writeSequence(Writer writer, int lineLength) throws IOException
         writeSequence(writer, lineLength, null, null);
     }
 
+    /**
+     * Writes the sequence, or a sub-region of it, in chunks. Unless the sequence has already been cached, only READ_BUFFER_SIZE bases are held in memory at once.
+     * @param lineLength If -1, the sequence is written on one line with no trailing newline
+     * @param start The 1-based start position
+     * @param end The 1-based, inclusive end position
+     */
     public void writeSequence(Writer writer, int lineLength, Integer start, Integer end) throws IOException
     {
-        byte[] seq = getSequenceBases();
-        if (start != null || end != null)
+        //always keep start 0-based
+        long startIdx = start == null || start == 0 ? 0 : start - 1;
+        long remaining = end == null ? Long.MAX_VALUE : end - startIdx;
+        if (remaining < 0)
         {
-            if (start == null)
-            {
-                start = 0;
-            }
-            //always keep start 0-based
-            else if (start != 0)
-            {
-                start--;
-            }
+            throw new IllegalArgumentException("Invalid range: " + start + "-" + end);
+        }
 
-            if (end == null)
+        try (InputStream is = _sequenceBytes == null ? getSequenceInputStream(startIdx) : new ByteArrayInputStream(_sequenceBytes, (int)Math.min(startIdx, _sequenceBytes.length), _sequenceBytes.length))
+        {
+            if (is == null)
             {
-                end = seq.length;
+                _log.error("no sequence found for refId: " + getRowid());
+                return;
             }
 
-            seq = Arrays.copyOfRange(seq, start, end);
-        }
-
-        if (seq != null)
-        {
-            int len = seq.length;
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            char[] chars = new char[READ_BUFFER_SIZE];
             int count = 0;
-            for (int i = 0; i < len; i++)
+            int read;
+            while (remaining > 0 && (read = is.read(buffer, 0, (int)Math.min(buffer.length, remaining))) != -1)
             {
-                if (count == lineLength)
+                remaining -= read;
+                for (int i = 0; i < read; i++)
                 {
-                    writer.write('\n');
-                    count = 0;
+                    chars[i] = (char)(buffer[i] & 0xFF);
                 }
 
-                writer.write(seq[i]);
-                count++;
+                int offset = 0;
+                while (offset < read)
+                {
+                    if (count == lineLength)
+                    {
+                        writer.write('\n');
+                        count = 0;
+                    }
+
+                    int toWrite = lineLength > 0 ? Math.min(read - offset, lineLength - count) : read - offset;
+                    writer.write(chars, offset, toWrite);
+                    offset += toWrite;
+                    count += toWrite;
+                }
             }
 
             //always terminate w/ a newline
             if (lineLength != -1)
                 writer.write('\n');
         }
-        else
-        {
-            _log.error("no sequence found for refId: " + getRowid());
-        }
     }
 
     public void clearCachedSequence()
@@ -548,6 +695,19 @@ public void setSeqLength(Integer seqLength)
         _seqLength = seqLength;
     }
 
+    /**
+     * @return If this sequence is packed into a file shared with other sequences, the 0-based position where it starts within the uncompressed file
+     */
+    public Long getSequenceOffset()
+    {
+        return _sequenceOffset;
+    }
+
+    public void setSequenceOffset(Long sequenceOffset)
+    {
+        _sequenceOffset = sequenceOffset;
+    }
+
     @Nullable
     public File getOffsetsFile()
     {
@@ -564,4 +724,66 @@ public File getOffsetsFile()
 
         return new File(d.getFile().getParentFile(), getRowid() + "_offsets.txt");
     }
+
+    /**
+     * Writes many sequences into one BGZF file, which is registered as a single ExpData. Each sequence record then stores its
+     * offset and length within this file (see getSequenceOffset()), rather than having its own file.
+     */
+    public static class PackedSequenceWriter implements Closeable
+    {
+        private final File _output;
+        private final BlockCompressedOutputStream _os;
+        private long _offset = 0;
+
+        public PackedSequenceWriter(Container c, String fileName, @Nullable File outDir) throws IOException
+        {
+            _output = new File(getSequenceDir(c, true, outDir), fileName);
+            if (_output.exists())
+            {
+                throw new IOException("File already exists: " + _output.getPath());
+            }
+
+            _os = new BlockCompressedOutputStream(_output);
+        }
+
+        /**
+         * @return The offset of this sequence within the file
+         */
+        public long addSequence(String sequence) throws IOException
+        {
+            long ret = _offset;
+            byte[] bytes = sequence.getBytes(StandardCharsets.US_ASCII);
+            _os.write(bytes);
+            _offset += bytes.length;
+
+            return ret;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            _os.close();
+        }
+
+        /**
+         * Closes the file, writes the index and creates the ExpData.
+         */
+        public ExpData finish(Container c, User u) throws IOException
+        {
+            close();
+            GZIIndex.buildIndex(_output.toPath()).writeIndex(new File(getIndexFileName(_output.getPath())).toPath());
+
+            ExpData d = ExperimentService.get().createData(c, new DataType("Sequence Data"));
+            d.setName(_output.getName());
+            d.setDataFileURI(_output.toURI());
+            d.save(u);
+
+            return d;
+        }
+
+        public File getFile()
+        {
+            return _output;
+        }
+    }
 }
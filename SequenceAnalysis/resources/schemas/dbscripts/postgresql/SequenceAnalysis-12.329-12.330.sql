@@ -0,0 +1 @@
+ALTER TABLE sequenceanalysis.ref_nt_sequences ADD sequenceOffset BIGINT;
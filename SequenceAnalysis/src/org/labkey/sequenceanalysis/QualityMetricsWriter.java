@@ -0,0 +1,163 @@
+package org.labkey.sequenceanalysis;
+
+import org.apache.logging.log4j.Logger;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.DbSchema;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.Table;
+import org.labkey.api.pipeline.PipelineJobException;
+import org.labkey.api.security.User;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects rows for sequenceanalysis.quality_metrics and inserts them using JDBC batches within a single transaction,
+ * rather than issuing one Table.insert() per metric. Rows are held in memory until write() is called.
+ */
+public class QualityMetricsWriter
+{
+    private static final int BATCH_SIZE = 1000;
+
+    private static final List<String> COLUMNS = Arrays.asList("container", "readset", "analysis_id", "dataid", "runid", "category", "metricname", "metricvalue", "qualvalue", "comment", "created", "createdby", "modified", "modifiedby");
+
+    private final User _user;
+    private final Container _container;
+    private final Logger _log;
+    private final List<List<Object>> _rows = new ArrayList<>();
+
+    /**
+     * @param container The container used for any row that does not specify one
+     */
+    public QualityMetricsWriter(User user, Container container, Logger log)
+    {
+        _user = user;
+        _container = container;
+        _log = log;
+    }
+
+    /**
+     * Queues one metric. Keys are column names (case-insensitive), using the same values that would be passed to Table.insert().
+     * Created/createdby and modified/modifiedby are populated if not provided.
+     */
+    public void add(Map<String, Object> row)
+    {
+        Object[] values = new Object[COLUMNS.size()];
+        for (Map.Entry<String, Object> e : row.entrySet())
+        {
+            int idx = COLUMNS.indexOf(e.getKey().toLowerCase());
+            if (idx == -1)
+            {
+                throw new IllegalArgumentException("Unknown quality metrics column: " + e.getKey());
+            }
+
+            values[idx] = convert(COLUMNS.get(idx), e.getValue());
+        }
+
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        setIfNull(values, "container", _container.getId());
+        setIfNull(values, "created", now);
+        setIfNull(values, "createdby", _user.getUserId());
+        setIfNull(values, "modified", now);
+        setIfNull(values, "modifiedby", _user.getUserId());
+
+        _rows.add(Arrays.asList(values));
+    }
+
+    public int getPendingRows()
+    {
+        return _rows.size();
+    }
+
+    /**
+     * Inserts all queued rows in one transaction, and clears the queue.
+     * @return The number of rows inserted
+     */
+    public int write() throws PipelineJobException
+    {
+        if (_rows.isEmpty())
+        {
+            return 0;
+        }
+
+        int total = _rows.size();
+        long start = System.currentTimeMillis();
+
+        DbSchema schema = SequenceAnalysisSchema.getInstance().getSchema();
+        String sql = "INSERT INTO " + SequenceAnalysisSchema.SCHEMA_NAME + "." + SequenceAnalysisSchema.TABLE_QUALITY_METRICS + " (" + String.join(", ", COLUMNS) + ") VALUES (" + String.join(", ", COLUMNS.stream().map(x -> "?").toList()) + ")";
+        try (DbScope.Transaction transaction = schema.getScope().ensureTransaction())
+        {
+            for (int i = 0; i < total; i += BATCH_SIZE)
+            {
+                Table.batchExecute(schema, sql, _rows.subList(i, Math.min(total, i + BATCH_SIZE)));
+            }
+
+            transaction.commit();
+        }
+        catch (SQLException e)
+        {
+            throw new PipelineJobException(e);
+        }
+
+        _rows.clear();
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        _log.info("Inserted " + total + " quality metrics in " + (elapsed / 1000.0) + " seconds (" + Math.round(total * 1000.0 / elapsed) + " rows/sec)");
+
+        return total;
+    }
+
+    private void setIfNull(Object[] values, String column, Object value)
+    {
+        int idx = COLUMNS.indexOf(column);
+        if (values[idx] == null)
+        {
+            values[idx] = value;
+        }
+    }
+
+    private Object convert(String column, Object value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+
+        switch (column)
+        {
+            case "container":
+                return value instanceof Container c ? c.getId() : value.toString();
+            case "metricvalue":
+                if (value instanceof Number n)
+                {
+                    return n.doubleValue();
+                }
+
+                try
+                {
+                    return Double.parseDouble(value.toString());
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IllegalArgumentException("Non-numeric value for metricvalue: " + value);
+                }
+            case "readset":
+            case "analysis_id":
+            case "dataid":
+            case "runid":
+            case "createdby":
+            case "modifiedby":
+                return value instanceof Number n ? n.intValue() : Integer.parseInt(value.toString());
+            case "created":
+            case "modified":
+                return value instanceof Date d ? new Timestamp(d.getTime()) : value;
+            default:
+                return value.toString();
+        }
+    }
+}
@@ -3000,6 +3000,8 @@ public void export(DownloadReferencesForm form, final HttpServletResponse respon
             final StringExpressionFactory.FieldKeyStringExpression se = StringExpressionFactory.URLStringExpression.create(form.getHeaderFormat(), false, StringExpressionFactory.AbstractStringExpression.NullValueBehavior.ReplaceNullWithBlank);
             Set<FieldKey> keys = new HashSet<>(se.getFieldKeys());
             keys.add(FieldKey.fromString("sequenceFile"));
+            keys.add(FieldKey.fromString("sequenceOffset"));
+            keys.add(FieldKey.fromString("seqLength"));
             keys.add(FieldKey.fromString("container"));
             keys.add(FieldKey.fromString("rowid"));
             TableInfo ti = QueryService.get().getUserSchema(getUser(), getContainer(), SequenceAnalysisSchema.SCHEMA_NAME).getTable(SequenceAnalysisSchema.TABLE_REF_NT_SEQUENCES);
@@ -3023,6 +3025,10 @@ public void exec(ResultSet object) throws SQLException
                     RefNtSequenceModel model = new RefNtSequenceModel();
                     if (rs.getObject(FieldKey.fromString("sequenceFile")) != null)
                         model.setSequenceFile(rs.getInt(FieldKey.fromString("sequenceFile")));
+                    if (rs.getObject(FieldKey.fromString("sequenceOffset")) != null)
+                        model.setSequenceOffset(rs.getLong(FieldKey.fromString("sequenceOffset")));
+                    if (rs.getObject(FieldKey.fromString("seqLength")) != null)
+                        model.setSeqLength(rs.getInt(FieldKey.fromString("seqLength")));
 
                     model.setContainer(rs.getString(FieldKey.fromString("container")));
 
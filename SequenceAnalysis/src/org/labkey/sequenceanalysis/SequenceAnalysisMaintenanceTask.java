@@ -327,6 +327,8 @@ private void processContainer(Container c, Logger log) throws IOException, Pipel
                 if (d.getFile().getAbsolutePath().toLowerCase().startsWith(sequenceDir.getAbsolutePath().toLowerCase()))
                 {
                     expectedSequences.add(d.getFile().getName());
+                    // BGZF sequence files have a .gzi index alongside them, which is not a separate ExpData
+                    expectedSequences.add(RefNtSequenceModel.getIndexFileName(d.getFile().getName()));
                 }
             });
 
@@ -26,16 +26,21 @@
 import org.junit.Test;
 import org.labkey.api.assay.AssayFileWriter;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.collections.CaseInsensitiveHashSet;
+import org.labkey.api.data.ColumnInfo;
 import org.labkey.api.data.CompareType;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.ConvertHelper;
 import org.labkey.api.data.DbSchema;
 import org.labkey.api.data.DbSchemaType;
 import org.labkey.api.data.DbScope;
+import org.labkey.api.data.RuntimeSQLException;
 import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.SchemaTableInfo;
 import org.labkey.api.data.Selector;
 import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.Sort;
 import org.labkey.api.data.SqlExecutor;
 import org.labkey.api.data.SqlSelector;
 import org.labkey.api.data.StopIteratingException;
@@ -67,6 +72,7 @@
 import org.labkey.api.sequenceanalysis.RefNtSequenceModel;
 import org.labkey.api.sequenceanalysis.SequenceOutputFile;
 import org.labkey.api.sequenceanalysis.pipeline.SequenceOutputHandler;
+import org.labkey.api.util.GUID;
 import org.labkey.api.util.Job;
 import org.labkey.api.util.JobRunner;
 import org.labkey.api.util.PageFlowUtil;
@@ -81,6 +87,7 @@
 import java.io.InputStream;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -97,6 +104,7 @@
     private static final SequenceAnalysisManager _instance = new SequenceAnalysisManager();
 
     private static final Logger _log = LogManager.getLogger(SequenceAnalysisManager.class);
+    private static final int INSERT_BATCH_SIZE = 1000;
 
     private List<String> _platforms = null;
 
@@ -482,6 +490,9 @@ private void deleteRefNtSequence(User user, Container container, List<Integer> r
         {
             List<Map<String, Object>> toDeleteQus = new ArrayList<>();
 
+            //sequence file ExpData rowId -> whether this is a packed file, which can be shared with other sequences
+            Map<Integer, Boolean> sequenceFiles = new HashMap<>();
+
             for (int rowId : rowIds)
             {
                 //first data from analyses
@@ -501,15 +512,10 @@ private void deleteRefNtSequence(User user, Container container, List<Integer> r
                 new SqlExecutor(s.getSchema()).execute(new SQLFragment("DELETE FROM " + SequenceAnalysisSchema.SCHEMA_NAME + "." + SequenceAnalysisSchema.TABLE_DRUG_RESISTANCE + " WHERE ref_nt_id = ?", rowId));
                 new SqlExecutor(s.getSchema()).execute(new SQLFragment("DELETE FROM " + SequenceAnalysisSchema.SCHEMA_NAME + "." + SequenceAnalysisSchema.TABLE_REF_AA_SEQUENCES + " WHERE ref_nt_id = ?", rowId));
 
-                //delete file on the filesystem, if present
                 RefNtSequenceModel ref = RefNtSequenceModel.getForRowId(rowId);
                 if (ref.getSequenceFile() != null)
                 {
-                    ExpData d = ExperimentService.get().getExpData(ref.getSequenceFile());
-                    if (d != null && d.getFile().exists())
-                    {
-                        d.getFile().delete();
-                    }
+                    sequenceFiles.merge(ref.getSequenceFile(), ref.getSequenceOffset() != null, Boolean::logicalOr);
                 }
 
                 //finally the sequence itself
@@ -543,6 +549,32 @@ private void deleteRefNtSequence(User user, Container container, List<Integer> r
                 }
             }
 
+            //delete files on the filesystem, if present. Packed files are shared with other sequences, and are only deleted with the last of these.
+            //the rows above have been deleted, so any remaining row using the file is a sequence that was not deleted
+            for (Map.Entry<Integer, Boolean> e : sequenceFiles.entrySet())
+            {
+                if (e.getValue())
+                {
+                    SimpleFilter sharedFilter = new SimpleFilter(FieldKey.fromString("sequenceFile"), e.getKey());
+                    if (new TableSelector(SequenceAnalysisSchema.getTable(SequenceAnalysisSchema.TABLE_REF_NT_SEQUENCES), PageFlowUtil.set("rowid"), sharedFilter, null).exists())
+                    {
+                        continue;
+                    }
+                }
+
+                ExpData d = ExperimentService.get().getExpData(e.getKey());
+                if (d != null && d.getFile().exists())
+                {
+                    d.getFile().delete();
+
+                    File index = new File(RefNtSequenceModel.getIndexFileName(d.getFile().getPath()));
+                    if (index.exists())
+                    {
+                        index.delete();
+                    }
+                }
+            }
+
             transaction.commit();
         }
     }
@@ -729,6 +761,10 @@ public ReferenceLibraryPipelineJob createReferenceLibrary(Container c, User u, S
         }
     }
 
+    /**
+     * Imports each FASTA record as a ref_nt_sequences row. The sequences are packed into a single BGZF file (one ExpData) for this import,
+     * and the rows are inserted using JDBC batches, so the cost per sequence does not include a separate file or DB round-trips.
+     */
     public List<Integer> importRefSequencesFromFasta(Container c, User u, File file, boolean splitWhitespace, Map<String, String> params, Logger log, @Nullable File outDir, @Nullable Integer jobId) throws IOException
     {
         PipeRoot root = PipelineService.get().getPipelineRootSetting(c);
@@ -737,64 +773,154 @@ public List<Integer> importRefSequencesFromFasta(Container c, User u, File file,
             throw new IllegalArgumentException("Pipeline root not defined for container: " + c.getPath());
         }
 
+        long startTime = System.currentTimeMillis();
         TableInfo dnaTable = SequenceAnalysisSchema.getTable(SequenceAnalysisSchema.TABLE_REF_NT_SEQUENCES);
-        List<Integer> sequenceIds = new ArrayList<>();
-        int processed = 0;
-        try (FastaDataLoader loader = new FastaDataLoader(file, false))
-        {
-            loader.setCharacterFilter(new FastaLoader.UpperAndLowercaseCharacterFilter());
+        List<Map<String, Object>> rows = new ArrayList<>();
+        Set<String> columnNames = new CaseInsensitiveHashSet();
+        Timestamp created = new Timestamp(System.currentTimeMillis());
 
-            try (CloseableIterator<Map<String, Object>> i = loader.iterator())
+        RefNtSequenceModel.PackedSequenceWriter writer = new RefNtSequenceModel.PackedSequenceWriter(c, "packed_" + GUID.makeGUID() + ".txt.gz", outDir);
+        try
+        {
+            try (FastaDataLoader loader = new FastaDataLoader(file, false))
             {
-                while (i.hasNext())
-                {
-                    processed++;
-                    if (log != null && processed % 100 == 0)
-                    {
-                        log.info("processed " + processed + " sequences");
-                    }
+                loader.setCharacterFilter(new FastaLoader.UpperAndLowercaseCharacterFilter());
 
-                    Map<String, Object> fastaRecord = i.next();
-                    CaseInsensitiveHashMap<Object> map = new CaseInsensitiveHashMap<>();
-                    if (params != null)
-                        map.putAll(params);
-
-                    if (!map.containsKey("name"))
+                try (CloseableIterator<Map<String, Object>> i = loader.iterator())
+                {
+                    while (i.hasNext())
                     {
-                        String header = (String) fastaRecord.get("header");
-                        if (splitWhitespace && header.contains(" "))
+                        if (log != null && rows.size() % 1000 == 0 && !rows.isEmpty())
                         {
-                            int idx = header.indexOf(" ");
-                            map.put("comments", header.substring(idx + 1));
-                            map.put("name", header.substring(0, idx));
+                            log.info("processed " + rows.size() + " sequences");
                         }
-                        else
+
+                        Map<String, Object> fastaRecord = i.next();
+                        CaseInsensitiveHashMap<Object> map = new CaseInsensitiveHashMap<>();
+                        if (params != null)
+                            map.putAll(params);
+
+                        if (!map.containsKey("name"))
                         {
-                            map.put("name", header);
+                            String header = (String) fastaRecord.get("header");
+                            if (splitWhitespace && header.contains(" "))
+                            {
+                                int idx = header.indexOf(" ");
+                                map.put("comments", header.substring(idx + 1));
+                                map.put("name", header.substring(0, idx));
+                            }
+                            else
+                            {
+                                map.put("name", header);
+                            }
                         }
+
+                        map.put("container", c.getId());
+                        map.put("created", created);
+                        map.put("createdby", u.getUserId());
+                        map.put("modified", created);
+                        map.put("modifiedby", u.getUserId());
+
+                        if (jobId != null)
+                            map.put("jobId", jobId);
+
+                        String sequence = (String) fastaRecord.get("sequence");
+                        map.put("sequenceOffset", writer.addSequence(sequence));
+                        map.put("seqLength", sequence.length());
+
+                        rows.add(map);
+                        columnNames.addAll(map.keySet());
                     }
+                }
+            }
 
-                    map.put("container", c.getId());
-                    map.put("created", new Date());
-                    map.put("createdby", u.getUserId());
-                    map.put("modified", new Date());
-                    map.put("modifiedby", u.getUserId());
+            //the ExpData and the rows that reference it are saved together, so a failed insert does not leave an orphaned ExpData
+            List<Integer> sequenceIds;
+            try (DbScope.Transaction transaction = ExperimentService.get().ensureTransaction())
+            {
+                ExpData d = writer.finish(c, u);
+                columnNames.add("sequenceFile");
+                rows.forEach(row -> row.put("sequenceFile", d.getRowId()));
 
-                    if (jobId != null)
-                        map.put("jobId", jobId);
+                sequenceIds = insertRefSequences(dnaTable, rows, new ArrayList<>(columnNames), d.getRowId());
+                transaction.commit();
+            }
 
-                    map = Table.insert(u, dnaTable, map);
-                    sequenceIds.add((Integer) map.get("rowid"));
+            if (log != null)
+            {
+                double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+                log.info("imported " + sequenceIds.size() + " sequences in " + seconds + " seconds (" + Math.round(sequenceIds.size() / seconds) + " sequences/sec)");
+            }
 
-                    RefNtSequenceModel m = new TableSelector(dnaTable, new SimpleFilter(FieldKey.fromString("rowid"), map.get("rowid")), null).getObject(RefNtSequenceModel.class);
+            return sequenceIds;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            writer.close();
+            writer.getFile().delete();
+            new File(RefNtSequenceModel.getIndexFileName(writer.getFile().getPath())).delete();
 
-                    //to better handle large sequences, write sequence to a gzipped text file
-                    m.createFileForSequence(u, (String) fastaRecord.get("sequence"), outDir);
-                }
+            throw e;
+        }
+    }
+
+    private List<Integer> insertRefSequences(TableInfo dnaTable, List<Map<String, Object>> rows, List<String> columnNames, int sequenceFileId)
+    {
+        if (rows.isEmpty())
+        {
+            return Collections.emptyList();
+        }
+
+        List<ColumnInfo> columns = new ArrayList<>();
+        for (String name : columnNames)
+        {
+            ColumnInfo col = dnaTable.getColumn(name);
+            if (col == null || !col.getName().matches("^[A-Za-z_][A-Za-z0-9_]*$"))
+            {
+                throw new IllegalArgumentException("Unknown column for reference sequences: " + name);
             }
+
+            columns.add(col);
         }
 
-        return sequenceIds;
+        String sql = "INSERT INTO " + SequenceAnalysisSchema.SCHEMA_NAME + "." + SequenceAnalysisSchema.TABLE_REF_NT_SEQUENCES +
+                " (" + StringUtils.join(columns.stream().map(ColumnInfo::getName).toList(), ", ") + ") VALUES (" + StringUtils.repeat("?", ", ", columns.size()) + ")";
+
+        List<List<Object>> paramList = new ArrayList<>(rows.size());
+        for (Map<String, Object> row : rows)
+        {
+            List<Object> params = new ArrayList<>(columns.size());
+            for (ColumnInfo col : columns)
+            {
+                Object val = row.get(col.getName());
+                params.add(val == null || val instanceof Date ? val : ConvertHelper.convert(val, col.getJavaClass()));
+            }
+            paramList.add(params);
+        }
+
+        DbSchema schema = SequenceAnalysisSchema.getInstance().getSchema();
+        try (DbScope.Transaction transaction = schema.getScope().ensureTransaction())
+        {
+            for (int i = 0; i < paramList.size(); i += INSERT_BATCH_SIZE)
+            {
+                Table.batchExecute(schema, sql, paramList.subList(i, Math.min(paramList.size(), i + INSERT_BATCH_SIZE)));
+            }
+
+            // Rows from one import share a sequence file, and rowids are assigned in insert order, which gives the rowid for each FASTA record:
+            List<Integer> sequenceIds = new TableSelector(dnaTable, PageFlowUtil.set("rowid"), new SimpleFilter(FieldKey.fromString("sequenceFile"), sequenceFileId), new Sort("rowid")).getArrayList(Integer.class);
+            if (sequenceIds.size() != rows.size())
+            {
+                throw new IllegalStateException("Expected " + rows.size() + " sequences to be inserted, found: " + sequenceIds.size());
+            }
+
+            transaction.commit();
+
+            return sequenceIds;
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeSQLException(e);
+        }
     }
 
     public void addChainFile(Container c, User u, File file, int genomeId1, int genomeId2, String source, Double version) throws Exception
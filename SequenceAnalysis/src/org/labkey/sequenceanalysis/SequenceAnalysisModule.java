@@ -60,6 +60,7 @@
 import org.labkey.sequenceanalysis.analysis.SbtGeneCountHandler;
 import org.labkey.sequenceanalysis.analysis.UnmappedSequenceBasedGenotypeHandler;
 import org.labkey.sequenceanalysis.analysis.UpdateReadsetFilesHandler;
+import org.labkey.sequenceanalysis.api.picard.CigarPositionBuffer;
 import org.labkey.sequenceanalysis.button.AddSraRunButton;
 import org.labkey.sequenceanalysis.button.ArchiveReadsetsButton;
 import org.labkey.sequenceanalysis.button.ChangeReadsetStatusButton;
@@ -119,6 +120,8 @@
 import org.labkey.sequenceanalysis.run.variant.*;
 import org.labkey.sequenceanalysis.util.Barcoder;
 import org.labkey.sequenceanalysis.util.ChainFileValidator;
+import org.labkey.sequenceanalysis.util.FastqMetricsCalculator;
+import org.labkey.sequenceanalysis.util.IntHashSet;
 import org.labkey.sequenceanalysis.util.ScatterGatherUtils;
 
 import java.util.Arrays;
@@ -146,7 +149,7 @@ public String getName()
     @Override
     public Double getSchemaVersion()
     {
-        return 12.329;
+        return 12.330;
     }
 
     @Override
@@ -446,6 +449,7 @@ public Set<Class> getIntegrationTests()
             Barcoder.TestCase.class,
             BamIterator.TestCase.class,
             SequenceIntegrationTests.SequenceImportPipelineTestCase.class,
+            SequenceIntegrationTests.RefNtSequenceStorageTestCase.class,
             //SequenceIntegrationTests.SequenceAnalysisPipelineTestCase3.class,
             SequenceIntegrationTests.SequenceAnalysisPipelineTestCase1.class,
             SequenceIntegrationTests.SequenceAnalysisPipelineTestCase2.class,
@@ -471,7 +475,12 @@ public Set<Class> getUnitTests()
                 VariantProcessingJob.TestCase.class,
                 ScatterGatherUtils.TestCase.class,
                 ChainFileValidator.TestCase.class,
-                FastqcRunner.TestCase.class
+                FastqcRunner.TestCase.class,
+                FastqMetricsCalculator.TestCase.class,
+                CigarPositionBuffer.TestCase.class,
+                IntHashSet.TestCase.class,
+                AvgBaseQualityAggregator.TestCase.class,
+                NtCoverageAggregator.TestCase.class
         );
     }
 
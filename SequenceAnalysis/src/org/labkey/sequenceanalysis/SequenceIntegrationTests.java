@@ -9,8 +9,10 @@
 import htsjdk.samtools.fastq.FastqRecord;
 import htsjdk.samtools.fastq.FastqWriter;
 import htsjdk.samtools.fastq.FastqWriterFactory;
+import htsjdk.samtools.util.IOUtil;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.filefilter.IOFileFilter;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
@@ -32,6 +34,7 @@
 import org.labkey.api.exp.api.DataType;
 import org.labkey.api.exp.api.ExpData;
 import org.labkey.api.exp.api.ExperimentService;
+import org.labkey.api.files.FileContentService;
 import org.labkey.api.module.FolderTypeManager;
 import org.labkey.api.module.Module;
 import org.labkey.api.module.ModuleLoader;
@@ -61,6 +64,7 @@
 import org.labkey.api.util.Path;
 import org.labkey.api.util.TestContext;
 import org.labkey.api.view.ViewServlet;
+import org.labkey.api.writer.PrintWriters;
 import org.labkey.sequenceanalysis.model.BarcodeModel;
 import org.labkey.sequenceanalysis.pipeline.ReferenceLibraryPipelineJob;
 import org.labkey.sequenceanalysis.pipeline.SequenceAlignmentJob;
@@ -74,8 +78,14 @@
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -87,8 +97,10 @@
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * User: bimber
@@ -3184,6 +3196,264 @@ public void testBismarkWithSavedLibraryAdaptersAndDelete() throws Exception
         }
     }
 
+    public static class RefNtSequenceStorageTestCase extends AbstractPipelineTestCase
+    {
+        private static final String PROJECT_NAME = "RefNtSequenceStorageTestProject";
+
+        // Spans several BGZF blocks, which each hold up to 65280 bases
+        private static final int SEQUENCE_LENGTH = 200000;
+        private static final int BGZF_BLOCK_LENGTH = 65280;
+
+        @BeforeClass
+        public static void initialSetUp() throws Exception
+        {
+            doInitialSetUp(PROJECT_NAME);
+        }
+
+        @AfterClass
+        public static void cleanup()
+        {
+            doCleanup(PROJECT_NAME);
+        }
+
+        @Override
+        protected String getProjectName()
+        {
+            return PROJECT_NAME;
+        }
+
+        @Test
+        public void testBgzfSequenceRanges() throws Exception
+        {
+            String sequence = generateSequence(SEQUENCE_LENGTH, 1);
+            RefNtSequenceModel model = createSequenceRecord("BgzfRangeTest");
+            model.createFileForSequence(_context.getUser(), sequence, null);
+
+            File f = ExperimentService.get().getExpData(model.getSequenceFile()).getFile();
+            assertTrue("Expected a BGZF file: " + f.getPath(), IOUtil.isBlockCompressed(f.toPath()));
+            assertTrue("Missing BGZF index: " + f.getPath(), new File(RefNtSequenceModel.getIndexFileName(f.getPath())).exists());
+
+            assertSequenceRanges(model.getRowid(), sequence);
+        }
+
+        @Test
+        public void testLegacyGzipSequenceRanges() throws Exception
+        {
+            // Older sequences were written with plain gzip, which cannot be seeked and is decompressed up to the start position
+            String sequence = generateSequence(SEQUENCE_LENGTH, 2);
+            RefNtSequenceModel model = createSequenceRecord("GzipRangeTest");
+
+            File dir = new File(FileContentService.get().getFileRoot(_project, FileContentService.ContentType.files), ".sequences");
+            dir.mkdirs();
+            File f = new File(dir, model.getRowid() + ".txt.gz");
+            try (OutputStream os = new GZIPOutputStream(new FileOutputStream(f)))
+            {
+                os.write(sequence.getBytes(StandardCharsets.US_ASCII));
+            }
+            assertFalse("Expected a plain gzip file: " + f.getPath(), IOUtil.isBlockCompressed(f.toPath()));
+
+            ExpData d = ExperimentService.get().createData(_project, new DataType("Sequence Data"));
+            d.setName(f.getName());
+            d.setDataFileURI(f.toURI());
+            d.save(_context.getUser());
+
+            // Legacy records may also lack a length
+            model.setSequenceFile(d.getRowId());
+            model.setSeqLength(null);
+            Table.update(_context.getUser(), SequenceAnalysisSchema.getTable(SequenceAnalysisSchema.TABLE_REF_NT_SEQUENCES), model, model.getRowid());
+
+            assertSequenceRanges(model.getRowid(), sequence);
+        }
+
+        @Test
+        public void testPackedFastaImport() throws Exception
+        {
+            // Varied lengths, so that sequences start mid-block, span BGZF blocks and end at the start of the next sequence
+            int[] lengths = new int[]{50, 1, 150000, 70000, 33};
+            List<String> sequences = new ArrayList<>();
+            File fasta = new File(_pipelineRoot, "packedImport.fasta");
+            try (PrintWriter writer = PrintWriters.getPrintWriter(fasta))
+            {
+                for (int i = 0; i < lengths.length; i++)
+                {
+                    String sequence = generateSequence(lengths[i], 10 + i);
+                    sequences.add(sequence);
+                    writer.write(">PackedSeq" + i + " comment " + i + "\n");
+                    writer.write(wrap(sequence, 60));
+                }
+            }
+
+            List<Integer> rowIds = SequenceAnalysisManager.get().importRefSequencesFromFasta(_project, _context.getUser(), fasta, true, null, _log, null, null);
+            assertEquals("Incorrect number of sequences imported", lengths.length, rowIds.size());
+
+            // All records share one BGZF file, and each stores its position within it:
+            Integer sequenceFile = null;
+            long expectedOffset = 0;
+            for (int i = 0; i < rowIds.size(); i++)
+            {
+                RefNtSequenceModel model = RefNtSequenceModel.getForRowId(rowIds.get(i));
+                assertEquals("PackedSeq" + i, model.getName());
+                assertEquals("comment " + i, model.getComments());
+                assertEquals(Integer.valueOf(lengths[i]), model.getSeqLength());
+                assertEquals("Incorrect offset for: " + model.getName(), Long.valueOf(expectedOffset), model.getSequenceOffset());
+                assertNotNull(model.getSequenceFile());
+                if (sequenceFile == null)
+                {
+                    sequenceFile = model.getSequenceFile();
+                }
+                assertEquals("Sequences should share one file", sequenceFile, model.getSequenceFile());
+
+                expectedOffset += lengths[i];
+            }
+
+            File packed = ExperimentService.get().getExpData(sequenceFile).getFile();
+            File index = new File(RefNtSequenceModel.getIndexFileName(packed.getPath()));
+            assertTrue("Expected a BGZF file: " + packed.getPath(), IOUtil.isBlockCompressed(packed.toPath()));
+            assertTrue("Missing BGZF index: " + index.getPath(), index.exists());
+
+            // Reads are bounded by each sequence, and never include bases from the next one:
+            for (int i = 0; i < rowIds.size(); i++)
+            {
+                assertEquals(sequences.get(i), RefNtSequenceModel.getForRowId(rowIds.get(i)).getSequence());
+                assertSequenceRanges(rowIds.get(i), sequences.get(i));
+            }
+
+            // The FASTA download builds a model from only the file, offset and length:
+            for (int i = 0; i < rowIds.size(); i++)
+            {
+                RefNtSequenceModel model = RefNtSequenceModel.getForRowId(rowIds.get(i));
+                RefNtSequenceModel downloadModel = new RefNtSequenceModel();
+                downloadModel.setSequenceFile(model.getSequenceFile());
+                downloadModel.setSequenceOffset(model.getSequenceOffset());
+                downloadModel.setSeqLength(model.getSeqLength());
+                downloadModel.setContainer(model.getContainer());
+
+                StringWriter sw = new StringWriter();
+                downloadModel.writeSequence(sw, 60);
+                assertEquals("Incorrect download for: " + model.getName(), wrap(sequences.get(i), 60), sw.toString());
+
+                // 1-based, inclusive sub-region:
+                int start = Math.min(lengths[i], 10);
+                int end = Math.min(lengths[i], 70000);
+                sw = new StringWriter();
+                RefNtSequenceModel.getForRowId(rowIds.get(i)).writeSequence(sw, 60, start, end);
+                assertEquals("Incorrect download of region for: " + model.getName(), wrap(sequences.get(i).substring(start - 1, end), 60), sw.toString());
+            }
+
+            // Deleting some records must leave the shared file in place for the others:
+            SequenceAnalysisManager.get().deleteRefNtSequence(_context.getUser(), _project, Arrays.asList(rowIds.get(0), rowIds.get(2)));
+            assertNull(RefNtSequenceModel.getForRowId(rowIds.get(0)));
+            assertTrue("Shared file should not be deleted while in use: " + packed.getPath(), packed.exists());
+            assertTrue("Shared index should not be deleted while in use: " + index.getPath(), index.exists());
+            for (int i : new int[]{1, 3, 4})
+            {
+                assertEquals(sequences.get(i), RefNtSequenceModel.getForRowId(rowIds.get(i)).getSequence());
+            }
+
+            // The file is removed along with the last records that use it:
+            SequenceAnalysisManager.get().deleteRefNtSequence(_context.getUser(), _project, Arrays.asList(rowIds.get(1), rowIds.get(3), rowIds.get(4)));
+            assertFalse("Packed file should be deleted with its last sequence: " + packed.getPath(), packed.exists());
+            assertFalse("Packed index should be deleted with its last sequence: " + index.getPath(), index.exists());
+        }
+
+        private static String wrap(String sequence, int lineLength)
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < sequence.length(); i += lineLength)
+            {
+                sb.append(sequence, i, Math.min(sequence.length(), i + lineLength)).append('\n');
+            }
+
+            return sb.toString();
+        }
+
+        protected RefNtSequenceModel createSequenceRecord(String name)
+        {
+            RefNtSequenceModel m = new RefNtSequenceModel();
+            m.setName(name);
+            m.setCategory("Virus");
+            m.setContainer(_project.getId());
+            m.setCreated(new Date());
+            m.setCreatedby(_context.getUser().getUserId());
+            m.setModified(new Date());
+            m.setModifiedby(_context.getUser().getUserId());
+
+            return Table.insert(_context.getUser(), SequenceAnalysisSchema.getTable(SequenceAnalysisSchema.TABLE_REF_NT_SEQUENCES), m);
+        }
+
+        protected static String generateSequence(int length, long seed)
+        {
+            // Includes IUPAC codes and lowercase, which must be preserved
+            String alphabet = "ACGTACGTACGTNRYacgt";
+            Random random = new Random(seed);
+            StringBuilder sb = new StringBuilder(length);
+            for (int i = 0; i < length; i++)
+            {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+
+            return sb.toString();
+        }
+
+        protected void assertSequenceRanges(int rowId, String expected) throws IOException
+        {
+            int length = expected.length();
+            long[][] ranges = new long[][]{
+                    {0, 10},
+                    {0, 0},
+                    {1, 2},
+                    {BGZF_BLOCK_LENGTH - 10, BGZF_BLOCK_LENGTH + 10},
+                    {BGZF_BLOCK_LENGTH, BGZF_BLOCK_LENGTH + 1},
+                    {(2 * BGZF_BLOCK_LENGTH) - 1, (2 * BGZF_BLOCK_LENGTH) + 1},
+                    {100, 100 + (3 * BGZF_BLOCK_LENGTH)},
+                    {Math.max(0, length - 5), length},
+                    {Math.max(0, length - 5), length + 100},
+                    {length, length + 10},
+                    {length + 5, length + 10}
+            };
+
+            for (long[] range : ranges)
+            {
+                // A new model is used for each read, so this reads from the file rather than a cached sequence:
+                byte[] bases = RefNtSequenceModel.getForRowId(rowId).getSequenceBases(range[0], range[1]);
+                assertNotNull("No bases returned for range: " + range[0] + "-" + range[1], bases);
+                assertEquals("Incorrect bases for range: " + range[0] + "-" + range[1], getExpectedRange(expected, range[0], range[1]), new String(bases, StandardCharsets.US_ASCII));
+            }
+
+            for (long start : new long[]{0, 1, BGZF_BLOCK_LENGTH - 1, BGZF_BLOCK_LENGTH, Math.max(0, length - 1), length, length + 10})
+            {
+                try (InputStream is = RefNtSequenceModel.getForRowId(rowId).getSequenceInputStream(start))
+                {
+                    assertNotNull("No stream returned for start: " + start, is);
+                    assertEquals("Incorrect stream for start: " + start, getExpectedRange(expected, start, length), IOUtils.toString(is, StandardCharsets.US_ASCII));
+                }
+            }
+
+            // Once the sequence is cached, ranges are read from memory and must match:
+            RefNtSequenceModel model = RefNtSequenceModel.getForRowId(rowId);
+            assertEquals(expected, model.getSequence());
+            for (long[] range : ranges)
+            {
+                assertEquals("Incorrect cached bases for range: " + range[0] + "-" + range[1], getExpectedRange(expected, range[0], range[1]), new String(model.getSequenceBases(range[0], range[1]), StandardCharsets.US_ASCII));
+            }
+
+            try
+            {
+                model.getSequenceBases(10, 5);
+                fail("Expected an invalid range to be rejected");
+            }
+            catch (IllegalArgumentException e)
+            {
+                //expected
+            }
+        }
+
+        private static String getExpectedRange(String sequence, long start, long end)
+        {
+            return sequence.substring((int)Math.min(start, sequence.length()), (int)Math.min(end, sequence.length()));
+        }
+    }
+
     public static RefNtSequenceModel ensureSivMac239(Container c, Logger log)
     {
         log.info("ensure SIVMac239 NT record exists");
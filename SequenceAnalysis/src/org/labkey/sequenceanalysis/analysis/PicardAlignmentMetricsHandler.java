@@ -2,8 +2,6 @@
 
 import org.json.JSONObject;
 import org.labkey.api.data.SimpleFilter;
-import org.labkey.api.data.Table;
-import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.TableSelector;
 import org.labkey.api.module.ModuleLoader;
 import org.labkey.api.pipeline.PipelineJob;
@@ -24,7 +22,7 @@
 import org.labkey.api.util.FileType;
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.PageFlowUtil;
-import org.labkey.sequenceanalysis.SequenceAnalysisManager;
+import org.labkey.sequenceanalysis.QualityMetricsWriter;
 import org.labkey.sequenceanalysis.SequenceAnalysisModule;
 import org.labkey.sequenceanalysis.SequenceAnalysisSchema;
 import org.labkey.sequenceanalysis.model.AnalysisModelImpl;
@@ -229,7 +227,7 @@ else if (runMarkDuplicates)
                         throw new PipelineJobException("Missing file: " + mf5.getPath());
                     }
 
-                    TableInfo ti = SequenceAnalysisManager.get().getTable(SequenceAnalysisSchema.TABLE_QUALITY_METRICS);
+                    QualityMetricsWriter writer = new QualityMetricsWriter(ctx.getJob().getUser(), ctx.getJob().getContainer(), ctx.getJob().getLogger());
                     for (File f : metricsFiles)
                     {
                         List<Map<String, Object>> lines = PicardMetricsUtil.processFile(f, ctx.getJob().getLogger());
@@ -242,9 +240,10 @@ else if (runMarkDuplicates)
                             row.put("analysis_id", m.getRowId());
                             row.put("dataid", m.getAlignmentFile());
 
-                            Table.insert(ctx.getJob().getUser(), ti, row);
+                            writer.add(row);
                         }
                     }
+                    writer.write();
                 }
                 else
                 {
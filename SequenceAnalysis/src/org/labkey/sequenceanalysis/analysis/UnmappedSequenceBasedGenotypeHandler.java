@@ -297,7 +297,7 @@ public void processFilesRemote(List<SequenceOutputFile> inputFiles, JobContext c
                                 }
 
                                 FastqAggregate fa = uniqueReads.get(sequence);
-                                fa.addSample(so.getReadset().toString(), map.get("header").toString(), agg.getUniqueReads().size());
+                                fa.addSample(so.getReadset().toString(), map.get("header").toString(), agg.getUniqueReadCount());
                             }
                         }
                     }
@@ -0,0 +1,466 @@
+package org.labkey.sequenceanalysis.api.picard;
+
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.TextCigarCodec;
+import htsjdk.samtools.ValidationStringency;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.util.FileUtil;
+import org.labkey.sequenceanalysis.run.analysis.BamIterator;
+import org.labkey.sequenceanalysis.run.util.NTSnp;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * A reusable, primitive-array alternative to CigarPositionIterable. fill() walks the CIGAR of a record once, recording the
+ * same per-position values that PositionInfo reports, and the indexes of positions where the read differs from the reference.
+ * The arrays are grown as needed and reused across records, so after warm-up no allocation occurs per alignment.
+ *
+ * This is not thread-safe; each thread iterating alignments should use its own instance.
+ */
+public class CigarPositionBuffer
+{
+    private static final int INITIAL_SIZE = 512;
+
+    private SAMRecord _record;
+    private int _size = 0;
+    private int _mismatchCount = 0;
+
+    private CigarOperator[] _ops = new CigarOperator[INITIAL_SIZE];
+    private int[] _readPositions = new int[INITIAL_SIZE];
+    private int[] _refPositions = new int[INITIAL_SIZE];
+    private int[] _lastReadPositions = new int[INITIAL_SIZE];
+    private int[] _lastRefPositions = new int[INITIAL_SIZE];
+    private int[] _indels = new int[INITIAL_SIZE];
+    private int[] _mismatches = new int[INITIAL_SIZE];
+
+    /**
+     * Walks the CIGAR of this record, replacing any previous contents of the buffer.
+     * @param refBases The reference bases. If null, mismatches are not computed.
+     */
+    public void fill(SAMRecord record, @Nullable byte[] refBases)
+    {
+        _record = record;
+        _size = 0;
+        _mismatchCount = 0;
+
+        Cigar cigar = record.getCigar();
+        byte[] readBases = record.getReadBases();
+        int readPos = 0; //0-based
+        int refPos = record.getAlignmentStart() - 1; //0-based
+
+        //the index of the most recent position that consumed read or reference bases, -1 if none
+        int lastReadIdx = -1;
+        int lastRefIdx = -1;
+
+        for (CigarElement el : cigar.getCigarElements())
+        {
+            CigarOperator op = el.getOperator();
+            boolean consumesRead = op.consumesReadBases();
+            boolean consumesRef = op.consumesReferenceBases();
+            boolean includeInSnpCount = isIndel(op) || (consumesRead && consumesRef && !isSkipped(op));
+
+            for (int j = 0; j < el.getLength(); j++)
+            {
+                int i = _size;
+                ensureCapacity(i + 1);
+                _ops[i] = op;
+
+                //NOTE: these mirror the calculations in CigarPositionIterable.PositionInfo
+                int indel = 0;
+                if (consumesRead)
+                {
+                    _readPositions[i] = readPos;
+                    _lastReadPositions[i] = readPos;
+                    lastReadIdx = i;
+                    readPos++;
+                }
+                else
+                {
+                    _readPositions[i] = -1;
+                    if (lastReadIdx > -1)
+                    {
+                        _lastReadPositions[i] = _readPositions[lastReadIdx];
+                        indel = lastReadIdx - i;
+                    }
+                    else
+                    {
+                        _lastReadPositions[i] = 0;
+                    }
+                }
+
+                if (consumesRef)
+                {
+                    _refPositions[i] = refPos;
+                    _lastRefPositions[i] = refPos;
+                    lastRefIdx = i;
+                    refPos++;
+                }
+                else
+                {
+                    _refPositions[i] = -1;
+                    if (lastRefIdx > -1)
+                    {
+                        _lastRefPositions[i] = _refPositions[lastRefIdx];
+                        indel = i - lastRefIdx;
+                    }
+                    else
+                    {
+                        _lastRefPositions[i] = 0;
+                    }
+                }
+
+                _indels[i] = indel;
+                _size++;
+
+                if (refBases != null && includeInSnpCount)
+                {
+                    byte refBase = op == CigarOperator.INSERTION ? BamIterator.INDEL_CHARACTER : refBases[_refPositions[i]];
+                    byte readBase = op == CigarOperator.DELETION ? BamIterator.INDEL_CHARACTER : readBases[_readPositions[i]];
+                    if (refBase != readBase)
+                    {
+                        if (_mismatchCount == _mismatches.length)
+                        {
+                            _mismatches = Arrays.copyOf(_mismatches, _mismatches.length * 2);
+                        }
+
+                        _mismatches[_mismatchCount] = i;
+                        _mismatchCount++;
+                    }
+                }
+            }
+        }
+    }
+
+    private void ensureCapacity(int size)
+    {
+        if (size <= _ops.length)
+        {
+            return;
+        }
+
+        int newSize = Math.max(size, _ops.length * 2);
+        _ops = Arrays.copyOf(_ops, newSize);
+        _readPositions = Arrays.copyOf(_readPositions, newSize);
+        _refPositions = Arrays.copyOf(_refPositions, newSize);
+        _lastReadPositions = Arrays.copyOf(_lastReadPositions, newSize);
+        _lastRefPositions = Arrays.copyOf(_lastRefPositions, newSize);
+        _indels = Arrays.copyOf(_indels, newSize);
+    }
+
+    private static boolean isSkipped(CigarOperator op)
+    {
+        return op == CigarOperator.SOFT_CLIP || op == CigarOperator.HARD_CLIP || op == CigarOperator.SKIPPED_REGION;
+    }
+
+    private static boolean isIndel(CigarOperator op)
+    {
+        return op == CigarOperator.INSERTION || op == CigarOperator.DELETION;
+    }
+
+    public SAMRecord getRecord()
+    {
+        return _record;
+    }
+
+    /**
+     * @return The number of positions in the exploded CIGAR
+     */
+    public int size()
+    {
+        return _size;
+    }
+
+    /**
+     * @return The number of positions included in SNP counts where the read base differs from the reference base
+     */
+    public int getMismatchCount()
+    {
+        return _mismatchCount;
+    }
+
+    /**
+     * @param i The index of the mismatch, from 0 to getMismatchCount() - 1
+     * @return The position (an index into the exploded CIGAR) of this mismatch
+     */
+    public int getMismatchPosition(int i)
+    {
+        return _mismatches[i];
+    }
+
+    public CigarOperator getCigarOperator(int pos)
+    {
+        return _ops[pos];
+    }
+
+    /**
+     * @see CigarPositionIterable.PositionInfo#getReadPosition()
+     */
+    public int getReadPosition(int pos)
+    {
+        return _readPositions[pos];
+    }
+
+    /**
+     * @see CigarPositionIterable.PositionInfo#getRefPosition()
+     */
+    public int getRefPosition(int pos)
+    {
+        return _refPositions[pos];
+    }
+
+    /**
+     * @see CigarPositionIterable.PositionInfo#getLastReadPosition()
+     */
+    public int getLastReadPosition(int pos)
+    {
+        return _lastReadPositions[pos];
+    }
+
+    /**
+     * @see CigarPositionIterable.PositionInfo#getLastRefPosition()
+     */
+    public int getLastRefPosition(int pos)
+    {
+        return _lastRefPositions[pos];
+    }
+
+    /**
+     * @see CigarPositionIterable.PositionInfo#getIndel()
+     */
+    public int getIndel(int pos)
+    {
+        return _indels[pos];
+    }
+
+    /**
+     * @see CigarPositionIterable.PositionInfo#getInsertIndex()
+     */
+    public int getInsertIndex(int pos)
+    {
+        return _indels[pos] <= 0 ? 0 : _indels[pos];
+    }
+
+    /**
+     * @see CigarPositionIterable.PositionInfo#getReadBase()
+     */
+    public byte getReadBase(int pos)
+    {
+        return _ops[pos] == CigarOperator.DELETION ? BamIterator.INDEL_CHARACTER : _record.getReadBases()[_readPositions[pos]];
+    }
+
+    /**
+     * @see CigarPositionIterable.PositionInfo#getBaseQuality()
+     */
+    public int getBaseQuality(int pos)
+    {
+        return _record.getBaseQualities()[_lastReadPositions[pos]];
+    }
+
+    /**
+     * @see CigarPositionIterable.PositionInfo#includeInSnpCount()
+     */
+    public boolean includeInSnpCount(int pos)
+    {
+        CigarOperator op = _ops[pos];
+        return isIndel(op) || (op.consumesReadBases() && op.consumesReferenceBases() && !isSkipped(op));
+    }
+
+    /**
+     * Creates a PositionInfo for this position. This allocates, so it is intended for the relatively small number of positions that are mismatches.
+     */
+    public CigarPositionIterable.PositionInfo getPositionInfo(int pos)
+    {
+        return new CigarPositionIterable.PositionInfo(_record, _ops[pos], _readPositions[pos], _refPositions[pos], _lastReadPositions[pos], _lastRefPositions[pos], _indels[pos]);
+    }
+
+    public static class TestCase extends Assert
+    {
+        static final String[] CIGARS = new String[]{"50M", "5S45M", "10M2I38M", "10M3D40M", "3H10M1I1D10M2S", "20M100N30M", "5I45M", "10M2D3I37M"};
+
+        static SAMFileHeader getHeader(int refLength)
+        {
+            SAMFileHeader header = new SAMFileHeader();
+            header.addSequence(new SAMSequenceRecord("chr1", refLength));
+            header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+
+            return header;
+        }
+
+        static SAMRecord createRecord(SAMFileHeader header, String name, String cigar, int start, Random random)
+        {
+            SAMRecord r = new SAMRecord(header);
+            r.setReadName(name);
+            r.setReferenceIndex(0);
+            r.setAlignmentStart(start);
+            r.setCigar(TextCigarCodec.decode(cigar));
+            r.setMappingQuality(60);
+
+            int length = r.getCigar().getReadLength();
+            byte[] bases = new byte[length];
+            byte[] quals = new byte[length];
+            for (int i = 0; i < length; i++)
+            {
+                bases[i] = (byte)"ACGTN".charAt(random.nextInt(random.nextInt(20) == 0 ? 5 : 4));
+                quals[i] = (byte)random.nextInt(41);
+            }
+            r.setReadBases(bases);
+            r.setBaseQualities(quals);
+
+            return r;
+        }
+
+        static byte[] createReference(int length, Random random)
+        {
+            byte[] ref = new byte[length];
+            for (int i = 0; i < length; i++)
+            {
+                ref[i] = (byte)"ACGT".charAt(random.nextInt(4));
+            }
+
+            return ref;
+        }
+
+        @Test
+        public void testMatchesCigarPositionIterable()
+        {
+            Random random = new Random(1234);
+            byte[] ref = createReference(500, random);
+            SAMFileHeader header = getHeader(ref.length);
+            CigarPositionBuffer buffer = new CigarPositionBuffer();
+
+            for (String cigar : CIGARS)
+            {
+                SAMRecord r = createRecord(header, cigar, cigar, 100, random);
+                buffer.fill(r, ref);
+
+                List<Integer> expectedMismatches = new ArrayList<>();
+                CigarPositionIterable.CigarIterator ci = new CigarPositionIterable(r).iterator();
+                int pos = 0;
+                while (ci.hasNext())
+                {
+                    CigarPositionIterable.PositionInfo pi = ci.next();
+                    assertEquals(cigar, pi.getCigarOperator(), buffer.getCigarOperator(pos));
+                    assertEquals(cigar, pi.getReadPosition(), buffer.getReadPosition(pos));
+                    assertEquals(cigar, pi.getRefPosition(), buffer.getRefPosition(pos));
+                    assertEquals(cigar, pi.getLastReadPosition(), buffer.getLastReadPosition(pos));
+                    assertEquals(cigar, pi.getLastRefPosition(), buffer.getLastRefPosition(pos));
+                    assertEquals(cigar, pi.getIndel(), buffer.getIndel(pos));
+                    assertEquals(cigar, pi.getInsertIndex(), buffer.getInsertIndex(pos));
+                    assertEquals(cigar, pi.includeInSnpCount(), buffer.includeInSnpCount(pos));
+                    if (pi.includeInSnpCount())
+                    {
+                        assertEquals(cigar, pi.getReadBase(), buffer.getReadBase(pos));
+                        if (pi.getReferenceBase(ref) != pi.getReadBase())
+                        {
+                            expectedMismatches.add(pos);
+                        }
+                    }
+
+                    pos++;
+                }
+
+                assertEquals(cigar, pos, buffer.size());
+                assertEquals(cigar, expectedMismatches.size(), buffer.getMismatchCount());
+                for (int i = 0; i < expectedMismatches.size(); i++)
+                {
+                    assertEquals(cigar, (int)expectedMismatches.get(i), buffer.getMismatchPosition(i));
+
+                    CigarPositionIterable.PositionInfo pi = buffer.getPositionInfo(buffer.getMismatchPosition(i));
+                    assertEquals(cigar, buffer.getLastRefPosition(buffer.getMismatchPosition(i)), pi.getLastRefPosition());
+                    assertEquals(cigar, buffer.getIndel(buffer.getMismatchPosition(i)), pi.getIndel());
+                }
+            }
+        }
+
+        /**
+         * Compares the SNPs found by the previous per-position approach (a PositionInfo and NTSnp per position, sorted per read)
+         * against this buffer, for reads written to and read back from a BAM.
+         */
+        @Test
+        public void testMatchesCigarPositionIterableForBam() throws Exception
+        {
+            final int totalReads = 2000;
+            Random random = new Random(5678);
+            byte[] ref = createReference(10000, random);
+            SAMFileHeader header = getHeader(ref.length);
+
+            File bam = FileUtil.createTempFile("CigarPositionBuffer", ".bam");
+            try
+            {
+                try (SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, false, bam))
+                {
+                    for (int i = 0; i < totalReads; i++)
+                    {
+                        int start = 1 + (i * 10000 / totalReads) % (ref.length - 300);
+                        writer.addAlignment(createRecord(header, "read" + i, CIGARS[i % CIGARS.length], start, random));
+                    }
+                }
+
+                CigarPositionBuffer buffer = new CigarPositionBuffer();
+                int totalMismatches = 0;
+                try (SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(bam); SAMRecordIterator it = reader.iterator())
+                {
+                    while (it.hasNext())
+                    {
+                        SAMRecord r = it.next();
+                        Map<Integer, List<Integer>> expected = new TreeMap<>();
+                        CigarPositionIterable.CigarIterator ci = new CigarPositionIterable(r).iterator();
+                        while (ci.hasNext())
+                        {
+                            CigarPositionIterable.PositionInfo pi = ci.next();
+                            if (pi.includeInSnpCount())
+                            {
+                                NTSnp ntSnp = new NTSnp(pi);
+                                if (ntSnp.getReferenceBase(ref) != ntSnp.getReadBase())
+                                {
+                                    expected.computeIfAbsent(ntSnp.getLastRefPosition(), x -> new ArrayList<>()).add(ntSnp.getInsertIndex());
+                                }
+                            }
+                        }
+
+                        for (List<Integer> insertIndexes : expected.values())
+                        {
+                            Collections.sort(insertIndexes);
+                        }
+
+                        buffer.fill(r, ref);
+                        Map<Integer, List<Integer>> actual = new TreeMap<>();
+                        for (int i = 0; i < buffer.getMismatchCount(); i++)
+                        {
+                            int pos = buffer.getMismatchPosition(i);
+                            actual.computeIfAbsent(buffer.getLastRefPosition(pos), x -> new ArrayList<>()).add(buffer.getInsertIndex(pos));
+                        }
+
+                        assertEquals("Incorrect mismatches for read: " + r.getReadName() + " / " + r.getCigarString(), expected, actual);
+                        totalMismatches += buffer.getMismatchCount();
+                    }
+                }
+
+                assertTrue("No mismatches found", totalMismatches > 0);
+            }
+            finally
+            {
+                bam.delete();
+            }
+        }
+    }
+}
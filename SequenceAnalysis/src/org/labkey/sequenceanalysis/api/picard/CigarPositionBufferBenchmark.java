@@ -0,0 +1,128 @@
+package org.labkey.sequenceanalysis.api.picard;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import org.labkey.sequenceanalysis.run.util.NTSnp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Compares the throughput of the previous per-position approach (a PositionInfo and NTSnp per position, sorted per read)
+ * against CigarPositionBuffer, using a synthetic BAM. This is not a unit test, since timings depend on the machine; run it directly:
+ *
+ * java -cp [classpath] org.labkey.sequenceanalysis.api.picard.CigarPositionBufferBenchmark [totalReads] [iterations]
+ */
+public class CigarPositionBufferBenchmark
+{
+    public static void main(String[] args) throws IOException
+    {
+        final int totalReads = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Random random = new Random(5678);
+        byte[] ref = CigarPositionBuffer.TestCase.createReference(10000, random);
+        SAMFileHeader header = CigarPositionBuffer.TestCase.getHeader(ref.length);
+
+        File bam = File.createTempFile("CigarPositionBufferBenchmark", ".bam");
+        try
+        {
+            try (SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, false, bam))
+            {
+                for (int i = 0; i < totalReads; i++)
+                {
+                    int start = 1 + (i * 10000 / totalReads) % (ref.length - 300);
+                    writer.addAlignment(CigarPositionBuffer.TestCase.createRecord(header, "read" + i, CigarPositionBuffer.TestCase.CIGARS[i % CigarPositionBuffer.TestCase.CIGARS.length], start, random));
+                }
+            }
+
+            //the first iteration warms up the JIT, and is not reported
+            for (int i = 0; i <= iterations; i++)
+            {
+                long start = System.currentTimeMillis();
+                long legacyMismatches = runCigarPositionIterable(bam, ref);
+                long legacyMillis = Math.max(1, System.currentTimeMillis() - start);
+
+                start = System.currentTimeMillis();
+                long bufferMismatches = runCigarPositionBuffer(bam, ref);
+                long bufferMillis = Math.max(1, System.currentTimeMillis() - start);
+
+                if (legacyMismatches != bufferMismatches)
+                {
+                    throw new IllegalStateException("Mismatch counts differ. CigarPositionIterable: " + legacyMismatches + ", CigarPositionBuffer: " + bufferMismatches);
+                }
+
+                if (i > 0)
+                {
+                    System.out.println("Iteration " + i + ": CigarPositionIterable: " + Math.round(totalReads * 1000.0 / legacyMillis) + " reads/sec, CigarPositionBuffer: " + Math.round(totalReads * 1000.0 / bufferMillis) + " reads/sec");
+                }
+            }
+        }
+        finally
+        {
+            bam.delete();
+        }
+    }
+
+    private static long runCigarPositionIterable(File bam, byte[] ref) throws IOException
+    {
+        long mismatches = 0;
+        try (SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(bam); SAMRecordIterator it = reader.iterator())
+        {
+            while (it.hasNext())
+            {
+                SAMRecord r = it.next();
+                Map<Integer, List<NTSnp>> snpPositions = new TreeMap<>();
+                CigarPositionIterable.CigarIterator ci = new CigarPositionIterable(r).iterator();
+                while (ci.hasNext())
+                {
+                    CigarPositionIterable.PositionInfo pi = ci.next();
+                    List<NTSnp> snps = snpPositions.computeIfAbsent(pi.getLastRefPosition(), x -> new ArrayList<>());
+                    if (pi.includeInSnpCount())
+                    {
+                        NTSnp ntSnp = new NTSnp(pi);
+                        if (ntSnp.getReferenceBase(ref) != ntSnp.getReadBase())
+                        {
+                            snps.add(ntSnp);
+                            mismatches++;
+                        }
+                    }
+                }
+
+                for (List<NTSnp> snps : snpPositions.values())
+                {
+                    snps.sort((snp1, snp2) -> Integer.compare(snp1.getInsertIndex(), snp2.getInsertIndex()));
+                }
+            }
+        }
+
+        return mismatches;
+    }
+
+    private static long runCigarPositionBuffer(File bam, byte[] ref) throws IOException
+    {
+        long mismatches = 0;
+        CigarPositionBuffer buffer = new CigarPositionBuffer();
+        try (SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(bam); SAMRecordIterator it = reader.iterator())
+        {
+            while (it.hasNext())
+            {
+                buffer.fill(it.next(), ref);
+                mismatches += buffer.getMismatchCount();
+            }
+        }
+
+        return mismatches;
+    }
+}
@@ -139,7 +139,7 @@ public PositionInfo next()
      * Describes a specific position in an alignment, including the position relative to the start of both the reference and read
      * sequences.
      */
-    public class PositionInfo
+    public static class PositionInfo
     {
         private final SAMRecord _record;
         private final CigarOperator _op;
@@ -151,6 +151,21 @@ public PositionInfo next()
         private int _lastReadPos;
         private int _lastRefPos;
 
+        /**
+         * Creates a PositionInfo from values that have already been calculated, such as by CigarPositionBuffer
+         */
+        public PositionInfo(SAMRecord record, CigarOperator op, int readPos, int refPos, int lastReadPos, int lastRefPos, int indel)
+        {
+            _record = record;
+            _pos = -1;
+            _op = op;
+            _readPos = readPos;
+            _refPos = refPos;
+            _lastReadPos = lastReadPos;
+            _lastRefPos = lastRefPos;
+            _indel = indel;
+        }
+
         public PositionInfo(SAMRecord record, int pos, char[] ops, Integer[] readPos, Integer[] refPos)
         {
             _record = record;
@@ -1,6 +1,7 @@
 package org.labkey.sequenceanalysis.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.labkey.api.data.CompareType;
 import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.TableSelector;
 import org.labkey.api.query.FieldKey;
@@ -8,7 +9,11 @@
 import org.labkey.sequenceanalysis.SequenceAnalysisSchema;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Created by bimber on 8/18/2014.
@@ -30,6 +35,8 @@ public class ReferenceLibraryMember implements Serializable
 
     transient private RefNtSequenceModel _model = null;
 
+    private static final int LOAD_BATCH_SIZE = 5000;
+
     public ReferenceLibraryMember()
     {
 
@@ -171,6 +178,35 @@ public RefNtSequenceModel getSequenceModel()
         return _model;
     }
 
+    public void setSequenceModel(RefNtSequenceModel model)
+    {
+        _model = model;
+    }
+
+    /**
+     * Resolves the sequence model for all members using one query per batch, rather than a query per member
+     */
+    public static void loadSequenceModels(List<ReferenceLibraryMember> members)
+    {
+        Map<Integer, List<ReferenceLibraryMember>> toResolve = new HashMap<>();
+        for (ReferenceLibraryMember lm : members)
+        {
+            if (lm._model == null && lm._ref_nt_id != null)
+            {
+                toResolve.computeIfAbsent(lm._ref_nt_id, x -> new ArrayList<>()).add(lm);
+            }
+        }
+
+        List<Integer> rowIds = new ArrayList<>(toResolve.keySet());
+        for (int i = 0; i < rowIds.size(); i += LOAD_BATCH_SIZE)
+        {
+            SimpleFilter filter = new SimpleFilter(FieldKey.fromString("rowid"), rowIds.subList(i, Math.min(rowIds.size(), i + LOAD_BATCH_SIZE)), CompareType.IN);
+            new TableSelector(SequenceAnalysisSchema.getTable(SequenceAnalysisSchema.TABLE_REF_NT_SEQUENCES), filter, null).forEach(RefNtSequenceModel.class, m -> {
+                toResolve.get(m.getRowid()).forEach(lm -> lm._model = m);
+            });
+        }
+    }
+
     @JsonIgnore
     public String getHeaderName()
     {
@@ -184,7 +220,8 @@ public String getHeaderName()
         {
             if (getStop() == null)
             {
-                setStop(getSequenceModel().getSequence().length());
+                Integer seqLength = getSequenceModel().getSeqLength();
+                setStop(seqLength == null ? getSequenceModel().getSequence().length() : seqLength);
             }
 
             if (getStart() == null)
@@ -20,6 +20,7 @@
 import htsjdk.variant.utils.SAMSequenceDictionaryExtractor;
 import org.apache.commons.io.FileUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
 import org.labkey.api.collections.CaseInsensitiveHashSet;
 import org.labkey.api.data.SimpleFilter;
@@ -44,6 +45,7 @@
 import org.labkey.api.sequenceanalysis.SequenceAnalysisService;
 import org.labkey.api.sequenceanalysis.pipeline.ReferenceGenome;
 import org.labkey.api.sequenceanalysis.pipeline.ReferenceGenomeManager;
+import org.labkey.api.sequenceanalysis.pipeline.SequencePipelineService;
 import org.labkey.api.sequenceanalysis.run.CreateSequenceDictionaryWrapper;
 import org.labkey.api.util.FileType;
 import org.labkey.api.util.FileUtil;
@@ -58,17 +60,27 @@
 import org.labkey.sequenceanalysis.model.ReferenceLibraryMember;
 import org.labkey.sequenceanalysis.run.util.FastaIndexer;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * User: bbimber
@@ -77,6 +89,12 @@
  */
 public class CreateReferenceLibraryTask extends PipelineJob.Task<CreateReferenceLibraryTask.Factory>
 {
+    private static final int LINE_LENGTH = 60;
+    private static final int PREFETCH_PER_THREAD = 4;
+    private static final int MAX_PREFETCH_LENGTH = 10000000;
+    private static final long MAX_PREFETCH_BASES = 4L * MAX_PREFETCH_LENGTH;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
     protected CreateReferenceLibraryTask(Factory factory, PipelineJob job)
     {
         super(factory, job);
@@ -165,6 +183,7 @@ public RecordedActionSet run() throws PipelineJobException
         }
 
         getJob().getLogger().info("there are " + libraryMembers.size() + " sequences to process");
+        ReferenceLibraryMember.loadSequenceModels(libraryMembers);
 
         //make sure sequence names are unique
         Set<String> names = new CaseInsensitiveHashSet();
@@ -317,32 +336,7 @@ public RecordedActionSet run() throws PipelineJobException
             }
 
             //then gather sequences and create the FASTA
-            try (PrintWriter writer = PrintWriters.getPrintWriter(fasta); PrintWriter idWriter = PrintWriters.getPrintWriter(idFile))
-            {
-                idWriter.write("RowId\tName\tAccession\tStart\tStop\tType\n");
-
-                int idx = 0;
-                for (ReferenceLibraryMember lm : libraryMembers)
-                {
-                    idx++;
-
-                    RefNtSequenceModel model = lm.getSequenceModel();
-                    String name = lm.getHeaderName();
-
-                    getJob().getLogger().info("processing sequence: " + name + " [" + model.getRowid() + "]");
-                    if (idx % 1000 == 0)
-                    {
-                        getJob().setStatus(PipelineJob.TaskStatus.running, String.format("Processing %d of %d", idx, libraryMembers.size()));
-                    }
-
-                    writer.write(">" + name + "\n");
-                    model.writeSequence(writer, 60, lm.getStart(), lm.getStop());
-
-                    idWriter.write(model.getRowid() + "\t" + model.getName() + "\t" + (model.getGenbank() == null ? "" : model.getGenbank()) + "\t" + (lm.getStart() == null ? "" : lm.getStart()) + "\t" + (lm.getStop() == null ? "" : lm.getStop())  + "\t" + (lm.getType() == null ? "" : lm.getType()) + "\n");
-
-                    model.clearCachedSequence();
-                }
-            }
+            writeFasta(libraryMembers, fasta, idFile);
 
             try
             {
@@ -507,6 +501,147 @@ public void run()
         return new RecordedActionSet(new RecordedAction("Create Reference Genome"));
     }
 
+    /**
+     * Writes the FASTA and ID key in the order of libraryMembers. Sequences are read and line-wrapped ahead of the writer by a thread pool.
+     * Memory is bounded by the total length of prefetched sequences not yet written, which is at most MAX_PREFETCH_BASES, and the number
+     * of these is also capped at PREFETCH_PER_THREAD per thread. Sequences larger than MAX_PREFETCH_LENGTH are instead streamed directly
+     * to the FASTA when they are reached.
+     */
+    private void writeFasta(List<ReferenceLibraryMember> libraryMembers, File fasta, File idFile) throws PipelineJobException
+    {
+        Integer maxThreads = SequencePipelineService.get().getMaxThreads(getJob().getLogger());
+        int threads = Math.max(1, maxThreads == null ? Runtime.getRuntime().availableProcessors() : maxThreads);
+        getJob().getLogger().debug("reading sequences using " + threads + " threads");
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "CreateReferenceLibraryTask");
+            t.setDaemon(true);
+
+            return t;
+        });
+
+        long startTime = System.currentTimeMillis();
+        long totalBases = 0;
+        try (Writer writer = new BufferedWriter(PrintWriters.getPrintWriter(fasta), WRITE_BUFFER_SIZE); PrintWriter idWriter = PrintWriters.getPrintWriter(idFile))
+        {
+            idWriter.write("RowId\tName\tAccession\tStart\tStop\tType\n");
+
+            Deque<Future<String>> pending = new ArrayDeque<>();
+            int submitted = 0;
+            long prefetchedBases = 0;
+            for (int idx = 0; idx < libraryMembers.size(); idx++)
+            {
+                while (submitted < libraryMembers.size() && submitted < idx + (threads * PREFETCH_PER_THREAD))
+                {
+                    // NOTE: the current sequence is always submitted, since nothing else is pending at that point
+                    long bases = getPrefetchBases(libraryMembers.get(submitted));
+                    if (submitted > idx && prefetchedBases + bases > MAX_PREFETCH_BASES)
+                    {
+                        break;
+                    }
+
+                    pending.add(prefetchSequence(executor, libraryMembers.get(submitted)));
+                    prefetchedBases += bases;
+                    submitted++;
+                }
+
+                ReferenceLibraryMember lm = libraryMembers.get(idx);
+                RefNtSequenceModel model = lm.getSequenceModel();
+                String name = lm.getHeaderName();
+                getJob().getLogger().debug("processing sequence: " + name + " [" + model.getRowid() + "]");
+
+                writer.write(">" + name + "\n");
+                String sequence = pending.removeFirst().get();
+                if (sequence == null)
+                {
+                    model.writeSequence(writer, LINE_LENGTH, lm.getStart(), lm.getStop());
+                }
+                else
+                {
+                    writer.write(sequence);
+                }
+                prefetchedBases -= getPrefetchBases(lm);
+
+                Long length = getExpectedLength(lm);
+                totalBases += length == null ? 0 : length;
+
+                idWriter.write(model.getRowid() + "\t" + model.getName() + "\t" + (model.getGenbank() == null ? "" : model.getGenbank()) + "\t" + (lm.getStart() == null ? "" : lm.getStart()) + "\t" + (lm.getStop() == null ? "" : lm.getStop())  + "\t" + (lm.getType() == null ? "" : lm.getType()) + "\n");
+
+                model.clearCachedSequence();
+
+                if ((idx + 1) % 1000 == 0)
+                {
+                    getJob().setStatus(PipelineJob.TaskStatus.running, String.format("Processing %d of %d (%s)", idx + 1, libraryMembers.size(), getThroughput(idx + 1, totalBases, startTime)));
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new PipelineJobException("Unable to read sequence: " + e.getCause().getMessage(), e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PipelineJobException(e);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        getJob().getLogger().info("wrote " + libraryMembers.size() + " sequences: " + getThroughput(libraryMembers.size(), totalBases, startTime));
+    }
+
+    private Future<String> prefetchSequence(ExecutorService executor, ReferenceLibraryMember lm)
+    {
+        if (getPrefetchBases(lm) == 0)
+        {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        long length = getExpectedLength(lm);
+
+        return executor.submit(() -> {
+            StringWriter sw = new StringWriter((int)(length + (length / LINE_LENGTH) + 1));
+            lm.getSequenceModel().writeSequence(sw, LINE_LENGTH, lm.getStart(), lm.getStop());
+
+            return sw.toString();
+        });
+    }
+
+    /**
+     * @return The length held in memory if this sequence is prefetched, or 0 if it will be streamed instead
+     */
+    private long getPrefetchBases(ReferenceLibraryMember lm)
+    {
+        Long length = getExpectedLength(lm);
+
+        return length == null || length > MAX_PREFETCH_LENGTH ? 0 : length;
+    }
+
+    private @Nullable Long getExpectedLength(ReferenceLibraryMember lm)
+    {
+        if (lm.getStart() != null && lm.getStop() != null)
+        {
+            return (long)lm.getStop() - lm.getStart() + 1;
+        }
+
+        Integer seqLength = lm.getSequenceModel().getSeqLength();
+
+        return seqLength == null ? null : seqLength.longValue();
+    }
+
+    private String getThroughput(int sequences, long bases, long startTime)
+    {
+        double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+
+        return String.format("%.0f sequences/sec, %.1f Mb/sec", sequences / seconds, bases / seconds / 1e6);
+    }
+
     private ReferenceLibraryPipelineJob getPipelineJob()
     {
         return (ReferenceLibraryPipelineJob)getJob();
@@ -43,6 +43,7 @@
 import org.labkey.api.util.FileType;
 import org.labkey.api.util.PageFlowUtil;
 import org.labkey.api.util.Pair;
+import org.labkey.sequenceanalysis.QualityMetricsWriter;
 import org.labkey.sequenceanalysis.ReadDataImpl;
 import org.labkey.sequenceanalysis.SequenceAnalysisSchema;
 
@@ -185,6 +186,8 @@ public RecordedActionSet run() throws PipelineJobException
 
             Integer runId = SequenceTaskHelper.getExpRunIdForJob(getJob(), false);
 
+            QualityMetricsWriter metricsWriter = new QualityMetricsWriter(getJob().getUser(), getJob().getContainer(), getJob().getLogger());
+
             //update the readsets
             Map<String, Object> row;
             for (Object key : new HashSet<>(sampleMap.values()))
@@ -213,7 +216,7 @@ public RecordedActionSet run() throws PipelineJobException
                         rd.setFileId1(d.getRowId());
 
                         //now add quality metrics
-                        addQualityMetrics(schema, readsetId, pair, parser, d);
+                        addQualityMetrics(metricsWriter, readsetId, pair, parser, d);
                     }
                     else
                     {
@@ -237,7 +240,7 @@ public RecordedActionSet run() throws PipelineJobException
                         rd.setFileId2(d.getRowId());
 
                         //now add quality metrics
-                        addQualityMetrics(schema, readsetId, pair, parser, d);
+                        addQualityMetrics(metricsWriter, readsetId, pair, parser, d);
                     }
                     else
                         getJob().getLogger().error("Unable to create ExpData for: " + fileMap.get(pair).getPath());
@@ -271,6 +274,8 @@ public RecordedActionSet run() throws PipelineJobException
 
                 actions.add(action);
             }
+
+            metricsWriter.write();
         }
 
         return new RecordedActionSet(actions);
@@ -296,7 +301,7 @@ private void handleInstrumentRun(DbSchema schema)
         getJob().getLogger().info("Created run: " + _instrumentRunId);
     }
 
-    private void addQualityMetrics(DbSchema schema, int readsetId, Pair<Integer, Integer> key, IlluminaFastqSplitter parser, ExpData d)
+    private void addQualityMetrics(QualityMetricsWriter metricsWriter, int readsetId, Pair<Integer, Integer> key, IlluminaFastqSplitter parser, ExpData d)
     {
         getJob().getLogger().info("Adding quality metrics for file: " + d.getFile().getName());
         Map<Pair<Integer, Integer>, Integer> readCounts = parser.getReadCounts();
@@ -318,7 +323,7 @@ private void addQualityMetrics(DbSchema schema, int readsetId, Pair<Integer, Int
         if (_instrumentRunId > 0)
             r.put("runid", _instrumentRunId);
 
-        Table.insert(getJob().getUser(), schema.getTable(SequenceAnalysisSchema.TABLE_QUALITY_METRICS), r);
+        metricsWriter.add(r);
     }
 
     private ExpData createExpData(File f)
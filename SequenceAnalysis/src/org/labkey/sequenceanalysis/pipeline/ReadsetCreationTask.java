@@ -46,6 +46,7 @@
 import org.labkey.api.sequenceanalysis.model.Readset;
 import org.labkey.api.util.FileType;
 import org.labkey.api.util.PageFlowUtil;
+import org.labkey.sequenceanalysis.QualityMetricsWriter;
 import org.labkey.sequenceanalysis.ReadDataImpl;
 import org.labkey.sequenceanalysis.SequenceAnalysisManager;
 import org.labkey.sequenceanalysis.SequenceAnalysisSchema;
@@ -408,15 +409,16 @@ private void importReadsets() throws PipelineJobException
                     Table.insert(getJob().getUser(), readDataTable, rd);
                 }
 
-                TableInfo metricsTable = SequenceAnalysisManager.get().getTable(SequenceAnalysisSchema.TABLE_QUALITY_METRICS);
                 if (!qualMetricsToAdd.isEmpty())
                 {
                     getJob().getLogger().info("Copying " + qualMetricsToAdd.size() + " quality metrics from pre-existing readdata");
+                    QualityMetricsWriter writer = new QualityMetricsWriter(getJob().getUser(), getJob().getContainer(), getJob().getLogger());
                     for (Map<String, Object> qm : qualMetricsToAdd)
                     {
                         qm.put("readset", newRow.getReadsetId());
-                        Table.insert(getJob().getUser(), metricsTable, qm);
+                        writer.add(qm);
                     }
+                    writer.write();
                 }
 
                 if (!preexistingReadData.isEmpty())
@@ -600,7 +602,7 @@ public static long addQualityMetricsForReadset(Readset rs, int fileId, PipelineJ
                 metricsMap = FastqUtils.getQualityMetrics(d.getFile(), job.getLogger());
             }
 
-            TableInfo metricsTable = SequenceAnalysisManager.get().getTable(SequenceAnalysisSchema.TABLE_QUALITY_METRICS);
+            QualityMetricsWriter writer = new QualityMetricsWriter(job.getUser(), job.getContainer(), job.getLogger());
             for (String metricName : metricsMap.keySet())
             {
                 Map<String, Object> r = new HashMap<>();
@@ -612,8 +614,9 @@ public static long addQualityMetricsForReadset(Readset rs, int fileId, PipelineJ
                 r.put("container", rs.getContainer() == null ? job.getContainer() : rs.getContainer());
                 r.put("createdby", job.getUser().getUserId());
 
-                Table.insert(job.getUser(), metricsTable, r);
+                writer.add(r);
             }
+            writer.write();
 
             if (cachedMetrics.exists())
             {
@@ -9,8 +9,6 @@
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.labkey.api.data.Table;
-import org.labkey.api.data.TableInfo;
 import org.labkey.api.exp.PropertyType;
 import org.labkey.api.exp.api.ExpData;
 import org.labkey.api.exp.api.ExperimentService;
@@ -33,8 +31,7 @@
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.Pair;
 import org.labkey.api.writer.PrintWriters;
-import org.labkey.sequenceanalysis.SequenceAnalysisManager;
-import org.labkey.sequenceanalysis.SequenceAnalysisSchema;
+import org.labkey.sequenceanalysis.QualityMetricsWriter;
 import org.labkey.sequenceanalysis.util.SequenceUtil;
 
 import java.io.BufferedReader;
@@ -551,7 +548,7 @@ public void writeMetricsToDb(Map<Integer, Integer> readsetMap, Map<Integer, Map<
         {
             _job.getLogger().debug("importing picard metrics from: " + metricLog.getPath());
 
-            TableInfo ti = SequenceAnalysisManager.get().getTable(SequenceAnalysisSchema.TABLE_QUALITY_METRICS);
+            QualityMetricsWriter writer = new QualityMetricsWriter(_job.getUser(), _job.getContainer(), _job.getLogger());
             try (CSVReader reader = new CSVReader(Readers.getReader(metricLog), '\t'))
             {
                 String[] line;
@@ -648,7 +645,7 @@ public void writeMetricsToDb(Map<Integer, Integer> readsetMap, Map<Integer, Map<
                     toInsert.put("metricname", line[4]);
                     toInsert.put("metricvalue", line[5]);
 
-                    Table.insert(_job.getUser(), ti, toInsert);
+                    writer.add(toInsert);
                 }
             }
             catch (IOException e)
@@ -656,6 +653,8 @@ public void writeMetricsToDb(Map<Integer, Integer> readsetMap, Map<Integer, Map<
                 throw new PipelineJobException(e);
             }
 
+            writer.write();
+
             metricLog.delete();
         }
         else
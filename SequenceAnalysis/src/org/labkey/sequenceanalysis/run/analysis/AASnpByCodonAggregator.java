@@ -18,6 +18,7 @@
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.reference.ReferenceSequence;
 import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.DbScope;
 import org.labkey.api.data.SimpleFilter;
@@ -61,6 +62,13 @@ public AASnpByCodonAggregator(Logger log, File refFasta, AvgBaseQualityAggregato
         super(log, refFasta, avgQualAggregator, settings);
     }
 
+    @Override
+    public @Nullable NtSnpByPosAggregator createWorkerInstance()
+    {
+        //the per-codon read tracking is not merged, so this aggregator always runs on a single thread
+        return null;
+    }
+
     @Override
     public void inspectAlignment(SAMRecord record, ReferenceSequence ref, Map<Integer, List<NTSnp>> snps) throws PipelineJobException
     {
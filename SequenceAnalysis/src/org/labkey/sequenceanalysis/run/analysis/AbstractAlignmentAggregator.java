@@ -20,8 +20,10 @@
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
+import org.jetbrains.annotations.Nullable;
 import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.api.sequenceanalysis.ReferenceLibraryHelper;
+import org.labkey.sequenceanalysis.api.picard.CigarPositionBuffer;
 import org.labkey.sequenceanalysis.run.util.AASnp;
 import org.labkey.sequenceanalysis.run.util.NTSnp;
 import org.labkey.sequenceanalysis.util.ReferenceLibraryHelperImpl;
@@ -56,6 +58,10 @@ abstract public class AbstractAlignmentAggregator implements AlignmentAggregator
 
     protected long _lowMappingQual = 0L;
 
+    //the positions of the alignment currently being inspected, as provided by BamIterator
+    private CigarPositionBuffer _currentPositions = null;
+    private CigarPositionBuffer _localPositions = null;
+
     public AbstractAlignmentAggregator(Logger log, File refFasta, AvgBaseQualityAggregator avgQualAggregator, Map<String, String> settings)
     {
         _log = log;
@@ -85,6 +91,40 @@ protected Logger getLogger()
         return _log;    
     }
 
+    @Override
+    public void inspectAlignment(SAMRecord record, @Nullable ReferenceSequence ref, Map<Integer, List<NTSnp>> snps, @Nullable CigarPositionBuffer positions) throws PipelineJobException
+    {
+        _currentPositions = positions;
+        try
+        {
+            inspectAlignment(record, ref, snps);
+        }
+        finally
+        {
+            _currentPositions = null;
+        }
+    }
+
+    /**
+     * @return The positions of this alignment. These are shared from BamIterator when available; otherwise the CIGAR is walked into a buffer owned by this aggregator.
+     */
+    protected CigarPositionBuffer getPositions(SAMRecord record)
+    {
+        if (_currentPositions != null && _currentPositions.getRecord() == record)
+        {
+            return _currentPositions;
+        }
+
+        if (_localPositions == null)
+        {
+            _localPositions = new CigarPositionBuffer();
+        }
+
+        _localPositions.fill(record, null);
+
+        return _localPositions;
+    }
+
     protected boolean inspectMapQual(SAMRecord r)
     {
         //zero mapping quality usually indicates that the aligner didnt set it
@@ -265,6 +305,28 @@ protected List<NTSnp> recalculateInsertIndex(List<NTSnp> snps)
         return snps;
     }
 
+    /**
+     * Copies the quality thresholds of this aggregator to a worker instance
+     */
+    protected void copySettingsTo(AbstractAlignmentAggregator worker)
+    {
+        worker._minAvgSnpQual = _minAvgSnpQual;
+        worker._minSnpQual = _minSnpQual;
+        worker._minAvgDipQual = _minAvgDipQual;
+        worker._minDipQual = _minDipQual;
+        worker._minMapQual = _minMapQual;
+        worker._logProgress = _logProgress;
+    }
+
+    /**
+     * Merges the state tracked by this class from a worker instance
+     */
+    protected void mergeBaseResults(AbstractAlignmentAggregator worker)
+    {
+        _lowMappingQual += worker._lowMappingQual;
+        worker._cacheDef.forEach(_cacheDef::putIfAbsent);
+    }
+
     public void setLogProgress(boolean logProgress)
     {
         _logProgress = logProgress;
@@ -22,6 +22,7 @@
 import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.api.security.User;
 import org.labkey.api.sequenceanalysis.model.AnalysisModel;
+import org.labkey.sequenceanalysis.api.picard.CigarPositionBuffer;
 import org.labkey.sequenceanalysis.run.util.NTSnp;
 
 import java.util.List;
@@ -40,5 +41,15 @@
 
     void inspectAlignment(SAMRecord record, @Nullable ReferenceSequence ref, Map<Integer, List<NTSnp>> snps) throws PipelineJobException;
 
+    /**
+     * Called by BamIterator, which walks the CIGAR of each alignment once and shares the result with all aggregators.
+     * Aggregators that need per-position information should override this rather than re-walking the CIGAR.
+     * @param positions The positions of this alignment, or null if the record is unmapped. This buffer is reused for the next alignment.
+     */
+    default void inspectAlignment(SAMRecord record, @Nullable ReferenceSequence ref, Map<Integer, List<NTSnp>> snps, @Nullable CigarPositionBuffer positions) throws PipelineJobException
+    {
+        inspectAlignment(record, ref, snps);
+    }
+
     String getSynopsis();
 }
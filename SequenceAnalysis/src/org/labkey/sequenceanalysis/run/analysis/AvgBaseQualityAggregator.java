@@ -15,26 +15,37 @@
  */
 package org.labkey.sequenceanalysis.run.analysis;
 
+import htsjdk.samtools.AlignmentBlock;
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.filter.DuplicateReadFilter;
 import htsjdk.samtools.filter.SamRecordFilter;
+import htsjdk.samtools.filter.SecondaryAlignmentFilter;
 import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.IntervalList;
 import htsjdk.samtools.util.SamLocusIterator;
 import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
 import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.sequenceanalysis.util.SequenceUtil;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
 
 /**
  * User: bimber
@@ -43,12 +54,16 @@
  */
 public class AvgBaseQualityAggregator
 {
+    //the filters used by SamLocusIterator when none are provided
+    private static final List<SamRecordFilter> DEFAULT_FILTERS = Arrays.asList(new SecondaryAlignmentFilter(), new DuplicateReadFilter());
+
     private final Logger _log;
     private final File _bam;
     private final File _bai;
     private final File _ref;
-    private Map<Integer, Map<String, Double>> _quals = null;
+    private Map<Integer, Map<Integer, Map<String, Double>>> _quals = null;
     private List<SamRecordFilter> _filters = null;
+    private boolean _useLocusIterator = false;
 
     public AvgBaseQualityAggregator(Logger log, File bam, File refFasta) throws FileNotFoundException
     {
@@ -71,6 +86,15 @@ public AvgBaseQualityAggregator(Logger log, File bam, File refFasta, List<SamRec
             throw new FileNotFoundException("Missing index for FASTA, expected: " + fai.getPath());
     }
 
+    /**
+     * By default, qualities are calculated by walking the aligned blocks of each read.  If true, SamLocusIterator is used instead,
+     * which is slower on deep alignments since it creates an object per read at each locus.  Both produce the same values.
+     */
+    public void setUseLocusIterator(boolean useLocusIterator)
+    {
+        _useLocusIterator = useLocusIterator;
+    }
+
     public void calculateAvgQuals(String refName, int start, int stop) throws PipelineJobException
     {
         SamReaderFactory fact = SamReaderFactory.makeDefault();
@@ -93,10 +117,8 @@ public void calculateAvgQuals(String refName, int start, int stop) throws Pipeli
             if (sr == null)
                 throw new IllegalArgumentException("Unknown reference: " + refName);
 
-            Map<Integer, Map<String, Double>> quals = new HashMap<>();
-            IntervalList il = new IntervalList(header);
-            il.add(new Interval(refName, start, stop));
-            quals.put(sr.getSequenceIndex(), calculateAvgQualsForInterval(reader, il));
+            Map<Integer, Map<Integer, Map<String, Double>>> quals = new HashMap<>();
+            quals.put(sr.getSequenceIndex(), calculateAvgQualsForInterval(reader, new Interval(sr.getSequenceName(), start, stop)));
 
             _quals = quals;
         }
@@ -115,12 +137,9 @@ public void calculateAvgQuals() throws PipelineJobException
             SAMFileHeader header = reader.getFileHeader();
             List<SAMSequenceRecord> sequences = header.getSequenceDictionary().getSequences();
 
-            Map<Integer, Map<String, Double>> quals = new HashMap<>();
+            Map<Integer, Map<Integer, Map<String, Double>>> quals = new HashMap<>();
             for(SAMSequenceRecord sr : sequences) {
-                IntervalList il = new IntervalList(header);
-                il.add(new Interval(sr.getSequenceName(), 1, sr.getSequenceLength()));
-
-                quals.put(sr.getSequenceIndex(), calculateAvgQualsForInterval(reader, il));
+                quals.put(sr.getSequenceIndex(), calculateAvgQualsForInterval(reader, new Interval(sr.getSequenceName(), 1, sr.getSequenceLength())));
             }
 
             _quals = quals;
@@ -132,12 +151,20 @@ public void calculateAvgQuals() throws PipelineJobException
     }
 
     /**
-     * @return 0-based map
+     * @return 0-based map of position to the average quality of each base observed at that position
      */
-    private Map<String, Double> calculateAvgQualsForInterval(SamReader sam, IntervalList il)
+    private Map<Integer, Map<String, Double>> calculateAvgQualsForInterval(SamReader sam, Interval interval)
+    {
+        return _useLocusIterator ? calculateUsingLocusIterator(sam, interval) : calculateUsingAlignmentBlocks(sam, interval);
+    }
+
+    private Map<Integer, Map<String, Double>> calculateUsingLocusIterator(SamReader sam, Interval interval)
     {
-        Map<String, Double> quals = new HashMap<>();
+        Map<Integer, Map<String, Double>> quals = new HashMap<>();
+        QualityAccumulator accumulator = new QualityAccumulator();
 
+        IntervalList il = new IntervalList(sam.getFileHeader());
+        il.add(interval);
         try (SamLocusIterator sli = new SamLocusIterator(sam, il, true))
         {
             sli.setEmitUncoveredLoci(false);
@@ -159,9 +186,6 @@ private Map<String, Double> calculateAvgQualsForInterval(SamReader sam, Interval
                     _log.info("processed " + idx + " loci in AvgBaseQualityAggregator");
                 }
 
-                Map<String, Integer> snpMap = new HashMap<>();
-                Map<String, Integer> baseCountMap = new HashMap<>();
-
                 for (SamLocusIterator.RecordAndOffset r : locus.getRecordAndOffsets())
                 {
                     //debugging only:
@@ -170,62 +194,359 @@ private Map<String, Double> calculateAvgQualsForInterval(SamReader sam, Interval
                         throw new RuntimeException("Read lacks sequence over locus: " + r.getReadName() + "/ offset: " + r.getOffset() + "/ start: " + r.getRecord().getStart() + " / sequence: " + r.getRecord().getReadString() + " / " + r.getRecord().getSAMString());
                     }
 
-                    String base = Character.toString((char) r.getReadBase());
-                    if (!snpMap.containsKey(base))
+                    accumulator.add(locus.getPosition(), r.getReadBase(), r.getBaseQuality());
+                }
+
+                accumulator.flushBefore(locus.getPosition() + 1, quals);
+            }
+        }
+
+        return quals;
+    }
+
+    /**
+     * Builds the pileup directly from the aligned blocks of each read, which matches the loci reported by SamLocusIterator
+     * without indels.  Since reads are sorted, each position is complete once a read starts after it, so memory is bounded by read length rather than depth.
+     */
+    private Map<Integer, Map<String, Double>> calculateUsingAlignmentBlocks(SamReader sam, Interval interval)
+    {
+        Map<Integer, Map<String, Double>> quals = new HashMap<>();
+        QualityAccumulator accumulator = new QualityAccumulator();
+        List<SamRecordFilter> filters = _filters == null ? DEFAULT_FILTERS : _filters;
+
+        long reads = 0;
+        try (SAMRecordIterator it = sam.query(interval.getContig(), interval.getStart(), interval.getEnd(), false))
+        {
+            while (it.hasNext())
+            {
+                SAMRecord r = it.next();
+                if (r.getReadUnmappedFlag() || isFiltered(r, filters))
+                {
+                    continue;
+                }
+
+                reads++;
+                accumulator.flushBefore(r.getAlignmentStart(), quals);
+
+                byte[] bases = r.getReadBases();
+                byte[] baseQuals = r.getBaseQualities();
+                for (AlignmentBlock block : r.getAlignmentBlocks())
+                {
+                    int readStart = block.getReadStart() - 1;
+                    if (readStart + block.getLength() > bases.length || readStart + block.getLength() > baseQuals.length)
                     {
-                        snpMap.put(base, (int) r.getBaseQuality());
-                        baseCountMap.put(base, 1);
+                        throw new IllegalArgumentException("Read lacks sequence or qualities over alignment: " + r.getReadName() + " / start: " + r.getStart() + " / " + r.getSAMString());
                     }
-                    else
+
+                    int first = Math.max(block.getReferenceStart(), interval.getStart());
+                    int last = Math.min(block.getReferenceStart() + block.getLength() - 1, interval.getEnd());
+                    for (int refPos = first; refPos <= last; refPos++)
                     {
-                        snpMap.put(base, snpMap.get(base) + r.getBaseQuality());
-                        baseCountMap.put(base, baseCountMap.get(base) + 1);
+                        int offset = readStart + (refPos - block.getReferenceStart());
+                        accumulator.add(refPos, bases[offset], baseQuals[offset]);
                     }
                 }
-
-                for (String b : baseCountMap.keySet())
-                {
-                    double avg = snpMap.get(b) / baseCountMap.get(b).doubleValue();
-                    Integer pos = locus.getPosition() - 1; //convert to 0-based
-                    String key = getBaseKey(pos, b);
-                    quals.put(key, avg);
-                }
             }
         }
 
+        accumulator.flushBefore(Integer.MAX_VALUE, quals);
+        _log.info("processed " + reads + " reads and " + quals.size() + " loci for reference: " + interval.getContig());
+
         return quals;
     }
 
-    private String getBaseKey(Integer pos, String base)
+    private boolean isFiltered(SAMRecord r, List<SamRecordFilter> filters)
     {
-        return pos + "||" + base;
+        for (SamRecordFilter filter : filters)
+        {
+            if (filter.filterOut(r))
+            {
+                return true;
+            }
+        }
+
+        return false;
     }
 
-    public Map<Integer, Map<String, Double>> getQualsForReference(Integer refId) throws PipelineJobException
+    public synchronized Map<Integer, Map<String, Double>> getQualsForReference(Integer refId) throws PipelineJobException
     {
         if (_quals == null)
             calculateAvgQuals();
 
-        Map<String, Double> map = _quals.get(refId);
-        if (map == null)
-            return null;
+        Map<Integer, Map<String, Double>> quals = _quals.get(refId);
+
+        return quals == null ? null : Collections.unmodifiableMap(quals);
+    }
+
+    /**
+     * Holds the read count and quality sum for each base over a window of positions, which is reused as positions are completed.
+     * Positions must be added in ascending order of the first position of each read.  A, C, G, T and N are held in primitive arrays.
+     * Other bases, and positions beyond the maximum window (such as the far side of a spliced read), are rare and held in a sparse map,
+     * so memory does not depend on the reference span of a read.
+     */
+    private static class QualityAccumulator
+    {
+        static final byte[] BASES = new byte[]{'A', 'C', 'G', 'T', 'N'};
+        private static final String[] BASE_STRINGS = new String[]{"A", "C", "G", "T", "N"};
+        private static final int[] BASE_CODES = new int[128];
+        static
+        {
+            Arrays.fill(BASE_CODES, -1);
+            for (int i = 0; i < BASES.length; i++)
+            {
+                BASE_CODES[BASES[i]] = i;
+            }
+        }
+
+        static final int INITIAL_WINDOW = 1024;
+        static final int MAX_WINDOW = 1 << 16;
+
+        private int _capacity = 0;
+        private int[] _depth;
+        private int[] _counts;
+        private long[] _qualSums;
+
+        //the lowest position not yet written, and the highest position added to the window, or -1 if empty
+        private int _first = -1;
+        private int _last = -1;
+
+        //positions before this have been written
+        private int _flushedBefore = Integer.MIN_VALUE;
+
+        //position -> base -> read count and quality sum
+        private final TreeMap<Integer, Map<Byte, long[]>> _sparse = new TreeMap<>();
+
+        public QualityAccumulator()
+        {
+            resize(INITIAL_WINDOW);
+        }
+
+        public void add(int position, byte base, byte qual)
+        {
+            if (base < 0)
+            {
+                throw new IllegalArgumentException("Unknown base at position " + position + ": " + base);
+            }
+            else if (position < _flushedBefore)
+            {
+                throw new IllegalArgumentException("Position has already been written: " + position);
+            }
+
+            int code = BASE_CODES[base];
+            if (code == -1 || (_first != -1 && (position < _first || position - _first >= MAX_WINDOW)))
+            {
+                long[] values = _sparse.computeIfAbsent(position, x -> new HashMap<>(4)).computeIfAbsent(base, x -> new long[2]);
+                values[0]++;
+                values[1] += qual;
+                return;
+            }
+
+            if (_first == -1)
+            {
+                _first = position;
+                _last = position;
+            }
+
+            if (position - _first >= _capacity)
+            {
+                resize(Math.min(MAX_WINDOW, Integer.highestOneBit(position - _first) << 1));
+            }
 
-        Map<Integer, Map<String, Double>> ret = new HashMap<>();
-        for (String key : map.keySet())
+            int slot = position % _capacity;
+            _depth[slot]++;
+            _counts[slot * BASES.length + code]++;
+            _qualSums[slot * BASES.length + code] += qual;
+            _last = Math.max(_last, position);
+        }
+
+        /**
+         * Writes the average quality of each base for all positions before the one provided, using 0-based positions
+         */
+        public void flushBefore(int position, Map<Integer, Map<String, Double>> quals)
         {
-            String[] tokens = key.split("\\|\\|");
-            assert tokens.length == 2;
+            if (_first != -1)
+            {
+                int end = Math.min(position - 1, _last);
+                for (int pos = _first; pos <= end; pos++)
+                {
+                    int slot = pos % _capacity;
+                    Map<Byte, long[]> sparse = _sparse.isEmpty() ? null : _sparse.remove(pos);
+                    if (_depth[slot] == 0 && sparse == null)
+                    {
+                        continue;
+                    }
 
-            Integer pos = Integer.parseInt(tokens[0]);
+                    Map<String, Double> baseMap = new HashMap<>(4);
+                    for (int code = 0; code < BASES.length; code++)
+                    {
+                        int i = slot * BASES.length + code;
+                        long[] other = sparse == null ? null : sparse.remove(BASES[code]);
+                        long count = _counts[i] + (other == null ? 0 : other[0]);
+                        if (count > 0)
+                        {
+                            baseMap.put(BASE_STRINGS[code], (_qualSums[i] + (other == null ? 0 : other[1])) / (double)count);
+                            _counts[i] = 0;
+                            _qualSums[i] = 0;
+                        }
+                    }
 
-            Map<String, Double> baseMap = ret.get(pos);
-            if (baseMap == null)
-                baseMap = new HashMap<>();
+                    if (sparse != null)
+                    {
+                        appendSparse(sparse, baseMap);
+                    }
 
-            baseMap.put(tokens[1], map.get(key));
-            ret.put(pos, baseMap);
+                    _depth[slot] = 0;
+                    quals.put(pos - 1, baseMap);
+                }
+
+                if (end == _last)
+                {
+                    _first = -1;
+                    _last = -1;
+                }
+                else if (position > _first)
+                {
+                    _first = position;
+                }
+            }
+
+            //positions outside the window
+            Map<Integer, Map<Byte, long[]>> completed = _sparse.headMap(position);
+            for (Map.Entry<Integer, Map<Byte, long[]>> e : completed.entrySet())
+            {
+                Map<String, Double> baseMap = new HashMap<>(4);
+                appendSparse(e.getValue(), baseMap);
+                quals.put(e.getKey() - 1, baseMap);
+            }
+            completed.clear();
+
+            _flushedBefore = Math.max(_flushedBefore, position);
+        }
+
+        private void appendSparse(Map<Byte, long[]> sparse, Map<String, Double> baseMap)
+        {
+            for (Map.Entry<Byte, long[]> e : sparse.entrySet())
+            {
+                long[] values = e.getValue();
+                baseMap.put(Character.toString((char)e.getKey().byteValue()), values[1] / (double)values[0]);
+            }
         }
 
-        return ret;
+        private void resize(int capacity)
+        {
+            int[] depth = new int[capacity];
+            int[] counts = new int[capacity * BASES.length];
+            long[] qualSums = new long[capacity * BASES.length];
+            if (_first != -1)
+            {
+                for (int pos = _first; pos <= _last; pos++)
+                {
+                    int oldSlot = pos % _capacity;
+                    int newSlot = pos % capacity;
+                    depth[newSlot] = _depth[oldSlot];
+                    System.arraycopy(_counts, oldSlot * BASES.length, counts, newSlot * BASES.length, BASES.length);
+                    System.arraycopy(_qualSums, oldSlot * BASES.length, qualSums, newSlot * BASES.length, BASES.length);
+                }
+            }
+
+            _capacity = capacity;
+            _depth = depth;
+            _counts = counts;
+            _qualSums = qualSums;
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final byte[] OTHER_BASES = new byte[]{'R', 'Y', '*', '-', 'a', 'c'};
+
+        /**
+         * Compares QualityAccumulator against a naive pileup, using random positions that include positions beyond MAX_WINDOW,
+         * positions before the first position of the window, bases other than ACGTN, and flushes between adds.
+         */
+        @Test
+        public void testQualityAccumulator()
+        {
+            for (long seed = 1; seed <= 10; seed++)
+            {
+                Random random = new Random(seed);
+                QualityAccumulator accumulator = new QualityAccumulator();
+                Map<Integer, Map<String, Double>> quals = new HashMap<>();
+
+                //position -> base -> read count and quality sum
+                TreeMap<Integer, Map<String, long[]>> expected = new TreeMap<>();
+
+                int flushedBefore = 1;
+                for (int i = 0; i < 20000; i++)
+                {
+                    if (random.nextInt(200) == 0)
+                    {
+                        flushedBefore += random.nextInt(QualityAccumulator.INITIAL_WINDOW * 3);
+                        accumulator.flushBefore(flushedBefore, quals);
+                        assertEquals("Incorrect qualities after flush, seed: " + seed, getAverages(expected.headMap(flushedBefore)), quals);
+                        continue;
+                    }
+
+                    int position;
+                    int type = random.nextInt(10);
+                    if (type == 0)
+                    {
+                        //beyond the maximum window
+                        position = flushedBefore + QualityAccumulator.MAX_WINDOW + random.nextInt(QualityAccumulator.MAX_WINDOW);
+                    }
+                    else if (type == 1)
+                    {
+                        //close to the last flush, which is often before the first position of the window
+                        position = flushedBefore + random.nextInt(5);
+                    }
+                    else
+                    {
+                        //beyond the initial window, so it must be resized
+                        position = flushedBefore + random.nextInt(QualityAccumulator.INITIAL_WINDOW * 4);
+                    }
+
+                    byte base = random.nextInt(10) == 0 ? OTHER_BASES[random.nextInt(OTHER_BASES.length)] : QualityAccumulator.BASES[random.nextInt(QualityAccumulator.BASES.length)];
+                    byte qual = (byte)random.nextInt(42);
+                    accumulator.add(position, base, qual);
+
+                    long[] values = expected.computeIfAbsent(position, x -> new HashMap<>()).computeIfAbsent(Character.toString((char)base), x -> new long[2]);
+                    values[0]++;
+                    values[1] += qual;
+                }
+
+                accumulator.flushBefore(Integer.MAX_VALUE, quals);
+                assertEquals("Incorrect qualities, seed: " + seed, getAverages(expected), quals);
+
+                try
+                {
+                    accumulator.add(flushedBefore - 1, (byte)'A', (byte)30);
+                    fail("Expected an error for a position that has already been written");
+                }
+                catch (IllegalArgumentException e)
+                {
+                    //expected
+                }
+            }
+        }
+
+        /**
+         * @return 0-based map of position to the average quality of each base, as written by QualityAccumulator
+         */
+        private Map<Integer, Map<String, Double>> getAverages(Map<Integer, Map<String, long[]>> pileup)
+        {
+            Map<Integer, Map<String, Double>> ret = new HashMap<>();
+            for (Map.Entry<Integer, Map<String, long[]>> e : pileup.entrySet())
+            {
+                Map<String, Double> baseMap = new HashMap<>();
+                for (Map.Entry<String, long[]> base : e.getValue().entrySet())
+                {
+                    baseMap.put(base.getKey(), base.getValue()[1] / (double)base.getValue()[0]);
+                }
+
+                ret.put(e.getKey() - 1, baseMap);
+            }
+
+            return ret;
+        }
     }
 }
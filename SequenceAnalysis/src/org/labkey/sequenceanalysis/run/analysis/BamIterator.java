@@ -15,17 +15,22 @@
  */
 package org.labkey.sequenceanalysis.run.analysis;
 
+import au.com.bytecode.opencsv.CSVReader;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.reference.FastaSequenceIndex;
+import htsjdk.samtools.reference.FastaSequenceIndexEntry;
 import htsjdk.samtools.reference.IndexedFastaSequenceFile;
 import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.util.Interval;
 import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
+import org.jetbrains.annotations.Nullable;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.jmock.lib.legacy.ClassImposteriser;
@@ -48,6 +53,7 @@
 import org.labkey.api.pipeline.PipelineService;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.query.QueryService;
+import org.labkey.api.reader.Readers;
 import org.labkey.api.resource.DirectoryResource;
 import org.labkey.api.resource.FileResource;
 import org.labkey.api.resource.Resource;
@@ -56,13 +62,14 @@
 import org.labkey.api.sequenceanalysis.model.AnalysisModel;
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.PageFlowUtil;
+import org.labkey.api.util.Pair;
 import org.labkey.api.util.Path;
 import org.labkey.api.util.TestContext;
 import org.labkey.api.writer.PrintWriters;
 import org.labkey.sequenceanalysis.SequenceAnalysisModule;
 import org.labkey.sequenceanalysis.SequenceAnalysisSchema;
 import org.labkey.sequenceanalysis.SequenceIntegrationTests;
-import org.labkey.sequenceanalysis.api.picard.CigarPositionIterable;
+import org.labkey.sequenceanalysis.api.picard.CigarPositionBuffer;
 import org.labkey.sequenceanalysis.model.AnalysisModelImpl;
 import org.labkey.sequenceanalysis.run.util.NTSnp;
 import org.labkey.sequenceanalysis.util.SequenceUtil;
@@ -71,15 +78,26 @@
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntBinaryOperator;
 
 /**
  * User: bbimber
@@ -100,6 +118,11 @@
 
     private final List<AlignmentAggregator> _alignmentAggregators = new ArrayList<>();
 
+    //reused for every alignment, and shared with all aggregators
+    private final CigarPositionBuffer _positions = new CigarPositionBuffer();
+
+    private int _threads = 1;
+
     public BamIterator(File bam, File refFasta, Logger logger) throws FileNotFoundException
     {
         _bam = bam;
@@ -125,6 +148,14 @@ public void addAggregator(AlignmentAggregator aggregator)
         _alignmentAggregators.add(aggregator);
     }
 
+    /**
+     * If more than one thread is used, iterateReads() will process each reference on a separate thread, provided all aggregators support this.
+     */
+    public void setThreads(@Nullable Integer threads)
+    {
+        _threads = threads == null ? 1 : Math.max(1, threads);
+    }
+
     public void iterateReads(String refName, int start, int stop) throws IOException, PipelineJobException
     {
         SamReaderFactory bamFact = SamReaderFactory.makeDefault();
@@ -149,7 +180,7 @@ public void iterateReads(String refName, int start, int stop) throws IOException
                     if (r.getAlignmentEnd() < start || r.getAlignmentStart() > stop)
                         continue;
 
-                    processAlignment(r, indexedRef);
+                    processAlignment(r, indexedRef, _alignmentAggregators, _positions, _references);
 
                     if (i % 10000 == 0)
                     {
@@ -168,79 +199,227 @@ public void iterateReads(String refName, int start, int stop) throws IOException
      */
     public void iterateReads() throws IOException, PipelineJobException
     {
+        if (_threads > 1)
+        {
+            if (_alignmentAggregators.stream().allMatch(a -> a instanceof ParallelAlignmentAggregator pa && pa.createWorkerInstance() != null))
+            {
+                iterateReadsByReference();
+                return;
+            }
+
+            _logger.info("Not all aggregators support parallel processing, iterating alignments using a single thread");
+        }
+
         iterateReads(null, Integer.MIN_VALUE, Integer.MAX_VALUE);
     }
 
-    private void processAlignment(SAMRecord r, IndexedFastaSequenceFile indexedRef) throws PipelineJobException
+    /**
+     * Each thread claims references one at a time and accumulates them into a single set of worker instances of the aggregators,
+     * which is reused for every reference that thread processes.  After all threads finish, the workers are merged into the original
+     * aggregators.  Unmapped reads are processed last, on the current thread.
+     */
+    private void iterateReadsByReference() throws IOException, PipelineJobException
     {
-        if (r.getReadUnmappedFlag())
+        SamReaderFactory bamFact = SamReaderFactory.makeDefault();
+        bamFact.validationStringency(ValidationStringency.SILENT);
+
+        List<SAMSequenceRecord> contigs;
+        try (SamReader sam = bamFact.open(_bam))
+        {
+            contigs = sam.getFileHeader().getSequenceDictionary().getSequences();
+        }
+
+        int threads = Math.min(_threads, Math.max(1, contigs.size()));
+        _logger.info("iterating alignments from " + contigs.size() + " references using " + threads + " threads");
+
+        AtomicInteger nextContig = new AtomicInteger();
+        AtomicLong total = new AtomicLong();
+        List<List<ParallelAlignmentAggregator>> workersByThread = new ArrayList<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "BamIterator");
+            t.setDaemon(true);
+
+            return t;
+        });
+
+        try
         {
-            for (AlignmentAggregator aggregator : _alignmentAggregators)
+            List<Future<List<ParallelAlignmentAggregator>>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++)
             {
-                aggregator.inspectAlignment(r, null, new HashMap<>());
+                futures.add(executor.submit(() -> {
+                    List<ParallelAlignmentAggregator> workers = createWorkerInstances();
+                    CigarPositionBuffer positions = new CigarPositionBuffer();
+                    Map<String, ReferenceSequence> references = new HashMap<>();
+                    try (SamReader sam = bamFact.open(_bam); IndexedFastaSequenceFile indexedRef = new IndexedFastaSequenceFile(_ref, new FastaSequenceIndex(new File(_ref.getPath() + ".fai"))))
+                    {
+                        int contigIdx;
+                        while ((contigIdx = nextContig.getAndIncrement()) < contigs.size())
+                        {
+                            references.clear();
+                            total.addAndGet(iterateReference(sam, indexedRef, contigs.get(contigIdx).getSequenceName(), workers, positions, references));
+                        }
+                    }
+
+                    return workers;
+                }));
             }
-            return;
+
+            for (Future<List<ParallelAlignmentAggregator>> f : futures)
+            {
+                workersByThread.add(f.get());
+            }
+            _logger.info("processed " + total.get() + " mapped alignments");
         }
-        assert !(r.getReferenceName().equals(SAMRecord.NO_ALIGNMENT_REFERENCE_NAME));
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PipelineJobException("Interrupted while iterating alignments from: " + _bam.getPath(), e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof PipelineJobException pje)
+            {
+                throw pje;
+            }
+            else if (e.getCause() instanceof IOException ioe)
+            {
+                throw ioe;
+            }
 
-        ReferenceSequence ref = getReferenceSequenceFromFasta(r.getReferenceName(), indexedRef);
+            throw new PipelineJobException(e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
 
-        Map<Integer, List<NTSnp>> snpPositions = new TreeMap<>();
-        CigarPositionIterable cpi = new CigarPositionIterable(r);
-        CigarPositionIterable.CigarIterator ci = cpi.iterator();
-        while (ci.hasNext())
+        mergeWorkerInstances(workersByThread);
+        iterateUnmappedReads();
+    }
+
+    private List<ParallelAlignmentAggregator> createWorkerInstances()
+    {
+        List<ParallelAlignmentAggregator> workers = new ArrayList<>();
+        for (AlignmentAggregator a : _alignmentAggregators)
         {
-            CigarPositionIterable.PositionInfo pi = ci.next();
-            List<NTSnp> snps = snpPositions.get(pi.getLastRefPosition());
-            if (snps == null)
-                snps = new ArrayList<>();
+            workers.add(((ParallelAlignmentAggregator)a).createWorkerInstance());
+        }
+
+        return workers;
+    }
 
-            if (pi.includeInSnpCount())
+    /**
+     * Inspects every alignment of one reference, including unmapped reads placed at the position of their mate
+     * @return The number of alignments inspected
+     */
+    private long iterateReference(SamReader sam, IndexedFastaSequenceFile indexedRef, String contig, List<? extends AlignmentAggregator> workers, CigarPositionBuffer positions, Map<String, ReferenceSequence> references) throws PipelineJobException
+    {
+        long count = 0;
+        try (SAMRecordIterator it = sam.query(contig, 0, 0, false))
+        {
+            while (it.hasNext())
             {
-                NTSnp ntSnp = new NTSnp(pi);
+                processAlignment(it.next(), indexedRef, workers, positions, references);
+                count++;
+            }
+        }
 
-                // test whether refBase equals the readBase
-                if (ntSnp.getReferenceBase(ref.getBases()) != ntSnp.getReadBase())
-                {
-                    snps.add(ntSnp);
-                }
+        if (count > 0)
+        {
+            _logger.info("processed " + count + " alignments for reference: " + contig);
+        }
+
+        return count;
+    }
+
+    /**
+     * @param workersByThread The workers of each thread, in the same order as the aggregators
+     */
+    private void mergeWorkerInstances(List<List<ParallelAlignmentAggregator>> workersByThread)
+    {
+        for (int i = 0; i < _alignmentAggregators.size(); i++)
+        {
+            List<ParallelAlignmentAggregator> workers = new ArrayList<>();
+            for (List<ParallelAlignmentAggregator> threadWorkers : workersByThread)
+            {
+                workers.add(threadWorkers.get(i));
             }
 
-            if (snps.size() > 0)
-                snpPositions.put(pi.getLastRefPosition(), snps);
+            ((ParallelAlignmentAggregator)_alignmentAggregators.get(i)).mergeWorkerInstances(workers);
         }
+    }
+
+    private void iterateUnmappedReads() throws IOException, PipelineJobException
+    {
+        SamReaderFactory bamFact = SamReaderFactory.makeDefault();
+        bamFact.validationStringency(ValidationStringency.SILENT);
 
-        //sort SNPs on insert idx
-        for (Integer pos : snpPositions.keySet())
+        try (SamReader sam = bamFact.open(_bam); SAMRecordIterator it = sam.queryUnmapped())
         {
-            List<NTSnp> sortedSnps = snpPositions.get(pos);
-            sortedSnps.sort((snp1, snp2) ->
+            while (it.hasNext())
             {
-                Integer pos1 = snp1.getLastRefPosition();
-                Integer idx1 = snp1.getInsertIndex();
-                Integer compare1 = pos1.compareTo(snp2.getLastRefPosition());
+                processAlignment(it.next(), null, _alignmentAggregators, _positions, _references);
+            }
+        }
+    }
 
-                return compare1 != 0 ? compare1 : idx1.compareTo(snp2.getInsertIndex());
-            });
-            snpPositions.put(pos, sortedSnps);
+    private void processAlignment(SAMRecord r, IndexedFastaSequenceFile indexedRef, List<? extends AlignmentAggregator> aggregators, CigarPositionBuffer positions, Map<String, ReferenceSequence> references) throws PipelineJobException
+    {
+        if (r.getReadUnmappedFlag())
+        {
+            for (AlignmentAggregator aggregator : aggregators)
+            {
+                aggregator.inspectAlignment(r, null, Collections.emptyMap(), null);
+            }
+            return;
         }
+        assert !(r.getReferenceName().equals(SAMRecord.NO_ALIGNMENT_REFERENCE_NAME));
 
-        for (AlignmentAggregator aggregator : _alignmentAggregators)
+        ReferenceSequence ref = getReferenceSequenceFromFasta(r.getReferenceName(), indexedRef, references);
+
+        //walk the CIGAR once. NTSnps are only created for mismatches, which are a small fraction of positions
+        positions.fill(r, ref.getBases());
+        Map<Integer, List<NTSnp>> snpPositions = getSnpPositions(positions);
+
+        for (AlignmentAggregator aggregator : aggregators)
         {
-            aggregator.inspectAlignment(r, ref, snpPositions);
+            aggregator.inspectAlignment(r, ref, snpPositions, positions);
         }
     }
 
-    private ReferenceSequence getReferenceSequenceFromFasta(String refName, IndexedFastaSequenceFile indexedRef)
+    /**
+     * @return The mismatches in this alignment, grouped by the last reference position.  Because the buffer is in CIGAR order,
+     * the SNPs at each position are already sorted on insert index.
+     */
+    private Map<Integer, List<NTSnp>> getSnpPositions(CigarPositionBuffer positions)
     {
-        if (_references.containsKey(refName))
+        if (positions.getMismatchCount() == 0)
         {
-            return _references.get(refName);
+            return Collections.emptyMap();
+        }
+
+        Map<Integer, List<NTSnp>> snpPositions = new TreeMap<>();
+        for (int i = 0; i < positions.getMismatchCount(); i++)
+        {
+            int pos = positions.getMismatchPosition(i);
+            snpPositions.computeIfAbsent(positions.getLastRefPosition(pos), x -> new ArrayList<>(2)).add(new NTSnp(positions.getPositionInfo(pos)));
+        }
+
+        return snpPositions;
+    }
+
+    private ReferenceSequence getReferenceSequenceFromFasta(String refName, IndexedFastaSequenceFile indexedRef, Map<String, ReferenceSequence> references)
+    {
+        if (references.containsKey(refName))
+        {
+            return references.get(refName);
         }
         else
         {
-            _references.put(refName, indexedRef.getSequence(refName));
-            return _references.get(refName);
+            references.put(refName, indexedRef.getSequence(refName));
+            return references.get(refName);
         }
     }
 
@@ -393,6 +572,523 @@ public void basicTest() throws Exception
 
         }
 
+        @Test
+        public void avgBaseQualityTest() throws Exception
+        {
+            AvgBaseQualityAggregator locusIterator = new AvgBaseQualityAggregator(_log, _bam, _refFasta);
+            locusIterator.setUseLocusIterator(true);
+            locusIterator.calculateAvgQuals();
+
+            AvgBaseQualityAggregator alignmentBlocks = new AvgBaseQualityAggregator(_log, _bam, _refFasta);
+            alignmentBlocks.calculateAvgQuals();
+
+            Map<Integer, Map<String, Double>> expected = locusIterator.getQualsForReference(0);
+            Assert.assertEquals(8617, expected.size());
+            Assert.assertEquals("Qualities do not match SamLocusIterator", expected, alignmentBlocks.getQualsForReference(0));
+        }
+
+        @Test
+        public void ntCoverageTest() throws Exception
+        {
+            Map<String, String> params = new HashMap<>();
+            params.put("minAvgSnpQual", "17");
+            params.put("minSnpQual", "17");
+            params.put("minAvgDipQual", "17");
+            params.put("minDipQual", "17");
+
+            AvgBaseQualityAggregator avgQuals = new AvgBaseQualityAggregator(_log, _bam, _refFasta);
+            NtCoverageAggregator coverage = new NtCoverageAggregator(_log, _refFasta, avgQuals, params);
+            coverage.setLogProgress(false);
+            MapBasedCoverageAggregator mapBased = new MapBasedCoverageAggregator(_log, _refFasta, avgQuals, params);
+
+            BamIterator bi = new BamIterator(_bam, _refFasta, _log);
+            bi.addAggregators(Arrays.asList(coverage, mapBased));
+            bi.iterateReads();
+
+            AnalysisModelImpl m = new AnalysisModelImpl();
+            Map<String, Map<String, Object>> expected = mapBased.getRows(m);
+            Map<String, Map<String, Object>> rows = new LinkedHashMap<>();
+            coverage.forEachRow(m, (refName, row) -> rows.put(refName + ":" + row.get("ref_nt_position") + ":" + row.get("ref_nt_insert_index"), row));
+
+            Assert.assertEquals("Incorrect coverage count", 8892, rows.size());
+            Assert.assertTrue("Sample data should include insertions", rows.values().stream().anyMatch(row -> (Integer)row.get("ref_nt_insert_index") > 0));
+            Assert.assertEquals("Coverage does not match the map-based implementation", expected, rows);
+        }
+
+        @Test
+        public void parallelIterationTest() throws Exception
+        {
+            File bam = getMultiContigBAM();
+            File refFasta = getMultiContigFasta();
+
+            IterationResults serial = getIterationResults(bam, refFasta, BamIterator::iterateReads, 1);
+            Assert.assertFalse("No coverage found", serial.coverage.isEmpty());
+            for (int threads : new int[]{2, 4})
+            {
+                serial.assertEquals(getIterationResults(bam, refFasta, BamIterator::iterateReads, threads), threads + " threads", true);
+            }
+        }
+
+        @Test
+        public void workerMergeTest() throws Exception
+        {
+            File bam = getMultiContigBAM();
+            File refFasta = getMultiContigFasta();
+            IterationResults serial = getIterationResults(bam, refFasta, BamIterator::iterateReads, 1);
+
+            //references alternate between two workers, so reads whose mates align to different references are seen by both workers
+            IterationResults byReference = getIterationResults(bam, refFasta, bi -> iterateUsingWorkers(bi, (contigIdx, recordIdx) -> contigIdx % 2), 1);
+            serial.assertEquals(byReference, "workers by reference", true);
+
+            //the alignments of each reference are split between two workers, which merges the coverage and intervals of the same reference.
+            //BamIterator never does this, so read IDs are not expected to be in the same order
+            IterationResults byAlignment = getIterationResults(bam, refFasta, bi -> iterateUsingWorkers(bi, (contigIdx, recordIdx) -> recordIdx % 2), 1);
+            serial.assertEquals(byAlignment, "workers by alignment", false);
+        }
+
+        /**
+         * Processes the alignments of each reference using one of two sets of workers, in the same way as iterateReadsByReference()
+         * @param selectWorker Returns the worker set of an alignment, given the index of its reference and its index within that reference
+         */
+        private void iterateUsingWorkers(BamIterator bi, IntBinaryOperator selectWorker) throws Exception
+        {
+            List<List<ParallelAlignmentAggregator>> workersByThread = Arrays.asList(bi.createWorkerInstances(), bi.createWorkerInstances());
+
+            SamReaderFactory bamFact = SamReaderFactory.makeDefault();
+            bamFact.validationStringency(ValidationStringency.SILENT);
+            try (SamReader sam = bamFact.open(bi._bam); IndexedFastaSequenceFile indexedRef = new IndexedFastaSequenceFile(bi._ref))
+            {
+                CigarPositionBuffer positions = new CigarPositionBuffer();
+                Map<String, ReferenceSequence> references = new HashMap<>();
+                List<SAMSequenceRecord> contigs = sam.getFileHeader().getSequenceDictionary().getSequences();
+                for (int contigIdx = 0; contigIdx < contigs.size(); contigIdx++)
+                {
+                    int recordIdx = 0;
+                    try (SAMRecordIterator it = sam.query(contigs.get(contigIdx).getSequenceName(), 0, 0, false))
+                    {
+                        while (it.hasNext())
+                        {
+                            bi.processAlignment(it.next(), indexedRef, workersByThread.get(selectWorker.applyAsInt(contigIdx, recordIdx)), positions, references);
+                            recordIdx++;
+                        }
+                    }
+                }
+            }
+
+            bi.mergeWorkerInstances(workersByThread);
+            bi.iterateUnmappedReads();
+        }
+
+        private interface Iteration
+        {
+            void iterate(BamIterator bi) throws Exception;
+        }
+
+        private IterationResults getIterationResults(File bam, File refFasta, Iteration iteration, int threads) throws Exception
+        {
+            AvgBaseQualityAggregator avgQuals = new AvgBaseQualityAggregator(_log, bam, refFasta);
+            NtCoverageAggregator coverage = new NtCoverageAggregator(_log, refFasta, avgQuals, Collections.emptyMap());
+            coverage.setLogProgress(false);
+
+            Map<String, String> settings = new HashMap<>();
+            settings.put("minPctForRef", "0.5");
+            settings.put("minPctWithinGroup", "25");
+            SequenceBasedTypingAlignmentAggregator sbt = new SequenceBasedTypingAlignmentAggregator(_log, refFasta, avgQuals, settings);
+            sbt.setLogProgress(false);
+            sbt.setDoTrackIntervals(true);
+            File outputLog = new File(_pipelineRoot, "iterationTest.log.txt");
+            sbt.setOutputLog(outputLog);
+
+            BamIterator bi = new BamIterator(bam, refFasta, _log);
+            bi.setThreads(threads);
+            bi.addAggregators(Arrays.asList(coverage, sbt));
+            iteration.iterate(bi);
+
+            IterationResults ret = new IterationResults();
+            coverage.forEachRow(new AnalysisModelImpl(), (refName, row) -> ret.coverage.put(refName + ":" + row.get("ref_nt_position") + ":" + row.get("ref_nt_insert_index"), row));
+
+            File output = new File(_pipelineRoot, "iterationTest.txt");
+            sbt.writeTable(output);
+            //the order of hit sets is not defined
+            ret.table.addAll(Files.readAllLines(output.toPath()));
+            Collections.sort(ret.table);
+            ret.log.addAll(Files.readAllLines(outputLog.toPath()));
+            try (SamReader sam = SamReaderFactory.makeDefault().open(bam))
+            {
+                for (SAMSequenceRecord contig : sam.getFileHeader().getSequenceDictionary().getSequences())
+                {
+                    ret.intervals.put(contig.getSequenceName(), sbt.getIntervals(contig.getSequenceName()));
+                }
+            }
+
+            output.delete();
+            outputLog.delete();
+
+            return ret;
+        }
+
+        private static class IterationResults
+        {
+            private final Map<String, Map<String, Object>> coverage = new HashMap<>();
+            private final List<String> table = new ArrayList<>();
+            private final List<String> log = new ArrayList<>();
+            private final Map<String, List<Interval>> intervals = new HashMap<>();
+
+            public void assertEquals(IterationResults other, String label, boolean sameReadOrder)
+            {
+                Assert.assertEquals("Coverage does not match using " + label, coverage, other.coverage);
+                Assert.assertEquals("SBT results do not match using " + label, table, other.table);
+                Assert.assertEquals("SBT intervals do not match using " + label, intervals, other.intervals);
+                if (sameReadOrder)
+                {
+                    Assert.assertEquals("SBT log does not match using " + label, log, other.log);
+                }
+                else
+                {
+                    List<String> expected = new ArrayList<>(log);
+                    Collections.sort(expected);
+                    List<String> actual = new ArrayList<>(other.log);
+                    Collections.sort(actual);
+                    Assert.assertEquals("SBT log does not match using " + label, expected, actual);
+                }
+            }
+        }
+
+        /**
+         * The coverage implementation prior to ContigCoverage, which tracks each position and insert index in a map.
+         * This is used as the expected output for NtCoverageAggregator.
+         */
+        private static class MapBasedCoverageAggregator extends AbstractAlignmentAggregator
+        {
+            private static final String BASES = "ATGCN-";
+            private static final String[] FIELD_SUFFIXES = new String[]{"a", "t", "g", "c", "n", "del"};
+
+            //reference name -> position -> insert index -> depth, HC depth, then the depth and quality total of each base
+            private final Map<String, Map<Integer, Map<Integer, int[]>>> _coverage = new HashMap<>();
+            private final Map<String, ReferenceSequence> _refSequences = new HashMap<>();
+
+            public MapBasedCoverageAggregator(Logger log, File refFasta, AvgBaseQualityAggregator avgQualAggregator, Map<String, String> settings)
+            {
+                super(log, refFasta, avgQualAggregator, settings);
+            }
+
+            @Override
+            public void inspectAlignment(SAMRecord record, ReferenceSequence ref, Map<Integer, List<NTSnp>> snps) throws PipelineJobException
+            {
+                if (!isPassingAlignment(record, true))
+                {
+                    return;
+                }
+
+                _refSequences.put(ref.getName(), ref);
+
+                CigarPositionBuffer positions = getPositions(record);
+                for (int i = 0; i < positions.size(); i++)
+                {
+                    if (!positions.includeInSnpCount(i))
+                        continue;
+
+                    List<NTSnp> snpsAtPosition = snps.get(positions.getRefPosition(i));
+                    if (snpsAtPosition != null)
+                    {
+                        for (NTSnp ntSnp : snpsAtPosition)
+                        {
+                            char base = isPassingSnp(record, ntSnp) ? (char)ntSnp.getReadBase() : (char)AMBIGUITY_CHARACTER;
+                            append(ntSnp.getReferenceName(), ntSnp.getLastRefPosition(), ntSnp.getInsertIndex(), ntSnp.getBaseQuality(), base);
+                        }
+                    }
+                    else
+                    {
+                        append(ref.getName(), positions.getLastRefPosition(i), positions.getInsertIndex(i), positions.getBaseQuality(i), (char)positions.getReadBase(i));
+                    }
+                }
+            }
+
+            private void append(String refName, int position, int index, int qual, char base)
+            {
+                int[] values = _coverage.computeIfAbsent(refName, x -> new HashMap<>()).computeIfAbsent(position, x -> new HashMap<>()).computeIfAbsent(index, x -> new int[2 + (2 * BASES.length())]);
+                values[0]++;
+                if (base != AMBIGUITY_CHARACTER)
+                {
+                    values[1]++;
+                }
+
+                int baseIdx = BASES.indexOf(base);
+                values[2 + baseIdx]++;
+                values[2 + BASES.length() + baseIdx] += qual;
+            }
+
+            /**
+             * @return The rows that would be saved, keyed on reference, 1-based position and insert index
+             */
+            public Map<String, Map<String, Object>> getRows(AnalysisModel model)
+            {
+                Map<String, Map<String, Object>> ret = new HashMap<>();
+                for (String refName : _coverage.keySet())
+                {
+                    Integer refId = getReferenceLibraryHelper().resolveSequenceId(refName);
+                    for (Map.Entry<Integer, Map<Integer, int[]>> byPosition : _coverage.get(refName).entrySet())
+                    {
+                        int position = byPosition.getKey();
+                        for (Map.Entry<Integer, int[]> byIndex : byPosition.getValue().entrySet())
+                        {
+                            int index = byIndex.getKey();
+                            int[] values = byIndex.getValue();
+
+                            Map<String, Object> row = new HashMap<>();
+                            row.put("analysis_id", model.getAnalysisId());
+                            row.put("ref_nt_id", refId);
+                            row.put("ref_nt_position", position + 1);
+                            row.put("ref_nt_insert_index", index);
+                            row.put("depth", values[0]);
+                            row.put("adj_depth", values[1]);
+
+                            char wtBase = index == 0 ? (char)_refSequences.get(refName).getBases()[position] : 'x';
+                            for (int baseIdx = 0; baseIdx < BASES.length(); baseIdx++)
+                            {
+                                int baseTotal = values[2 + baseIdx];
+                                double totalQual = values[2 + BASES.length() + baseIdx];
+                                row.put("total_" + FIELD_SUFFIXES[baseIdx], baseTotal);
+                                row.put("avgqual_" + FIELD_SUFFIXES[baseIdx], baseTotal == 0 ? 0 : totalQual / baseTotal);
+                                if (index == 0 && BASES.charAt(baseIdx) == wtBase)
+                                {
+                                    row.put("wt", baseTotal);
+                                }
+                            }
+
+                            ret.put(refName + ":" + (position + 1) + ":" + index, row);
+                        }
+                    }
+                }
+
+                return ret;
+            }
+
+            @Override
+            public void writeOutput(User u, Container c, AnalysisModel model)
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public String getSynopsis()
+            {
+                return "Map-based NT Coverage Aggregator";
+            }
+        }
+
+        @Test
+        public void sequenceBasedTypingTest() throws Exception
+        {
+            assertSequenceBasedTypingHits(_bam, _refFasta);
+            assertSequenceBasedTypingHits(getMultiContigBAM(), getMultiContigFasta());
+        }
+
+        private void assertSequenceBasedTypingHits(File bam, File refFasta) throws Exception
+        {
+            //with default settings, stage 2-4 filters do not apply, so the hit sets are the stage 1 allele sets of each read
+            Map<String, Set<String>> alignmentsByReadM1 = new HashMap<>();
+            Map<String, Set<String>> alignmentsByReadM2 = new HashMap<>();
+            SamReaderFactory bamFact = SamReaderFactory.makeDefault();
+            bamFact.validationStringency(ValidationStringency.SILENT);
+            try (SamReader sam = bamFact.open(bam); IndexedFastaSequenceFile indexedRef = new IndexedFastaSequenceFile(refFasta); SAMRecordIterator it = sam.iterator())
+            {
+                CigarPositionBuffer positions = new CigarPositionBuffer();
+                while (it.hasNext())
+                {
+                    SAMRecord r = it.next();
+                    if (r.getReadUnmappedFlag())
+                    {
+                        continue;
+                    }
+
+                    positions.fill(r, indexedRef.getSequence(r.getReferenceName()).getBases());
+                    if (positions.getMismatchCount() == 0)
+                    {
+                        Map<String, Set<String>> map = !r.getReadPairedFlag() || r.getFirstOfPairFlag() ? alignmentsByReadM1 : alignmentsByReadM2;
+                        map.computeIfAbsent(r.getReadName(), x -> new HashSet<>()).add(r.getReferenceName());
+                    }
+                }
+            }
+
+            Map<String, List<Integer>> expected = new TreeMap<>();
+            for (String readName : alignmentsByReadM1.keySet())
+            {
+                Set<String> refNames = new TreeSet<>(alignmentsByReadM1.get(readName));
+                boolean hasMate = alignmentsByReadM2.containsKey(readName);
+                if (hasMate)
+                {
+                    refNames.retainAll(alignmentsByReadM2.get(readName));
+                }
+
+                if (!refNames.isEmpty())
+                {
+                    appendExpectedHit(expected, refNames, true, hasMate);
+                }
+            }
+
+            for (String readName : alignmentsByReadM2.keySet())
+            {
+                if (!alignmentsByReadM1.containsKey(readName))
+                {
+                    appendExpectedHit(expected, new TreeSet<>(alignmentsByReadM2.get(readName)), false, true);
+                }
+            }
+
+            Assert.assertFalse("No expected hits found", expected.isEmpty());
+            for (int threads : new int[]{1, 2, 4})
+            {
+                Assert.assertEquals("Incorrect SBT hits for " + bam.getName() + " using " + threads + " threads", expected, getSequenceBasedTypingHits(bam, refFasta, threads));
+            }
+        }
+
+        @Test
+        public void sequenceBasedTypingFiltersTest() throws Exception
+        {
+            //the expected summaries were saved from the implementation that tracked reads by name. reads in the sample data are unpaired,
+            //so requiring valid pairs rejects all of them
+            Map<String, String> lineages = Collections.singletonMap("SIVmac239_Test", "SIVmac239");
+            assertSequenceBasedTypingOutput(_bam, _refFasta, lineages, false, "test.sbt.log.txt", Arrays.asList("SIVmac239_Test\t37\t37\t0\t0", "\t6\t\t\t"));
+            assertSequenceBasedTypingOutput(_bam, _refFasta, lineages, true, "test.sbt.validPairs.log.txt", Arrays.asList("\t43\t\t\t"));
+        }
+
+        @Test
+        public void sequenceBasedTypingFiltersMultiAlleleTest() throws Exception
+        {
+            //alleles of the same lineage share most reads, so this exercises the filters across hit sets, within hit sets and by lineage.
+            //the expected summaries were saved from the implementation that tracked reads by name, except that references within a line
+            //are listed in sequence dictionary order rather than the arbitrary order of a HashSet
+            Map<String, String> lineages = new LinkedHashMap<>();
+            lineages.put("A001_01", "A001");
+            lineages.put("A001_02", "A001");
+            lineages.put("A002_01", "A002");
+            lineages.put("B017_01", "B017");
+            lineages.put("B017_02", "B017");
+            lineages.put("C001_01", "C001");
+
+            File bam = getMultiContigBAM();
+            File refFasta = getMultiContigFasta();
+            assertSequenceBasedTypingOutput(bam, refFasta, lineages, false, "multiContig.sbt.log.txt", Arrays.asList(
+                    "A002_01\t132\t117\t129\t114",
+                    "A001_02\t19\t18\t19\t18",
+                    "A001_01\t212\t195\t204\t187",
+                    "B017_01\t152\t132\t149\t129",
+                    "B017_02\t9\t9\t9\t9",
+                    "\t43\t\t\t"
+            ));
+            assertSequenceBasedTypingOutput(bam, refFasta, lineages, true, "multiContig.sbt.validPairs.log.txt", Arrays.asList(
+                    "A002_01\t114\t114\t114\t114",
+                    "A001_02\t18\t18\t18\t18",
+                    "A001_01\t187\t187\t187\t187",
+                    "B017_01\t129\t129\t129\t129",
+                    "B017_02\t9\t9\t9\t9",
+                    "\t110\t\t\t"
+            ));
+        }
+
+        private void assertSequenceBasedTypingOutput(File bam, File refFasta, Map<String, String> lineages, boolean onlyImportValidPairs, String expectedLogName, List<String> expectedTable) throws Exception
+        {
+            Map<String, String> settings = new HashMap<>();
+            settings.put("minPctForRef", "0.5");
+            settings.put("minPctWithinGroup", "25");
+            settings.put("onlyImportValidPairs", String.valueOf(onlyImportValidPairs));
+
+            File lineageMap = new File(_pipelineRoot, "sbtLineages.txt");
+            try (PrintWriter writer = PrintWriters.getPrintWriter(lineageMap))
+            {
+                for (Map.Entry<String, String> e : lineages.entrySet())
+                {
+                    writer.write(e.getKey() + "\t" + e.getValue() + "\n");
+                }
+            }
+
+            //the order in which reads are written is not defined
+            List<String> expectedLog = Files.readAllLines(new File(_sampleData, expectedLogName).toPath());
+            Collections.sort(expectedLog);
+
+            for (int threads : new int[]{1, 2, 4})
+            {
+                AvgBaseQualityAggregator avgQuals = new AvgBaseQualityAggregator(_log, bam, refFasta);
+                SequenceBasedTypingAlignmentAggregator agg = new SequenceBasedTypingAlignmentAggregator(_log, refFasta, avgQuals, settings);
+                agg.setLogProgress(false);
+                agg.setLineageMapFile(lineageMap);
+                agg.setMinPctForLineageFiltering(0.25);
+
+                File outputLog = new File(_pipelineRoot, "sbtTest.log.txt");
+                agg.setOutputLog(outputLog);
+
+                BamIterator bi = new BamIterator(bam, refFasta, _log);
+                bi.setThreads(threads);
+                bi.addAggregator(agg);
+                bi.iterateReads();
+
+                File output = new File(_pipelineRoot, "sbtTest.txt");
+                agg.writeTable(output);
+
+                List<String> table = new ArrayList<>();
+                try (CSVReader reader = new CSVReader(Readers.getReader(output), '\t'))
+                {
+                    String[] line;
+                    while ((line = reader.readNext()) != null)
+                    {
+                        table.add(String.join("\t", line));
+                    }
+                }
+                Assert.assertEquals("Incorrect SBT table using " + threads + " threads", expectedTable, table);
+
+                List<String> log = Files.readAllLines(outputLog.toPath());
+                Collections.sort(log);
+                Assert.assertEquals("SBT summary does not match saved output using " + threads + " threads", expectedLog, log);
+
+                output.delete();
+                outputLog.delete();
+            }
+
+            lineageMap.delete();
+        }
+
+        private void appendExpectedHit(Map<String, List<Integer>> expected, Set<String> refNames, boolean hasForward, boolean hasReverse)
+        {
+            List<Integer> totals = expected.computeIfAbsent(String.join("||", refNames), x -> new ArrayList<>(Arrays.asList(0, 0, 0, 0)));
+            totals.set(0, totals.get(0) + 1);
+            totals.set(1, totals.get(1) + (hasForward ? 1 : 0));
+            totals.set(2, totals.get(2) + (hasReverse ? 1 : 0));
+            totals.set(3, totals.get(3) + (hasForward && hasReverse ? 1 : 0));
+        }
+
+        private Map<String, List<Integer>> getSequenceBasedTypingHits(File bam, File refFasta, int threads) throws Exception
+        {
+            AvgBaseQualityAggregator avgQuals = new AvgBaseQualityAggregator(_log, bam, refFasta);
+            SequenceBasedTypingAlignmentAggregator agg = new SequenceBasedTypingAlignmentAggregator(_log, refFasta, avgQuals, Collections.emptyMap());
+            agg.setLogProgress(false);
+
+            BamIterator bi = new BamIterator(bam, refFasta, _log);
+            bi.setThreads(threads);
+            bi.addAggregator(agg);
+            bi.iterateReads();
+
+            File output = new File(_pipelineRoot, "sbtTest." + threads + ".txt");
+            agg.writeTable(output);
+
+            Map<String, List<Integer>> ret = new TreeMap<>();
+            try (CSVReader reader = new CSVReader(Readers.getReader(output), '\t'))
+            {
+                String[] line;
+                while ((line = reader.readNext()) != null)
+                {
+                    //the final line holds the unaligned reads
+                    if (!line[0].isEmpty())
+                    {
+                        ret.put(line[0], Arrays.asList(Integer.parseInt(line[1]), Integer.parseInt(line[2]), Integer.parseInt(line[3]), Integer.parseInt(line[4])));
+                    }
+                }
+            }
+
+            output.delete();
+
+            return ret;
+        }
+
         private static File getSampleDataDir()
         {
             Module module = ModuleLoader.getInstance().getModule(SequenceAnalysisModule.class);
@@ -418,6 +1114,53 @@ private File getBAM() throws FileNotFoundException
             return file;
         }
 
+        /**
+         * A BAM with several references, including reads whose mates align to a different reference.  See README.txt in the sample data.
+         */
+        private File getMultiContigBAM() throws IOException
+        {
+            File file = new File(getSampleDataDir(), "multiContig.bam");
+            if (!file.exists())
+                throw new FileNotFoundException("File not found: " + file.getPath());
+
+            SamReaderFactory bamFact = SamReaderFactory.makeDefault();
+            bamFact.validationStringency(ValidationStringency.SILENT);
+            try (SamReader sam = bamFact.open(file); SAMRecordIterator it = sam.iterator())
+            {
+                Assert.assertTrue("Expected more than one reference", sam.getFileHeader().getSequenceDictionary().size() > 1);
+
+                boolean hasMatesOnOtherReference = false;
+                while (it.hasNext() && !hasMatesOnOtherReference)
+                {
+                    SAMRecord r = it.next();
+                    hasMatesOnOtherReference = r.getReadPairedFlag() && !r.getReadUnmappedFlag() && !r.getMateUnmappedFlag() && !r.getReferenceIndex().equals(r.getMateReferenceIndex());
+                }
+                Assert.assertTrue("Expected reads whose mates align to a different reference", hasMatesOnOtherReference);
+            }
+
+            return file;
+        }
+
+        private File getMultiContigFasta() throws IOException
+        {
+            File output = new File(_pipelineRoot, "multiContig.fasta");
+            FileUtil.copyFile(new File(getSampleDataDir(), "multiContig.fasta"), output);
+            FileUtil.copyFile(new File(getSampleDataDir(), "multiContig.fasta.fai"), new File(_pipelineRoot, "multiContig.fasta.fai"));
+
+            //these sequences are not saved to the DB, so use placeholder IDs
+            try (PrintWriter writer = PrintWriters.getPrintWriter(new File(_pipelineRoot, "multiContig.idKey.txt")))
+            {
+                writer.write("RowId\tName\n");
+                int rowId = 0;
+                for (FastaSequenceIndexEntry entry : new FastaSequenceIndex(new File(_pipelineRoot, "multiContig.fasta.fai")))
+                {
+                    writer.write(++rowId + "\t" + entry.getContig() + "\n");
+                }
+            }
+
+            return output;
+        }
+
         private File getRefFasta() throws FileNotFoundException
         {
             if (_refFasta != null)
@@ -19,6 +19,9 @@
 import htsjdk.samtools.reference.ReferenceSequence;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.DbScope;
 import org.labkey.api.data.SimpleFilter;
@@ -31,60 +34,44 @@
 import org.labkey.api.sequenceanalysis.ReferenceLibraryHelper;
 import org.labkey.api.sequenceanalysis.model.AnalysisModel;
 import org.labkey.sequenceanalysis.SequenceAnalysisSchema;
-import org.labkey.sequenceanalysis.api.picard.CigarPositionIterable;
+import org.labkey.sequenceanalysis.api.picard.CigarPositionBuffer;
 import org.labkey.sequenceanalysis.run.util.NTSnp;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Random;
+import java.util.function.BiConsumer;
 
 /**
  * User: bimber
  * Date: 9/22/12
  * Time: 3:02 PM
  */
-public class NtCoverageAggregator extends AbstractAlignmentAggregator
+public class NtCoverageAggregator extends AbstractAlignmentAggregator implements ParallelAlignmentAggregator
 {
-    private final Map<String, int[][]> _totalCoverage = new HashMap<>();
-    private final Map<String, int[][]> _totalQual = new HashMap<>();
-    private final Map<String, int[][]> _hcCoverage = new HashMap<>();
-    private final Map<String, int[][]> _hcQual = new HashMap<>();
-    private final Map<String, ReferenceSequence> _refSequences = new HashMap<>();
+    private final Map<String, ContigCoverage> _coverage = new HashMap<>();
     private int _totalFilteredSnps = 0;
     private int _totalAlignments = 0;
 
-    private final Map<String, int[][][]> _totalCoverageByBase = new HashMap<>();
-    private final Map<String, int[][][]> _totalQualByBase = new HashMap<>();
+    //the contig of the previous alignment, which avoids a map lookup per base for sorted input
+    private ContigCoverage _currentContig = null;
 
-    private final Set<String> _encounteredReferences = new HashSet<>();
-
-    private final Map<Character, String> _baseMap = new HashMap<>()
-    {
-        {
-            put('A', "a");
-            put('T', "t");
-            put('G', "g");
-            put('C', "c");
-            put('N', "n");
-            put('-', "del");
-        }
-    };
-
-    private final Map<Character, Integer> _baseIndexMap = new HashMap<>()
+    private static final char[] BASES = new char[]{'A', 'T', 'G', 'C', 'N', '-'};
+    private static final String[] BASE_FIELD_SUFFIXES = new String[]{"a", "t", "g", "c", "n", "del"};
+    private static final int[] BASE_INDEXES = new int[128];
+    static
     {
+        Arrays.fill(BASE_INDEXES, -1);
+        for (int i = 0; i < BASES.length; i++)
         {
-            put('A', 0);
-            put('T', 1);
-            put('G', 2);
-            put('C', 3);
-            put('N', 4);
-            put('-', 5);
+            BASE_INDEXES[BASES[i]] = i;
         }
-    };
+    }
 
     public NtCoverageAggregator(Logger log, File refFasta, AvgBaseQualityAggregator avgQualAggregator, Map<String, String> settings)
     {
@@ -101,118 +88,106 @@ public void inspectAlignment(SAMRecord record, ReferenceSequence ref, Map<Intege
 
         _totalAlignments++;
 
-        initHashes(ref);
+        ContigCoverage contig = getContig(ref);
 
-        CigarPositionIterable.CigarIterator ci = new CigarPositionIterable(record).iterator();
-        while (ci.hasNext())
+        CigarPositionBuffer positions = getPositions(record);
+        for (int i = 0; i < positions.size(); i++)
         {
-            CigarPositionIterable.PositionInfo pi = ci.next();
-
             //We only want to include positions that would produce SNPs, which primarily means we skip soft-clipped sections
-            if (!pi.includeInSnpCount())
+            if (!positions.includeInSnpCount(i))
                 continue;
 
-            if (snps.containsKey(pi.getRefPosition()))
+            List<NTSnp> snpsAtPosition = snps.isEmpty() ? null : snps.get(positions.getRefPosition(i));
+            if (snpsAtPosition != null)
             {
-                for (NTSnp ntSnp : snps.get(pi.getRefPosition()))
+                for (NTSnp ntSnp : snpsAtPosition)
                 {
-                    inspectSnp(record, ntSnp);
+                    inspectSnp(contig, record, ntSnp);
                 }
             }
             else
             {
-                char base = (char)pi.getReadBase();
-                appendSnp(ref.getName(), pi.getLastRefPosition(), pi.getInsertIndex(), pi.getBaseQuality(), base, _totalCoverage, _totalQual, _totalCoverageByBase, _totalQualByBase);
-
-                if (pi.getReadBase() != BamIterator.AMBIGUITY_CHARACTER)
-                    appendSnp(ref.getName(), pi.getLastRefPosition(), pi.getInsertIndex(), pi.getBaseQuality(), base, _hcCoverage, _hcQual, null, null);
+                byte readBase = positions.getReadBase(i);
+                contig.add(positions.getLastRefPosition(i), positions.getInsertIndex(i), positions.getBaseQuality(i), getBaseIndex((char)readBase), readBase != BamIterator.AMBIGUITY_CHARACTER);
             }
         }
     }
 
-    private void initHashes(ReferenceSequence ref)
+    @Override
+    public NtCoverageAggregator createWorkerInstance()
     {
-        if (_encounteredReferences.contains(ref.getName()))
-            return;
+        NtCoverageAggregator worker = new NtCoverageAggregator(getLogger(), getRefFasta(), _avgQualAggregator, Collections.emptyMap());
+        copySettingsTo(worker);
 
-        _encounteredReferences.add(ref.getName());
+        return worker;
+    }
 
-        int capacity = ref.length() + 1;
-        final int INITIAL_SIZE = 4;
-        final int BASE_INITIAL_SIZE = 6;
-        _refSequences.put(ref.getName(), ref);
-        _totalCoverage.put(ref.getName(), new int[capacity][INITIAL_SIZE]);
-        _totalQual.put(ref.getName(), new int[capacity][INITIAL_SIZE]);
-        _hcCoverage.put(ref.getName(), new int[capacity][INITIAL_SIZE]);
-        _hcQual.put(ref.getName(), new int[capacity][INITIAL_SIZE]);
+    @Override
+    public void mergeWorkerInstances(List<ParallelAlignmentAggregator> workers)
+    {
+        for (ParallelAlignmentAggregator worker : workers)
+        {
+            NtCoverageAggregator other = (NtCoverageAggregator)worker;
+            mergeBaseResults(other);
+            _totalAlignments += other._totalAlignments;
+            _totalFilteredSnps += other._totalFilteredSnps;
 
-        _totalCoverageByBase.put(ref.getName(), new int[capacity][INITIAL_SIZE][BASE_INITIAL_SIZE]);
-        _totalQualByBase.put(ref.getName(), new int[capacity][INITIAL_SIZE][BASE_INITIAL_SIZE]);
+            for (Map.Entry<String, ContigCoverage> e : other._coverage.entrySet())
+            {
+                ContigCoverage existing = _coverage.get(e.getKey());
+                if (existing == null)
+                {
+                    _coverage.put(e.getKey(), e.getValue());
+                }
+                else
+                {
+                    existing.merge(e.getValue());
+                }
+            }
+        }
     }
 
-    public int getDepthAtPosition(String ref, int position, int index)
+    private ContigCoverage getContig(ReferenceSequence ref)
     {
-        if (!_totalCoverage.containsKey(ref))
-            return 0;
-
-        if (_totalCoverage.get(ref).length <= position)
-            return 0;
+        if (_currentContig != null && _currentContig.getRef() == ref)
+        {
+            return _currentContig;
+        }
 
-        if (_totalCoverage.get(ref)[position].length <= index)
-            return 0;
+        _currentContig = _coverage.computeIfAbsent(ref.getName(), x -> new ContigCoverage(ref));
 
-        return _totalCoverage.get(ref)[position][index];
+        return _currentContig;
     }
 
-    public int getHcDepthAtPosition(String ref, int position, int index)
+    public int getDepthAtPosition(String ref, int position, int index)
     {
-        if (!_hcCoverage.containsKey(ref))
-            return 0;
+        ContigCoverage contig = _coverage.get(ref);
 
-        if (_hcCoverage.get(ref).length <= position)
-            return 0;
+        return contig == null ? 0 : contig.getValue(position, index, ContigCoverage.DEPTH);
+    }
 
-        if (_hcCoverage.get(ref)[position].length <= index)
-            return 0;
+    public int getHcDepthAtPosition(String ref, int position, int index)
+    {
+        ContigCoverage contig = _coverage.get(ref);
 
-        return _hcCoverage.get(ref)[position][index];
+        return contig == null ? 0 : contig.getValue(position, index, ContigCoverage.HC_DEPTH);
     }
 
     public int getDepthQualityAtPositionForBase(String ref, int position, int index, char base)
     {
-        if (!_totalCoverageByBase.containsKey(ref))
-            return 0;
-
-        if (_totalCoverageByBase.get(ref).length <= position)
-            return 0;
-
-        if (_totalCoverageByBase.get(ref)[position].length <= index)
-            return 0;
+        ContigCoverage contig = _coverage.get(ref);
 
-        if (_totalCoverageByBase.get(ref)[position][_baseIndexMap.get(base)].length <= index)
-            return 0;
-
-        return _totalCoverageByBase.get(ref)[position][index][_baseIndexMap.get(base)];
+        return contig == null ? 0 : contig.getValue(position, index, ContigCoverage.BASE_DEPTH + getBaseIndex(base));
     }
 
     public int getTotalQualityAtPositionForBase(String ref, int position, int index, char base)
     {
-        if (!_totalQualByBase.containsKey(ref))
-            return 0;
-
-        if (_totalQualByBase.get(ref).length <= position)
-            return 0;
-
-        if (_totalQualByBase.get(ref)[position].length <= index)
-            return 0;
+        ContigCoverage contig = _coverage.get(ref);
 
-        if (_totalQualByBase.get(ref)[position][_baseIndexMap.get(base)].length <= index)
-            return 0;
-
-        return _totalQualByBase.get(ref)[position][index][_baseIndexMap.get(base)];
+        return contig == null ? 0 : contig.getValue(position, index, ContigCoverage.BASE_QUAL + getBaseIndex(base));
     }
 
-    private void inspectSnp(SAMRecord record, NTSnp ntSnp) throws PipelineJobException
+    private void inspectSnp(ContigCoverage contig, SAMRecord record, NTSnp ntSnp) throws PipelineJobException
     {
         char base = (char)ntSnp.getReadBase();
         if (!isPassingSnp(record, ntSnp))
@@ -221,118 +196,194 @@ private void inspectSnp(SAMRecord record, NTSnp ntSnp) throws PipelineJobExcepti
             _totalFilteredSnps++;
         }
 
-        appendSnp(ntSnp.getReferenceName(), ntSnp.getLastRefPosition(), ntSnp.getInsertIndex(), ntSnp.getBaseQuality(), base, _totalCoverage, _totalQual, _totalCoverageByBase, _totalQualByBase);
+        contig.add(ntSnp.getLastRefPosition(), ntSnp.getInsertIndex(), ntSnp.getBaseQuality(), getBaseIndex(base), (char)BamIterator.AMBIGUITY_CHARACTER != base);
+    }
 
-        if ((char)BamIterator.AMBIGUITY_CHARACTER != base)
+    private static int getBaseIndex(char base)
+    {
+        int idx = base < BASE_INDEXES.length ? BASE_INDEXES[base] : -1;
+        if (idx == -1)
         {
-            appendSnp(ntSnp.getReferenceName(), ntSnp.getLastRefPosition(), ntSnp.getInsertIndex(), ntSnp.getBaseQuality(), (char)ntSnp.getReadBase(), _hcCoverage, _hcQual, null, null);
+            throw new IllegalArgumentException("Unknown base: " + base);
         }
+
+        return idx;
     }
 
-    private int[] extendArray(int[] source, int newLength, int buffer)
+    /**
+     * Coverage for one reference sequence. Counts for reference positions (insert index 0) are held in primitive arrays, each
+     * covering CHUNK_SIZE positions with TOTAL_VALUES slots per position. A chunk is only allocated once a read covers it, so memory
+     * follows the covered span rather than the reference length, and no single array is indexed past the int range on long contigs.
+     * Insertions are comparatively rare, so counts for insert indexes above 0 are held in a sparse map keyed on position and insert index.
+     */
+    static class ContigCoverage
     {
-        newLength += buffer;
-        int[] newArray = new int[newLength];
-        System.arraycopy(source, 0, newArray, 0, source.length);
+        //offsets of the values stored for each position and insert index
+        static final int DEPTH = 0;
+        static final int HC_DEPTH = 1;
+        static final int BASE_DEPTH = 2;
+        static final int BASE_QUAL = BASE_DEPTH + BASES.length;
+        static final int TOTAL_VALUES = BASE_QUAL + BASES.length;
 
-        return newArray;
-    }
+        private static final int CHUNK_BITS = 16;
+        static final int CHUNK_SIZE = 1 << CHUNK_BITS;
 
-    private int[][] extendArray(int[][] source, int newLength, int buffer)
-    {
-        newLength += buffer;
-        int[][] newArray = new int[newLength][6];
-        System.arraycopy(source, 0, newArray, 0, source.length);
+        private final ReferenceSequence _ref;
+        private final int _length;
 
-        return newArray;
-    }
+        //position -> values, in chunks of CHUNK_SIZE positions. null until a read covers the chunk
+        private final int[][] _chunks;
 
-    private void appendSnp(String refName, int position, int index, int qual, char base, Map<String, int[][]> coverageMap, Map<String, int[][]> qualMap, Map<String, int[][][]> coverageByBase, Map<String, int[][][]> qualByBase)
-    {
-        final int DEFAULT_EXTENSION = 20;
+        private final Map<Long, int[]> _insertions = new HashMap<>();
 
-        //first track total coverage
-        int[] totals = coverageMap.get(refName)[position];
-        if (totals.length <= index)
+        public ContigCoverage(ReferenceSequence ref)
         {
-            totals = extendArray(totals, index + 1, DEFAULT_EXTENSION);
-            coverageMap.get(refName)[position] = totals;
+            _ref = ref;
+            _length = ref.length() + 1;
+            _chunks = new int[(_length + CHUNK_SIZE - 1) >>> CHUNK_BITS][];
         }
-        totals[index]++;
 
+        public ReferenceSequence getRef()
+        {
+            return _ref;
+        }
 
-        //also add quality score
-        int[] qualTotals = qualMap.get(refName)[position];
-        if (qualTotals.length <= index)
+        public int getLength()
         {
-            qualTotals = extendArray(qualTotals, index + 1, DEFAULT_EXTENSION);
-            qualMap.get(refName)[position] = qualTotals;
+            return _length;
         }
-        qualTotals[index] += qual;
 
+        private static long getInsertionKey(int position, int index)
+        {
+            return ((long)position << 32) | index;
+        }
 
-        int baseIndex = getBaseIndex(base);
+        private int[] getOrCreateChunk(int chunkIdx)
+        {
+            int[] chunk = _chunks[chunkIdx];
+            if (chunk == null)
+            {
+                //the last chunk only covers the remainder of the reference
+                int positions = Math.min(CHUNK_SIZE, _length - (chunkIdx << CHUNK_BITS));
+                chunk = new int[positions * TOTAL_VALUES];
+                _chunks[chunkIdx] = chunk;
+            }
 
-        //also track coverage per base
-        if (coverageByBase != null)
+            return chunk;
+        }
+
+        private static int getChunkOffset(int position)
         {
-            int[][] totalsByBase = coverageByBase.get(refName)[position];
-            if (totalsByBase.length <= index)
+            return (position & (CHUNK_SIZE - 1)) * TOTAL_VALUES;
+        }
+
+        public void add(int position, int index, int qual, int baseIndex, boolean highConfidence)
+        {
+            if (position < 0 || position >= _length)
+            {
+                throw new ArrayIndexOutOfBoundsException("Position " + position + " is beyond the end of reference: " + _ref.getName());
+            }
+
+            if (index == 0)
             {
-                totalsByBase = extendArray(totalsByBase, index + 1, DEFAULT_EXTENSION);
-                coverageByBase.get(refName)[position] = totalsByBase;
+                int[] chunk = getOrCreateChunk(position >>> CHUNK_BITS);
+                int offset = getChunkOffset(position);
+                chunk[offset + DEPTH]++;
+                chunk[offset + BASE_DEPTH + baseIndex]++;
+                chunk[offset + BASE_QUAL + baseIndex] += qual;
+                if (highConfidence)
+                {
+                    chunk[offset + HC_DEPTH]++;
+                }
+            }
+            else
+            {
+                int[] values = _insertions.computeIfAbsent(getInsertionKey(position, index), x -> new int[TOTAL_VALUES]);
+                values[DEPTH]++;
+                values[BASE_DEPTH + baseIndex]++;
+                values[BASE_QUAL + baseIndex] += qual;
+                if (highConfidence)
+                {
+                    values[HC_DEPTH]++;
+                }
             }
-            totalsByBase[index][baseIndex]++;
         }
 
-        //and quality
-        if (qualByBase != null)
+        public void merge(ContigCoverage other)
         {
-            int[][] qualTotalByBase = qualByBase.get(refName)[position];
-            if (qualTotalByBase.length <= index)
+            if (other._length != _length)
+            {
+                throw new IllegalArgumentException("Coverage for " + _ref.getName() + " has a different length: " + other._length + " / " + _length);
+            }
+
+            for (int chunkIdx = 0; chunkIdx < _chunks.length; chunkIdx++)
+            {
+                int[] otherChunk = other._chunks[chunkIdx];
+                if (otherChunk == null)
+                {
+                    continue;
+                }
+
+                int[] chunk = getOrCreateChunk(chunkIdx);
+                for (int i = 0; i < chunk.length; i++)
+                {
+                    chunk[i] += otherChunk[i];
+                }
+            }
+
+            for (Map.Entry<Long, int[]> e : other._insertions.entrySet())
             {
-                qualTotalByBase = extendArray(qualTotalByBase, index + 1, DEFAULT_EXTENSION);
-                qualByBase.get(refName)[position] = qualTotalByBase;
+                int[] values = _insertions.computeIfAbsent(e.getKey(), x -> new int[TOTAL_VALUES]);
+                for (int i = 0; i < TOTAL_VALUES; i++)
+                {
+                    values[i] += e.getValue()[i];
+                }
             }
-            qualTotalByBase[index][baseIndex] += qual;
         }
-    }
 
-    private int getBaseIndex(char base)
-    {
-        return _baseIndexMap.get(base);
-    }
+        public int getValue(int position, int index, int offset)
+        {
+            if (position < 0 || position >= _length)
+                return 0;
 
-    private int getValueForPosition(String refName, int position, int index, Map<String, int[][]> map)
-    {
-        if (!map.containsKey(refName))
-            return 0;
+            if (index == 0)
+            {
+                int[] chunk = _chunks[position >>> CHUNK_BITS];
 
-        int[][] arr = map.get(refName);
-        if (arr[position].length <= index)
-            return 0;
+                return chunk == null ? 0 : chunk[getChunkOffset(position) + offset];
+            }
 
-        return arr[position][index];
-    }
+            int[] values = _insertions.get(getInsertionKey(position, index));
 
-    private int getValueForPositionAndBase(String refName, int position, int index, char base, Map<String, int[][][]> map)
-    {
-        if (!map.containsKey(refName))
-            return 0;
+            return values == null ? 0 : values[offset];
+        }
 
-        int[][][] arr = map.get(refName);
-        if (arr[position].length <= index)
-            return 0;
+        /**
+         * @return The insert indexes above 0 with coverage, as sorted keys encoding the position and insert index
+         */
+        public long[] getSortedInsertionKeys()
+        {
+            long[] keys = new long[_insertions.size()];
+            int i = 0;
+            for (Long key : _insertions.keySet())
+            {
+                keys[i] = key;
+                i++;
+            }
+            Arrays.sort(keys);
 
-        int baseInx = getBaseIndex(base);
+            return keys;
+        }
 
-        if (arr[position][index].length <= baseInx)
+        public static int getPosition(long insertionKey)
         {
-            //TOOD: error?
-            return 0;
+            return (int)(insertionKey >>> 32);
         }
 
-        return arr[position][index][baseInx];
+        public static int getIndex(long insertionKey)
+        {
+            return (int)insertionKey;
+        }
     }
 
     @Override
@@ -347,99 +398,24 @@ public void writeOutput(User u, Container c, AnalysisModel model)
             TableInfo ti = SequenceAnalysisSchema.getInstance().getSchema().getTable(SequenceAnalysisSchema.TABLE_COVERAGE);
             SimpleFilter filter = new SimpleFilter(FieldKey.fromString("analysis_id"), model.getAnalysisId());
             long deleted = Table.delete(ti, filter);
-            int processed = 0;
 
-            ReferenceLibraryHelper libraryHelper = getReferenceLibraryHelper();
+            for (String refName : _coverage.keySet())
+            {
+                summary.put(refName, 0);
+            }
 
             //insert new
-            for (String refName : _totalCoverage.keySet())
-            {
-                Integer refId = libraryHelper.resolveSequenceId(refName);
+            forEachRow(model, (refName, row) -> {
+                row.put("container", c.getEntityId());
+                row.put("createdby", u.getUserId());
+                row.put("modifiedby", u.getUserId());
+                row.put("created", new Date());
+                row.put("modified", new Date());
+                Table.insert(u, ti, row);
 
                 //keep track of positions by reference
-                Integer totalSaved = summary.get(refName);
-                if (totalSaved == null)
-                    totalSaved = 0;
-
-                int[][] coverageForRef = _totalCoverage.get(refName);
-                for (int position = 0; position < coverageForRef.length; position++)
-                {
-                    int[] coverageByIndex = coverageForRef[position];
-                    for (int index = 0; index < coverageByIndex.length; index++)
-                    {
-                        int savedDepth = getValueForPosition(refName, position, index, _totalCoverage);
-                        if (savedDepth == 0)
-                            continue;
-
-                        int savedHCDepth = getValueForPosition(refName, position, index, _hcCoverage);
-
-                        Map<String, Object> row = new HashMap<>();
-                        row.put("analysis_id", model.getAnalysisId());
-                        row.put("ref_nt_id", refId);
-                        row.put("ref_nt_position", position + 1); //convert to 1-based
-                        row.put("ref_nt_insert_index", index);
-                        row.put("depth", savedDepth);
-                        row.put("adj_depth", savedHCDepth);
-
-                        int total = 0;
-                        int n_total = 0;
-                        char wtBase = index == 0 ? (char)_refSequences.get(refName).getBases()[position] : 'x';
-
-                        for (char base : _baseMap.keySet())
-                        {
-                            String fieldSuffix = _baseMap.get(base);
-                            Integer baseTotal = getValueForPositionAndBase(refName, position, index, base, _totalCoverageByBase);
-
-                            row.put("total_" + fieldSuffix, baseTotal);
-
-                            total += baseTotal;
-                            if ('N' == base)
-                                n_total += baseTotal;
-
-                            double totalQual = getValueForPositionAndBase(refName, position, index, base, _totalQualByBase);
-                            double avgQual = baseTotal == 0 ? 0 : totalQual / baseTotal.doubleValue();
-                            row.put("avgqual_" + fieldSuffix, avgQual);
-
-                            if (index == 0 && base == wtBase)
-                            {
-                                row.put("wt", baseTotal);
-                            }
-                        }
-
-                        if (savedHCDepth > 0)
-                        {
-                            int totalWithoutN = total - n_total;
-                            if (totalWithoutN != savedHCDepth)
-                            {
-                                getLogger().error("High quality coverage total doesn't match at position " + position + ": " + totalWithoutN + " / " + savedHCDepth);
-                            }
-                            //assert totalWithoutN == savedHCDepth;
-                        }
-
-                        if (total != savedDepth)
-                        {
-                            getLogger().error("Coverage doesn't match " + position + ": " + total + " / " + savedDepth);
-                        }
-                        //assert total == savedDepth;
-
-                        row.put("container", c.getEntityId());
-                        row.put("createdby", u.getUserId());
-                        row.put("modifiedby", u.getUserId());
-                        row.put("created", new Date());
-                        row.put("modified", new Date());
-                        Table.insert(u, ti, row);
-                        totalSaved++;
-                    }
-
-                    processed++;
-                    if (_logProgress && processed % 10000 == 0)
-                    {
-                        getLogger().info("processed " + processed + " positions for DB insert in NTCoverageAggregator");
-                    }
-                }
-
-                summary.put(refName, totalSaved);
-            }
+                summary.merge(refName, 1, Integer::sum);
+            });
 
             transaction.commit();
 
@@ -454,6 +430,112 @@ public void writeOutput(User u, Container c, AnalysisModel model)
         }
     }
 
+    /**
+     * Builds the row saved by writeOutput() for each position and insert index with coverage, without the container or audit fields.
+     * Within a reference, rows are visited in order of position and then insert index.
+     * @param consumer Accepts the reference name and the row
+     */
+    public void forEachRow(AnalysisModel model, BiConsumer<String, Map<String, Object>> consumer)
+    {
+        int processed = 0;
+        ReferenceLibraryHelper libraryHelper = getReferenceLibraryHelper();
+
+        for (String refName : _coverage.keySet())
+        {
+            Integer refId = libraryHelper.resolveSequenceId(refName);
+
+            ContigCoverage contig = _coverage.get(refName);
+            long[] insertionKeys = contig.getSortedInsertionKeys();
+            int insertionIdx = 0;
+            for (int position = 0; position < contig.getLength(); position++)
+            {
+                Map<String, Object> row = buildRow(model, refId, contig, position, 0);
+                if (row != null)
+                    consumer.accept(refName, row);
+
+                //insertions following this position, in order of insert index
+                while (insertionIdx < insertionKeys.length && ContigCoverage.getPosition(insertionKeys[insertionIdx]) == position)
+                {
+                    row = buildRow(model, refId, contig, position, ContigCoverage.getIndex(insertionKeys[insertionIdx]));
+                    if (row != null)
+                        consumer.accept(refName, row);
+
+                    insertionIdx++;
+                }
+
+                processed++;
+                if (_logProgress && processed % 10000 == 0)
+                {
+                    getLogger().info("processed " + processed + " positions for DB insert in NTCoverageAggregator");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The row for this position and insert index, or null if there is no coverage
+     */
+    private @Nullable Map<String, Object> buildRow(AnalysisModel model, Integer refId, ContigCoverage contig, int position, int index)
+    {
+        int savedDepth = contig.getValue(position, index, ContigCoverage.DEPTH);
+        if (savedDepth == 0)
+            return null;
+
+        int savedHCDepth = contig.getValue(position, index, ContigCoverage.HC_DEPTH);
+
+        Map<String, Object> row = new HashMap<>();
+        row.put("analysis_id", model.getAnalysisId());
+        row.put("ref_nt_id", refId);
+        row.put("ref_nt_position", position + 1); //convert to 1-based
+        row.put("ref_nt_insert_index", index);
+        row.put("depth", savedDepth);
+        row.put("adj_depth", savedHCDepth);
+
+        int total = 0;
+        int n_total = 0;
+        char wtBase = index == 0 ? (char)contig.getRef().getBases()[position] : 'x';
+
+        for (int baseIdx = 0; baseIdx < BASES.length; baseIdx++)
+        {
+            char base = BASES[baseIdx];
+            String fieldSuffix = BASE_FIELD_SUFFIXES[baseIdx];
+            int baseTotal = contig.getValue(position, index, ContigCoverage.BASE_DEPTH + baseIdx);
+
+            row.put("total_" + fieldSuffix, baseTotal);
+
+            total += baseTotal;
+            if ('N' == base)
+                n_total += baseTotal;
+
+            double totalQual = contig.getValue(position, index, ContigCoverage.BASE_QUAL + baseIdx);
+            double avgQual = baseTotal == 0 ? 0 : totalQual / baseTotal;
+            row.put("avgqual_" + fieldSuffix, avgQual);
+
+            if (index == 0 && base == wtBase)
+            {
+                row.put("wt", baseTotal);
+            }
+        }
+
+        if (savedHCDepth > 0)
+        {
+            int totalWithoutN = total - n_total;
+            if (totalWithoutN != savedHCDepth)
+            {
+                getLogger().error("High quality coverage total doesn't match at position " + position + ": " + totalWithoutN + " / " + savedHCDepth);
+            }
+            //assert totalWithoutN == savedHCDepth;
+        }
+
+        if (total != savedDepth)
+        {
+            getLogger().error("Coverage doesn't match " + position + ": " + total + " / " + savedDepth);
+        }
+        //assert total == savedDepth;
+
+        return row;
+    }
+
     @Override
     public String getSynopsis()
     {
@@ -465,4 +547,68 @@ public String getSynopsis()
                 "\tMinAvgDipQual: " + getMinAvgDipQual() + "\n"
                 ;
     }
+
+    public static class TestCase extends Assert
+    {
+        /**
+         * Compares ContigCoverage against a naive map, for positions on either side of chunk boundaries, including merges
+         * where only one side has allocated a chunk
+         */
+        @Test
+        public void testContigCoverage()
+        {
+            Random random = new Random(1234);
+            byte[] bases = new byte[(3 * ContigCoverage.CHUNK_SIZE) + 100];
+            Arrays.fill(bases, (byte)'A');
+            ReferenceSequence ref = new ReferenceSequence("chr1", 0, bases);
+
+            ContigCoverage coverage = new ContigCoverage(ref);
+            ContigCoverage other = new ContigCoverage(ref);
+            Map<String, Integer> expected = new HashMap<>();
+
+            //the second chunk is never covered, and the third is only covered by the coverage that is merged in
+            int[] positions = new int[]{0, 1, ContigCoverage.CHUNK_SIZE - 1, (2 * ContigCoverage.CHUNK_SIZE) + 1, (3 * ContigCoverage.CHUNK_SIZE) - 1, 3 * ContigCoverage.CHUNK_SIZE, bases.length};
+            for (int i = 0; i < 5000; i++)
+            {
+                int position = positions[random.nextInt(positions.length)];
+                int index = random.nextInt(5) == 0 ? 1 + random.nextInt(2) : 0;
+                int baseIndex = random.nextInt(BASES.length);
+                int qual = random.nextInt(42);
+                boolean highConfidence = random.nextBoolean();
+
+                ContigCoverage target = position >= 2 * ContigCoverage.CHUNK_SIZE && position < 3 * ContigCoverage.CHUNK_SIZE ? other : (random.nextBoolean() ? coverage : other);
+                target.add(position, index, qual, baseIndex, highConfidence);
+
+                String key = position + "||" + index + "||";
+                expected.merge(key + ContigCoverage.DEPTH, 1, Integer::sum);
+                expected.merge(key + ContigCoverage.HC_DEPTH, highConfidence ? 1 : 0, Integer::sum);
+                expected.merge(key + (ContigCoverage.BASE_DEPTH + baseIndex), 1, Integer::sum);
+                expected.merge(key + (ContigCoverage.BASE_QUAL + baseIndex), qual, Integer::sum);
+            }
+
+            coverage.merge(other);
+            for (int position = 0; position < coverage.getLength(); position++)
+            {
+                for (int index = 0; index <= 2; index++)
+                {
+                    for (int offset = 0; offset < ContigCoverage.TOTAL_VALUES; offset++)
+                    {
+                        int value = expected.getOrDefault(position + "||" + index + "||" + offset, 0);
+                        assertEquals("Incorrect value for position: " + position + ", index: " + index + ", offset: " + offset, value, coverage.getValue(position, index, offset));
+                    }
+                }
+            }
+
+            assertEquals("Positions beyond the reference should have no coverage", 0, coverage.getValue(coverage.getLength(), 0, ContigCoverage.DEPTH));
+            try
+            {
+                coverage.add(coverage.getLength(), 0, 30, 0, true);
+                fail("Expected an error for a position beyond the reference");
+            }
+            catch (ArrayIndexOutOfBoundsException e)
+            {
+                //expected
+            }
+        }
+    }
 }
@@ -19,6 +19,7 @@
 import htsjdk.samtools.reference.ReferenceSequence;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
+import org.jetbrains.annotations.Nullable;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.DbScope;
 import org.labkey.api.data.SimpleFilter;
@@ -34,6 +35,7 @@
 import org.labkey.sequenceanalysis.run.util.NTSnp;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -44,7 +46,7 @@
  * Date: 9/22/12
  * Time: 2:57 PM
  */
-public class NtSnpByPosAggregator extends AbstractAlignmentAggregator
+public class NtSnpByPosAggregator extends AbstractAlignmentAggregator implements ParallelAlignmentAggregator
 {
     private NtCoverageAggregator _coverageAggregator = null;
     private boolean _coverageTrackedExternally;
@@ -73,7 +75,7 @@ public void inspectAlignment(SAMRecord record, ReferenceSequence ref, Map<Intege
         //NOTE: depth is handled by superclass
         if (!_coverageTrackedExternally)
         {
-            getCoverageAggregator().inspectAlignment(record, ref, snps);
+            getCoverageAggregator().inspectAlignment(record, ref, snps, getPositions(record));
         }
 
         if (!isPassingAlignment(record, true))
@@ -214,6 +216,44 @@ public void writeOutput(User u, Container c, AnalysisModel model)
         }
     }
 
+    @Override
+    public @Nullable NtSnpByPosAggregator createWorkerInstance()
+    {
+        NtSnpByPosAggregator worker = new NtSnpByPosAggregator(getLogger(), getRefFasta(), _avgQualAggregator, _settings);
+        copySettingsTo(worker);
+        if (_coverageTrackedExternally)
+        {
+            //coverage is merged by the worker of the external aggregator, and is only read when writing output
+            worker.setCoverageAggregator(_coverageAggregator, true);
+        }
+
+        return worker;
+    }
+
+    @Override
+    public void mergeWorkerInstances(List<ParallelAlignmentAggregator> workers)
+    {
+        List<ParallelAlignmentAggregator> coverageWorkers = new ArrayList<>();
+        for (ParallelAlignmentAggregator worker : workers)
+        {
+            NtSnpByPosAggregator other = (NtSnpByPosAggregator)worker;
+            mergeBaseResults(other);
+            _totalFilteredSnps += other._totalFilteredSnps;
+            _totalAlignments += other._totalAlignments;
+            other._snps.forEach((key, count) -> _snps.merge(key, count, Integer::sum));
+
+            if (!_coverageTrackedExternally && other._coverageAggregator != null)
+            {
+                coverageWorkers.add(other._coverageAggregator);
+            }
+        }
+
+        if (!coverageWorkers.isEmpty())
+        {
+            getCoverageAggregator().mergeWorkerInstances(coverageWorkers);
+        }
+    }
+
     public void setCoverageAggregator(NtCoverageAggregator coverageAggregator, boolean coverageTrackedExternally)
     {
         _coverageAggregator = coverageAggregator;
@@ -0,0 +1,24 @@
+package org.labkey.sequenceanalysis.run.analysis;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * An aggregator that BamIterator can run on more than one thread.  Each thread inspects alignments using its own worker instance,
+ * and the workers are then merged back into the original aggregator.
+ */
+public interface ParallelAlignmentAggregator extends AlignmentAggregator
+{
+    /**
+     * @return A new aggregator with the same settings and no results, or null if this aggregator must inspect all alignments on one thread
+     */
+    @Nullable ParallelAlignmentAggregator createWorkerInstance();
+
+    /**
+     * Adds the results of the workers, each created by createWorkerInstance(), into this aggregator.  BamIterator gives each reference
+     * to one worker, and each worker inspects its references in sequence dictionary order, but which worker inspected a given reference
+     * is not defined.  The results must therefore not depend on the order of the workers.
+     */
+    void mergeWorkerInstances(List<ParallelAlignmentAggregator> workers);
+}
@@ -20,6 +20,7 @@
 import htsjdk.samtools.SAMFormatException;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
@@ -55,6 +56,7 @@
 import org.labkey.sequenceanalysis.run.alignment.FastqCollapser;
 import org.labkey.sequenceanalysis.run.util.FlashWrapper;
 import org.labkey.sequenceanalysis.run.util.NTSnp;
+import org.labkey.sequenceanalysis.util.IntHashSet;
 import org.labkey.sequenceanalysis.util.ReferenceLibraryHelperImpl;
 import org.labkey.sequenceanalysis.util.SequenceUtil;
 
@@ -71,8 +73,10 @@
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -88,27 +92,37 @@
  * Date: 9/22/12
  * Time: 4:27 PM
  */
-public class SequenceBasedTypingAlignmentAggregator extends AbstractAlignmentAggregator
+public class SequenceBasedTypingAlignmentAggregator extends AbstractAlignmentAggregator implements ParallelAlignmentAggregator
 {
     private File _outputLog = null;
     private File _lineageMapFile = null;
     private double _minPctForLineageFiltering = 0.0;
 
+    //read names are assigned a dense integer ID when first seen. All other per-read collections use this ID.
+    //the name-to-ID map is only needed while alignments are inspected, and is released by getAlignmentSummary()
+    private Map<String, Integer> _readIds = new HashMap<>();
+    private final List<String> _readNames = new ArrayList<>();
+
+    //each time a read ID is assigned while inspecting a different reference than the previous ID, this records {referenceIndex, readId}
+    private final List<int[]> _firstReadIdByReference = new ArrayList<>();
+    private List<String> _referenceNames = null;
+
     private final Set<String> _distinctReferences = new HashSet<>();
     private Map<String, Integer> _acceptedReferences = new HashMap<>();
-    private Set<String> _acceptedReads = new HashSet<>();
-    private final Map<String, Integer> _acceptedAlignments = new HashMap<>();
-    private final Set<String> _uniqueReads = new HashSet<>();
-    private final Map<String, Set<String>> _alignmentsByReadM1 = new HashMap<>();
-    private final Map<String, Set<String>> _alignmentsByReadM2 = new HashMap<>();
+    private BitSet _acceptedReads = new BitSet();
+    private final BitSet _uniqueReads = new BitSet();
+
+    //indexed by read ID, these hold the accepted alignments of each read, encoded and sorted using getAlignmentCode(), or null if none
+    private final List<int[]> _alignmentsByReadM1 = new ArrayList<>();
+    private final List<int[]> _alignmentsByReadM2 = new ArrayList<>();
     private final Map<String, IntervalList> _intervalsByReference = new HashMap<>();
     private int _forwardAlignmentsDiscardedBySnps = 0;
     private int _reverseAlignmentsDiscardedBySnps = 0;
 
-    private final Set<String> _unaligned = new HashSet<>();
-    private final Set<String> _unmappedWithMappedMate = new HashSet<>();
-    private final Set<String> _mappedWithoutHits = new HashSet<>();
-    private Set<String> _mappedWithoutHitsExcludingPassed = new HashSet<>();
+    private final BitSet _unaligned = new BitSet();
+    private final BitSet _unmappedWithMappedMate = new BitSet();
+    private final BitSet _mappedWithoutHits = new BitSet();
+    private BitSet _mappedWithoutHitsExcludingPassed = new BitSet();
     private int _totalAlignmentsInspected = 0;
     private final int _maxSNPs = 0;
     private int _skippedReferencesByPct = 0;
@@ -122,7 +136,7 @@ public class SequenceBasedTypingAlignmentAggregator extends AbstractAlignmentAgg
     private int _pairsWithoutSharedHits = 0;
     private int _singletonCalls = 0;
     private int _pairedCalls = 0;
-    private final Set<String> _rejectedSingletonReadNames = new HashSet<>();
+    private final BitSet _rejectedSingletonReadNames = new BitSet();
     private int _rejectedSingletonAlignments = 0;
     private int _shortAlignments = 0;
 
@@ -168,6 +182,146 @@ public void setMinPctForLineageFiltering(double minPctForLineageFiltering)
         _minPctForLineageFiltering = minPctForLineageFiltering;
     }
 
+    @Override
+    public SequenceBasedTypingAlignmentAggregator createWorkerInstance()
+    {
+        //workers only collect alignments; the filtering settings are used when this instance writes output
+        SequenceBasedTypingAlignmentAggregator worker = new SequenceBasedTypingAlignmentAggregator(getLogger(), getRefFasta(), _avgQualAggregator, Collections.emptyMap());
+        copySettingsTo(worker);
+        worker._minAlignmentLength = _minAlignmentLength;
+        worker.doTrackIntervals = doTrackIntervals;
+
+        return worker;
+    }
+
+    @Override
+    public void mergeWorkerInstances(List<ParallelAlignmentAggregator> workers)
+    {
+        List<SequenceBasedTypingAlignmentAggregator> others = new ArrayList<>();
+        workers.forEach(w -> others.add((SequenceBasedTypingAlignmentAggregator)w));
+
+        //read IDs determine the order reads are written to the log, so these must not depend on which worker inspected which reference.
+        //each worker assigned its own IDs while inspecting its references in order, so translating the IDs first seen on each reference
+        //in sequence dictionary order gives the same IDs as inspecting all alignments on one thread.
+        List<int[]> segments = new ArrayList<>();
+        for (int workerIdx = 0; workerIdx < others.size(); workerIdx++)
+        {
+            List<int[]> firstReadIds = others.get(workerIdx)._firstReadIdByReference;
+            for (int i = 0; i < firstReadIds.size(); i++)
+            {
+                segments.add(new int[]{firstReadIds.get(i)[0], workerIdx, i});
+            }
+        }
+        segments.sort(Comparator.<int[]>comparingInt(x -> x[0]).thenComparingInt(x -> x[1]).thenComparingInt(x -> x[2]));
+
+        List<int[]> readIdsByWorker = new ArrayList<>();
+        others.forEach(other -> readIdsByWorker.add(new int[other._readNames.size()]));
+        for (int[] segment : segments)
+        {
+            SequenceBasedTypingAlignmentAggregator other = others.get(segment[1]);
+            int[] readIds = readIdsByWorker.get(segment[1]);
+            int start = other._firstReadIdByReference.get(segment[2])[1];
+            int end = segment[2] + 1 < other._firstReadIdByReference.size() ? other._firstReadIdByReference.get(segment[2] + 1)[1] : readIds.length;
+            for (int i = start; i < end; i++)
+            {
+                readIds[i] = getReadId(other._readNames.get(i), segment[0]);
+            }
+        }
+
+        for (int workerIdx = 0; workerIdx < others.size(); workerIdx++)
+        {
+            mergeWorkerInstance(others.get(workerIdx), readIdsByWorker.get(workerIdx));
+        }
+    }
+
+    /**
+     * @param readIds The ID in this instance of each read ID assigned by the worker
+     */
+    private void mergeWorkerInstance(SequenceBasedTypingAlignmentAggregator other, int[] readIds)
+    {
+        mergeBaseResults(other);
+
+        if (_referenceNames == null)
+        {
+            _referenceNames = other._referenceNames;
+        }
+
+        _distinctReferences.addAll(other._distinctReferences);
+        mergeReadIds(other._uniqueReads, _uniqueReads, readIds);
+        mergeReadIds(other._unaligned, _unaligned, readIds);
+        mergeReadIds(other._unmappedWithMappedMate, _unmappedWithMappedMate, readIds);
+        mergeAlignmentsByRead(other._alignmentsByReadM1, _alignmentsByReadM1, readIds);
+        mergeAlignmentsByRead(other._alignmentsByReadM2, _alignmentsByReadM2, readIds);
+
+        for (Map.Entry<String, IntervalList> e : other._intervalsByReference.entrySet())
+        {
+            IntervalList existing = _intervalsByReference.get(e.getKey());
+            if (existing == null)
+            {
+                _intervalsByReference.put(e.getKey(), e.getValue());
+            }
+            else
+            {
+                existing.addall(e.getValue().getIntervals());
+                IntervalList il = new IntervalList(existing.getHeader());
+                //getUniqueIntervals() expects sorted input
+                il.addall(IntervalList.getUniqueIntervals(existing.sorted(), true));
+                _intervalsByReference.put(e.getKey(), il);
+            }
+        }
+
+        _totalAlignmentsInspected += other._totalAlignmentsInspected;
+        _secondarySupplementary += other._secondarySupplementary;
+        _shortAlignments += other._shortAlignments;
+        _alignmentsIncludingDiscardedSnps += other._alignmentsIncludingDiscardedSnps;
+        _forwardAlignmentsDiscardedBySnps += other._forwardAlignmentsDiscardedBySnps;
+        _reverseAlignmentsDiscardedBySnps += other._reverseAlignmentsDiscardedBySnps;
+    }
+
+    private void mergeReadIds(BitSet source, BitSet target, int[] readIds)
+    {
+        for (int i = source.nextSetBit(0); i >= 0; i = source.nextSetBit(i + 1))
+        {
+            target.set(readIds[i]);
+        }
+    }
+
+    private void mergeAlignmentsByRead(List<int[]> source, List<int[]> target, int[] readIds)
+    {
+        for (int i = 0; i < source.size(); i++)
+        {
+            int[] alignments = source.get(i);
+            if (alignments != null)
+            {
+                int[] existing = getAlignments(target, readIds[i]);
+                setAlignments(target, readIds[i], existing == null ? alignments : union(existing, alignments));
+            }
+        }
+    }
+
+    private int getReadId(String readName, int referenceIndex)
+    {
+        if (_readIds == null)
+        {
+            throw new IllegalStateException("Read IDs cannot be assigned after getAlignmentSummary() has been called");
+        }
+
+        Integer readId = _readIds.get(readName);
+        if (readId == null)
+        {
+            readId = _readNames.size();
+            _readIds.put(readName, readId);
+            _readNames.add(readName);
+
+            if (_firstReadIdByReference.isEmpty() || _firstReadIdByReference.get(_firstReadIdByReference.size() - 1)[0] != referenceIndex)
+            {
+                _firstReadIdByReference.add(new int[]{referenceIndex, readId});
+            }
+        }
+
+        return readId;
+    }
+
     @Override
     public void inspectAlignment(SAMRecord record, ReferenceSequence ref, Map<Integer, List<NTSnp>> snps) throws PipelineJobException
     {
@@ -176,7 +330,8 @@ public void inspectAlignment(SAMRecord record, ReferenceSequence ref, Map<Intege
             return;
         }
 
-        _uniqueReads.add(record.getReadName());
+        int readId = getReadId(record.getReadName(), record.getReferenceIndex());
+        _uniqueReads.set(readId);
         if (record.isSecondaryOrSupplementary())
         {
             _secondarySupplementary++;
@@ -186,11 +341,11 @@ public void inspectAlignment(SAMRecord record, ReferenceSequence ref, Map<Intege
         {
             if (!record.getReadPairedFlag() || record.getMateUnmappedFlag())
             {
-                _unaligned.add(record.getReadName());
+                _unaligned.set(readId);
             }
             else
             {
-                _unmappedWithMappedMate.add(record.getReadName());
+                _unmappedWithMappedMate.set(readId);
             }
         }
         else
@@ -204,26 +359,18 @@ public void inspectAlignment(SAMRecord record, ReferenceSequence ref, Map<Intege
             }
 
             Integer numSnps = getNumMismatches(record, snps);
-            String key = getKey(record);
             if (numSnps <= _maxSNPs)
             {
-                Integer total = _acceptedAlignments.get(key);
-                if (total == null)
-                    total = 0;
-
-                total++;
-                _acceptedAlignments.put(key, total);
-
                 if (numSnps != snps.size())
                     _alignmentsIncludingDiscardedSnps++;
 
                 if (!record.getReadPairedFlag() || record.getFirstOfPairFlag())
                 {
-                    appendAlignment(record, ref, _alignmentsByReadM1);
+                    appendAlignment(record, readId, _alignmentsByReadM1);
                 }
                 else
                 {
-                    appendAlignment(record, ref, _alignmentsByReadM2);
+                    appendAlignment(record, readId, _alignmentsByReadM2);
                 }
             }
             else
@@ -240,20 +387,123 @@ public void inspectAlignment(SAMRecord record, ReferenceSequence ref, Map<Intege
         }
     }
 
-    private void appendAlignment(SAMRecord record, ReferenceSequence ref, Map<String, Set<String>> alignmentsByRead)
+    private void appendAlignment(SAMRecord record, int readId, List<int[]> alignmentsByRead)
     {
-        Set<String> alignments = alignmentsByRead.get(record.getReadName());
-        if (alignments == null)
-            alignments = new HashSet<>();
-
-        alignments.add(record.getReferenceName());
+        if (_referenceNames == null)
+        {
+            _referenceNames = record.getHeader().getSequenceDictionary().getSequences().stream().map(SAMSequenceRecord::getSequenceName).toList();
+        }
 
-        alignmentsByRead.put(record.getReadName(), alignments);
+        int code = getAlignmentCode(record.getReferenceIndex(), record.getReadNegativeStrandFlag());
+        int[] alignments = getAlignments(alignmentsByRead, readId);
+        setAlignments(alignmentsByRead, readId, alignments == null ? new int[]{code} : union(alignments, new int[]{code}));
         appendInterval(record);
 
         _distinctReferences.add(record.getReferenceName());
     }
 
+    /**
+     * Encodes the reference and strand of an alignment.  These identify a distinct accepted alignment, and sort by reference index.
+     */
+    private static int getAlignmentCode(int referenceIndex, boolean negativeStrand)
+    {
+        return (referenceIndex << 1) | (negativeStrand ? 1 : 0);
+    }
+
+    private static int[] getAlignments(List<int[]> alignmentsByRead, int readId)
+    {
+        return readId < alignmentsByRead.size() ? alignmentsByRead.get(readId) : null;
+    }
+
+    private static void setAlignments(List<int[]> alignmentsByRead, int readId, int[] alignments)
+    {
+        while (alignmentsByRead.size() <= readId)
+        {
+            alignmentsByRead.add(null);
+        }
+
+        alignmentsByRead.set(readId, alignments);
+    }
+
+    /**
+     * @return The sorted, distinct values of both sorted arrays
+     */
+    private static int[] union(int[] a, int[] b)
+    {
+        int[] ret = new int[a.length + b.length];
+        int i = 0, j = 0, size = 0;
+        while (i < a.length || j < b.length)
+        {
+            int value;
+            if (j == b.length || (i < a.length && a[i] < b[j]))
+                value = a[i++];
+            else if (i == a.length || b[j] < a[i])
+                value = b[j++];
+            else
+            {
+                value = a[i++];
+                j++;
+            }
+
+            ret[size++] = value;
+        }
+
+        return size == ret.length ? ret : Arrays.copyOf(ret, size);
+    }
+
+    /**
+     * @return The values present in both sorted arrays
+     */
+    private static int[] intersect(int[] a, int[] b)
+    {
+        int[] ret = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, size = 0;
+        while (i < a.length && j < b.length)
+        {
+            if (a[i] < b[j])
+                i++;
+            else if (b[j] < a[i])
+                j++;
+            else
+            {
+                ret[size++] = a[i++];
+                j++;
+            }
+        }
+
+        return size == ret.length ? ret : Arrays.copyOf(ret, size);
+    }
+
+    /**
+     * @return The distinct reference indexes of the encoded alignments, in sorted order
+     */
+    private static int[] getReferenceIndexes(int[] alignments)
+    {
+        int[] ret = new int[alignments.length];
+        int size = 0;
+        for (int code : alignments)
+        {
+            int refIdx = code >> 1;
+            if (size == 0 || ret[size - 1] != refIdx)
+            {
+                ret[size++] = refIdx;
+            }
+        }
+
+        return size == ret.length ? ret : Arrays.copyOf(ret, size);
+    }
+
+    private List<String> getReferenceNames(int[] referenceIndexes)
+    {
+        List<String> ret = new ArrayList<>(referenceIndexes.length);
+        for (int refIdx : referenceIndexes)
+        {
+            ret.add(_referenceNames.get(refIdx));
+        }
+
+        return ret;
+    }
+
     private void appendInterval(SAMRecord record)
     {
         if (!doTrackIntervals)
@@ -280,6 +530,16 @@ private void appendInterval(SAMRecord record)
         }
     }
 
+    /**
+     * @return The distinct intervals covered by accepted alignments of this reference, if tracking intervals
+     */
+    List<Interval> getIntervals(String refName)
+    {
+        IntervalList il = _intervalsByReference.get(refName);
+
+        return il == null ? Collections.emptyList() : il.getIntervals();
+    }
+
     private int getNumMismatches(SAMRecord record, Map<Integer, List<NTSnp>> snps) throws PipelineJobException
     {
         int highQuality = 0;
@@ -295,14 +555,6 @@ private int getNumMismatches(SAMRecord record, Map<Integer, List<NTSnp>> snps) t
         return highQuality;
     }
 
-    public String getKey(SAMRecord record)
-    {
-        return record.getReadName() + "||" +
-                record.getReferenceName() + "||" +
-                record.getReadNegativeStrandFlag()
-                ;
-    }
-
     public OutputStream getLogOutputStream(File outputLog) throws IOException
     {
         FileType gz = new FileType(".gz");
@@ -318,6 +570,9 @@ public OutputStream getLogOutputStream(File outputLog) throws IOException
 
     public Map<String, HitSet> getAlignmentSummary(File outputLog) throws IOException, PipelineJobException
     {
+        //no further reads are inspected, so only the names by ID are retained
+        _readIds = null;
+
         try (CSVWriter writer = outputLog == null ? null : new CSVWriter(new BufferedWriter(new OutputStreamWriter(getLogOutputStream(outputLog), StandardCharsets.UTF_8)), '\t', CSVWriter.NO_QUOTE_CHARACTER))
         {
             //these are stage-1 filters, filtering on the read-pair level
@@ -339,13 +594,13 @@ public Map<String, HitSet> getAlignmentSummary(File outputLog) throws IOExceptio
                 for (String refName : hs.refNames)
                 {
                     int total = totalByReferenceFinal.containsKey(refName) ? totalByReferenceFinal.get(refName) : 0;
-                    total += hs.readNames.size();
+                    total += hs.readIds.size();
                     totalByReferenceFinal.put(refName, total);
                 }
 
                 if (!hs.refNames.isEmpty())
                 {
-                    distinctFinalReads += hs.readNames.size();
+                    distinctFinalReads += hs.readIds.size();
                 }
             }
 
@@ -353,7 +608,7 @@ public Map<String, HitSet> getAlignmentSummary(File outputLog) throws IOExceptio
             getLogger().info("\tpassing references: " + totalByReferenceFinal.size());
             getLogger().info("\ttotal passing reads: " + distinctFinalReads);
             getLogger().info("\ttotal allele groups: " + totals4.size());
-            getLogger().info("\ttotal unaligned reads: " + _unaligned.size());
+            getLogger().info("\ttotal unaligned reads: " + _unaligned.cardinality());
 
             return totals4;
         }
@@ -371,30 +626,38 @@ private Map<String, HitSet> doFilterStage1(CSVWriter writer)
 
         getLogger().info("starting stage 1 filters (by read pair)");
         getLogger().info("\tinitial references: " + _distinctReferences.size());
-        getLogger().info("\tinitial reads: " + _uniqueReads.size());
-        getLogger().info("\tinitial unaligned reads: " + _unaligned.size());
+        getLogger().info("\tinitial reads: " + _uniqueReads.cardinality());
+        getLogger().info("\tinitial unaligned reads: " + _unaligned.cardinality());
 
         //handle single or first-mate reads first
-        for (String readName : _alignmentsByReadM1.keySet())
+        for (int readId = 0; readId < _alignmentsByReadM1.size(); readId++)
         {
-            List<String> refNames = new ArrayList(_alignmentsByReadM1.get(readName));
-            List<String> refNames2 = null;
+            int[] alignments = _alignmentsByReadM1.get(readId);
+            if (alignments == null)
+            {
+                continue;
+            }
+
+            String readName = _readNames.get(readId);
+            int[] initialRefs = getReferenceIndexes(alignments);
+            int[] refs = initialRefs;
+            int[] refs2 = null;
 
             //if this read has an aligned mate, we find the intersect between its alignments
             Boolean hasMate = false;
-            if (_alignmentsByReadM2.containsKey(readName))
+            int[] mateAlignments = getAlignments(_alignmentsByReadM2, readId);
+            if (mateAlignments != null)
             {
-                refNames2 = new ArrayList<>(_alignmentsByReadM2.get(readName));
+                refs2 = getReferenceIndexes(mateAlignments);
 
                 // note: if reverse read has no alignments, skip this optimization
                 // it will only pass if we have onlyImportValidPairs=false
-                if (!refNames2.isEmpty())
+                if (refs2.length > 0)
                 {
-                    int originalSize = refNames.size();
-                    refNames.retainAll(refNames2);
-                    if (!refNames.isEmpty())
+                    refs = intersect(refs, refs2);
+                    if (refs.length > 0)
                     {
-                        if (refNames.size() != originalSize)
+                        if (refs.length != initialRefs.length)
                         {
                             _alignmentsHelpedByMate++;
                         }
@@ -405,14 +668,15 @@ private Map<String, HitSet> doFilterStage1(CSVWriter writer)
                 }
             }
 
+            List<String> refNames = getReferenceNames(refs);
             if (writer != null)
             {
-                List<String> names = new ArrayList<>(_alignmentsByReadM1.get(readName));
+                List<String> names = getReferenceNames(initialRefs);
                 Collections.sort(names);
 
                 for (String refName : names)
                 {
-                    writer.writeNext(new String[]{"Forward", readName, String.valueOf(_alignmentsByReadM1.get(readName).size()), String.valueOf(refNames.size()), refName, String.valueOf(refNames.contains(refName)), hasMate.toString()});
+                    writer.writeNext(new String[]{"Forward", readName, String.valueOf(initialRefs.length), String.valueOf(refNames.size()), refName, String.valueOf(refNames.contains(refName)), hasMate.toString()});
                 }
             }
 
@@ -420,7 +684,7 @@ private Map<String, HitSet> doFilterStage1(CSVWriter writer)
             {
                 if (!_onlyImportValidPairs || hasMate)
                 {
-                    appendReadToTotals(readName, refNames, totals, true, hasMate);
+                    appendReadToTotals(readId, refNames, totals, true, hasMate);
 
                     if (hasMate)
                     {
@@ -431,41 +695,43 @@ private Map<String, HitSet> doFilterStage1(CSVWriter writer)
                         _singletonCalls++;
                         if (writer != null)
                         {
-                            writer.writeNext(new String[]{"Singleton", readName, StringUtils.join(refNames, ";"), (refNames2 == null ? "N/A" : StringUtils.join(refNames2, ";"))});
+                            writer.writeNext(new String[]{"Singleton", readName, StringUtils.join(refNames, ";"), (refs2 == null ? "N/A" : StringUtils.join(getReferenceNames(refs2), ";"))});
                         }
                     }
                 }
                 else
                 {
                     _rejectedSingletonAlignments++;
-                    _rejectedSingletonReadNames.add(readName);
-                    _unaligned.add(readName);
-                    _mappedWithoutHits.add(readName);
+                    _rejectedSingletonReadNames.set(readId);
+                    _unaligned.set(readId);
+                    _mappedWithoutHits.set(readId);
 
                     if (writer != null)
                     {
-                        writer.writeNext(new String[]{"Singleton", readName, StringUtils.join(refNames, ";"), (refNames2 == null ? "N/A" : StringUtils.join(refNames2, ";"))});
+                        writer.writeNext(new String[]{"Singleton", readName, StringUtils.join(refNames, ";"), (refs2 == null ? "N/A" : StringUtils.join(getReferenceNames(refs2), ";"))});
                     }
                 }
             }
             else
             {
-                _unaligned.add(readName);
-                _mappedWithoutHits.add(readName);
+                _unaligned.set(readId);
+                _mappedWithoutHits.set(readId);
             }
         }
 
-        for (String mateName : _alignmentsByReadM2.keySet())
+        for (int readId = 0; readId < _alignmentsByReadM2.size(); readId++)
         {
-            if (_alignmentsByReadM1.containsKey(mateName))
+            int[] alignments = _alignmentsByReadM2.get(readId);
+            if (alignments == null || getAlignments(_alignmentsByReadM1, readId) != null)
                 continue;
 
-            List<String> refNames = new ArrayList(_alignmentsByReadM2.get(mateName));
+            String mateName = _readNames.get(readId);
+            List<String> refNames = getReferenceNames(getReferenceIndexes(alignments));
             if (!_onlyImportValidPairs)
             {
                 if (refNames.size() > 0)
                 {
-                    appendReadToTotals(mateName, refNames, totals, false, true);
+                    appendReadToTotals(readId, refNames, totals, false, true);
                     _singletonCalls++;
                     if (writer != null)
                     {
@@ -474,8 +740,8 @@ private Map<String, HitSet> doFilterStage1(CSVWriter writer)
                 }
                 else
                 {
-                    _unaligned.add(mateName);
-                    _mappedWithoutHits.add(mateName);
+                    _unaligned.set(readId);
+                    _mappedWithoutHits.set(readId);
 
                     if (writer != null)
                     {
@@ -486,18 +752,18 @@ private Map<String, HitSet> doFilterStage1(CSVWriter writer)
             else
             {
                 _rejectedSingletonAlignments++;
-                _rejectedSingletonReadNames.add(mateName);
-                _unaligned.add(mateName);
-                _mappedWithoutHits.add(mateName);
+                _rejectedSingletonReadNames.set(readId);
+                _unaligned.set(readId);
+                _mappedWithoutHits.set(readId);
             }
 
             if (writer != null)
             {
-                List<String> names = new ArrayList<>(_alignmentsByReadM2.get(mateName));
+                List<String> names = new ArrayList<>(refNames);
                 Collections.sort(names);
                 for (String refName : names)
                 {
-                    writer.writeNext(new String[]{"Reverse", mateName, String.valueOf(_alignmentsByReadM2.get(mateName).size()), String.valueOf(refNames.size()), refName, String.valueOf(refNames.contains(refName)), ""});
+                    writer.writeNext(new String[]{"Reverse", mateName, String.valueOf(refNames.size()), String.valueOf(refNames.size()), refName, String.valueOf(refNames.contains(refName)), ""});
                 }
             }
         }
@@ -506,7 +772,7 @@ private Map<String, HitSet> doFilterStage1(CSVWriter writer)
         if (_onlyImportValidPairs)
         {
             getLogger().info("\talignments rejected because they lack a valid pair: " + _rejectedSingletonAlignments);
-            getLogger().info("\tdistinct reads rejected because they lack a valid pair: " + _rejectedSingletonReadNames.size());
+            getLogger().info("\tdistinct reads rejected because they lack a valid pair: " + _rejectedSingletonReadNames.cardinality());
         }
 
         return totals;
@@ -565,8 +831,8 @@ else if (_minPctForRef != null && pct < _minPctForRef)
             refNames.removeAll(disallowedReferences);
             if (refNames.isEmpty())
             {
-                _unaligned.addAll(hs.readNames);
-                _mappedWithoutHits.addAll(hs.readNames);
+                hs.readIds.forEach(_unaligned::set);
+                hs.readIds.forEach(_mappedWithoutHits::set);
             }
             else
             {
@@ -597,13 +863,13 @@ private Pair<Integer, Map<String, Integer>> writeTotalSummary(String label, Map<
             for (String refName : hs.refNames)
             {
                 int total = totalByReference.containsKey(refName) ? totalByReference.get(refName) : 0;
-                total += hs.readNames.size();
+                total += hs.readIds.size();
                 totalByReference.put(refName, total);
             }
 
             if (!hs.refNames.isEmpty())
             {
-                distinctReads += hs.readNames.size();
+                distinctReads += hs.readIds.size();
             }
         }
 
@@ -611,7 +877,7 @@ private Pair<Integer, Map<String, Integer>> writeTotalSummary(String label, Map<
         getLogger().info("\tinitial references: " + totalByReference.size());
         getLogger().info("\tinitial distinct reads: " + distinctReads);
         getLogger().info("\tinitial allele groups: " + stageTotals.size());
-        getLogger().info("\tinitial unaligned reads: " + _unaligned.size());
+        getLogger().info("\tinitial unaligned reads: " + _unaligned.cardinality());
 
         return Pair.of(distinctReads, totalByReference);
     }
@@ -654,8 +920,8 @@ private Map<String, HitSet> doFilterStage3(CSVWriter writer, Map<String, HitSet>
                 if (_minPctWithinGroup != null && pct < _minPctWithinGroup)
                 {
                     msg = "**discarded due to group pct filter";
-                    _unaligned.addAll(hs.readNames);
-                    _mappedWithoutHits.addAll(hs.readNames);
+                    hs.readIds.forEach(_unaligned::set);
+                    hs.readIds.forEach(_mappedWithoutHits::set);
                     totalFiltered++;
                 }
                 else
@@ -668,7 +934,7 @@ private Map<String, HitSet> doFilterStage3(CSVWriter writer, Map<String, HitSet>
                     writer.writeNext(new String[]{
                             idx == 0 ? refGroup : "",
                             refName,
-                            String.valueOf(hs.readNames.size()),
+                            String.valueOf(hs.readIds.size()),
                             String.valueOf(totalByReferenceStage3.get(refName)),
                             String.valueOf(100.0 * ((double) totalByReferenceStage3.get(refName) / pair.first)),
                             String.valueOf(pct),
@@ -682,8 +948,8 @@ private Map<String, HitSet> doFilterStage3(CSVWriter writer, Map<String, HitSet>
             //merge sets
             if (passingRefs.isEmpty())
             {
-                _unaligned.addAll(hs.readNames);
-                _mappedWithoutHits.addAll(hs.readNames);
+                hs.readIds.forEach(_unaligned::set);
+                hs.readIds.forEach(_mappedWithoutHits::set);
             }
             else
             {
@@ -767,7 +1033,7 @@ private Map<String, HitSet> doFilterStage4(CSVWriter writer, Map<String, HitSet>
                 }
 
                 resultByLineage.get(lineage).add(hs);
-                totalByLineage.put(lineage, totalByLineage.get(lineage) + hs.readNames.size());
+                totalByLineage.put(lineage, totalByLineage.get(lineage) + hs.readIds.size());
             }
             else
             {
@@ -810,7 +1076,7 @@ private Map<String, HitSet> doFilterStage4(CSVWriter writer, Map<String, HitSet>
             int setsSkipped = 0;
             for (HitSet hs : sets)
             {
-                double pctOfLineage = (double)hs.readNames.size() / (double)totalByLineage.get(lineage);
+                double pctOfLineage = (double)hs.readIds.size() / (double)totalByLineage.get(lineage);
                 if (pctOfLineage < _minPctForLineageFiltering)
                 {
                     setsSkipped++;
@@ -853,7 +1119,7 @@ private Map<String, HitSet> doFilterStage4(CSVWriter writer, Map<String, HitSet>
                 for (HitSet hs : sets)
                 {
                     //if below the threshold, leave as is
-                    double pctOfLineage = (double)hs.readNames.size() / (double)totalByLineage.get(lineage);
+                    double pctOfLineage = (double)hs.readIds.size() / (double)totalByLineage.get(lineage);
                     if (pctOfLineage < _minPctForLineageFiltering)
                     {
                         if (stage4Totals.containsKey(hs.getKey()))
@@ -901,7 +1167,7 @@ private Map<String, HitSet> doFilterStage4(CSVWriter writer, Map<String, HitSet>
 
     private class HitSet
     {
-        public Set<String> readNames = new HashSet<>();
+        public IntHashSet readIds = new IntHashSet();
         public Set<String> refNames = new TreeSet<>();
 
         public HitSet(Collection<String> refNames)
@@ -918,7 +1184,7 @@ public void append(HitSet other)
             forward += other.forward;
             reverse += other.reverse;
             valid_pair += other.valid_pair;
-            readNames.addAll(other.readNames);
+            readIds.addAll(other.readIds);
         }
 
         public String getKey()
@@ -930,7 +1196,7 @@ public String getKey()
         }
     }
 
-    private void appendReadToTotals(String readName, List<String> refNames, Map<String, HitSet> totals, boolean hasForward, boolean hasReverse)
+    private void appendReadToTotals(int readId, List<String> refNames, Map<String, HitSet> totals, boolean hasForward, boolean hasReverse)
     {
         Collections.sort(refNames);
         String refs = StringUtils.join(refNames, "||");
@@ -956,7 +1222,7 @@ private void appendReadToTotals(String readName, List<String> refNames, Map<Stri
             hs.valid_pair = hs.valid_pair + 1;
         }
 
-        hs.readNames.add(readName);
+        hs.readIds.add(readId);
 
         totals.put(refs, hs);
     }
@@ -968,12 +1234,14 @@ public Map<String, HitSet> writeSummary() throws IOException, PipelineJobExcepti
         getLogger().info("Saving SBT Results");
         getLogger().info("\tTotal alignments inspected: " + _totalAlignmentsInspected);
         getLogger().info("\tSecondary or supplementary alignments inspected: " + _secondarySupplementary);
-        getLogger().info("\tTotal reads inspected: " + _uniqueReads.size());
+        int totalReads = _uniqueReads.cardinality();
+        getLogger().info("\tTotal reads inspected: " + totalReads);
 
         getLogger().info("\tAlignments discarded due to low mapping quality: " + _lowMappingQual);
         getLogger().info("\tAlignments discarded due to short length: " + _shortAlignments);
-        getLogger().info("\tAlignments retained (lacking high quality SNPs): " + _acceptedAlignments.size());
-        getLogger().info("\tAlignments discarded (due to presence of high quality SNPs): " + (_totalAlignmentsInspected - _acceptedAlignments.size()));
+        int acceptedAlignments = getAcceptedAlignmentCount();
+        getLogger().info("\tAlignments retained (lacking high quality SNPs): " + acceptedAlignments);
+        getLogger().info("\tAlignments discarded (due to presence of high quality SNPs): " + (_totalAlignmentsInspected - acceptedAlignments));
         getLogger().info("\tForward Alignments Discarded Due To SNPs: " + _forwardAlignmentsDiscardedBySnps);
         getLogger().info("\tReverse Alignments Discarded Due To SNPs: " + _reverseAlignmentsDiscardedBySnps);
         getLogger().info("\tAlignments retained that contained low qual SNPs (thse may have been discarded for other factors): " + _alignmentsIncludingDiscardedSnps);
@@ -982,7 +1250,7 @@ public Map<String, HitSet> writeSummary() throws IOException, PipelineJobExcepti
         getLogger().info("\tReferences disallowed due to percent filters: " + _skippedReferencesByPct);
 
         Map<String, Integer> acceptedReferences = new HashMap<>();
-        Set<String> acceptedReads = new HashSet<>();
+        BitSet acceptedReads = new BitSet();
         for (HitSet hs : map.values())
         {
             for (String refName : hs.refNames)
@@ -993,8 +1261,8 @@ public Map<String, HitSet> writeSummary() throws IOException, PipelineJobExcepti
                     total = acceptedReferences.get(refName);
                 }
 
-                total += hs.readNames.size();
-                acceptedReads.addAll(hs.readNames);
+                total += hs.readIds.size();
+                hs.readIds.forEach(acceptedReads::set);
                 acceptedReferences.put(refName, total);
             }
         }
@@ -1002,16 +1270,16 @@ public Map<String, HitSet> writeSummary() throws IOException, PipelineJobExcepti
         _acceptedReferences = acceptedReferences;
         _acceptedReads = acceptedReads;
 
-        getLogger().info("\tReads with no alignments: " + _unaligned.size());
-        getLogger().info("\tReads unmapped with a mate mapped: " + _unmappedWithMappedMate.size());
-        getLogger().info("\tMapped reads without passing hits: " + _mappedWithoutHits.size());
-        _mappedWithoutHitsExcludingPassed = new HashSet<>(_mappedWithoutHits);
-        _mappedWithoutHitsExcludingPassed.removeAll(acceptedReads);
+        getLogger().info("\tReads with no alignments: " + _unaligned.cardinality());
+        getLogger().info("\tReads unmapped with a mate mapped: " + _unmappedWithMappedMate.cardinality());
+        getLogger().info("\tMapped reads without passing hits: " + _mappedWithoutHits.cardinality());
+        _mappedWithoutHitsExcludingPassed = (BitSet)_mappedWithoutHits.clone();
+        _mappedWithoutHitsExcludingPassed.andNot(acceptedReads);
 
-        getLogger().info("\tMapped reads without passing hits (excluding passed): " + _mappedWithoutHitsExcludingPassed.size() + " (" + getPctMappedWithoutHits() + "%)");
+        getLogger().info("\tMapped reads without passing hits (excluding passed): " + _mappedWithoutHitsExcludingPassed.cardinality() + " (" + getPctMappedWithoutHits() + "%)");
 
-        getLogger().info("\tSingleton or First Mate Reads with at least 1 alignment that passed thresholds: " + _alignmentsByReadM1.keySet().size());
-        getLogger().info("\tSecond Mate Reads with at least 1 alignment that passed thresholds: " + _alignmentsByReadM2.keySet().size());
+        getLogger().info("\tSingleton or First Mate Reads with at least 1 alignment that passed thresholds: " + countReadsWithAlignments(_alignmentsByReadM1));
+        getLogger().info("\tSecond Mate Reads with at least 1 alignment that passed thresholds: " + countReadsWithAlignments(_alignmentsByReadM2));
 
         getLogger().info("\tAlignment calls improved by paired read: " + _alignmentsHelpedByMate);
         getLogger().info("\tAlignment calls improved by allele filters (see references disallowed): " + _alignmentsHelpedByAlleleFilters);
@@ -1023,22 +1291,64 @@ public Map<String, HitSet> writeSummary() throws IOException, PipelineJobExcepti
         if (_onlyImportValidPairs)
         {
             getLogger().info("\tOnly alignments representing valid pairs will be included");
-            Set<String> reject = new HashSet<>(_rejectedSingletonReadNames);
-            reject.removeAll(_acceptedReads);
+            BitSet reject = (BitSet)_rejectedSingletonReadNames.clone();
+            reject.andNot(_acceptedReads);
             getLogger().info("\tAlignments rejected because they lacked a valid pair: " + _rejectedSingletonAlignments);
-            getLogger().info("\tDistinct read names involved: " + _rejectedSingletonReadNames.size());
-            getLogger().info("\tRead pairs rejected because they lacked a valid pair: " + reject.size() + " (" + (100.0 * ((double) reject.size() / (double) _uniqueReads.size())) + "%)");
+            getLogger().info("\tDistinct read names involved: " + _rejectedSingletonReadNames.cardinality());
+            getLogger().info("\tRead pairs rejected because they lacked a valid pair: " + reject.cardinality() + " (" + (100.0 * ((double) reject.cardinality() / (double) totalReads)) + "%)");
         }
 
-        Set<String> allReadNames = new HashSet<>();
-        allReadNames.addAll(_alignmentsByReadM1.keySet());
-        allReadNames.addAll(_alignmentsByReadM2.keySet());
-        int noHits = _uniqueReads.size() - allReadNames.size();
-        getLogger().info("\tReads discarded due to no passing alignments: " + noHits + " (" + (100.0 * (noHits / (double) _uniqueReads.size())) + "%)");
+        int readsWithAlignments = 0;
+        for (int readId = 0; readId < _readNames.size(); readId++)
+        {
+            if (getAlignments(_alignmentsByReadM1, readId) != null || getAlignments(_alignmentsByReadM2, readId) != null)
+            {
+                readsWithAlignments++;
+            }
+        }
+        int noHits = totalReads - readsWithAlignments;
+        getLogger().info("\tReads discarded due to no passing alignments: " + noHits + " (" + (100.0 * (noHits / (double) totalReads)) + "%)");
 
         return map;
     }
 
+    private int countReadsWithAlignments(List<int[]> alignmentsByRead)
+    {
+        int total = 0;
+        for (int[] alignments : alignmentsByRead)
+        {
+            if (alignments != null)
+            {
+                total++;
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * @return The number of distinct read, reference and strand combinations among accepted alignments, counting both mates together
+     */
+    private int getAcceptedAlignmentCount()
+    {
+        int total = 0;
+        for (int readId = 0; readId < _readNames.size(); readId++)
+        {
+            int[] m1 = getAlignments(_alignmentsByReadM1, readId);
+            int[] m2 = getAlignments(_alignmentsByReadM2, readId);
+            if (m1 != null && m2 != null)
+            {
+                total += union(m1, m2).length;
+            }
+            else if (m1 != null || m2 != null)
+            {
+                total += (m1 == null ? m2 : m1).length;
+            }
+        }
+
+        return total;
+    }
+
     @Override
     public void writeOutput(User u, Container c, AnalysisModel model)
     {
@@ -1126,11 +1436,11 @@ public void writeTable(File output) throws PipelineJobException
             for (String key : map.keySet())
             {
                 HitSet totals = map.get(key);
-                writer.writeNext(new String[]{key, String.valueOf(totals.readNames.size()), String.valueOf(totals.forward), String.valueOf(totals.reverse), String.valueOf(totals.valid_pair)});
+                writer.writeNext(new String[]{key, String.valueOf(totals.readIds.size()), String.valueOf(totals.forward), String.valueOf(totals.reverse), String.valueOf(totals.valid_pair)});
             }
 
             //append unaligned
-            writer.writeNext(new String[]{"", String.valueOf(_unaligned.size()), "", "", ""});
+            writer.writeNext(new String[]{"", String.valueOf(_unaligned.cardinality()), "", "", ""});
         }
         catch (IOException e)
         {
@@ -1201,6 +1511,9 @@ public Pair<File, File> outputUnmappedReads(File bam, List<Pair<File, File>> rea
             fact.setUseAsyncIo(true);
             int discardedForLength = 0;
 
+            Set<String> readNamesToExport = new HashSet<>();
+            _mappedWithoutHitsExcludingPassed.stream().forEach(readId -> readNamesToExport.add(_readNames.get(readId)));
+
             try (FastqWriter w1 = fact.newWriter(unmappedReadsF);FastqWriter w2 = fact.newWriter(unmappedReadsR);FastqWriter wS = fact.newWriter(unmappedReadsSingleton))
             {
                 int idx = 0;
@@ -1227,7 +1540,7 @@ public Pair<File, File> outputUnmappedReads(File bam, List<Pair<File, File>> rea
 
                             //note: should we account for forward/reverse?
                             String[] tokens = r1.getReadHeader().split(" ");
-                            if (_mappedWithoutHitsExcludingPassed.contains(tokens[0]))
+                            if (readNamesToExport.contains(tokens[0]))
                             {
                                 totalExported++;
                                 if (r2 == null)
@@ -1394,14 +1707,14 @@ public String getSynopsis()
         ;
     }
 
-    public Set<String> getUniqueReads()
+    public int getUniqueReadCount()
     {
-        return _uniqueReads;
+        return _uniqueReads.cardinality();
     }
 
     public double getPctMappedWithoutHits()
     {
-        return (double)_mappedWithoutHitsExcludingPassed.size() / (double)_uniqueReads.size();
+        return (double)_mappedWithoutHitsExcludingPassed.cardinality() / (double)_uniqueReads.cardinality();
     }
 
     public void setDoTrackIntervals(boolean doTrackIntervals)
@@ -34,6 +34,7 @@
 import org.labkey.api.sequenceanalysis.pipeline.PipelineStepProvider;
 import org.labkey.api.sequenceanalysis.pipeline.ReferenceGenome;
 import org.labkey.api.sequenceanalysis.pipeline.SequenceAnalysisJobSupport;
+import org.labkey.api.sequenceanalysis.pipeline.SequencePipelineService;
 import org.labkey.api.sequenceanalysis.pipeline.ToolParameterDescriptor;
 import org.labkey.api.util.Compress;
 import org.labkey.api.util.FileUtil;
@@ -269,6 +270,7 @@ public Output performAnalysisPerSampleRemote(Readset rs, File inputBam, Referenc
 
             getPipelineCtx().getLogger().info("Inspecting alignments in BAM");
             BamIterator bi = new BamIterator(inputBam, referenceGenome.getWorkingFastaFile(), getPipelineCtx().getLogger());
+            bi.setThreads(SequencePipelineService.get().getMaxThreads(getPipelineCtx().getLogger()));
 
             List<AlignmentAggregator> aggregators = new ArrayList<>();
             File workDir = new File(getPipelineCtx().getSourceDirectory(), FileUtil.getBaseName(inputBam));
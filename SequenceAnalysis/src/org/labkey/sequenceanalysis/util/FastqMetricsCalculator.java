@@ -0,0 +1,685 @@
+package org.labkey.sequenceanalysis.util;
+
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.util.FileType;
+import org.labkey.api.util.FileUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Calculates read length and base quality metrics for a FASTQ file in a single pass. The calling thread decompresses the file and
+ * splits it into blocks of whole records, which are parsed by worker threads directly from the raw bytes. Each worker keeps its own primitive
+ * histograms of quality per cycle and of read length, and these are merged once the file has been read.
+ *
+ * Like htsjdk's FastqReader, this expects four lines per record.
+ */
+public class FastqMetricsCalculator
+{
+    public static final int DEFAULT_BLOCK_BYTES = 4 * 1024 * 1024;
+
+    // Quality scores are phred+33, using printable ASCII. Anything outside this range is clamped.
+    private static final int QUAL_BINS = 94;
+
+    // Per-cycle quality is only tracked for this many bases, which bounds memory for long reads. Later bases still count toward the totals.
+    private static final int MAX_TRACKED_CYCLES = 1000;
+
+    // Reads longer than this are counted in the final bin of the length distribution
+    private static final int MAX_LENGTH_BINS = 100000;
+
+    private static final long LOG_INTERVAL = 1000000L;
+
+    private static final Block END = new Block(new byte[0], 0);
+
+    private final int _workers;
+    private final int _blockBytes;
+    private final Logger _log;
+
+    public FastqMetricsCalculator(int workers, @Nullable Logger log)
+    {
+        this(workers, DEFAULT_BLOCK_BYTES, log);
+    }
+
+    FastqMetricsCalculator(int workers, int blockBytes, @Nullable Logger log)
+    {
+        if (workers < 1)
+        {
+            throw new IllegalArgumentException("Must use at least one worker thread");
+        }
+
+        _workers = workers;
+        _blockBytes = blockBytes;
+        _log = log;
+    }
+
+    public Result calculate(File fastq) throws IOException
+    {
+        BlockingQueue<Block> filled = new ArrayBlockingQueue<>(_workers * 2);
+        ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<>();
+        AtomicReference<Exception> workerError = new AtomicReference<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(_workers, r -> {
+            Thread t = new Thread(r, "FastqMetricsCalculator");
+            t.setDaemon(true);
+
+            return t;
+        });
+
+        try
+        {
+            List<Future<Accumulator>> futures = new ArrayList<>();
+            for (int i = 0; i < _workers; i++)
+            {
+                futures.add(executor.submit(() -> {
+                    Accumulator acc = new Accumulator();
+                    while (true)
+                    {
+                        Block block = filled.take();
+                        if (block == END)
+                        {
+                            return acc;
+                        }
+
+                        // NOTE: after an error, keep draining so the reading thread is never blocked
+                        if (workerError.get() == null)
+                        {
+                            try
+                            {
+                                acc.parse(block.bytes, block.length);
+                            }
+                            catch (Exception e)
+                            {
+                                workerError.compareAndSet(null, e);
+                            }
+                        }
+
+                        free.offer(block.bytes);
+                    }
+                }));
+            }
+
+            long totalReads = readBlocks(fastq, filled, free, workerError);
+
+            Accumulator merged = new Accumulator();
+            for (Future<Accumulator> f : futures)
+            {
+                merged.merge(f.get());
+            }
+
+            if (workerError.get() != null)
+            {
+                throw new IllegalArgumentException("Unable to parse FASTQ file: " + fastq.getPath() + ". " + workerError.get().getMessage(), workerError.get());
+            }
+
+            if (_log != null)
+            {
+                _log.info("processed " + NumberFormat.getInstance().format(totalReads) + " reads");
+            }
+
+            return new Result(merged);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while calculating metrics for: " + fastq.getPath(), e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException(e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the file and queues blocks that each end on a record boundary, followed by one END per worker.
+     * @return The number of records queued
+     */
+    private long readBlocks(File fastq, BlockingQueue<Block> filled, ConcurrentLinkedQueue<byte[]> free, AtomicReference<Exception> workerError) throws IOException, InterruptedException
+    {
+        long totalReads = 0;
+        long nextLog = LOG_INTERVAL;
+
+        try (InputStream is = open(fastq))
+        {
+            byte[] buf = new byte[_blockBytes];
+            int length = 0;
+            while (workerError.get() == null)
+            {
+                int read = is.readNBytes(buf, length, buf.length - length);
+                length += read;
+                if (length < buf.length)
+                {
+                    // End of file. The final block might not end in a newline.
+                    if (length > 0)
+                    {
+                        totalReads += scanRecords(buf, length, true).records;
+                        filled.put(new Block(buf, length));
+                    }
+
+                    break;
+                }
+
+                // Find the end of the last complete record
+                RecordScan scan = scanRecords(buf, length, false);
+                int boundary = scan.boundary;
+                if (boundary == 0)
+                {
+                    // A single record is larger than the buffer:
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                    continue;
+                }
+
+                byte[] next = free.poll();
+                if (next == null || next.length < buf.length)
+                {
+                    next = new byte[buf.length];
+                }
+
+                int remainder = length - boundary;
+                System.arraycopy(buf, boundary, next, 0, remainder);
+                filled.put(new Block(buf, boundary));
+                totalReads += scan.records;
+
+                buf = next;
+                length = remainder;
+
+                if (_log != null && totalReads >= nextLog)
+                {
+                    _log.info("processed " + NumberFormat.getInstance().format(totalReads) + " reads");
+                    nextLog += LOG_INTERVAL;
+                }
+            }
+        }
+        finally
+        {
+            for (int i = 0; i < _workers; i++)
+            {
+                filled.put(END);
+            }
+        }
+
+        return totalReads;
+    }
+
+    /**
+     * Finds record boundaries the same way Accumulator.parse() reads records: blank lines are skipped where a header is
+     * expected, and every other line counts toward the four lines of a record. Blocks always begin at a record boundary,
+     * so a block split here never starts part way through a record.
+     * @param eof If true, the final line is counted even if it does not end with a newline
+     */
+    private static RecordScan scanRecords(byte[] buf, int length, boolean eof)
+    {
+        RecordScan ret = new RecordScan();
+        int lineInRecord = 0;
+        int lineStart = 0;
+        for (int i = 0; i <= length; i++)
+        {
+            boolean isLineEnd = i < length ? buf[i] == '\n' : eof && i > lineStart;
+            if (!isLineEnd)
+            {
+                continue;
+            }
+
+            if (lineInRecord > 0 || Accumulator.lineLength(buf, lineStart, i) > 0)
+            {
+                lineInRecord++;
+                if (lineInRecord == 4)
+                {
+                    lineInRecord = 0;
+                    ret.records++;
+                    ret.boundary = Math.min(i + 1, length);
+                }
+            }
+
+            lineStart = i + 1;
+        }
+
+        return ret;
+    }
+
+    private static class RecordScan
+    {
+        private int boundary = 0;
+        private int records = 0;
+    }
+
+    private static InputStream open(File fastq) throws IOException
+    {
+        FileType gz = new FileType(".gz");
+
+        return gz.isType(fastq) ? new GZIPInputStream(new FileInputStream(fastq), 65536) : new FileInputStream(fastq);
+    }
+
+    private static class Block
+    {
+        private final byte[] bytes;
+        private final int length;
+
+        public Block(byte[] bytes, int length)
+        {
+            this.bytes = bytes;
+            this.length = length;
+        }
+    }
+
+    private static class Accumulator
+    {
+        private long _reads = 0;
+        private long _bases = 0;
+        private long _minLength = Long.MAX_VALUE;
+        private long _maxLength = 0;
+
+        private final long[] _qualCounts = new long[QUAL_BINS];
+        private long[] _cycleQualCounts = new long[0];
+        private long[] _lengthCounts = new long[0];
+
+        public void parse(byte[] buf, int length)
+        {
+            int pos = 0;
+            while (pos < length)
+            {
+                int headerEnd = lineEnd(buf, pos, length);
+                if (lineLength(buf, pos, headerEnd) == 0)
+                {
+                    // Tolerate blank lines, such as at the end of the file
+                    pos = headerEnd + 1;
+                    continue;
+                }
+
+                if (buf[pos] != '@')
+                {
+                    throw new IllegalArgumentException("Expected a read header beginning with @ after " + _reads + " reads");
+                }
+
+                int seqStart = headerEnd + 1;
+                int seqEnd = lineEnd(buf, seqStart, length);
+                int plusStart = seqEnd + 1;
+                if (plusStart >= length || buf[plusStart] != '+')
+                {
+                    throw new IllegalArgumentException("Expected a line beginning with + after " + _reads + " reads");
+                }
+
+                int qualStart = lineEnd(buf, plusStart, length) + 1;
+                int qualEnd = lineEnd(buf, qualStart, length);
+                int seqLength = lineLength(buf, seqStart, seqEnd);
+                int qualLength = lineLength(buf, qualStart, qualEnd);
+                if (seqLength != qualLength)
+                {
+                    throw new IllegalArgumentException("Sequence and quality lengths do not match after " + _reads + " reads");
+                }
+
+                addRecord(buf, qualStart, qualLength);
+                pos = qualEnd + 1;
+            }
+        }
+
+        private static int lineEnd(byte[] buf, int start, int length)
+        {
+            for (int i = start; i < length; i++)
+            {
+                if (buf[i] == '\n')
+                {
+                    return i;
+                }
+            }
+
+            return length;
+        }
+
+        private static int lineLength(byte[] buf, int start, int end)
+        {
+            if (end > start && buf[end - 1] == '\r')
+            {
+                end--;
+            }
+
+            return Math.max(0, end - start);
+        }
+
+        private void addRecord(byte[] buf, int qualStart, int length)
+        {
+            _reads++;
+            _bases += length;
+            _minLength = Math.min(_minLength, length);
+            _maxLength = Math.max(_maxLength, length);
+
+            int lengthBin = Math.min(length, MAX_LENGTH_BINS);
+            if (lengthBin >= _lengthCounts.length)
+            {
+                _lengthCounts = Arrays.copyOf(_lengthCounts, Math.min(MAX_LENGTH_BINS + 1, Math.max(lengthBin + 1, _lengthCounts.length * 2)));
+            }
+            _lengthCounts[lengthBin]++;
+
+            int tracked = Math.min(length, MAX_TRACKED_CYCLES);
+            if (tracked * QUAL_BINS > _cycleQualCounts.length)
+            {
+                _cycleQualCounts = Arrays.copyOf(_cycleQualCounts, tracked * QUAL_BINS);
+            }
+
+            int i = 0;
+            for (; i < tracked; i++)
+            {
+                int q = toQualBin(buf[qualStart + i]);
+                _qualCounts[q]++;
+                _cycleQualCounts[i * QUAL_BINS + q]++;
+            }
+
+            for (; i < length; i++)
+            {
+                _qualCounts[toQualBin(buf[qualStart + i])]++;
+            }
+        }
+
+        private static int toQualBin(byte b)
+        {
+            int q = b - FastqUtils.ASCII_OFFSET;
+
+            return q < 0 ? 0 : Math.min(q, QUAL_BINS - 1);
+        }
+
+        public void merge(Accumulator other)
+        {
+            _reads += other._reads;
+            _bases += other._bases;
+            _minLength = Math.min(_minLength, other._minLength);
+            _maxLength = Math.max(_maxLength, other._maxLength);
+
+            for (int q = 0; q < QUAL_BINS; q++)
+            {
+                _qualCounts[q] += other._qualCounts[q];
+            }
+
+            _cycleQualCounts = addTo(_cycleQualCounts, other._cycleQualCounts);
+            _lengthCounts = addTo(_lengthCounts, other._lengthCounts);
+        }
+
+        private static long[] addTo(long[] target, long[] toAdd)
+        {
+            if (toAdd.length > target.length)
+            {
+                target = Arrays.copyOf(target, toAdd.length);
+            }
+
+            for (int i = 0; i < toAdd.length; i++)
+            {
+                target[i] += toAdd[i];
+            }
+
+            return target;
+        }
+    }
+
+    public static class Result
+    {
+        private final Accumulator _acc;
+
+        private Result(Accumulator acc)
+        {
+            _acc = acc;
+        }
+
+        public long getTotalReads()
+        {
+            return _acc._reads;
+        }
+
+        public long getTotalBases()
+        {
+            return _acc._bases;
+        }
+
+        public long getTotalBasesAtOrAbove(int qual)
+        {
+            long ret = 0;
+            for (int q = Math.max(0, qual); q < QUAL_BINS; q++)
+            {
+                ret += _acc._qualCounts[q];
+            }
+
+            return ret;
+        }
+
+        /**
+         * @return The number of reads of each length, indexed on length. The final bin also includes any longer reads.
+         */
+        public long[] getLengthDistribution()
+        {
+            if (_acc._reads == 0)
+            {
+                return new long[0];
+            }
+
+            return Arrays.copyOf(_acc._lengthCounts, (int)Math.min(MAX_LENGTH_BINS, _acc._maxLength) + 1);
+        }
+
+        /**
+         * @return The number of bases with each quality score at this cycle (0-based), indexed on quality score
+         */
+        public long[] getQualityDistributionForCycle(int cycle)
+        {
+            if (cycle < 0 || cycle >= getTrackedCycles())
+            {
+                throw new IllegalArgumentException("Cycle is not tracked: " + cycle);
+            }
+
+            return Arrays.copyOfRange(_acc._cycleQualCounts, cycle * QUAL_BINS, (cycle + 1) * QUAL_BINS);
+        }
+
+        public double[] getMeanQualityByCycle()
+        {
+            double[] ret = new double[getTrackedCycles()];
+            for (int cycle = 0; cycle < ret.length; cycle++)
+            {
+                long total = 0;
+                long sum = 0;
+                for (int q = 0; q < QUAL_BINS; q++)
+                {
+                    long count = _acc._cycleQualCounts[cycle * QUAL_BINS + q];
+                    total += count;
+                    sum += count * q;
+                }
+
+                ret[cycle] = total == 0 ? 0 : sum / (double)total;
+            }
+
+            return ret;
+        }
+
+        public int getTrackedCycles()
+        {
+            return _acc._cycleQualCounts.length / QUAL_BINS;
+        }
+
+        /**
+         * @return The summary metrics stored for a FASTQ file, which match those historically calculated by FastqUtils.getQualityMetrics()
+         */
+        public Map<String, Object> toMetricsMap()
+        {
+            long total = _acc._reads;
+            long totalBases = _acc._bases;
+            long totalQ10 = getTotalBasesAtOrAbove(10);
+            long totalQ20 = getTotalBasesAtOrAbove(20);
+            long totalQ30 = getTotalBasesAtOrAbove(30);
+            long totalQ40 = getTotalBasesAtOrAbove(40);
+
+            Map<String, Object> map = new HashMap<>();
+            map.put("Total Reads", total);
+            map.put("Min Read Length", total == 0 ? 0L : _acc._minLength);
+            map.put("Max Read Length", _acc._maxLength);
+            map.put("Mean Read Length", totalBases / (float)total);
+            map.put("Total Bases", totalBases);
+            map.put("Total MBases", (totalBases / 1000000.0));
+            map.put("Total GBases", totalBases / 1000000000.0);
+            map.put("Total Q10 Bases", totalQ10);
+            map.put("Total Q20 Bases", totalQ20);
+            map.put("Total Q30 Bases", totalQ30);
+            map.put("Total Q40 Bases", totalQ40);
+            map.put("Pct Q10", (totalQ10 / (double)totalBases) * 100.0);
+            map.put("Pct Q20", (totalQ20 / (double)totalBases) * 100.0);
+            map.put("Pct Q30", (totalQ30 / (double)totalBases) * 100.0);
+            map.put("Pct Q40", (totalQ40 / (double)totalBases) * 100.0);
+
+            return map;
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testMetrics() throws Exception
+        {
+            File fastq = FileUtil.createTempFile("FastqMetricsCalculator", ".fastq.gz");
+            try
+            {
+                // Read i has length 10 + (i % 5) and every base at cycle c has quality (c % 42)
+                long expectedBases = 0;
+                long expectedQ30 = 0;
+                int totalReads = 2000;
+                try (OutputStream os = new GZIPOutputStream(new FileOutputStream(fastq)))
+                {
+                    for (int i = 0; i < totalReads; i++)
+                    {
+                        int length = 10 + (i % 5);
+                        StringBuilder seq = new StringBuilder();
+                        StringBuilder qual = new StringBuilder();
+                        for (int c = 0; c < length; c++)
+                        {
+                            seq.append('A');
+                            qual.append((char)((c % 42) + FastqUtils.ASCII_OFFSET));
+                            if (c % 42 >= 30)
+                            {
+                                expectedQ30++;
+                            }
+                        }
+                        expectedBases += length;
+
+                        // Include a CRLF record to verify these are handled:
+                        String newline = i == 7 ? "\r\n" : "\n";
+                        os.write(("@read" + i + newline + seq + newline + "+" + newline + qual + newline).getBytes(StandardCharsets.US_ASCII));
+                    }
+                }
+
+                // Use a small block size, so records span many blocks and workers
+                Result result = new FastqMetricsCalculator(3, 256, null).calculate(fastq);
+                assertEquals(totalReads, result.getTotalReads());
+                assertEquals(expectedBases, result.getTotalBases());
+                assertEquals(expectedQ30, result.getTotalBasesAtOrAbove(30));
+
+                Map<String, Object> metrics = result.toMetricsMap();
+                assertEquals(10L, metrics.get("Min Read Length"));
+                assertEquals(14L, metrics.get("Max Read Length"));
+                assertEquals((long)totalReads, metrics.get("Total Reads"));
+
+                long[] lengths = result.getLengthDistribution();
+                assertEquals(15, lengths.length);
+                for (int length = 10; length < 15; length++)
+                {
+                    assertEquals(totalReads / 5, lengths[length]);
+                }
+
+                double[] meanQuals = result.getMeanQualityByCycle();
+                assertEquals(14, meanQuals.length);
+                assertEquals(0.0, meanQuals[0], 0.0001);
+                assertEquals(13.0, meanQuals[13], 0.0001);
+                assertEquals(totalReads, result.getQualityDistributionForCycle(5)[5]);
+            }
+            finally
+            {
+                fastq.delete();
+            }
+        }
+
+        @Test
+        public void testBlankLines() throws Exception
+        {
+            File fastq = FileUtil.createTempFile("FastqMetricsCalculator", ".fastq");
+            try
+            {
+                // Blank lines between records are skipped by the parser, so blocks must not be split by counting lines.
+                // An empty read has a blank sequence and quality line, and these must still be counted.
+                int totalReads = 500;
+                try (OutputStream os = new FileOutputStream(fastq))
+                {
+                    for (int i = 0; i < totalReads; i++)
+                    {
+                        String seq = i % 11 == 0 ? "" : "ACGTACGT";
+                        String qual = i % 11 == 0 ? "" : "IIIIIIII";
+                        os.write(("@read" + i + "\n" + seq + "\n+\n" + qual + "\n").getBytes(StandardCharsets.US_ASCII));
+                        if (i % 7 == 0)
+                        {
+                            os.write((i % 2 == 0 ? "\n" : "\r\n\n").getBytes(StandardCharsets.US_ASCII));
+                        }
+                    }
+
+                    // The final record lacks a newline:
+                    os.write("@last\nACGT\n+\nIIII".getBytes(StandardCharsets.US_ASCII));
+                }
+
+                for (int blockBytes : new int[]{64, 100, 256, 4096})
+                {
+                    Result result = new FastqMetricsCalculator(3, blockBytes, null).calculate(fastq);
+                    assertEquals("Incorrect reads for block size: " + blockBytes, totalReads + 1, result.getTotalReads());
+                    assertEquals("Incorrect bases for block size: " + blockBytes, ((totalReads - 46) * 8L) + 4, result.getTotalBases());
+                }
+            }
+            finally
+            {
+                fastq.delete();
+            }
+        }
+
+        @Test
+        public void testMalformed() throws Exception
+        {
+            File fastq = FileUtil.createTempFile("FastqMetricsCalculator", ".fastq");
+            try
+            {
+                try (OutputStream os = new FileOutputStream(fastq))
+                {
+                    os.write("@read1\nACGT\n+\nIIII\n@read2\nACGT\n+\nIII\n".getBytes(StandardCharsets.US_ASCII));
+                }
+
+                try
+                {
+                    new FastqMetricsCalculator(2, null).calculate(fastq);
+                    fail("Expected malformed FASTQ to fail");
+                }
+                catch (IllegalArgumentException e)
+                {
+                    assertTrue(e.getMessage().contains("Sequence and quality lengths do not match"));
+                }
+            }
+            finally
+            {
+                fastq.delete();
+            }
+        }
+    }
+}
@@ -16,9 +16,9 @@
 package org.labkey.sequenceanalysis.util;
 
 import htsjdk.samtools.fastq.FastqReader;
-import htsjdk.samtools.fastq.FastqRecord;
 import htsjdk.samtools.util.FastqQualityFormat;
 import htsjdk.samtools.util.QualityEncodingDetector;
+import htsjdk.samtools.util.RuntimeIOException;
 import org.apache.commons.io.Charsets;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -26,6 +26,7 @@
 import org.apache.logging.log4j.LogManager;
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.pipeline.PipelineJobException;
+import org.labkey.api.sequenceanalysis.pipeline.SequencePipelineService;
 import org.labkey.api.util.FileType;
 import org.labkey.api.util.Pair;
 import org.labkey.api.view.NotFoundException;
@@ -38,8 +39,6 @@
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.text.NumberFormat;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
 
@@ -50,6 +49,8 @@
  */
 public class FastqUtils
 {
+    private static final Logger _log = LogManager.getLogger(FastqUtils.class);
+
     public static FileType FqFileType = new FastqFileType();
 
     public static FastqQualityFormat inferFastqEncoding(File fastq)
@@ -120,99 +121,34 @@ public static Pair<Long, Long> logSequenceCounts(File inputFile1, File inputFile
 
     public static final int ASCII_OFFSET = 33;
 
+    // Parsing is much faster than gzip decompression, which runs on a single thread, so a few workers are sufficient
+    private static final int MAX_METRICS_WORKERS = 4;
+
     public static Map<String, Object> getQualityMetrics(File f, @Nullable Logger log)
+    {
+        return calculateQualityMetrics(f, log).toMetricsMap();
+    }
+
+    /**
+     * @return The summary metrics for this file, along with per-cycle quality and read length distributions, calculated in one pass
+     */
+    public static FastqMetricsCalculator.Result calculateQualityMetrics(File f, @Nullable Logger log)
     {
         if (log != null)
         {
             log.info("calculating quality metrics for file: " + f.getName());
         }
 
-        try (FastqReader reader = new FastqReader(f))
-        {
-            long total = 0;
-            long sum = 0;
-            long min = 0;
-            long max = 0;
-            long totalBases = 0;
-            long totalQ10 = 0;
-            long totalQ20 = 0;
-            long totalQ30 = 0;
-            long totalQ40 = 0;
-            float avg;
-
-            long len;
-            while (reader.hasNext())
-            {
-                FastqRecord fq = reader.next();
-                len = fq.length();
-
-                //parse quality scores:
-                byte[] quals = fq.getBaseQualityString().getBytes(Charsets.US_ASCII);
-                for (byte b : quals)
-                {
-                    int qual = (int)b - ASCII_OFFSET;
-                    if (qual >= 40)
-                    {
-                        totalQ40++;
-                    }
-
-                    if (qual >= 30)
-                    {
-                        totalQ30++;
-                    }
-
-                    if (qual >= 20)
-                    {
-                        totalQ20++;
-                    }
-
-                    if (qual >= 10)
-                    {
-                        totalQ10++;
-                    }
-
-                    totalBases++;
-                }
+        Integer maxThreads = SequencePipelineService.get().getMaxThreads(log == null ? _log : log);
+        int workers = Math.max(1, Math.min(MAX_METRICS_WORKERS, (maxThreads == null ? Runtime.getRuntime().availableProcessors() : maxThreads) - 1));
 
-                total++;
-                if (len < min || min == 0)
-                    min = len;
-                if (len > max)
-                    max = len;
-
-                sum += len;
-
-                if (log != null && total % 1000000L == 0)
-                {
-                    log.info("processed " + NumberFormat.getInstance().format(total) + " reads");
-                }
-            }
-
-            if (log != null)
-            {
-                log.info("processed " + NumberFormat.getInstance().format(total) + " reads");
-            }
-
-            avg = sum / (float)total;
-
-            Map<String, Object> map = new HashMap<>();
-            map.put("Total Reads", total);
-            map.put("Min Read Length", min);
-            map.put("Max Read Length", max);
-            map.put("Mean Read Length", avg);
-            map.put("Total Bases", totalBases);
-            map.put("Total MBases", (totalBases / 1000000.0));
-            map.put("Total GBases", totalBases / 1000000000.0);
-            map.put("Total Q10 Bases", totalQ10);
-            map.put("Total Q20 Bases", totalQ20);
-            map.put("Total Q30 Bases", totalQ30);
-            map.put("Total Q40 Bases", totalQ40);
-            map.put("Pct Q10", (totalQ10 / (double)totalBases) * 100.0);
-            map.put("Pct Q20", (totalQ20 / (double)totalBases) * 100.0);
-            map.put("Pct Q30", (totalQ30 / (double)totalBases) * 100.0);
-            map.put("Pct Q40", (totalQ40 / (double)totalBases) * 100.0);
-
-            return map;
+        try
+        {
+            return new FastqMetricsCalculator(workers, log).calculate(f);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeIOException(e);
         }
     }
 
@@ -0,0 +1,217 @@
+package org.labkey.sequenceanalysis.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.IntConsumer;
+
+/**
+ * A set of non-negative ints using open addressing, which avoids the boxed Integer and entry object created per value by HashSet.
+ * This is intended for large sets of dense IDs, such as read IDs.
+ */
+public class IntHashSet
+{
+    private static final int EMPTY = -1;
+
+    private int[] _values;
+    private int _size = 0;
+
+    public IntHashSet()
+    {
+        this(4);
+    }
+
+    public IntHashSet(int expectedSize)
+    {
+        _values = new int[getTableSize(expectedSize)];
+        Arrays.fill(_values, EMPTY);
+    }
+
+    /**
+     * @return True if the value was not already present
+     */
+    public boolean add(int value)
+    {
+        if (value < 0)
+        {
+            throw new IllegalArgumentException("Values must be non-negative: " + value);
+        }
+
+        if ((_size + 1) * 2 > _values.length)
+        {
+            rehash(_values.length * 2);
+        }
+
+        int idx = indexOf(_values, value);
+        if (_values[idx] == value)
+        {
+            return false;
+        }
+
+        _values[idx] = value;
+        _size++;
+
+        return true;
+    }
+
+    public void addAll(IntHashSet other)
+    {
+        if ((_size + other._size) * 2 > _values.length)
+        {
+            rehash(getTableSize(_size + other._size));
+        }
+
+        other.forEach(this::add);
+    }
+
+    public boolean contains(int value)
+    {
+        return value >= 0 && _values[indexOf(_values, value)] == value;
+    }
+
+    public int size()
+    {
+        return _size;
+    }
+
+    public boolean isEmpty()
+    {
+        return _size == 0;
+    }
+
+    /**
+     * Visits each value, in no particular order
+     */
+    public void forEach(IntConsumer consumer)
+    {
+        for (int value : _values)
+        {
+            if (value != EMPTY)
+            {
+                consumer.accept(value);
+            }
+        }
+    }
+
+    private static int indexOf(int[] table, int value)
+    {
+        int mask = table.length - 1;
+        int h = value * 0x9E3779B9;
+        int idx = (h ^ (h >>> 16)) & mask;
+        while (table[idx] != EMPTY && table[idx] != value)
+        {
+            idx = (idx + 1) & mask;
+        }
+
+        return idx;
+    }
+
+    private void rehash(int tableSize)
+    {
+        int[] values = new int[tableSize];
+        Arrays.fill(values, EMPTY);
+        for (int value : _values)
+        {
+            if (value != EMPTY)
+            {
+                values[indexOf(values, value)] = value;
+            }
+        }
+
+        _values = values;
+    }
+
+    private static int getTableSize(int expectedSize)
+    {
+        int size = 8;
+        while (size < expectedSize * 2)
+        {
+            size <<= 1;
+        }
+
+        return size;
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testAddAndContains()
+        {
+            IntHashSet set = new IntHashSet();
+            assertTrue(set.isEmpty());
+            assertFalse(set.contains(0));
+
+            assertTrue(set.add(0));
+            assertTrue(set.add(7));
+            assertFalse("Duplicate value should not be added", set.add(7));
+            assertEquals(2, set.size());
+            assertTrue(set.contains(0));
+            assertTrue(set.contains(7));
+            assertFalse(set.contains(1));
+            assertFalse("Negative values are never present", set.contains(-1));
+
+            try
+            {
+                set.add(-1);
+                fail("Expected negative value to be rejected");
+            }
+            catch (IllegalArgumentException e)
+            {
+                //expected
+            }
+            assertEquals(2, set.size());
+        }
+
+        @Test
+        public void testMatchesHashSet()
+        {
+            //values are a mix of dense IDs and large values, which forces repeated rehashing and collisions
+            Random random = new Random(1234);
+            IntHashSet set = new IntHashSet();
+            Set<Integer> expected = new HashSet<>();
+            for (int i = 0; i < 20000; i++)
+            {
+                int value = i % 3 == 0 ? random.nextInt(Integer.MAX_VALUE) : random.nextInt(5000);
+                assertEquals("Incorrect return value when adding: " + value, expected.add(value), set.add(value));
+            }
+
+            assertEquals(expected.size(), set.size());
+            for (int i = 0; i < 5000; i++)
+            {
+                assertEquals("Incorrect contains() for: " + i, expected.contains(i), set.contains(i));
+            }
+
+            Set<Integer> visited = new HashSet<>();
+            set.forEach(value -> assertTrue("Value visited twice: " + value, visited.add(value)));
+            assertEquals(expected, visited);
+        }
+
+        @Test
+        public void testAddAll()
+        {
+            IntHashSet set1 = new IntHashSet(2);
+            IntHashSet set2 = new IntHashSet();
+            for (int i = 0; i < 100; i++)
+            {
+                set1.add(i * 2);
+                set2.add(i * 3);
+            }
+
+            set1.addAll(set2);
+
+            Set<Integer> visited = new HashSet<>();
+            set1.forEach(visited::add);
+            for (int i = 0; i < 300; i++)
+            {
+                boolean expected = (i < 200 && i % 2 == 0) || i % 3 == 0;
+                assertEquals("Incorrect contains() for: " + i, expected, set1.contains(i));
+                assertEquals("Incorrect forEach() for: " + i, expected, visited.contains(i));
+            }
+            assertEquals(visited.size(), set1.size());
+        }
+    }
+}
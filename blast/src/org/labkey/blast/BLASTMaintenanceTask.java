@@ -162,6 +162,19 @@ public void run(Logger log)
                 allowablePaths.add(logFile.getAbsolutePath());
             }
 
+            for (File cached : j.getCachedResultsFiles())
+            {
+                if (!j.isSaveResults())
+                {
+                    log.info("deleting cached BLAST results: " + cached.getName());
+                    cached.delete();
+                }
+                else
+                {
+                    allowablePaths.add(cached.getAbsolutePath());
+                }
+            }
+
             //now look for orphan files under the file root
             if (!allowablePaths.isEmpty())
             {
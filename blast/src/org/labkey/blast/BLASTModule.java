@@ -25,11 +25,13 @@
 import org.labkey.api.module.ModuleContext;
 import org.labkey.api.pipeline.PipelineService;
 import org.labkey.api.sequenceanalysis.SequenceAnalysisService;
+import org.labkey.api.util.PageFlowUtil;
 import org.labkey.api.util.SystemMaintenance;
 import org.labkey.api.view.WebPartFactory;
 import org.labkey.blast.button.BlastOligosButton;
 import org.labkey.blast.button.CreateDatabaseButton;
 import org.labkey.blast.button.ReprocessDatabaseButton;
+import org.labkey.blast.model.BlastJob;
 import org.labkey.blast.pipeline.BlastDatabasePipelineProvider;
 import org.labkey.blast.pipeline.BlastPipelineProvider;
 import org.labkey.blast.query.BlastUserSchema;
@@ -110,4 +112,13 @@ public UpgradeCode getUpgradeCode()
         return new BLASTUpgradeCode();
     }
 
+    @Override
+    @NotNull
+    public Set<Class> getUnitTests()
+    {
+        return PageFlowUtil.set(
+                BlastJob.TestCase.class
+        );
+    }
+
 }
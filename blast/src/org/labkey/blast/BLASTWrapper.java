@@ -92,7 +92,7 @@ public File runBlastN(String blastDbGuid, File input, File outputFile, Map<Strin
             }
         }
 
-        executeBlast(args, false);
+        executeBlast(args, null);
         if (!outputFile.exists())
         {
             throw new PipelineJobException("Expected file not created: " + outputFile.getPath());
@@ -101,7 +101,10 @@ public File runBlastN(String blastDbGuid, File input, File outputFile, Map<Strin
         return outputFile;
     }
 
-    public String runBlastFormatter(File inputFile, BlastJob.BLAST_OUTPUT_FORMAT outputFormat) throws PipelineJobException, IOException
+    /**
+     * Runs blast_formatter, sending its output to the provided redirect (such as a file) rather than retaining it in memory
+     */
+    public void runBlastFormatter(File inputFile, BlastJob.BLAST_OUTPUT_FORMAT outputFormat, ProcessBuilder.Redirect output) throws PipelineJobException
     {
         File exe = getExe("blast_formatter", null);
         if (!exe.exists())
@@ -118,7 +121,7 @@ public String runBlastFormatter(File inputFile, BlastJob.BLAST_OUTPUT_FORMAT out
         args.add("-outfmt");
         args.add(outputFormat.getCmd());
 
-        return executeBlast(args, true);
+        executeBlast(args, output);
     }
 
     public File createDatabase(String dbName, String title, File fastaFile, File dbDir, Logger log) throws PipelineJobException, IOException
@@ -172,7 +175,7 @@ public File createDatabase(String dbName, String title, File fastaFile, File dbD
         args.add("-out");
         args.add(outFile.getPath());
 
-        executeBlast(args, false);
+        executeBlast(args, null);
 
         File[] files = dbDir.listFiles(new FilenameFilter()
         {
@@ -206,7 +209,7 @@ public boolean accept(File dir, String name)
         indexArgs.add("-iformat");
         indexArgs.add("blastdb");
 
-        executeBlast(indexArgs, false);
+        executeBlast(indexArgs, null);
 
         File[] idxFiles = dbDir.listFiles(new FilenameFilter()
         {
@@ -226,24 +229,21 @@ public boolean accept(File dir, String name)
         return outFile;
     }
 
-    private @Nullable String executeBlast(List<String> args, boolean retainOutput) throws PipelineJobException, IOException
+    private void executeBlast(List<String> args, @Nullable ProcessBuilder.Redirect output) throws PipelineJobException
     {
-        StringBuilder output = new StringBuilder();
-
         if (getLogger() != null)
         {
             getLogger().info("running BLAST program: ");
             getLogger().info(StringUtils.join(args, " "));
         }
 
-        if (retainOutput)
+        if (output != null)
         {
-            return executeWithOutput(args);
+            execute(args, output);
         }
         else
         {
             execute(args);
-            return null;
         }
     }
 
@@ -7,6 +7,8 @@
 import org.jetbrains.annotations.Nullable;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
 import org.labkey.api.data.Table;
@@ -19,23 +21,29 @@
 import org.labkey.api.pipeline.PipelineJobService;
 import org.labkey.api.pipeline.PipelineService;
 import org.labkey.api.pipeline.PipelineStatusFile;
+import org.labkey.api.reader.Readers;
 import org.labkey.api.security.User;
 import org.labkey.api.util.HtmlString;
+import org.labkey.api.writer.PrintWriters;
 import org.labkey.blast.BLASTManager;
 import org.labkey.blast.BLASTSchema;
 import org.labkey.blast.BLASTWrapper;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.Serializable;
-import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 
 import static org.labkey.api.util.HtmlString.unsafe;
 
@@ -47,6 +55,7 @@
 public class BlastJob implements Serializable
 {
     private static final Logger _log = LogManager.getLogger(BlastJob.class);
+    private static final String CACHED_RESULTS_EXTENSION = ".cached";
 
     private int _rowid;
     private String _databaseId;
@@ -280,6 +289,37 @@ public File getExpectedInputFile()
         return new File(getOutputDir(), "blast-" + _objectid + ".input");
     }
 
+    /**
+     * Formatted results are cached per output format, since blast_formatter is relatively slow and result pages are often reloaded
+     */
+    private File getCachedResultsFile(BLAST_OUTPUT_FORMAT outputFormat)
+    {
+        return new File(getOutputDir(), "blast-" + _objectid + "." + outputFormat.name() + CACHED_RESULTS_EXTENSION);
+    }
+
+    /**
+     * @return Any cached formatted results that exist for this job
+     */
+    public List<File> getCachedResultsFiles()
+    {
+        List<File> ret = new ArrayList<>();
+        for (BLAST_OUTPUT_FORMAT f : BLAST_OUTPUT_FORMAT.values())
+        {
+            File cached = getCachedResultsFile(f);
+            if (cached.exists())
+            {
+                ret.add(cached);
+            }
+        }
+
+        return ret;
+    }
+
+    private void deleteCachedResults()
+    {
+        getCachedResultsFiles().forEach(File::delete);
+    }
+
     public void setComplete(User u, @Nullable PipelineJob job) throws PipelineJobException
     {
         if (PipelineJobService.get().getLocationType() != PipelineJobService.LocationType.WebServer)
@@ -288,6 +328,7 @@ public void setComplete(User u, @Nullable PipelineJob job) throws PipelineJobExc
         }
 
         setHasRun(true);
+        deleteCachedResults();
 
         if (!isSaveResults())
         {
@@ -323,17 +364,73 @@ public void getResults(BLAST_OUTPUT_FORMAT outputFormat, Writer out) throws IOEx
             return;
         }
 
-        String results = outputFormat.processResults(output);
-        if (out instanceof JspWriter jsp)
+        File cached = getCachedResultsFile(outputFormat);
+        if (!cached.exists() || cached.lastModified() < output.lastModified())
         {
-            jsp.print(outputFormat.supportsHTML() ? unsafe(results) : HtmlString.of(results));
+            // Write to a temp file first, so concurrent requests never read a partial file
+            File tmp = File.createTempFile(cached.getName(), ".tmp", cached.getParentFile());
+            try
+            {
+                outputFormat.writeResults(output, tmp);
+            }
+            catch (IOException | PipelineJobException | RuntimeException e)
+            {
+                tmp.delete();
+                throw e;
+            }
+
+            Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         }
-        else
+
+        try (Reader reader = Readers.getReader(cached))
         {
-            out.write(outputFormat.processResults(output));
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1)
+            {
+                if (out instanceof JspWriter jsp)
+                {
+                    // NOTE: escaping is per-character, so it is safe to escape in chunks
+                    String chunk = new String(buffer, 0, read);
+                    jsp.print(outputFormat.supportsHTML() ? unsafe(chunk) : HtmlString.of(chunk));
+                }
+                else
+                {
+                    out.write(buffer, 0, read);
+                }
+            }
         }
     }
 
+    /**
+     * @return True if the aligned query and subject sequences have no mismatches, treating N in the query as a match
+     */
+    static boolean isPerfectMatch(String qseq, String sseq)
+    {
+        int length = qseq.length();
+        if (sseq.length() < length)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++)
+        {
+            char q = qseq.charAt(i);
+            if (q == 'N' || q == 'n')
+            {
+                continue;
+            }
+
+            char s = sseq.charAt(i);
+            if (q != s && Character.toUpperCase(q) != Character.toUpperCase(s))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     public boolean hasError(User u)
     {
         if (getJobId() == null)
@@ -389,90 +486,72 @@ public Alignment(int qLength, int sLength, int alignLength)
                 }
             }
 
-            private Map<String, Summary> _perfectHitSummary;
-
             @Override
-            public String processResults(File results) throws IOException, PipelineJobException
+            public void processResults(File results, File outputFile) throws IOException, PipelineJobException
             {
                 //summary of perfect hits by query seq
-                try (StringWriter out = new StringWriter())
-                {
-                    _perfectHitSummary = new HashMap<>();
+                // NOTE: this processor is shared across threads, so the summary must be local
+                Map<String, Summary> perfectHitSummary = new HashMap<>();
 
-                    String resultsText = new BLASTWrapper(_log).runBlastFormatter(results, BLAST_OUTPUT_FORMAT.alignmentSummary);
-                    Scanner scan = new Scanner(resultsText);
-                    while (scan.hasNextLine())
+                BLASTWrapper wrapper = new BLASTWrapper(_log);
+                File tabular = File.createTempFile(outputFile.getName(), ".tabular", outputFile.getParentFile());
+                try
+                {
+                    wrapper.runBlastFormatter(results, BLAST_OUTPUT_FORMAT.alignmentSummary, ProcessBuilder.Redirect.to(tabular));
+                    try (BufferedReader reader = Readers.getReader(tabular))
                     {
-                        String line = scan.nextLine();
-                        if (StringUtils.trimToNull(line) == null)
-                        {
-                            continue;
-                        }
-
-                        String[] tokens = line.split("\t");
-                        if (tokens.length < 11)
-                        {
-                            continue;
-                        }
-
-                        int alignLength = Integer.parseInt(tokens[10]);
-                        int mismatch = Integer.parseInt(tokens[11]);
-                        int slen = Integer.parseInt(tokens[3]);
-                        int qlen = Integer.parseInt(tokens[1]);
-                        String qname = tokens[0];
-                        String sname = tokens[2];
-                        if (mismatch == 0)
-                        {
-                            appendHit(qname, sname, qlen, slen, alignLength);
-                        }
-                        else
+                        String line;
+                        while ((line = reader.readLine()) != null)
                         {
-                            String qseq = tokens[8];
-                            String sseq = tokens[9];
+                            if (StringUtils.trimToNull(line) == null)
+                            {
+                                continue;
+                            }
 
-                            int i = 0;
-                            int qmatch = 0;
-                            int qmismatch = 0;
-                            while (i < qseq.length())
+                            String[] tokens = line.split("\t");
+                            if (tokens.length < 12)
                             {
-                                String qbase = qseq.substring(i, i + 1);
-                                if (qbase.equalsIgnoreCase(sseq.substring(i, i + 1)) || "N".equalsIgnoreCase(qbase))
-                                {
-                                    qmatch++;
-                                }
-                                else
-                                {
-                                    qmismatch++;
-                                }
-
-                                i++;
+                                continue;
                             }
 
-                            if (qmismatch == 0)
+                            int alignLength = Integer.parseInt(tokens[10]);
+                            int mismatch = Integer.parseInt(tokens[11]);
+                            int slen = Integer.parseInt(tokens[3]);
+                            int qlen = Integer.parseInt(tokens[1]);
+                            String qname = tokens[0];
+                            String sname = tokens[2];
+                            if (mismatch == 0 || isPerfectMatch(tokens[8], tokens[9]))
                             {
-                                appendHit(qname, sname, qlen, slen, alignLength);
+                                appendHit(perfectHitSummary, qname, sname, qlen, slen, alignLength);
                             }
                             else
                             {
-                                appendHit(qname, null, qlen, slen, alignLength);
+                                appendHit(perfectHitSummary, qname, null, qlen, slen, alignLength);
                             }
                         }
                     }
+                }
+                finally
+                {
+                    tabular.delete();
+                }
 
+                try (PrintWriter out = PrintWriters.getPrintWriter(outputFile))
+                {
                     out.write("<br><br><b>Summary of Perfect Hits:</b><br>");
                     out.write("<table border=1 cellpadding=\"3\" style=\"border-collapse: collapse;\"><tr><td>Query</td><td># Perfect Hits</td><td>Reference Names</td><td>Alignment Length</td><td>Query Length</td><td>Reference Length</td></tr>");
-                    for (String qname : _perfectHitSummary.keySet())
+                    for (String qname : perfectHitSummary.keySet())
                     {
                         out.write("<tr>");
                         out.write("<td>" + qname + "</td>");
-                        out.write("<td>" + _perfectHitSummary.get(qname).hitMap.size() + "</td>");
+                        out.write("<td>" + perfectHitSummary.get(qname).hitMap.size() + "</td>");
 
                         StringBuilder sNameCell = new StringBuilder();
                         StringBuilder alignLengthCell = new StringBuilder();
                         StringBuilder qLengthCell = new StringBuilder();
                         StringBuilder sLengthCell = new StringBuilder();
 
-                        Summary s = _perfectHitSummary.get(qname);
+                        Summary s = perfectHitSummary.get(qname);
                         String br = "";
                         for (String sname : s.hitMap.keySet())
                         {
@@ -507,16 +586,20 @@ public String processResults(File results) throws IOException, PipelineJobExcept
 
                     out.write("<b>BLAST Output:</b>");
                     out.write("<pre>");
-                    out.write(new BLASTWrapper(_log).runBlastFormatter(results, BLAST_OUTPUT_FORMAT.flatQueryAnchoredWithIdentities));
-                    out.write("</pre>");
+                }
+
+                //the full output is appended by blast_formatter directly, rather than read into memory
+                wrapper.runBlastFormatter(results, BLAST_OUTPUT_FORMAT.flatQueryAnchoredWithIdentities, ProcessBuilder.Redirect.appendTo(outputFile));
 
-                    return out.toString();
+                try (PrintWriter out = PrintWriters.getPrintWriter(new FileOutputStream(outputFile, true)))
+                {
+                    out.write("</pre>");
                 }
             }
 
-            private void appendHit(String qname, String sname, int qLen, int sLen, int alignLen)
+            private void appendHit(Map<String, Summary> perfectHitSummary, String qname, String sname, int qLen, int sLen, int alignLen)
             {
-                Summary s = _perfectHitSummary.get(qname);
+                Summary s = perfectHitSummary.get(qname);
                 if (s == null)
                 {
                     s = new Summary();
@@ -527,7 +610,7 @@ private void appendHit(String qname, String sname, int qLen, int sLen, int align
                     s.addAlignment(sname, qLen, sLen, alignLen);
                 }
 
-                _perfectHitSummary.put(qname, s);
+                perfectHitSummary.put(qname, s);
             }
         });
 
@@ -559,15 +642,18 @@ public boolean supportsHTML()
             return _supportsHTML;
         }
 
-        public String processResults(File results) throws IOException, PipelineJobException
+        /**
+         * Writes the formatted results to outputFile. The output of blast_formatter is written to the file as it runs, rather than held in memory
+         */
+        public void writeResults(File results, File outputFile) throws IOException, PipelineJobException
         {
             if (_processor == null)
             {
-                return new BLASTWrapper(_log).runBlastFormatter(results, this);
+                new BLASTWrapper(_log).runBlastFormatter(results, this, ProcessBuilder.Redirect.to(outputFile));
             }
             else
             {
-                return _processor.processResults(results);
+                _processor.processResults(results, outputFile);
             }
         }
 
@@ -575,7 +661,24 @@ public String processResults(File results) throws IOException, PipelineJobExcept
 
     public interface BlastResultProcessor
     {
-        String processResults(File results) throws IOException, PipelineJobException;
+        void processResults(File results, File outputFile) throws IOException, PipelineJobException;
     }
-}
 
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testIsPerfectMatch()
+        {
+            assertTrue("Identical sequences should match", isPerfectMatch("ACGTACGT", "ACGTACGT"));
+            assertTrue("Comparison should not be case-sensitive", isPerfectMatch("acgtACGT", "ACGTacgt"));
+            assertTrue("N in the query should match any base", isPerfectMatch("ACNTAnGT", "ACGTACGT"));
+            assertTrue("A longer subject should match on the query length", isPerfectMatch("ACGT", "ACGTTTTT"));
+
+            assertFalse("A mismatch should not match", isPerfectMatch("ACGTACGT", "ACGAACGT"));
+            assertFalse("A mismatch in the last base should not match", isPerfectMatch("ACGTACGT", "ACGTACGA"));
+            assertFalse("A shorter subject should not match", isPerfectMatch("ACGTACGT", "ACGTACG"));
+            assertFalse("N in the subject is not a wildcard", isPerfectMatch("ACGTACGT", "ACNTACGT"));
+            assertFalse("Gaps should not match", isPerfectMatch("ACGTACGT", "ACG-ACGT"));
+        }
+    }
+}
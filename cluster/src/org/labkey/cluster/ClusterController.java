@@ -21,7 +21,9 @@
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.labkey.api.action.ApiSimpleResponse;
 import org.labkey.api.action.ConfirmAction;
+import org.labkey.api.action.ReadOnlyApiAction;
 import org.labkey.api.action.SimpleRedirectAction;
 import org.labkey.api.action.SpringActionController;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
@@ -45,6 +47,7 @@
 import org.labkey.api.util.URLHelper;
 import org.labkey.api.view.HtmlView;
 import org.labkey.cluster.pipeline.AbstractClusterExecutionEngine;
+import org.labkey.cluster.pipeline.ClusterCommandExecutor;
 import org.springframework.validation.BindException;
 import org.springframework.validation.Errors;
 import org.springframework.web.servlet.ModelAndView;
@@ -106,6 +109,16 @@ public boolean handlePost(Object form, BindException errors) throws Exception
         }
     }
 
+    @RequiresSiteAdmin
+    public class GetCommandMetricsAction extends ReadOnlyApiAction<Object>
+    {
+        @Override
+        public Object execute(Object form, BindException errors) throws Exception
+        {
+            return new ApiSimpleResponse("commandMetrics", ClusterCommandExecutor.get().getMetrics());
+        }
+    }
+
     @RequiresSiteAdmin
     public class ForcePipelineCancelAction extends ConfirmAction<JobIdsForm>
     {
@@ -51,6 +51,11 @@
     public final static String CLUSTER_USER = "ClusterUser";
     public final static String RECREATE_SUBMIT_SCRIPT_FILE = "RecreateSubmitScriptFile";
     public final static String DISALLOWED_NODES = "DisallowedNodes";
+    public final static String COMMAND_TIMEOUT = "ClusterCommandTimeout";
+    public final static String COMMAND_MAX_CONCURRENT = "ClusterCommandMaxConcurrent";
+
+    private final static int DEFAULT_COMMAND_TIMEOUT = 300;
+    private final static int DEFAULT_COMMAND_MAX_CONCURRENT = 4;
 
     private ClusterManager()
     {
@@ -186,6 +191,43 @@ public boolean isClusterDebugMode()
         return ("true".equalsIgnoreCase(val));
     }
 
+    public int getCommandTimeoutSeconds()
+    {
+        return getPositiveIntProperty(COMMAND_TIMEOUT, DEFAULT_COMMAND_TIMEOUT);
+    }
+
+    public int getCommandMaxConcurrent()
+    {
+        return getPositiveIntProperty(COMMAND_MAX_CONCURRENT, DEFAULT_COMMAND_MAX_CONCURRENT);
+    }
+
+    private int getPositiveIntProperty(String name, int defaultValue)
+    {
+        Module m = ModuleLoader.getInstance().getModule(ClusterModule.NAME);
+        ModuleProperty mp = m.getModuleProperties().get(name);
+        String val = StringUtils.trimToNull(mp.getValueContainerSpecific(ContainerManager.getRoot()));
+        if (val == null)
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            int ret = Integer.parseInt(val);
+            if (ret > 0)
+            {
+                return ret;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            // ignore, and fall through to the default
+        }
+
+        _log.error("Invalid value for module property " + name + ": [" + val + "], using " + defaultValue);
+        return defaultValue;
+    }
+
     public String getClusterUser(Container c)
     {
         Module m = ModuleLoader.getInstance().getModule(ClusterModule.NAME);
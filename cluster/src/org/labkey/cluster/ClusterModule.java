@@ -34,7 +34,9 @@
 import org.labkey.api.query.QuerySchema;
 import org.labkey.api.query.QueryService;
 import org.labkey.api.settings.AdminConsole;
+import org.labkey.api.util.ContextListener;
 import org.labkey.api.view.WebPartFactory;
+import org.labkey.cluster.pipeline.ClusterCommandExecutor;
 import org.labkey.cluster.pipeline.ClusterPipelineJobNotificationProvider;
 import org.labkey.cluster.pipeline.ClusterPipelineProvider;
 import org.labkey.cluster.pipeline.SlurmExecutionEngine;
@@ -92,6 +94,7 @@ protected void init()
     public void doStartupAfterSpringConfig(ModuleContext moduleContext)
     {
         ClusterManager.get().schedule();
+        ContextListener.addShutdownListener(new ClusterCommandExecutor.ShutdownHandler());
 
         DetailsURL details = DetailsURL.fromString("/cluster/begin.view", ContainerManager.getSharedContainer());
         AdminConsole.addLink(AdminConsole.SettingsLinkType.Management, "cluster admin", details.getActionURL());
@@ -1,6 +1,5 @@
 package org.labkey.cluster.pipeline;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -11,6 +10,7 @@
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
 import org.labkey.api.data.DbSchema;
+import org.labkey.api.data.DbScope;
 import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.Sort;
@@ -31,7 +31,6 @@
 import org.labkey.api.util.NetworkDrive;
 import org.labkey.api.util.PageFlowUtil;
 import org.labkey.api.util.Pair;
-import org.labkey.api.util.StringUtilsLabKey;
 import org.labkey.cluster.ClusterManager;
 import org.labkey.cluster.ClusterSchema;
 import org.labkey.cluster.ClusterServiceImpl;
@@ -40,13 +39,13 @@
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -61,6 +60,9 @@
     public static final String NOT_SUBMITTED = "NOT_SUBMITTED";
     public static final String JOB_DELETED = "JOB_DELETED";
 
+    // Keeps IN clauses well under the parameter limits of the supported databases
+    protected static final int MAX_IDS_PER_QUERY = 500;
+
     //TODO: allow a site param to set this
     protected boolean _debug = false;
 
@@ -316,6 +318,47 @@ protected ClusterJob getClusterSubmission(String clusterId)
         return ret.isEmpty() ? null : ret.get(0);
     }
 
+    /**
+     * Loads the submission records for many cluster IDs using one query per batch of IDs, rather than one query per ID.
+     * @return A map of clusterId to the most recent submission with that ID. IDs without a record are omitted.
+     */
+    protected Map<String, ClusterJob> getClusterSubmissions(Collection<String> clusterIds)
+    {
+        Map<String, ClusterJob> ret = new HashMap<>();
+        if (clusterIds.isEmpty())
+        {
+            return ret;
+        }
+
+        TableInfo ti = ClusterSchema.getInstance().getSchema().getTable(ClusterSchema.CLUSTER_JOBS);
+        for (List<String> batch : partition(new ArrayList<>(new LinkedHashSet<>(clusterIds))))
+        {
+            SimpleFilter filter = new SimpleFilter(FieldKey.fromString("clusterId"), batch, CompareType.IN);
+            filter.addCondition(FieldKey.fromString("location"), getConfig().getLocation());
+
+            for (ClusterJob j : new TableSelector(ti, filter, new Sort("-created")).getArrayList(ClusterJob.class))
+            {
+                if (ret.putIfAbsent(j.getClusterId(), j) != null)
+                {
+                    _log.error("multiple cluster submissions exist for same id: " + j.getClusterId());
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    protected static <T> List<List<T>> partition(List<T> list)
+    {
+        List<List<T>> ret = new ArrayList<>();
+        for (int i = 0; i < list.size(); i += MAX_IDS_PER_QUERY)
+        {
+            ret.add(list.subList(i, Math.min(list.size(), i + MAX_IDS_PER_QUERY)));
+        }
+
+        return ret;
+    }
+
     public synchronized void requeueBlockedJobs() throws PipelineJobException
     {
         if (!ClusterManager.get().isPreventClusterInteraction())
@@ -347,7 +390,11 @@ public synchronized void requeueBlockedJobs() throws PipelineJobException
         }
     }
 
-    abstract protected Set<String> updateStatusForAllJobs() throws PipelineJobException;
+    /**
+     * Queries the scheduler's queue and updates the status of every submission found there.
+     * @return The cluster IDs of the submissions that were updated
+     */
+    abstract protected Set<String> updateStatusForAllJobs(StatusUpdateBatch batch) throws PipelineJobException;
 
     @Override
     public void updateStatusForJobs(@NotNull Collection<String> jobIds) throws PipelineJobException
@@ -374,36 +421,155 @@ public synchronized void updateStatusForAll(Collection<String> extraJobIds) thro
             return;
         }
 
-        Set<String> jobsUpdated = updateStatusForAllJobs();
+        StatusUpdateBatch batch = new StatusUpdateBatch();
+        try
+        {
+            Set<String> jobsUpdated = updateStatusForAllJobs(batch);
+
+            // iterate existing submissions to catch completed tasks and errors
+            // regenerate this list in case status has otherwise changed
+            jobs = getJobsToCheck(false, extraJobIds);
+            //_log.debug("found " + jobs.size() + " additional cluster jobs to check");
+
+            // group by container, since the history command can depend on the cluster user
+            Map<String, List<ClusterJob>> toCheck = new HashMap<>();
+            for (ClusterJob j : jobs)
+            {
+                if (jobsUpdated.contains(j.getClusterId()))
+                {
+                    continue;
+                }
+                else if (j.getClusterId() == null)
+                {
+                    _log.error("clusterId was null for job: " + j.getRowId() + " / " + j.getStatus(), new Exception());
+                    continue;
+                }
+
+                toCheck.computeIfAbsent(j.getContainer(), x -> new ArrayList<>()).add(j);
+            }
 
-        // iterate existing submissions to catch completed tasks and errors
-        // regenerate this list in case status has otherwise changed
-        jobs = getJobsToCheck(false, extraJobIds);
-        //_log.debug("found " + jobs.size() + " additional cluster jobs to check");
+            for (String containerId : toCheck.keySet())
+            {
+                List<ClusterJob> containerJobs = toCheck.get(containerId);
+                batch.prefetch(containerJobs);
+
+                //check condor_history
+                Map<String, Pair<String, String>> statuses = getStatusForJobs(containerJobs, ContainerManager.getForId(containerId));
+                for (ClusterJob j : containerJobs)
+                {
+                    Pair<String, String> jobStatus = statuses.get(j.getClusterId());
+                    if (jobStatus != null)
+                    {
+                        _log.debug("updating job status: " + j.getClusterId() + " / " + jobStatus.first);
+                        updateJobStatus(jobStatus.first, j, jobStatus.second, batch);
+                    }
+                    else
+                    {
+                        _log.error("unable to find record of job submission: " + j.getClusterId());
+                    }
+                }
+            }
+        }
+        finally
+        {
+            batch.flush();
+        }
+    }
 
+    /**
+     * Returns the status for a set of submissions. The default implementation queries each job separately; engines whose
+     * history command accepts a list of IDs should override this to query them together.
+     * @return A map of clusterId to the status, normalized to LK TaskStatus. Jobs whose status could not be determined are omitted.
+     */
+    protected Map<String, Pair<String, String>> getStatusForJobs(Collection<ClusterJob> jobs, Container c)
+    {
+        Map<String, Pair<String, String>> ret = new HashMap<>();
         for (ClusterJob j : jobs)
         {
-            if (jobsUpdated.contains(j.getClusterId()))
+            Pair<String, String> status = getStatusForJob(j, c);
+            if (status != null)
             {
-                continue;
+                ret.put(j.getClusterId(), status);
             }
-            else if (j.getClusterId() == null)
+        }
+
+        return ret;
+    }
+
+    /**
+     * Holds state shared by the status updates made within one polling cycle. The latest submission for each job is loaded in bulk
+     * rather than per job, and the writes that only record the time of the status check are deferred and committed together.
+     */
+    protected class StatusUpdateBatch
+    {
+        private final Map<String, ClusterJob> _mostRecentByJobId = new HashMap<>();
+        private final List<ClusterJob> _pendingUpdates = new ArrayList<>();
+
+        public void prefetch(Collection<ClusterJob> jobs)
+        {
+            Set<String> jobIds = new LinkedHashSet<>();
+            for (ClusterJob j : jobs)
             {
-                _log.error("clusterId was null for job: " + j.getRowId() + " / " + j.getStatus(), new Exception());
-                continue;
+                if (j.getJobId() != null && !_mostRecentByJobId.containsKey(j.getJobId()))
+                {
+                    jobIds.add(j.getJobId());
+                }
             }
 
-            //check condor_history
-            Pair<String, String> jobStatus = getStatusForJob(j, ContainerManager.getForId(j.getContainer()));
-            if (jobStatus != null)
+            if (jobIds.isEmpty())
             {
-                _log.debug("updating job status: " + j.getClusterId() + " / " + jobStatus.first);
-                updateJobStatus(jobStatus.first, j, jobStatus.second);
+                return;
             }
-            else
+
+            // NOTE: this mirrors the filters of getClusterSubmissionsForJob(), including inactive and cancelled submissions.
+            // Jobs without a match are not cached, so they fall back to the per-job lookup, which also checks the status file.
+            TableInfo ti = ClusterSchema.getInstance().getSchema().getTable(ClusterSchema.CLUSTER_JOBS);
+            for (List<String> ids : partition(new ArrayList<>(jobIds)))
+            {
+                SimpleFilter filter = new SimpleFilter(FieldKey.fromString("jobId"), ids, CompareType.IN);
+                filter.addCondition(FieldKey.fromString("location"), getConfig().getLocation());
+                filter.addCondition(FieldKey.fromString("clusterId"), null, CompareType.NONBLANK);
+                filter.addCondition(FieldKey.fromString("status"), PREPARING, CompareType.NEQ_OR_NULL);
+                filter.addCondition(FieldKey.fromString("status"), NOT_SUBMITTED, CompareType.NEQ_OR_NULL);
+
+                for (ClusterJob j : new TableSelector(ti, filter, new Sort("-created")).getArrayList(ClusterJob.class))
+                {
+                    _mostRecentByJobId.putIfAbsent(j.getJobId(), j);
+                }
+            }
+        }
+
+        private ClusterJob getMostRecentSubmission(String jobId)
+        {
+            ClusterJob ret = _mostRecentByJobId.get(jobId);
+
+            return ret != null ? ret : getMostRecentClusterSubmission(jobId, true);
+        }
+
+        private void addPendingUpdate(ClusterJob j)
+        {
+            _pendingUpdates.add(j);
+        }
+
+        public void flush()
+        {
+            if (_pendingUpdates.isEmpty())
             {
-                _log.error("unable to find record of job submission: " + j.getClusterId());
+                return;
+            }
+
+            TableInfo ti = ClusterSchema.getInstance().getSchema().getTable(ClusterSchema.CLUSTER_JOBS);
+            try (DbScope.Transaction transaction = ti.getSchema().getScope().ensureTransaction())
+            {
+                for (ClusterJob j : _pendingUpdates)
+                {
+                    Table.update(null, ti, j, j.getRowId());
+                }
+
+                transaction.commit();
             }
+
+            _pendingUpdates.clear();
         }
     }
 
@@ -505,6 +671,14 @@ protected Collection<ClusterJob> getJobsToCheck(boolean includeConflicting, Coll
      * this expects the status normalized from cluster codes to LK TaskStatus
      */
     protected synchronized void updateJobStatus(@Nullable String status, ClusterJob j, @Nullable String info) throws PipelineJobException
+    {
+        updateJobStatus(status, j, info, null);
+    }
+
+    /**
+     * @param batch If provided, the latest submission is read from this batch, and a write that does not change the job's status is deferred until the batch is flushed
+     */
+    protected synchronized void updateJobStatus(@Nullable String status, ClusterJob j, @Nullable String info, @Nullable StatusUpdateBatch batch) throws PipelineJobException
     {
         //update DB
         boolean statusChanged = (status != null && !status.equals(j.getStatus()));
@@ -512,7 +686,7 @@ protected synchronized void updateJobStatus(@Nullable String status, ClusterJob
         j.setStatus(status);
 
 
-        ClusterJob mostRecent = getMostRecentClusterSubmission(j.getJobId(), true);
+        ClusterJob mostRecent = batch == null ? getMostRecentClusterSubmission(j.getJobId(), true) : batch.getMostRecentSubmission(j.getJobId());
         boolean hasNewerSubmission = mostRecent != null && j.getClusterId() != null && !j.getClusterId().equals(mostRecent.getClusterId());
 
         PipelineStatusFile sf = PipelineService.get().getStatusFile(j.getStatusFileId());
@@ -547,7 +721,14 @@ protected synchronized void updateJobStatus(@Nullable String status, ClusterJob
         //no need to redundantly update PipelineJob
         if (!statusChanged)
         {
-            Table.update(null, ClusterSchema.getInstance().getSchema().getTable(ClusterSchema.CLUSTER_JOBS), j, j.getRowId());
+            if (batch != null)
+            {
+                batch.addPendingUpdate(j);
+            }
+            else
+            {
+                Table.update(null, ClusterSchema.getInstance().getSchema().getTable(ClusterSchema.CLUSTER_JOBS), j, j.getRowId());
+            }
             return;
         }
 
@@ -768,12 +949,15 @@ private ClusterJob getMostRecentClusterSubmission(String jobId, boolean includeI
         return jobs.get(0);
     }
 
-    protected List<String> execute(String command)
+    protected List<String> execute(ClusterCommandExecutor.CommandType type, String command)
     {
-        return execute(command, null);
+        return execute(type, command, null);
     }
 
-    protected List<String> execute(String command, @Nullable File workDir)
+    /**
+     * @return The lines of stderr followed by stdout, or null if the command could not be run or did not complete within the timeout
+     */
+    protected List<String> execute(ClusterCommandExecutor.CommandType type, String command, @Nullable File workDir)
     {
         if (command == null)
         {
@@ -782,61 +966,22 @@ protected List<String> execute(String command, @Nullable File workDir)
 
         _log.debug("executing cluster command: " + command);
 
-        List<String> ret = new ArrayList<>();
-
-        try
+        ClusterCommandExecutor.CommandResult result = ClusterCommandExecutor.get().execute(type, command, workDir);
+        if (result == null)
         {
-            Process p = Runtime.getRuntime().exec(command, null, workDir);
-            try
-            {
-                String output = IOUtils.toString(p.getInputStream(), StringUtilsLabKey.DEFAULT_CHARSET);
-                String errorOutput = IOUtils.toString(p.getErrorStream(), StringUtilsLabKey.DEFAULT_CHARSET);
-
-                int exitCode = p.waitFor();
-                if (exitCode != 0)
-                {
-                    _log.error("Non-zero exit from command: " + command);
-                }
-
-                if (errorOutput != null)
-                {
-                    errorOutput = errorOutput.replaceAll("\n\r", "\n");
-                    ret.addAll(Arrays.asList(errorOutput.split("\n")));
-                }
-
-                if (output != null)
-                {
-                    output = output.replaceAll("\n\r", "\n");
-                    ret.addAll(Arrays.asList(output.split("\n")));
-                }
-
-                _log.debug("results: ");
-                _log.debug(StringUtils.join(ret, "\n"));
-
-                return ret;
-            }
-            catch (InterruptedException e)
-            {
-                _log.error("Error executing cluster command: " + command);
-                _log.info(StringUtils.join(ret, "\n"));
-                _log.error(e.getMessage(), e);
-            }
-            finally
-            {
-                if (p != null)
-                {
-                    p.destroy();
-                }
-            }
+            return null;
         }
-        catch (IOException e)
+
+        if (result.getExitCode() != 0)
         {
-            _log.error("Error executing cluster command: " + command);
-            _log.info(StringUtils.join(ret, "\n"));
-            _log.error(e.getMessage(), e);
+            _log.error("Non-zero exit from command: " + command);
         }
 
-        return null;
+        List<String> ret = result.getLines();
+        _log.debug("results: ");
+        _log.debug(StringUtils.join(ret, "\n"));
+
+        return ret;
     }
 
     protected void checkForCompletedJob(ClusterJob job)
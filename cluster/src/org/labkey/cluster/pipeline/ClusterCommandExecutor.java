@@ -0,0 +1,344 @@
+package org.labkey.cluster.pipeline;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONObject;
+import org.labkey.api.util.ShutdownListener;
+import org.labkey.api.util.StringUtilsLabKey;
+import org.labkey.cluster.ClusterManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs commands against the cluster scheduler (submit, status, history and remove). Stdout and stderr are drained concurrently,
+ * so a process that fills one pipe cannot block on the other. Each command is killed if it exceeds the ClusterCommandTimeout
+ * module property, and at most ClusterCommandMaxConcurrent commands run at once; time spent waiting for a slot counts against the timeout.
+ * Latency and exit codes are recorded per command type.
+ */
+public class ClusterCommandExecutor
+{
+    private static final Logger _log = LogManager.getLogger(ClusterCommandExecutor.class);
+    private static final ClusterCommandExecutor _instance = new ClusterCommandExecutor();
+
+    // After the process exits, its streams should close almost immediately. A child process that inherited the pipes could hold them open.
+    private static final long STREAM_DRAIN_MILLIS = 10000;
+
+    private final ExecutorService _streamReaders = Executors.newCachedThreadPool(new StreamReaderThreadFactory());
+    private final Map<CommandType, CommandMetrics> _metrics = new ConcurrentHashMap<>();
+    private final Object _lock = new Object();
+    private int _running = 0;
+
+    public enum CommandType
+    {
+        Submit,
+        Status,
+        History,
+        Remove
+    }
+
+    private ClusterCommandExecutor()
+    {
+
+    }
+
+    public static ClusterCommandExecutor get()
+    {
+        return _instance;
+    }
+
+    /**
+     * @return The result of the command, or null if the command could not be started, timed out or was interrupted
+     */
+    public @Nullable CommandResult execute(@NotNull CommandType type, @NotNull String command, @Nullable File workDir)
+    {
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(ClusterManager.get().getCommandTimeoutSeconds());
+        long start = System.currentTimeMillis();
+        CommandMetrics metrics = _metrics.computeIfAbsent(type, x -> new CommandMetrics());
+
+        try
+        {
+            if (!acquire(timeoutMillis))
+            {
+                _log.error("Timed out waiting to run cluster command after " + (System.currentTimeMillis() - start) + "ms, " + _running + " commands already running: " + command);
+                metrics.recordTimeout(System.currentTimeMillis() - start);
+                return null;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            _log.error("Interrupted while waiting to run cluster command: " + command);
+            return null;
+        }
+
+        Process p = null;
+        try
+        {
+            // NOTE: this tokenizes the command the same way as Runtime.exec(String)
+            List<String> args = new ArrayList<>();
+            StringTokenizer st = new StringTokenizer(command);
+            while (st.hasMoreTokens())
+            {
+                args.add(st.nextToken());
+            }
+
+            if (args.isEmpty())
+            {
+                throw new IllegalArgumentException("attempting to execute an empty command");
+            }
+
+            p = new ProcessBuilder(args).directory(workDir).start();
+            p.getOutputStream().close();
+
+            Future<String> output = drain(p.getInputStream());
+            Future<String> errorOutput = drain(p.getErrorStream());
+
+            long remaining = Math.max(0, timeoutMillis - (System.currentTimeMillis() - start));
+            if (!p.waitFor(remaining, TimeUnit.MILLISECONDS))
+            {
+                _log.error("Cluster command did not complete within " + ClusterManager.get().getCommandTimeoutSeconds() + " seconds and will be killed: " + command);
+                p.destroyForcibly();
+                output.cancel(true);
+                errorOutput.cancel(true);
+                metrics.recordTimeout(System.currentTimeMillis() - start);
+
+                return null;
+            }
+
+            CommandResult ret = new CommandResult(p.exitValue(), output.get(STREAM_DRAIN_MILLIS, TimeUnit.MILLISECONDS), errorOutput.get(STREAM_DRAIN_MILLIS, TimeUnit.MILLISECONDS));
+            metrics.recordCompleted(System.currentTimeMillis() - start, ret.getExitCode());
+
+            return ret;
+        }
+        catch (IOException | ExecutionException | TimeoutException e)
+        {
+            _log.error("Error executing cluster command: " + command);
+            _log.error(e.getMessage(), e);
+            metrics.recordError(System.currentTimeMillis() - start);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            _log.error("Interrupted while executing cluster command: " + command);
+            metrics.recordError(System.currentTimeMillis() - start);
+        }
+        finally
+        {
+            if (p != null)
+            {
+                p.destroy();
+            }
+
+            release();
+        }
+
+        return null;
+    }
+
+    private Future<String> drain(InputStream is)
+    {
+        return _streamReaders.submit(() -> {
+            try (InputStream in = is)
+            {
+                return IOUtils.toString(in, StringUtilsLabKey.DEFAULT_CHARSET);
+            }
+        });
+    }
+
+    private boolean acquire(long timeoutMillis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (_lock)
+        {
+            // NOTE: the limit is re-read on each pass, so a change to the module property applies without a restart
+            while (_running >= ClusterManager.get().getCommandMaxConcurrent())
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    return false;
+                }
+
+                _lock.wait(remaining);
+            }
+
+            _running++;
+
+            return true;
+        }
+    }
+
+    private void release()
+    {
+        synchronized (_lock)
+        {
+            _running--;
+            _lock.notifyAll();
+        }
+    }
+
+    public JSONObject getMetrics()
+    {
+        JSONObject ret = new JSONObject();
+        ret.put("timeoutSeconds", ClusterManager.get().getCommandTimeoutSeconds());
+        ret.put("maxConcurrent", ClusterManager.get().getCommandMaxConcurrent());
+        synchronized (_lock)
+        {
+            ret.put("running", _running);
+        }
+
+        JSONObject commands = new JSONObject();
+        _metrics.forEach((type, metrics) -> commands.put(type.name(), metrics.toJSON()));
+        ret.put("commands", commands);
+
+        return ret;
+    }
+
+    public static class ShutdownHandler implements ShutdownListener
+    {
+        @Override
+        public String getName()
+        {
+            return "Cluster Command Executor Shutdown Listener";
+        }
+
+        @Override
+        public void shutdownPre()
+        {
+
+        }
+
+        @Override
+        public void shutdownStarted()
+        {
+            _log.info("Shutting down cluster command stream readers");
+            get()._streamReaders.shutdownNow();
+        }
+    }
+
+    public static class CommandResult
+    {
+        private final int _exitCode;
+        private final String _output;
+        private final String _errorOutput;
+
+        public CommandResult(int exitCode, @Nullable String output, @Nullable String errorOutput)
+        {
+            _exitCode = exitCode;
+            _output = output;
+            _errorOutput = errorOutput;
+        }
+
+        public int getExitCode()
+        {
+            return _exitCode;
+        }
+
+        /**
+         * @return The lines of stderr followed by the lines of stdout
+         */
+        public List<String> getLines()
+        {
+            List<String> ret = new ArrayList<>();
+            if (_errorOutput != null)
+            {
+                ret.addAll(Arrays.asList(_errorOutput.replaceAll("\n\r", "\n").split("\n")));
+            }
+
+            if (_output != null)
+            {
+                ret.addAll(Arrays.asList(_output.replaceAll("\n\r", "\n").split("\n")));
+            }
+
+            return ret;
+        }
+    }
+
+    private static class CommandMetrics
+    {
+        private long _count = 0;
+        private long _timeouts = 0;
+        private long _errors = 0;
+        private long _totalMillis = 0;
+        private long _maxMillis = 0;
+        private long _lastMillis = 0;
+        private final Map<Integer, Long> _exitCodes = new TreeMap<>();
+
+        public synchronized void recordCompleted(long millis, int exitCode)
+        {
+            record(millis);
+            _exitCodes.merge(exitCode, 1L, Long::sum);
+        }
+
+        public synchronized void recordTimeout(long millis)
+        {
+            record(millis);
+            _timeouts++;
+        }
+
+        public synchronized void recordError(long millis)
+        {
+            record(millis);
+            _errors++;
+        }
+
+        private void record(long millis)
+        {
+            _count++;
+            _totalMillis += millis;
+            _maxMillis = Math.max(_maxMillis, millis);
+            _lastMillis = millis;
+        }
+
+        public synchronized JSONObject toJSON()
+        {
+            JSONObject ret = new JSONObject();
+            ret.put("count", _count);
+            ret.put("timeouts", _timeouts);
+            ret.put("errors", _errors);
+            ret.put("meanMillis", _count == 0 ? 0 : _totalMillis / _count);
+            ret.put("maxMillis", _maxMillis);
+            ret.put("lastMillis", _lastMillis);
+
+            JSONObject exitCodes = new JSONObject();
+            _exitCodes.forEach((code, count) -> exitCodes.put(String.valueOf(code), count));
+            ret.put("exitCodes", exitCodes);
+
+            return ret;
+        }
+    }
+
+    private static class StreamReaderThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger _threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "ClusterCommandStreamReader-" + _threadNumber.getAndIncrement());
+            t.setDaemon(true);
+
+            return t;
+        }
+    }
+}
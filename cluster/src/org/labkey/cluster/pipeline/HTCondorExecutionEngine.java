@@ -21,6 +21,7 @@
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -39,16 +40,17 @@ public HTCondorExecutionEngine(HTCondorExecutionEngineConfig config)
     }
 
     @Override
-    protected Set<String> updateStatusForAllJobs() throws PipelineJobException
+    protected Set<String> updateStatusForAllJobs(StatusUpdateBatch batch) throws PipelineJobException
     {
         //first check using condor_q, since condor_history might not pick up newly submitted jobs
         String command = getConfig().getStatusCommandExpr().eval(getBaseCtx(ContainerManager.getRoot()));
-        List<String> ret = execute(command);
+        List<String> ret = execute(ClusterCommandExecutor.CommandType.Status, command);
         Set<String> jobsUpdated = new HashSet<>();
         if (ret != null)
         {
             //verify success
             boolean withinJobs = false;
+            Map<String, String> queueStatus = new LinkedHashMap<>();
             for (String line : ret)
             {
                 line = StringUtils.trimToNull(line);
@@ -75,18 +77,7 @@ protected Set<String> updateStatusForAllJobs() throws PipelineJobException
                         String id = StringUtils.trimToNull(tokens[0]);
                         if (id != null)
                         {
-                            ClusterJob j = getClusterSubmission(id);
-                            if (j == null)
-                            {
-                                //it is allowable for the same user to submit jobs outside of LK
-                                //_log.error("unable to find HTCondor submission matching: " + id);
-                            }
-                            else
-                            {
-                                String status = translateCondorStatusToTaskStatus(StringUtils.trimToNull(tokens[5]));
-                                updateJobStatus(status, j, null);
-                                jobsUpdated.add(j.getClusterId());
-                            }
+                            queueStatus.put(id, StringUtils.trimToNull(tokens[5]));
                         }
                     }
                 }
@@ -102,6 +93,20 @@ else if (line.startsWith("ID "))
                 _log.error("error checking htcondor job status:");
                 _log.error(StringUtils.join(ret, "\n"));
             }
+
+            //NOTE: it is allowable for the same user to submit jobs outside of LK, so IDs without a submission record are ignored
+            Map<String, ClusterJob> submissions = getClusterSubmissions(queueStatus.keySet());
+            batch.prefetch(submissions.values());
+            for (String id : queueStatus.keySet())
+            {
+                ClusterJob j = submissions.get(id);
+                if (j != null)
+                {
+                    String status = translateCondorStatusToTaskStatus(queueStatus.get(id));
+                    updateJobStatus(status, j, null, batch);
+                    jobsUpdated.add(j.getClusterId());
+                }
+            }
         }
 
         return jobsUpdated;
@@ -124,7 +129,7 @@ protected List<String> submitJobToCluster(ClusterJob j, PipelineJob job) throws
         ctx.put("submitScript", getConfig().getClusterPath(submitScript));
         String command = getConfig().getSubmitCommandExpr().eval(ctx);
 
-        List<String> ret = execute(command);
+        List<String> ret = execute(ClusterCommandExecutor.CommandType.Submit, command);
         if (ret != null)
         {
             //verify success; create job
@@ -343,7 +348,7 @@ protected Pair<String, String> getStatusForJob(ClusterJob job, Container c)
             throw new IllegalArgumentException("History command was null: " + getConfig().getHistoryCommandExpr());
         }
 
-        List<String> ret = execute(command);
+        List<String> ret = execute(ClusterCommandExecutor.CommandType.History, command);
         if (ret != null)
         {
             //verify success
@@ -412,7 +417,7 @@ else if (line.startsWith("ID "))
     private String getStatusFromQueue(String clusterId)
     {
         String command = getConfig().getStatusCommandExpr().eval(getBaseCtx(ContainerManager.getRoot()));
-        List<String> ret = execute(command);
+        List<String> ret = execute(ClusterCommandExecutor.CommandType.Status, command);
         if (ret != null)
         {
             boolean withinJobs = false;
@@ -500,7 +505,7 @@ protected boolean removeJob(ClusterJob clusterJob)
     {
         Map<String, String> ctx = getBaseCtx(ContainerManager.getForId(clusterJob.getContainer()));
         ctx.put("clusterId", clusterJob.getClusterId());
-        List<String> ret = execute(getConfig().getRemoveCommandExpr().eval(ctx));
+        List<String> ret = execute(ClusterCommandExecutor.CommandType.Remove, getConfig().getRemoveCommandExpr().eval(ctx));
         boolean success = false;
         if (ret != null)
         {
@@ -25,8 +25,11 @@
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -77,7 +80,7 @@ protected List<String> submitJobToCluster(ClusterJob j, PipelineJob job) throws
         ctx.put("submitScript", getConfig().getClusterPath(submitScript));
         String command = getConfig().getSubmitCommandExpr().eval(ctx);
 
-        List<String> ret = execute(command, submitScript.getParentFile());
+        List<String> ret = execute(ClusterCommandExecutor.CommandType.Submit, command, submitScript.getParentFile());
         if (ret != null)
         {
             //verify success; create job
@@ -109,110 +112,49 @@ protected List<String> submitJobToCluster(ClusterJob j, PipelineJob job) throws
     }
 
     @Override
-    protected Set<String> updateStatusForAllJobs() throws PipelineJobException
+    protected Set<String> updateStatusForAllJobs(StatusUpdateBatch batch) throws PipelineJobException
     {
         //first check using squeue, since sacct might not pick up newly submitted jobs
-        String command = getConfig().getStatusCommandExpr().eval(getBaseCtx(ContainerManager.getRoot()));
-        List<String> ret = execute(command);
         Set<String> jobsUpdated = new HashSet<>();
-        if (ret != null)
+        Map<String, QueueRecord> queue = readQueue();
+        if (queue == null)
         {
-            //verify success
-            boolean headerFound = false;
-            List<String> header = null;
-            int jobIdx = -1;
-            int stateIdx = -1;
-            int hostnameIdx = -1;
-            int reasonIdx = -1;
-            for (String line : ret)
-            {
-                line = StringUtils.trimToNull(line);
-                if (line == null)
-                {
-                    continue;
-                }
-
-                if (line.startsWith("JOBID"))
-                {
-                    headerFound = true;
-                    header = Arrays.asList(line.toUpperCase().split("( )+"));
-                    jobIdx = header.indexOf("JOBID");
-                    stateIdx = header.indexOf("STATE");
-                    hostnameIdx = header.indexOf("NODELIST");
-                    reasonIdx = header.indexOf("REASON");
-
-                    if (stateIdx == -1)
-                    {
-                        _log.error("Unable to find STATE in header: " + StringUtils.join(header, ", "));
-                        break;
-                    }
+            return jobsUpdated;
+        }
 
-                    if (jobIdx == -1)
-                    {
-                        _log.error("Unable to find JOBID in header: " + StringUtils.join(header, ", "));
-                        break;
-                    }
+        //NOTE: it is allowable for the same user to submit jobs outside of LK, so IDs without a submission record are ignored
+        Map<String, ClusterJob> submissions = getClusterSubmissions(queue.keySet());
+        batch.prefetch(submissions.values());
+        for (String id : queue.keySet())
+        {
+            ClusterJob j = submissions.get(id);
+            if (j == null)
+            {
+                continue;
+            }
 
-                    continue;
-                }
+            QueueRecord record = queue.get(id);
+            if (record.hostname != null)
+            {
+                j.setHostname(record.hostname);
+            }
 
-                if (headerFound)
+            Pair<String, String> status = translateSlurmStatusToTaskStatus(record.state);
+            if (record.reason != null)
+            {
+                if (!"Priority".equals(record.reason) && !"None".equals(record.reason))
                 {
-                    try
+                    if (status == null)
                     {
-                        String[] tokens = line.split("( )+");
-                        String id = StringUtils.trimToNull(tokens[jobIdx]);
-                        if (id != null)
-                        {
-                            ClusterJob j = getClusterSubmission(id);
-                            if (j == null)
-                            {
-                                //it is allowable for the same user to submit jobs outside of LK
-                                //_log.error("unable to find slurm submission matching: " + id);
-                            }
-                            else
-                            {
-                                String hostname = hostnameIdx != -1 && tokens.length > hostnameIdx ? StringUtils.trimToNull(tokens[hostnameIdx]) : null;
-                                if (hostname != null)
-                                {
-                                    j.setHostname(hostname);
-                                }
-
-                                Pair<String, String> status = translateSlurmStatusToTaskStatus(StringUtils.trimToNull(tokens[stateIdx]));
-
-                                String reason = reasonIdx != -1 && tokens.length > reasonIdx ? StringUtils.trimToNull(tokens[reasonIdx]) : null;
-                                if (reason != null)
-                                {
-                                    if (!"Priority".equals(reason) && !"None".equals(reason))
-                                    {
-                                        if (status == null)
-                                        {
-                                            status = new Pair<>("ERROR", null);
-                                        }
-
-                                        status.second = "Reason: " + reason;
-                                    }
-                                }
-
-                                updateJobStatus(status == null ? null : status.first, j, status == null ? null : status.second);
-                                jobsUpdated.add(j.getClusterId());
-                            }
-                        }
-                    }
-                    catch (Exception e)
-                    {
-                        _log.error("Error parsing line: " + line, e);
-                        throw e;
+                        status = new Pair<>("ERROR", null);
                     }
+
+                    status.second = "Reason: " + record.reason;
                 }
             }
 
-            //indicates we never hit the header
-            if (!headerFound)
-            {
-                _log.error("error checking slurm job status:");
-                _log.error(StringUtils.join(ret, "\n"));
-            }
+            updateJobStatus(status == null ? null : status.first, j, status == null ? null : status.second, batch);
+            jobsUpdated.add(j.getClusterId());
         }
 
         return jobsUpdated;
@@ -221,140 +163,222 @@ protected Set<String> updateStatusForAllJobs() throws PipelineJobException
     @Override
     protected Pair<String, String> getStatusForJob(ClusterJob job, Container c)
     {
-        Map<String, String> ctx = getBaseCtx(c);
-        ctx.put("clusterId", job.getClusterId());
         if (job.getClusterId() == null)
         {
             _log.error("clusterId was null for job: " + job.getRowId() + " / " + job.getStatus());
+            return null;
         }
 
-        String command = getConfig().getHistoryCommandExpr().eval(ctx);
-        String info = null;
-        List<String> ret = execute(command);
-        if (ret != null)
+        return getStatusForJobs(Collections.singletonList(job), c).get(job.getClusterId());
+    }
+
+    /**
+     * Queries sacct for each job, or for batches of jobs at once using a comma-separated list of IDs for ${clusterId} if
+     * batchHistoryCommand is enabled. Jobs not reported by sacct are then checked against a single squeue call.
+     */
+    @Override
+    protected Map<String, Pair<String, String>> getStatusForJobs(Collection<ClusterJob> jobs, Container c)
+    {
+        Map<String, ClusterJob> jobsByClusterId = new LinkedHashMap<>();
+        for (ClusterJob job : jobs)
         {
-            //verify success
-            boolean headerFound = false;
-            boolean foundJobLine = false;
-            LinkedHashSet<String> statuses = new LinkedHashSet<>();
-            List<String> header;
-            int jobIdx = -1;
-            int stateIdx = -1;
-            int hostnameIdx = -1;
-            int maxRssIdx = -1;
-            for (String line : ret)
+            if (job.getClusterId() == null)
             {
-                line = StringUtils.trimToNull(line);
-                if (line == null)
-                {
-                    continue;
-                }
+                _log.error("clusterId was null for job: " + job.getRowId() + " / " + job.getStatus());
+                continue;
+            }
+
+            jobsByClusterId.put(job.getClusterId(), job);
+        }
+
+        Map<String, Pair<String, String>> ret = new HashMap<>();
+        List<List<String>> batches;
+        if (getConfig().isBatchHistoryCommand())
+        {
+            batches = partition(new ArrayList<>(jobsByClusterId.keySet()));
+        }
+        else
+        {
+            batches = jobsByClusterId.keySet().stream().map(Collections::singletonList).collect(Collectors.toList());
+        }
+
+        for (List<String> clusterIds : batches)
+        {
+            Map<String, String> ctx = getBaseCtx(c);
+            ctx.put("clusterId", StringUtils.join(clusterIds, ","));
+
+            String command = getConfig().getHistoryCommandExpr().eval(ctx);
+            List<String> lines = execute(ClusterCommandExecutor.CommandType.History, command);
+            if (lines != null)
+            {
+                ret.putAll(parseHistory(lines, jobsByClusterId));
+            }
+        }
 
-                if (line.startsWith("JobID"))
+        //if not found in sacct, it could mean it is sitting in the queue
+        List<ClusterJob> missing = jobsByClusterId.values().stream().filter(j -> !ret.containsKey(j.getClusterId())).collect(Collectors.toList());
+        if (!missing.isEmpty())
+        {
+            Map<String, QueueRecord> queue = readQueue();
+            for (ClusterJob job : missing)
+            {
+                QueueRecord record = queue == null ? null : queue.get(job.getClusterId());
+                if (record != null)
                 {
-                    foundJobLine = true;
-                    header = Arrays.asList(line.toUpperCase().split("( )+"));
-                    jobIdx = header.indexOf("JOBID");
-                    stateIdx = header.indexOf("STATE");
-                    hostnameIdx = header.indexOf("NODELIST");
-                    maxRssIdx = header.indexOf("MAXRSS");
-
-                    if (stateIdx == -1)
+                    if (record.hostname != null)
                     {
-                        _log.error("Unable to find STATE in header: " + StringUtils.join(header, ", "));
-                        break;
+                        job.setHostname(record.hostname);
                     }
 
-                    if (jobIdx == -1)
+                    Pair<String, String> status = translateSlurmStatusToTaskStatus(record.state);
+                    if (status != null)
                     {
-                        _log.error("Unable to find JOBID in header: " + StringUtils.join(header, ", "));
-                        break;
+                        ret.put(job.getClusterId(), status);
+                        continue;
                     }
                 }
-                else if (foundJobLine && line.startsWith("------------"))
+
+                checkForCompletedJob(job);
+
+                //indicates we never found status
+                _log.error("Error checking slurm job status for job: " + job.getClusterId());
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return A map of clusterId to the status, for the jobs in jobsByClusterId that were reported in this sacct output
+     */
+    private Map<String, Pair<String, String>> parseHistory(List<String> lines, Map<String, ClusterJob> jobsByClusterId)
+    {
+        boolean headerFound = false;
+        boolean foundJobLine = false;
+        Map<String, LinkedHashSet<String>> statuses = new LinkedHashMap<>();
+        Map<String, String> info = new HashMap<>();
+        List<String> header;
+        int jobIdx = -1;
+        int stateIdx = -1;
+        int hostnameIdx = -1;
+        int maxRssIdx = -1;
+        for (String line : lines)
+        {
+            line = StringUtils.trimToNull(line);
+            if (line == null)
+            {
+                continue;
+            }
+
+            if (line.startsWith("JobID"))
+            {
+                foundJobLine = true;
+                header = Arrays.asList(line.toUpperCase().split("( )+"));
+                jobIdx = header.indexOf("JOBID");
+                stateIdx = header.indexOf("STATE");
+                hostnameIdx = header.indexOf("NODELIST");
+                maxRssIdx = header.indexOf("MAXRSS");
+
+                if (stateIdx == -1)
                 {
-                    headerFound = true;
+                    _log.error("Unable to find STATE in header: " + StringUtils.join(header, ", "));
+                    break;
                 }
-                else if (headerFound)
+
+                if (jobIdx == -1)
                 {
-                    try
+                    _log.error("Unable to find JOBID in header: " + StringUtils.join(header, ", "));
+                    break;
+                }
+            }
+            else if (foundJobLine && line.startsWith("------------"))
+            {
+                headerFound = true;
+            }
+            else if (headerFound)
+            {
+                try
+                {
+                    String[] tokens = line.split("( )+");
+                    String id = StringUtils.trimToNull(tokens[jobIdx]);
+                    if (id == null)
                     {
-                        String[] tokens = line.split("( )+");
-                        String id = StringUtils.trimToNull(tokens[jobIdx]);
-                        if (id.equals(job.getClusterId()))
-                        {
-                            statuses.add(StringUtils.trimToNull(tokens[stateIdx]));
-                        }
+                        continue;
+                    }
+
+                    // job steps are reported as separate lines, such as 1234.batch or 1234.extern
+                    String clusterId = id.contains(".") ? id.substring(0, id.indexOf(".")) : id;
+                    ClusterJob job = jobsByClusterId.get(clusterId);
+                    if (job == null)
+                    {
+                        continue;
+                    }
 
-                        if (hostnameIdx > -1)
+                    if (id.equals(clusterId))
+                    {
+                        statuses.computeIfAbsent(clusterId, x -> new LinkedHashSet<>()).add(StringUtils.trimToNull(tokens[stateIdx]));
+                    }
+
+                    if (hostnameIdx > -1)
+                    {
+                        String hostname = tokens.length > hostnameIdx ? StringUtils.trimToNull(tokens[hostnameIdx]) : null;
+                        if (hostname != null)
                         {
-                            String hostname = tokens.length > hostnameIdx ? StringUtils.trimToNull(tokens[hostnameIdx]) : null;
-                            if (hostname != null)
+                            if (job.getHostname() == null || !job.getHostname().equals(hostname))
                             {
-                                if (job.getHostname() == null || !job.getHostname().equals(hostname))
-                                {
-                                    job.setHostname(hostname);
-                                }
+                                job.setHostname(hostname);
                             }
                         }
+                    }
 
-                        // NOTE: if the line has blank ending columns, trimmed lines might lack that value
-                        if (maxRssIdx > -1 && maxRssIdx < tokens.length)
+                    // NOTE: if the line has blank ending columns, trimmed lines might lack that value
+                    if (maxRssIdx > -1 && maxRssIdx < tokens.length)
+                    {
+                        try
                         {
-                            try
+                            if (NumberUtils.isCreatable(tokens[maxRssIdx]))
                             {
-                                if (NumberUtils.isCreatable(tokens[maxRssIdx]))
+                                long bytes = FileSizeFormatter.convertStringRepresentationToBytes(tokens[maxRssIdx]);
+                                long requestInBytes = FileSizeFormatter.convertStringRepresentationToBytes(getConfig().getRequestMemory() + "G"); //request is always GB
+                                if (bytes > requestInBytes)
                                 {
-                                    long bytes = FileSizeFormatter.convertStringRepresentationToBytes(tokens[maxRssIdx]);
-                                    long requestInBytes = FileSizeFormatter.convertStringRepresentationToBytes(getConfig().getRequestMemory() + "G"); //request is always GB
-                                    if (bytes > requestInBytes)
-                                    {
-                                        info = "Job exceeded memory, max was: " + FileSizeFormatter.convertBytesToUnit(bytes, 'G') + "G";
-                                    }
+                                    info.put(clusterId, "Job exceeded memory, max was: " + FileSizeFormatter.convertBytesToUnit(bytes, 'G') + "G");
                                 }
                             }
-                            catch (IllegalArgumentException e)
-                            {
-                                _log.error("Unable to parse MaxRSS for job: " + job.getClusterId() + ", with line: [" + line + "]", e);
-                            }
                         }
-                    }
-                    catch (Exception e)
-                    {
-                        _log.error("Error parsing line: " + line, e);
-                        throw e;
+                        catch (IllegalArgumentException e)
+                        {
+                            _log.error("Unable to parse MaxRSS for job: " + clusterId + ", with line: [" + line + "]", e);
+                        }
                     }
                 }
-            }
-
-            //NOTE: in the situation where a job is evicted and is then cancelled while waiting, we need to inspect more lines to verify whether this job is actually cancelled
-            if (!statuses.isEmpty())
-            {
-                String status = statuses.stream().skip(statuses.size()-1).findFirst().get();
-                if (statuses.size() > 1)
+                catch (Exception e)
                 {
-                    _log.error("more than one status returned for job " + job.getClusterId() + ": " + StringUtils.join(statuses, ";") + ", using: " + status);
+                    _log.error("Error parsing line: " + line, e);
+                    throw e;
                 }
-
-                return translateSlurmStatusToTaskStatus(status, info);
             }
         }
 
-        //if not found in condor_history, it could mean it is sitting in the queue
-        Pair<String, String> status = getStatusFromQueue(job);
-        if (status != null)
+        //NOTE: in the situation where a job is evicted and is then cancelled while waiting, we need to inspect more lines to verify whether this job is actually cancelled
+        Map<String, Pair<String, String>> ret = new HashMap<>();
+        for (String clusterId : statuses.keySet())
         {
-            return status;
-        }
-
-        checkForCompletedJob(job);
-
+            LinkedHashSet<String> jobStatuses = statuses.get(clusterId);
+            String status = jobStatuses.stream().skip(jobStatuses.size()-1).findFirst().get();
+            if (jobStatuses.size() > 1)
+            {
+                _log.error("more than one status returned for job " + clusterId + ": " + StringUtils.join(jobStatuses, ";") + ", using: " + status);
+            }
 
-        //indicates we never found status
-        _log.error("Error checking slurm job status for job: " + job.getClusterId());
-        _log.error(StringUtils.join(ret, "\n"));
+            Pair<String, String> translated = translateSlurmStatusToTaskStatus(status, info.get(clusterId));
+            if (translated != null)
+            {
+                ret.put(clusterId, translated);
+            }
+        }
 
-        return null;
+        return ret;
     }
 
     @Override
@@ -362,7 +386,7 @@ protected boolean removeJob(ClusterJob clusterJob)
     {
         Map<String, String> ctx = getBaseCtx(ContainerManager.getForId(clusterJob.getContainer()));
         ctx.put("clusterId", clusterJob.getClusterId());
-        List<String> ret = execute(getConfig().getRemoveCommandExpr().eval(ctx));
+        List<String> ret = execute(ClusterCommandExecutor.CommandType.Remove, getConfig().getRemoveCommandExpr().eval(ctx));
         boolean success = true;
         if (ret != null)
         {
@@ -672,89 +696,102 @@ else if (t._aliases.contains(value))
         }
     }
 
+    private static class QueueRecord
+    {
+        private final String state;
+        private final String hostname;
+        private final String reason;
+
+        public QueueRecord(String state, String hostname, String reason)
+        {
+            this.state = state;
+            this.hostname = hostname;
+            this.reason = reason;
+        }
+    }
+
     /**
-     * @return The string status, always translated to the LabKey TaskStatus instead of raw condor code
+     * Runs squeue once and parses every job it reports.
+     * @return A map of clusterId to the queue record, or null if the command failed or its output could not be parsed
      */
-    private Pair<String, String> getStatusFromQueue(ClusterJob job)
+    private @Nullable Map<String, QueueRecord> readQueue()
     {
         String command = getConfig().getStatusCommandExpr().eval(getBaseCtx(ContainerManager.getRoot()));
-        List<String> ret = execute(command);
-        if (ret != null)
+        List<String> ret = execute(ClusterCommandExecutor.CommandType.Status, command);
+        if (ret == null)
         {
-            boolean headerFound = false;
-            List<String> header = null;
-            int jobIdx = -1;
-            int stateIdx = -1;
-            int hostnameIdx = -1;
+            return null;
+        }
 
-            for (String line : ret)
+        Map<String, QueueRecord> queue = new LinkedHashMap<>();
+        boolean headerFound = false;
+        List<String> header = null;
+        int jobIdx = -1;
+        int stateIdx = -1;
+        int hostnameIdx = -1;
+        int reasonIdx = -1;
+        for (String line : ret)
+        {
+            line = StringUtils.trimToNull(line);
+            if (line == null)
             {
-                line = StringUtils.trimToNull(line);
-                if (line == null)
+                continue;
+            }
+
+            if (line.startsWith("JOBID"))
+            {
+                headerFound = true;
+                header = Arrays.asList(line.toUpperCase().split("( )+"));
+                jobIdx = header.indexOf("JOBID");
+                stateIdx = header.indexOf("STATE");
+                hostnameIdx = header.indexOf("NODELIST");
+                reasonIdx = header.indexOf("REASON");
+
+                if (stateIdx == -1)
                 {
-                    continue;
+                    _log.error("Unable to find STATE in header: " + StringUtils.join(header, ", "));
+                    return null;
                 }
 
-                if (line.startsWith("JOBID"))
+                if (jobIdx == -1)
                 {
-                    headerFound = true;
-                    header = Arrays.asList(line.toUpperCase().split("( )+"));
-                    jobIdx = header.indexOf("JOBID");
-                    stateIdx = header.indexOf("STATE");
-                    hostnameIdx = header.indexOf("NODELIST");
+                    _log.error("Unable to find JOBID in header: " + StringUtils.join(header, ", "));
+                    return null;
+                }
 
-                    if (stateIdx == -1)
-                    {
-                        _log.error("Unable to find STATE in header: " + StringUtils.join(header, ", "));
-                        break;
-                    }
+                continue;
+            }
 
-                    if (jobIdx == -1)
+            if (headerFound)
+            {
+                try
+                {
+                    String[] tokens = line.split("( )+");
+                    String id = StringUtils.trimToNull(tokens[jobIdx]);
+                    if (id != null)
                     {
-                        _log.error("Unable to find JOBID in header: " + StringUtils.join(header, ", "));
-                        break;
+                        String hostname = hostnameIdx != -1 && tokens.length > hostnameIdx ? StringUtils.trimToNull(tokens[hostnameIdx]) : null;
+                        String reason = reasonIdx != -1 && tokens.length > reasonIdx ? StringUtils.trimToNull(tokens[reasonIdx]) : null;
+                        queue.put(id, new QueueRecord(StringUtils.trimToNull(tokens[stateIdx]), hostname, reason));
                     }
-
-                    continue;
                 }
-
-                if (headerFound)
+                catch (Exception e)
                 {
-                    try
-                    {
-                        String[] tokens = line.split("( )+");
-                        String id = StringUtils.trimToNull(tokens[jobIdx]);
-                        if (job.getClusterId().equals(id))
-                        {
-                            if (hostnameIdx > -1)
-                            {
-                                String hostname = tokens.length > hostnameIdx ? StringUtils.trimToNull(tokens[hostnameIdx]) : null;
-                                if (hostname != null)
-                                {
-                                    job.setHostname(hostname);
-                                }
-                            }
-
-                            return translateSlurmStatusToTaskStatus(StringUtils.trimToNull(tokens[stateIdx]));
-                        }
-                    }
-                    catch (Exception e)
-                    {
-                        _log.error("Error parsing line: " + line, e);
-                        throw e;
-                    }
+                    _log.error("Error parsing line: " + line, e);
+                    throw e;
                 }
             }
+        }
 
-            //indicates we never hit the header
-            if (!headerFound)
-            {
-                _log.error("error checking slurm job status:");
-                _log.error(StringUtils.join(ret, "\n"));
-            }
+        //indicates we never hit the header
+        if (!headerFound)
+        {
+            _log.error("error checking slurm job status:");
+            _log.error(StringUtils.join(ret, "\n"));
+            return null;
         }
 
-        return null;
+        return queue;
     }
 
     // Based on: https://stackoverflow.com/questions/3758606/how-can-i-convert-byte-size-into-a-human-readable-format-in-java
@@ -812,5 +849,28 @@ public void testFileSizeFormatter()
             long val2 = FileSizeFormatter.convertBytesToUnit(bytes, 'K');
             Assert.assertEquals("Incorrect string value", 1362624, val2);
         }
+
+        @Test
+        public void testBatchHistoryCommand()
+        {
+            SlurmExecutionEngineConfig config = new SlurmExecutionEngineConfig();
+            Assert.assertFalse("History should not be batched without a command", config.isBatchHistoryCommand());
+
+            config.setHistoryCommand("/usr/bin/sacct --allusers --jobs=${clusterId} -o JobId,State,NodeList");
+            Assert.assertTrue("sacct history should be batched by default", config.isBatchHistoryCommand());
+
+            config.setHistoryCommand("ssh -q ${clusterUser}@condorServer.edu -c 'sacct --allusers --jobs=${clusterId}'");
+            Assert.assertTrue("sacct history run through ssh should be batched by default", config.isBatchHistoryCommand());
+
+            config.setHistoryCommand("/usr/local/bin/jobHistory.sh ${clusterId}");
+            Assert.assertFalse("Custom history commands should not be batched by default", config.isBatchHistoryCommand());
+
+            config.setBatchHistoryCommand(true);
+            Assert.assertTrue("An explicit setting should be used", config.isBatchHistoryCommand());
+
+            config.setHistoryCommand("/usr/bin/sacct --jobs=${clusterId}");
+            config.setBatchHistoryCommand(false);
+            Assert.assertFalse("An explicit setting should be used", config.isBatchHistoryCommand());
+        }
     }
 }
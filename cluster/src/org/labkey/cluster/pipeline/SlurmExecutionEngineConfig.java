@@ -1,16 +1,63 @@
 package org.labkey.cluster.pipeline;
 
+import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
+
 /**
  * Created by bimber on 7/11/2017.
  */
 public class SlurmExecutionEngineConfig extends AbstractClusterEngineConfig
 {
+    //null means batch only if historyCommand runs sacct
+    protected Boolean _batchHistoryCommand = null;
+
     @NotNull
     @Override
     public String getType()
     {
         return SlurmExecutionEngine.TYPE;
     }
+
+    /**
+     * If true, historyCommand is run once per batch of jobs, with ${clusterId} as a comma-separated list of job IDs,
+     * such as sacct --jobs=${clusterId}. Otherwise it is run once per job with a single ID.  Unless set explicitly, this is
+     * enabled when historyCommand runs sacct, which accepts a list of IDs, so custom commands that expect one ID continue to work.
+     */
+    public boolean isBatchHistoryCommand()
+    {
+        if (_batchHistoryCommand != null)
+        {
+            return _batchHistoryCommand;
+        }
+
+        return isSacctCommand(_historyCommand);
+    }
+
+    public void setBatchHistoryCommand(boolean batchHistoryCommand)
+    {
+        _batchHistoryCommand = batchHistoryCommand;
+    }
+
+    /**
+     * @return True if any word of the command is sacct, such as /usr/bin/sacct, or sacct run through ssh
+     */
+    static boolean isSacctCommand(String command)
+    {
+        if (StringUtils.trimToNull(command) == null)
+        {
+            return false;
+        }
+
+        for (String token : command.split("[\\s'\"]+"))
+        {
+            if ("sacct".equals(new File(token).getName()))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
 }
@@ -17,16 +17,22 @@
 package org.labkey.jbrowse;
 
 import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.Allele;
 import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypeBuilder;
 import htsjdk.variant.variantcontext.VariantContext;
-import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
 import org.labkey.api.action.ApiResponse;
+import org.labkey.api.action.ApiResponseWriter;
 import org.labkey.api.action.ApiSimpleResponse;
+import org.labkey.api.action.ApiStreamResponse;
 import org.labkey.api.action.MutatingApiAction;
 import org.labkey.api.action.ReadOnlyApiAction;
 import org.labkey.api.action.SimpleApiJsonForm;
@@ -75,6 +81,7 @@
 import org.springframework.web.servlet.ModelAndView;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -561,47 +568,136 @@ else if (!d.getFile().exists())
         @Override
         public ApiResponse execute(GetGenotypesForm form, BindException errors)
         {
-            JSONArray ret = new JSONArray();
-            Map<String, Object> resultProperties = new HashMap<>();
-
             List<JsonFile> jsonFiles = getJsonFiles(form);
-            try (VCFFileReader reader = new VCFFileReader(jsonFiles.get(0).getExpData().getFile()))
+            VcfReaderCache.Lease lease = VcfReaderCache.get().borrow(jsonFiles.get(0).getExpData().getFile());
+            try
             {
                 Map<String, String> demographicsFields = JBrowseServiceImpl.get().getDemographicsFields(getUser(), getContainer());
-                Map<String, Map<String, Object>> demographics = JBrowseServiceImpl.get().resolveSubjects(reader.getFileHeader().getSampleNamesInOrder(), getUser(), getContainer());
+                Map<String, Map<String, Object>> demographics = VcfReaderCache.get().getDemographics(lease, getUser(), getContainer());
+
+                return new GenotypeResults(lease, form.getChr(), form.getStart(), form.getStop(), form.isColumnar(), demographicsFields, demographics);
+            }
+            catch (RuntimeException e)
+            {
+                lease.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Streams the genotypes for each site as it is read from the VCF. By default each site lists a {sample, gt} object per sample.
+     * If columnar is requested, the sample names are written once, and each site lists its distinct genotype strings along with
+     * one index into that list per sample, in the order of the samples array.
+     */
+    private static class GenotypeResults implements ApiStreamResponse, Closeable
+    {
+        private static final String NO_CALL_GENOTYPE = "./.";
+
+        private final VcfReaderCache.Lease _lease;
+        private final String _chr;
+        private final int _start;
+        private final int _stop;
+        private final boolean _columnar;
+        private final Map<String, String> _demographicsFields;
+        private final Map<String, Map<String, Object>> _demographics;
 
-                try (CloseableIterator<VariantContext> it = reader.query(form.getChr(), form.getStart(), form.getStop()))
+        public GenotypeResults(VcfReaderCache.Lease lease, String chr, int start, int stop, boolean columnar, Map<String, String> demographicsFields, Map<String, Map<String, Object>> demographics)
+        {
+            _lease = lease;
+            _chr = chr;
+            _start = start;
+            _stop = stop;
+            _columnar = columnar;
+            _demographicsFields = demographicsFields;
+            _demographics = demographics;
+        }
+
+        @Override
+        public void render(ApiResponseWriter writer) throws Exception
+        {
+            try
+            {
+                List<String> samples = _lease.getSamples();
+
+                writer.startResponse();
+                if (_columnar)
+                {
+                    writer.writeProperty("samples", new JSONArray(samples));
+                }
+                writer.writeProperty("demographicsFields", new JSONObject(_demographicsFields));
+                writer.writeProperty("demographics", new JSONObject(_demographics));
+
+                writer.startList(_columnar ? "sites" : "genotypes");
+                try (CloseableIterator<VariantContext> it = _lease.getReader().query(_chr, _start, _stop))
                 {
                     while (it.hasNext())
                     {
-                        VariantContext vc = it.next();
-                        JSONObject pos = new JSONObject();
-                        pos.put("contig", vc.getContig());
-                        pos.put("start", vc.getStart());
-                        pos.put("end", vc.getEnd());
-                        pos.put("refAllele", vc.getReference().getBaseString());
-
-                        JSONArray genotypes = new JSONArray();
-                        for (Genotype g : vc.getGenotypes())
-                        {
-                            JSONObject gt = new JSONObject();
-                            gt.put("sample", g.getSampleName());
-                            gt.put("gt", g.getGenotypeString());
-
-                            genotypes.put(gt);
-                        }
-
-                        pos.put("genotypes", genotypes);
-                        ret.put(pos);
+                        writer.writeListEntry(getSiteJson(it.next(), samples, _columnar));
                     }
                 }
+                writer.endList();
+                writer.endResponse();
+            }
+            finally
+            {
+                close();
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            _lease.close();
+        }
+
+        static JSONObject getSiteJson(VariantContext vc, List<String> samples, boolean columnar)
+        {
+            JSONObject site = new JSONObject();
+            site.put("contig", vc.getContig());
+            site.put("start", vc.getStart());
+            site.put("end", vc.getEnd());
+            site.put("refAllele", vc.getReference().getBaseString());
 
-                resultProperties.put("genotypes", ret);
-                resultProperties.put("demographics", demographics);
-                resultProperties.put("demographicsFields", demographicsFields);
+            JSONArray genotypes = new JSONArray();
+            if (columnar)
+            {
+                Map<String, Integer> genotypeIdx = new HashMap<>();
+                int[] gt = new int[samples.size()];
+                for (int i = 0; i < samples.size(); i++)
+                {
+                    gt[i] = genotypeIdx.computeIfAbsent(getGenotypeString(vc, samples.get(i)), x -> {
+                        genotypes.put(x);
+                        return genotypeIdx.size();
+                    });
+                }
+
+                site.put("genotypes", genotypes);
+                site.put("gt", new JSONArray(gt));
             }
+            else
+            {
+                for (String sample : samples)
+                {
+                    JSONObject gt = new JSONObject();
+                    gt.put("sample", sample);
+                    gt.put("gt", getGenotypeString(vc, sample));
+
+                    genotypes.put(gt);
+                }
 
-            return new ApiSimpleResponse(resultProperties);
+                site.put("genotypes", genotypes);
+            }
+
+            return site;
+        }
+
+        private static String getGenotypeString(VariantContext vc, String sample)
+        {
+            //genotypes are looked up by name, since the order of a site's genotypes is not guaranteed to match the header
+            Genotype g = vc.getGenotype(sample);
+
+            return g == null ? NO_CALL_GENOTYPE : g.getGenotypeString();
         }
     }
 
@@ -611,6 +707,7 @@ public ApiResponse execute(GetGenotypesForm form, BindException errors)
         private String _chr;
         private Integer _start;
         private Integer _stop;
+        private boolean _columnar = false;
 
         public String getTrackId()
         {
@@ -651,6 +748,16 @@ public void setStop(Integer stop)
         {
             _stop = stop;
         }
+
+        public boolean isColumnar()
+        {
+            return _columnar;
+        }
+
+        public void setColumnar(boolean columnar)
+        {
+            _columnar = columnar;
+        }
     }
 
 
@@ -910,7 +1017,7 @@ public ApiResponse execute(LuceneQueryForm form, BindException errors)
 
             try
             {
-                return new ApiSimpleResponse(searcher.doSearch(getUser(), PageFlowUtil.decode(form.getSearchString()), form.getPageSize(), form.getOffset(), form.getSortField(), form.getSortReverse()));
+                return searcher.doSearch(getUser(), PageFlowUtil.decode(form.getSearchString()), form.getPageSize(), form.getOffset(), form.getSortField(), form.getSortReverse(), StringUtils.trimToNull(form.getSearchAfter()));
             }
             catch (Exception e)
             {
@@ -934,6 +1041,96 @@ else if (!isValidUUID(form.getTrackId()))
         }
     }
 
+    @RequiresPermission(ReadPermission.class)
+    public static class LuceneFacetsAction extends ReadOnlyApiAction<LuceneFacetsForm>
+    {
+        @Override
+        public ApiResponse execute(LuceneFacetsForm form, BindException errors)
+        {
+            JBrowseLuceneSearch searcher;
+            try
+            {
+                searcher = JBrowseLuceneSearch.create(form.getSessionId(), form.getTrackId(), getUser());
+            }
+            catch (IllegalArgumentException e)
+            {
+                errors.reject(ERROR_MSG, e.getMessage());
+                return null;
+            }
+
+            try
+            {
+                return new ApiSimpleResponse(searcher.doFacetSearch(PageFlowUtil.decode(form.getSearchString()), Arrays.asList(form.getFacetFields()), form.getMaxTerms(), form.getNumBuckets()));
+            }
+            catch (Exception e)
+            {
+                _log.error("Error in JBrowse lucene facet query", e);
+                errors.reject(ERROR_MSG, e.getMessage());
+                return null;
+            }
+        }
+
+        @Override
+        public void validateForm(LuceneFacetsForm form, Errors errors)
+        {
+            if ((form.getSearchString() == null || form.getSessionId() == null || form.getTrackId() == null))
+            {
+                errors.reject(ERROR_MSG, "Must provide search string, track ID, and the JBrowse session ID");
+            }
+            else if (!isValidUUID(form.getTrackId()))
+            {
+                errors.reject(ERROR_MSG, "Invalid track ID: " + form.getTrackId());
+            }
+            else if (form.getFacetFields() == null || form.getFacetFields().length == 0)
+            {
+                errors.reject(ERROR_MSG, "Must provide at least one field to summarize");
+            }
+            else if (form.getMaxTerms() < 1 || form.getNumBuckets() < 1)
+            {
+                errors.reject(ERROR_MSG, "maxTerms and numBuckets must be positive");
+            }
+        }
+    }
+
+    public static class LuceneFacetsForm extends LuceneQueryForm
+    {
+        private String[] _facetFields;
+
+        private int _maxTerms = 50;
+
+        private int _numBuckets = 20;
+
+        public String[] getFacetFields()
+        {
+            return _facetFields;
+        }
+
+        public void setFacetFields(String[] facetFields)
+        {
+            _facetFields = facetFields;
+        }
+
+        public int getMaxTerms()
+        {
+            return _maxTerms;
+        }
+
+        public void setMaxTerms(int maxTerms)
+        {
+            _maxTerms = maxTerms;
+        }
+
+        public int getNumBuckets()
+        {
+            return _numBuckets;
+        }
+
+        public void setNumBuckets(int numBuckets)
+        {
+            _numBuckets = numBuckets;
+        }
+    }
+
     public static class LuceneQueryForm
     {
         private String _searchString;
@@ -951,6 +1148,9 @@ else if (!isValidUUID(form.getTrackId()))
 
         private boolean _sortReverse = false;
 
+        // Opaque cursor returned with the prior page. If provided, offset is ignored.
+        private String _searchAfter;
+
         public String getSearchString()
         {
             return _searchString;
@@ -999,6 +1199,16 @@ public void setOffset(int offset)
 
         public void setSortReverse(boolean sortReverse) { _sortReverse = sortReverse; }
 
+        public String getSearchAfter()
+        {
+            return _searchAfter;
+        }
+
+        public void setSearchAfter(String searchAfter)
+        {
+            _searchAfter = searchAfter;
+        }
+
         public String getTrackId()
         {
             return _trackId;
@@ -1045,5 +1255,60 @@ public ApiResponse execute(Object form, BindException errors)
             return new ApiSimpleResponse("cacheInfo", JBrowseLuceneSearch.reportCacheInfo());
         }
     }
-}
 
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testGenotypeResponseShape()
+        {
+            Allele ref = Allele.create("A", true);
+            Allele alt = Allele.create("G", false);
+
+            //the genotypes are deliberately not in header order
+            List<String> samples = Arrays.asList("S1", "S2", "S3", "S4");
+            VariantContext vc = new VariantContextBuilder("test", "chr1", 100, 100, Arrays.asList(ref, alt)).genotypes(
+                    GenotypeBuilder.create("S3", Arrays.asList(alt, alt)),
+                    GenotypeBuilder.create("S1", Arrays.asList(ref, alt)),
+                    GenotypeBuilder.create("S4", Arrays.asList(ref, alt)),
+                    GenotypeBuilder.create("S2", Arrays.asList(Allele.NO_CALL, Allele.NO_CALL))
+            ).make();
+            String[] expected = new String[]{"A/G", "./.", "G/G", "A/G"};
+
+            //default layout: one {sample, gt} object per sample
+            JSONObject site = GenotypeResults.getSiteJson(vc, samples, false);
+            assertEquals("chr1", site.getString("contig"));
+            assertEquals(100, site.getInt("start"));
+            assertEquals(100, site.getInt("end"));
+            assertEquals("A", site.getString("refAllele"));
+            assertFalse(site.has("gt"));
+
+            JSONArray genotypes = site.getJSONArray("genotypes");
+            assertEquals(samples.size(), genotypes.length());
+            for (int i = 0; i < samples.size(); i++)
+            {
+                assertEquals(samples.get(i), genotypes.getJSONObject(i).getString("sample"));
+                assertEquals(expected[i], genotypes.getJSONObject(i).getString("gt"));
+            }
+
+            //columnar layout: distinct genotype strings, and one index per sample in the order of the samples array
+            JSONObject columnar = GenotypeResults.getSiteJson(vc, samples, true);
+            assertEquals("chr1", columnar.getString("contig"));
+            assertEquals(100, columnar.getInt("start"));
+            assertEquals(100, columnar.getInt("end"));
+            assertEquals("A", columnar.getString("refAllele"));
+
+            JSONArray distinct = columnar.getJSONArray("genotypes");
+            assertEquals(3, distinct.length());
+            assertEquals("A/G", distinct.getString(0));
+            assertEquals("./.", distinct.getString(1));
+            assertEquals("G/G", distinct.getString(2));
+
+            JSONArray gt = columnar.getJSONArray("gt");
+            assertEquals(samples.size(), gt.length());
+            for (int i = 0; i < samples.size(); i++)
+            {
+                assertEquals(expected[i], distinct.getString(gt.getInt(i)));
+            }
+        }
+    }
+}
@@ -16,6 +16,7 @@
 import org.labkey.jbrowse.model.JsonFile;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -45,9 +46,32 @@
     }};
 
     public static Map<String, JBrowseFieldDescriptor> getIndexedFields(JsonFile jsonFile, User u, Container c)
+    {
+        // Clone cached results:
+        Map<String, JBrowseFieldDescriptor> ret = new LinkedHashMap<>();
+        Map<String, JBrowseFieldDescriptor> cached = getUncustomizedIndexedFields(jsonFile, c);
+        for (String fn : cached.keySet())
+        {
+            ret.put(fn, cached.get(fn).clone());
+        }
+
+        // Perform customization on the cloned copy only:
+        for (String fn : ret.keySet())
+        {
+            JBrowseServiceImpl.get().customizeField(u, c, ret.get(fn));
+        }
+
+        return ret;
+    }
+
+    /**
+     * Returns the cached, locked descriptors prior to any customization. These are shared across callers and must not be modified.
+     */
+    public static Map<String, JBrowseFieldDescriptor> getUncustomizedIndexedFields(JsonFile jsonFile, Container c)
     {
         String key = "allFields." + jsonFile.getObjectId() + "." + c.getId();
-        if (_cache.get(key) == null)
+        Map<String, JBrowseFieldDescriptor> cached = _cache.get(key);
+        if (cached == null)
         {
             Map<String, JBrowseFieldDescriptor> ret = new LinkedHashMap<>(DEFAULT_FIELDS);
             ret.putAll(getGenotypeDependentFields(jsonFile));
@@ -80,24 +104,11 @@ public static Map<String, JBrowseFieldDescriptor> getIndexedFields(JsonFile json
                 fd.lock();
             }
 
-            _cache.put(key, ret);
+            cached = Collections.unmodifiableMap(ret);
+            _cache.put(key, cached);
         }
 
-        // Clone cached results:
-        Map<String, JBrowseFieldDescriptor> ret = new LinkedHashMap<>();
-        Map<String, JBrowseFieldDescriptor> cached = _cache.get(key);
-        for (String fn : cached.keySet())
-        {
-            ret.put(fn, cached.get(fn).clone());
-        }
-
-        // Perform customization on the cloned copy only:
-        for (String fn : ret.keySet())
-        {
-            JBrowseServiceImpl.get().customizeField(u, c, ret.get(fn));
-        }
-
-        return ret;
+        return cached;
     }
 
     public static Map<String, JBrowseFieldDescriptor> getGenotypeDependentFields(@Nullable JsonFile jsonFile) {
@@ -2,12 +2,17 @@
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.Logger;
-import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoublePoint;
+import org.apache.lucene.document.FloatPoint;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.LongPoint;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.index.StoredFields;
 import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.flexible.core.QueryNodeException;
@@ -15,21 +20,30 @@
 import org.apache.lucene.queryparser.flexible.standard.config.PointsConfig;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.LRUQueryCache;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.QueryCachingPolicy;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TopFieldDocs;
 import org.apache.lucene.search.UsageTrackingQueryCachingPolicy;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
+import org.labkey.api.action.ApiResponseWriter;
+import org.labkey.api.action.ApiStreamResponse;
 import org.labkey.api.cache.Cache;
 import org.labkey.api.cache.CacheLoader;
 import org.labkey.api.cache.CacheManager;
@@ -43,11 +57,13 @@
 import org.labkey.api.security.User;
 import org.labkey.api.settings.AppProps;
 import org.labkey.api.util.Filter;
+import org.labkey.api.util.Pair;
 import org.labkey.api.util.ShutdownListener;
 import org.labkey.api.util.logging.LogHelper;
 import org.labkey.jbrowse.model.JBrowseSession;
 import org.labkey.jbrowse.model.JsonFile;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.net.URLDecoder;
@@ -55,13 +71,22 @@
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -79,9 +104,15 @@
     private static final String ALL_DOCS = "all";
     private static final String GENOMIC_POSITION = "genomicPosition";
     private static final int maxCachedQueries = 1000;
-    private static final long maxRamBytesUsed = 250 * 1024 * 1024L;
 
-    private static final Cache<String, CacheEntry> _cache = new LuceneIndexCache();
+    private static final LuceneIndexCache _cache = new LuceneIndexCache();
+    private static final Map<String, CompletableFuture<CacheEntry>> _pendingOpens = new ConcurrentHashMap<>();
+
+    // Compiled queries, keyed on track, field schema version and the normalized search string. Lucene Query objects are immutable and safe to share
+    private static final Cache<String, Query> _queryCache = CacheManager.getStringKeyCache(5000, CacheManager.HOUR, "JBrowseLuceneQueryCache");
+
+    // Query field schemas, keyed on track and container. Each is reused while the cached indexed fields it was built from are unchanged
+    private static final Cache<String, QueryFieldSchema> _schemaCache = CacheManager.getStringKeyCache(1000, CacheManager.HOUR, "JBrowseLuceneFieldSchemaCache");
 
     private JBrowseLuceneSearch(final JBrowseSession session, final JsonFile jsonFile, User u)
     {
@@ -102,32 +133,109 @@ public static JBrowseLuceneSearch create(String sessionId, String trackId, User
         return new JBrowseLuceneSearch(session, getTrack(session, trackId, u), u);
     }
 
-    private static synchronized CacheEntry getCacheEntryForSession(String trackObjectId, File indexPath) throws IOException {
+    /**
+     * A single query cache is shared by all open indexes, so that the total memory is bounded by LuceneQueryCacheMaxMB
+     * regardless of how many tracks are open. Entries for a reader are dropped when that reader closes.
+     */
+    private static LRUQueryCache getSharedQueryCache()
+    {
+        return SharedQueryCacheHolder.QUERY_CACHE;
+    }
+
+    private static long getQueryCacheMaxRamBytes()
+    {
+        return SharedQueryCacheHolder.MAX_RAM_BYTES;
+    }
+
+    private static class SharedQueryCacheHolder
+    {
+        private static final long MAX_RAM_BYTES = Math.max(1, JBrowseManager.get().getIntModuleProperty(JBrowseManager.LUCENE_QUERY_CACHE_MAX_MB, 1024)) * 1024 * 1024L;
+        private static final LRUQueryCache QUERY_CACHE = new LRUQueryCache(maxCachedQueries, MAX_RAM_BYTES);
+    }
+
+    /**
+     * Returns the open index for this track, without any locking in the common case that it is already open. If the index
+     * needs to be opened, only one thread per track does so; concurrent requests for the same track wait on that open,
+     * while requests for other tracks proceed independently.
+     */
+    private static CacheEntry getCacheEntryForSession(String trackObjectId, File indexPath) throws IOException
+    {
         CacheEntry cacheEntry = _cache.get(trackObjectId);
+        if (cacheEntry != null)
+        {
+            return cacheEntry;
+        }
 
-        // Open directory of lucene path, get a directory reader, and create the index search manager
-        if (cacheEntry == null)
+        CompletableFuture<CacheEntry> pending = new CompletableFuture<>();
+        CompletableFuture<CacheEntry> existing = _pendingOpens.putIfAbsent(trackObjectId, pending);
+        if (existing != null)
         {
             try
             {
-                Directory indexDirectory = FSDirectory.open(indexPath.toPath());
-                LRUQueryCache queryCache = new LRUQueryCache(maxCachedQueries, maxRamBytesUsed);
-                IndexReader indexReader = DirectoryReader.open(indexDirectory);
-                IndexSearcher indexSearcher = new IndexSearcher(indexReader);
-                indexSearcher.setQueryCache(queryCache);
-                indexSearcher.setQueryCachingPolicy(new ForceMatchAllDocsCachingPolicy());
-                cacheEntry = new CacheEntry(queryCache, indexSearcher, indexPath);
-                _cache.put(trackObjectId, cacheEntry);
+                return existing.join();
             }
-            catch (Exception e)
+            catch (CompletionException e)
             {
-                _log.error("Error creating jbrowse/lucene index reader for: " + trackObjectId, e);
+                throw new IllegalStateException("Error creating search index reader for: " + trackObjectId, e.getCause());
+            }
+        }
 
-                throw new IllegalStateException("Error creating search index reader for: " + trackObjectId);
+        try
+        {
+            // Another thread may have finished opening this index between the check above and registering this open:
+            cacheEntry = _cache.get(trackObjectId);
+            if (cacheEntry == null)
+            {
+                cacheEntry = openCacheEntry(trackObjectId, indexPath);
+                _cache.put(trackObjectId, cacheEntry);
             }
+
+            pending.complete(cacheEntry);
+
+            return cacheEntry;
         }
+        catch (RuntimeException e)
+        {
+            pending.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            _pendingOpens.remove(trackObjectId, pending);
+        }
+    }
+
+    private static CacheEntry openCacheEntry(String trackObjectId, File indexPath)
+    {
+        // Open directory of lucene path, and create the index search manager
+        Directory indexDirectory = null;
+        try
+        {
+            indexDirectory = FSDirectory.open(indexPath.toPath());
+            LRUQueryCache queryCache = getSharedQueryCache();
+            SearcherManager searcherManager = new SearcherManager(indexDirectory, new SearcherFactory()
+            {
+                @Override
+                public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader)
+                {
+                    // Segment slices are searched in parallel using the shared pool. If it is disabled, this is null and searches are single-threaded
+                    IndexSearcher indexSearcher = new IndexSearcher(reader, LuceneSearchExecutor.get().getExecutor());
+                    indexSearcher.setQueryCache(queryCache);
+                    indexSearcher.setQueryCachingPolicy(new ForceMatchAllDocsCachingPolicy());
+
+                    return indexSearcher;
+                }
+            });
+
+            return new CacheEntry(searcherManager, indexDirectory, indexPath);
+        }
+        catch (Exception e)
+        {
+            _log.error("Error creating jbrowse/lucene index reader for: " + trackObjectId, e);
+            IOUtils.closeWhileHandlingException(indexDirectory);
 
-        return cacheEntry;
+            throw new IllegalStateException("Error creating search index reader for: " + trackObjectId, e);
+        }
     }
 
     private String templateReplace(final String searchString)
@@ -189,77 +297,256 @@ public String extractFieldName(String queryString)
         return parts.length > 0 ? parts[0].trim() : null;
     }
 
-    public JSONObject doSearch(User u, String searchString, final int pageSize, final int offset, String sortField, boolean sortReverse) throws IOException, ParseException
+    private QueryFieldSchema getQueryFieldSchema()
     {
-        searchString = tryUrlDecode(searchString);
-        File indexPath = _jsonFile.getExpectedLocationOfLuceneIndex(true);
-        Map<String, JBrowseFieldDescriptor> fields = JBrowseFieldUtils.getIndexedFields(_jsonFile, u, getContainer());
+        // NOTE: field customizers cannot alter the type of a field, so the un-customized descriptors are sufficient
+        // to build the parsers. This avoids cloning and customizing every descriptor per query.
+        Container c = getContainer();
+        Map<String, JBrowseFieldDescriptor> fields = JBrowseFieldUtils.getUncustomizedIndexedFields(_jsonFile, c);
+
+        // JBrowseFieldUtils returns the same map until its cache is cleared, so a different map indicates the fields may have changed:
+        String key = getQueryCacheKeyPrefix(_jsonFile.getObjectId()) + c.getId();
+        QueryFieldSchema schema = _schemaCache.get(key);
+        if (schema == null || !schema.isBuiltFrom(fields))
+        {
+            schema = new QueryFieldSchema(fields);
+            _schemaCache.put(key, schema);
+        }
+
+        return schema;
+    }
+
+    private Query getQuery(String searchString, QueryFieldSchema schema) throws ParseException
+    {
+        // Split input into clauses, 1 clause per query separated by &. Group templates are resolved prior to caching,
+        // since group membership is user/container-specific. A null list indicates all documents:
+        List<String> clauses = null;
+        if (!searchString.equals(ALL_DOCS))
+        {
+            clauses = new ArrayList<>();
+            StringTokenizer tokenizer = new StringTokenizer(searchString, "&");
+            while (tokenizer.hasMoreTokens())
+            {
+                String queryString = tokenizer.nextToken().trim();
+                if (queryString.isEmpty())
+                {
+                    continue;
+                }
+
+                if (VARIABLE_SAMPLES.equals(extractFieldName(queryString)))
+                {
+                    queryString = templateReplace(queryString);
+                }
+
+                clauses.add(queryString);
+            }
+        }
 
+        String queryCacheKey = getQueryCacheKeyPrefix(_jsonFile.getObjectId()) + schema.getVersion() + "||" + (clauses == null ? ALL_DOCS : "&" + StringUtils.join(clauses, "&"));
+        Query query = _queryCache.get(queryCacheKey);
+        if (query == null)
+        {
+            query = compileQuery(clauses, schema);
+            _queryCache.put(queryCacheKey, query);
+        }
+
+        return query;
+    }
+
+    /**
+     * The acquired searcher holds a reference on its reader, so it remains usable even if the index is refreshed
+     * or evicted from the cache while in use. Callers must release it using the returned CacheEntry.
+     */
+    private Pair<CacheEntry, IndexSearcher> acquireSearcher() throws IOException
+    {
+        File indexPath = _jsonFile.getExpectedLocationOfLuceneIndex(true);
         CacheEntry cacheEntry = getCacheEntryForSession(_jsonFile.getObjectId(), indexPath);
-        Analyzer analyzer = new StandardAnalyzer();
+        try
+        {
+            return Pair.of(cacheEntry, cacheEntry.acquireSearcher());
+        }
+        catch (AlreadyClosedException e)
+        {
+            // This entry was closed by another thread after it was retrieved from the cache, so open it again:
+            cacheEntry = getCacheEntryForSession(_jsonFile.getObjectId(), indexPath);
+            return Pair.of(cacheEntry, cacheEntry.acquireSearcher());
+        }
+    }
 
-        List<String> stringQueryParserFields = new ArrayList<>();
-        Map<String, SortField.Type> numericQueryParserFields = new HashMap<>();
-        PointsConfig intPointsConfig = new PointsConfig(new DecimalFormat(), Integer.class);
-        PointsConfig doublePointsConfig = new PointsConfig(new DecimalFormat(), Double.class);
-        Map<String, PointsConfig> pointsConfigMap = new HashMap<>();
+    public SearchResults doSearch(User u, String searchString, final int pageSize, final int offset, String sortField, boolean sortReverse, @Nullable String searchAfter) throws IOException, ParseException
+    {
+        searchString = tryUrlDecode(searchString);
+        QueryFieldSchema schema = getQueryFieldSchema();
+        Query query = getQuery(searchString, schema);
+
+        // By default, sort in INDEXORDER, which is by genomicPosition
+        Sort sort = Sort.INDEXORDER;
 
-        // Iterate fields and split them into fields for the queryParser and the numericQueryParser
-        for (Map.Entry<String, JBrowseFieldDescriptor> entry : fields.entrySet())
+        // If the sort field is not genomicPosition, use the provided sorting data
+        if (!sortField.equals(GENOMIC_POSITION)) {
+            SortField.Type fieldType;
+
+            if (schema.getStringFields().contains(sortField)) {
+                fieldType = SortField.Type.STRING;
+            } else if (schema.getNumericFields().containsKey(sortField)) {
+                fieldType = schema.getNumericFields().get(sortField);
+            } else {
+                throw new IllegalArgumentException("Could not find type for sort field: " + sortField);
+            }
+
+            sort = new Sort(new SortField(sortField + "_sort", fieldType, sortReverse));
+        }
+
+        // The searcher is released by SearchResults once results are written
+        Pair<CacheEntry, IndexSearcher> acquired = acquireSearcher();
+        CacheEntry cacheEntry = acquired.first;
+        IndexSearcher indexSearcher = acquired.second;
+        try
         {
-            String field = entry.getKey();
-            JBrowseFieldDescriptor descriptor = entry.getValue();
+            return doSearch(cacheEntry, indexSearcher, query, sort, pageSize, offset, searchAfter);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            cacheEntry.releaseSearcher(indexSearcher);
+            throw e;
+        }
+    }
+
+    /**
+     * Summarizes the documents matching this search in one pass: term counts for string fields, and a histogram
+     * for numeric fields. Histogram bounds are the min/max of the field across the whole index, so that buckets
+     * are stable as filters change.
+     */
+    public JSONObject doFacetSearch(String searchString, List<String> facetFields, int maxTerms, int numBuckets) throws IOException, ParseException
+    {
+        searchString = tryUrlDecode(searchString);
+        QueryFieldSchema schema = getQueryFieldSchema();
+        Query query = getQuery(searchString, schema);
 
-            switch(descriptor.getType())
+        Pair<CacheEntry, IndexSearcher> acquired = acquireSearcher();
+        try
+        {
+            IndexSearcher indexSearcher = acquired.second;
+
+            List<LuceneFacetCollectorManager.FacetSpec> facets = new ArrayList<>();
+            for (String field : facetFields)
             {
-                case Flag, String, Character -> stringQueryParserFields.add(field);
-                case Float -> {
-                    numericQueryParserFields.put(field, SortField.Type.DOUBLE);
-                    pointsConfigMap.put(field, doublePointsConfig);
+                if (schema.getStringFields().contains(field))
+                {
+                    facets.add(new LuceneFacetCollectorManager.TermsFacet(field, maxTerms));
+                }
+                else if (schema.getNumericFields().containsKey(field))
+                {
+                    boolean isDouble = schema.getNumericFields().get(field) == SortField.Type.DOUBLE;
+                    double[] bounds = getNumericBounds(indexSearcher.getIndexReader(), field, isDouble);
+                    facets.add(new LuceneFacetCollectorManager.HistogramFacet(field, isDouble, numBuckets, bounds == null ? null : bounds[0], bounds == null ? null : bounds[1]));
                 }
-                case Integer -> {
-                    numericQueryParserFields.put(field, SortField.Type.LONG);
-                    pointsConfigMap.put(field, intPointsConfig);
+                else
+                {
+                    throw new IllegalArgumentException("No such field: " + field);
                 }
             }
+
+            return indexSearcher.search(query, new LuceneFacetCollectorManager(facets));
+        }
+        finally
+        {
+            acquired.first.releaseSearcher(acquired.second);
         }
+    }
 
-        // The numericQueryParser can perform range queries, but numeric fields they can't be indexed alongside
-        // lexicographic  fields, so they get split into a separate parser
-        MultiFieldQueryParser queryParser = new MultiFieldQueryParser(stringQueryParserFields.toArray(new String[0]), new StandardAnalyzer());
-        queryParser.setAllowLeadingWildcard(true);
+    /**
+     * Reads the min/max of a numeric field from the index points, without visiting documents.
+     */
+    private static @Nullable double[] getNumericBounds(IndexReader reader, String field, boolean isDouble) throws IOException
+    {
+        byte[] min = PointValues.getMinPackedValue(reader, field);
+        byte[] max = PointValues.getMaxPackedValue(reader, field);
+        if (min == null || max == null)
+        {
+            return null;
+        }
 
-        StandardQueryParser numericQueryParser = new StandardQueryParser();
-        numericQueryParser.setAnalyzer(analyzer);
-        numericQueryParser.setPointsConfigMap(pointsConfigMap);
+        if (isDouble)
+        {
+            return switch (min.length)
+            {
+                case Float.BYTES -> new double[]{FloatPoint.decodeDimension(min, 0), FloatPoint.decodeDimension(max, 0)};
+                case Double.BYTES -> new double[]{DoublePoint.decodeDimension(min, 0), DoublePoint.decodeDimension(max, 0)};
+                default -> null;
+            };
+        }
+        else
+        {
+            return switch (min.length)
+            {
+                case Integer.BYTES -> new double[]{IntPoint.decodeDimension(min, 0), IntPoint.decodeDimension(max, 0)};
+                case Long.BYTES -> new double[]{LongPoint.decodeDimension(min, 0), LongPoint.decodeDimension(max, 0)};
+                default -> null;
+            };
+        }
+    }
 
-        BooleanQuery.Builder booleanQueryBuilder = new BooleanQuery.Builder();
+    private SearchResults doSearch(CacheEntry cacheEntry, IndexSearcher indexSearcher, Query query, Sort sort, final int pageSize, final int offset, @Nullable String searchAfter) throws IOException
+    {
+        long readerVersion = getReaderVersion(indexSearcher);
+
+        // When the client supplies a cursor from the previous page, use searchAfter so that only a single page of
+        // hits is collected, regardless of how deep into the result set we are. Otherwise, fall back to collecting
+        // {pageSize} * (offset + 1) hits and slicing out the requested page.
+        TopFieldDocs topDocs;
+        int start;
+        if (searchAfter != null)
+        {
+            FieldDoc after = decodeCursor(searchAfter, sort, readerVersion);
+            topDocs = indexSearcher.searchAfter(after, query, pageSize, sort);
+            start = 0;
+        }
+        else
+        {
+            topDocs = indexSearcher.search(query, pageSize * (offset + 1), sort);
+            start = pageSize * offset;
+        }
 
-        if (searchString.equals(ALL_DOCS))
+        int end = Math.min(start + pageSize, topDocs.scoreDocs.length);
+        String cursor = null;
+        if (end > start && end - start == pageSize)
         {
-            booleanQueryBuilder.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+            cursor = encodeCursor((FieldDoc)topDocs.scoreDocs[end - 1], readerVersion);
         }
 
-        // Split input into tokens, 1 token per query separated by &
-        StringTokenizer tokenizer = new StringTokenizer(searchString, "&");
+        return new SearchResults(cacheEntry, indexSearcher, topDocs, start, end, cursor);
+    }
 
-        while (tokenizer.hasMoreTokens() && !searchString.equals(ALL_DOCS))
+    private Query compileQuery(@Nullable List<String> clauses, QueryFieldSchema schema) throws ParseException
+    {
+        BooleanQuery.Builder booleanQueryBuilder = new BooleanQuery.Builder();
+        if (clauses == null)
         {
-            String queryString = tokenizer.nextToken();
-            Query query = null;
+            booleanQueryBuilder.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
 
-            String fieldName = extractFieldName(queryString);
+            return booleanQueryBuilder.build();
+        }
 
-            if (VARIABLE_SAMPLES.equals(fieldName))
-            {
-                queryString = templateReplace(queryString);
-            }
+        // The numericQueryParser can perform range queries, but numeric fields they can't be indexed alongside
+        // lexicographic  fields, so they get split into a separate parser
+        MultiFieldQueryParser queryParser = new MultiFieldQueryParser(schema.getStringFields().toArray(new String[0]), new StandardAnalyzer());
+        queryParser.setAllowLeadingWildcard(true);
+
+        StandardQueryParser numericQueryParser = new StandardQueryParser();
+        numericQueryParser.setAnalyzer(new StandardAnalyzer());
+        numericQueryParser.setPointsConfigMap(schema.getPointsConfigMap());
+
+        for (String queryString : clauses)
+        {
+            Query query;
+            String fieldName = extractFieldName(queryString);
 
-            if (stringQueryParserFields.contains(fieldName))
+            if (schema.getStringFields().contains(fieldName))
             {
                 query = queryParser.parse(queryString);
             }
-            else if (numericQueryParserFields.containsKey(fieldName))
+            else if (schema.getNumericFields().containsKey(fieldName))
             {
                 try
                 {
@@ -282,61 +569,273 @@ else if (numericQueryParserFields.containsKey(fieldName))
             booleanQueryBuilder.add(query, BooleanClause.Occur.MUST);
         }
 
-        BooleanQuery query = booleanQueryBuilder.build();
+        return booleanQueryBuilder.build();
+    }
 
-        // By default, sort in INDEXORDER, which is by genomicPosition
-        Sort sort = Sort.INDEXORDER;
+    private static String getQueryCacheKeyPrefix(String trackObjectId)
+    {
+        return trackObjectId + "||";
+    }
 
-        // If the sort field is not genomicPosition, use the provided sorting data
-        if (!sortField.equals(GENOMIC_POSITION)) {
-            SortField.Type fieldType;
+    /**
+     * Splits the indexed fields of a track into those handled by the string and numeric query parsers. The version
+     * reflects the field names and types, so that cached queries are not reused after the indexed fields change.
+     */
+    private static class QueryFieldSchema
+    {
+        private final Map<String, JBrowseFieldDescriptor> _fields;
+        private final Set<String> _stringFields = new LinkedHashSet<>();
+        private final Map<String, SortField.Type> _numericFields = new HashMap<>();
+        private final Map<String, PointsConfig> _pointsConfigMap = new HashMap<>();
+        private final String _version;
 
-            if (stringQueryParserFields.contains(sortField)) {
-                fieldType = SortField.Type.STRING;
-            } else if (numericQueryParserFields.containsKey(sortField)) {
-                fieldType = numericQueryParserFields.get(sortField);
-            } else {
-                throw new IllegalArgumentException("Could not find type for sort field: " + sortField);
+        public QueryFieldSchema(Map<String, JBrowseFieldDescriptor> fields)
+        {
+            _fields = fields;
+
+            PointsConfig intPointsConfig = new PointsConfig(new DecimalFormat(), Integer.class);
+            PointsConfig doublePointsConfig = new PointsConfig(new DecimalFormat(), Double.class);
+
+            StringBuilder version = new StringBuilder();
+            for (Map.Entry<String, JBrowseFieldDescriptor> entry : fields.entrySet())
+            {
+                String field = entry.getKey();
+                JBrowseFieldDescriptor descriptor = entry.getValue();
+                version.append(field).append(':').append(descriptor.getType()).append(';');
+
+                switch(descriptor.getType())
+                {
+                    case Flag, String, Character -> _stringFields.add(field);
+                    case Float -> {
+                        _numericFields.put(field, SortField.Type.DOUBLE);
+                        _pointsConfigMap.put(field, doublePointsConfig);
+                    }
+                    case Integer -> {
+                        _numericFields.put(field, SortField.Type.LONG);
+                        _pointsConfigMap.put(field, intPointsConfig);
+                    }
+                }
             }
 
-            sort = new Sort(new SortField(sortField + "_sort", fieldType, sortReverse));
+            _version = Integer.toHexString(version.toString().hashCode()) + "-" + fields.size();
         }
 
-        // Get chunks of size {pageSize}. Default to 1 chunk -- add to the offset to get more.
-        // We then iterate over the range of documents we want based on the offset. This does grow in memory
-        // linearly with the number of documents, but my understanding is that these are just score,id pairs
-        // rather than full documents, so mem usage *should* still be pretty low.
-        // Perform the search with sorting
-        TopFieldDocs topDocs = cacheEntry.indexSearcher.search(query, pageSize * (offset + 1), sort);
+        public boolean isBuiltFrom(Map<String, JBrowseFieldDescriptor> fields)
+        {
+            return _fields == fields;
+        }
 
-        JSONObject results = new JSONObject();
+        public Set<String> getStringFields()
+        {
+            return _stringFields;
+        }
 
-        // Iterate over the doc list, (either to the total end or until the page ends) grab the requested docs,
-        // and add to returned results
-        List<JSONObject> data = new ArrayList<>();
-        for (int i = pageSize * offset; i < Math.min(pageSize * (offset + 1), topDocs.scoreDocs.length); i++)
+        public Map<String, SortField.Type> getNumericFields()
         {
-            JSONObject elem = new JSONObject();
-            Document doc = cacheEntry.indexSearcher.storedFields().document(topDocs.scoreDocs[i].doc);
+            return _numericFields;
+        }
 
-            for (IndexableField field : doc.getFields()) {
-                String fieldName = field.name();
-                String[] fieldValues = doc.getValues(fieldName);
-                if (fieldValues.length > 1) {
-                    elem.put(fieldName, fieldValues);
-                } else {
-                    elem.put(fieldName, fieldValues[0]);
-                }
+        public Map<String, PointsConfig> getPointsConfigMap()
+        {
+            return _pointsConfigMap;
+        }
+
+        public String getVersion()
+        {
+            return _version;
+        }
+    }
+
+    private static long getReaderVersion(IndexSearcher indexSearcher)
+    {
+        return indexSearcher.getIndexReader() instanceof DirectoryReader dr ? dr.getVersion() : -1;
+    }
+
+    /**
+     * Serializes the sort values of the last hit on a page, along with the version of the reader that produced it.
+     * Lucene doc IDs are only stable for a given reader, so the version is used to reject cursors after the index is reopened.
+     */
+    private static String encodeCursor(FieldDoc lastHit, long readerVersion)
+    {
+        JSONObject json = new JSONObject();
+        json.put("version", readerVersion);
+        json.put("doc", lastHit.doc);
+
+        JSONArray fields = new JSONArray();
+        for (Object val : lastHit.fields)
+        {
+            JSONObject field = new JSONObject();
+            if (val instanceof BytesRef br)
+            {
+                field.put("type", "s");
+                field.put("value", br.utf8ToString());
             }
+            else if (val instanceof Integer i)
+            {
+                field.put("type", "i");
+                field.put("value", i);
+            }
+            else if (val instanceof Long l)
+            {
+                field.put("type", "l");
+                field.put("value", l);
+            }
+            else if (val instanceof Double d)
+            {
+                field.put("type", "d");
+                field.put("value", d);
+            }
+            else if (val instanceof Float f)
+            {
+                field.put("type", "f");
+                field.put("value", f);
+            }
+            else if (val == null)
+            {
+                field.put("type", "n");
+            }
+            else
+            {
+                throw new IllegalStateException("Unsupported sort value type: " + val.getClass().getName());
+            }
+
+            fields.put(field);
+        }
+        json.put("fields", fields);
 
-            data.add(elem);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static FieldDoc decodeCursor(String cursor, Sort sort, long readerVersion)
+    {
+        JSONObject json;
+        try
+        {
+            json = new JSONObject(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+        }
+        catch (IllegalArgumentException | JSONException e)
+        {
+            throw new IllegalArgumentException("Invalid search cursor: " + cursor);
+        }
+
+        if (json.getLong("version") != readerVersion)
+        {
+            throw new IllegalArgumentException("The search index has changed since this cursor was created, please restart the search");
+        }
+
+        JSONArray fields = json.getJSONArray("fields");
+        if (fields.length() != sort.getSort().length)
+        {
+            throw new IllegalArgumentException("Search cursor does not match the requested sort");
         }
 
-        results.put("data", data);
-        results.put("totalHits", topDocs.totalHits.value);
+        Object[] values = new Object[fields.length()];
+        for (int i = 0; i < fields.length(); i++)
+        {
+            JSONObject field = fields.getJSONObject(i);
+            values[i] = switch (field.getString("type"))
+            {
+                case "s" -> new BytesRef(field.getString("value"));
+                case "i" -> field.getInt("value");
+                case "l" -> field.getLong("value");
+                case "d" -> field.getDouble("value");
+                case "f" -> field.getFloat("value");
+                case "n" -> null;
+                default -> throw new IllegalArgumentException("Invalid search cursor: " + cursor);
+            };
+        }
+
+        return new FieldDoc(json.getInt("doc"), Float.NaN, values);
+    }
+
+    /**
+     * A single page of hits. Rather than materializing the page as one JSONObject, stored fields are read and
+     * written to the response one document at a time.
+     */
+    public static class SearchResults implements ApiStreamResponse, Closeable
+    {
+        private final CacheEntry _cacheEntry;
+        private final IndexSearcher _indexSearcher;
+        private final TopFieldDocs _topDocs;
+        private final int _start;
+        private final int _end;
+        private final String _cursor;
 
-        //TODO: we should probably stream this
-        return results;
+        private boolean _released = false;
+
+        public SearchResults(CacheEntry cacheEntry, IndexSearcher indexSearcher, TopFieldDocs topDocs, int start, int end, @Nullable String cursor)
+        {
+            _cacheEntry = cacheEntry;
+            _indexSearcher = indexSearcher;
+            _topDocs = topDocs;
+            _start = start;
+            _end = end;
+            _cursor = cursor;
+        }
+
+        public long getTotalHits()
+        {
+            return _topDocs.totalHits.value;
+        }
+
+        public int getSize()
+        {
+            return Math.max(0, _end - _start);
+        }
+
+        public @Nullable String getCursor()
+        {
+            return _cursor;
+        }
+
+        @Override
+        public void render(ApiResponseWriter writer) throws Exception
+        {
+            try
+            {
+                writer.startResponse();
+                writer.writeProperty("totalHits", getTotalHits());
+                writer.writeProperty("cursor", _cursor);
+
+                StoredFields storedFields = _indexSearcher.storedFields();
+                writer.startList("data");
+                for (int i = _start; i < _end; i++)
+                {
+                    Document doc = storedFields.document(_topDocs.scoreDocs[i].doc);
+
+                    Map<String, Object> elem = new LinkedHashMap<>();
+                    for (IndexableField field : doc.getFields())
+                    {
+                        String fieldName = field.name();
+                        if (elem.containsKey(fieldName))
+                        {
+                            continue;
+                        }
+
+                        String[] fieldValues = doc.getValues(fieldName);
+                        elem.put(fieldName, fieldValues.length > 1 ? Arrays.asList(fieldValues) : fieldValues[0]);
+                    }
+
+                    writer.writeListEntry(elem);
+                }
+                writer.endList();
+                writer.endResponse();
+            }
+            finally
+            {
+                close();
+            }
+        }
+
+        @Override
+        public synchronized void close()
+        {
+            if (!_released)
+            {
+                _released = true;
+                _cacheEntry.releaseSearcher(_indexSearcher);
+            }
+        }
     }
 
     public static class DefaultJBrowseFieldCustomizer extends AbstractJBrowseFieldCustomizer
@@ -423,45 +922,203 @@ public void onUse(Query query) {
         }
     }
 
+    /**
+     * Holds open index readers, bounded by LuceneMaxOpenIndexes and LuceneIndexIdleMinutes. Entries past either limit are
+     * closed, least recently used first. Closing is safe while searches are in progress, since those hold a reference on the reader.
+     */
     public static class LuceneIndexCache implements Cache<String, CacheEntry>
     {
+        private static final int MAX_OPEN_INDEXES_LIMIT = 1000;
+        private static final long SWEEP_INTERVAL = 60 * 1000L;
+
         private final Cache<String, CacheEntry> _cache;
+        private final Map<String, Long> _lastAccessed = new ConcurrentHashMap<>();
+        private final AtomicLong _evictionCount = new AtomicLong();
+        private final Object _evictionLock = new Object();
+        // Guards changes to the mapping, so that an entry is only closed by the caller that actually removed or replaced it
+        private final Object _lock = new Object();
+        private volatile long _lastSweep = System.currentTimeMillis();
 
         public LuceneIndexCache()
         {
-            _cache = CacheManager.getStringKeyCache(1000, CacheManager.UNLIMITED, "JBrowseLuceneSearchCache");
+            // NOTE: eviction is handled here rather than by the underlying cache, since evicted readers must be closed
+            _cache = CacheManager.getStringKeyCache(MAX_OPEN_INDEXES_LIMIT, CacheManager.UNLIMITED, "JBrowseLuceneSearchCache");
+
+        }
+
+        public int getMaxOpenIndexes()
+        {
+            return Math.min(MAX_OPEN_INDEXES_LIMIT, Math.max(1, JBrowseManager.get().getIntModuleProperty(JBrowseManager.LUCENE_MAX_OPEN_INDEXES, 100)));
+        }
+
+        public long getMaxIdleMillis()
+        {
+            return Math.max(1, JBrowseManager.get().getIntModuleProperty(JBrowseManager.LUCENE_INDEX_IDLE_MINUTES, 240)) * 60 * 1000L;
+        }
+
+        public long getEvictionCount()
+        {
+            return _evictionCount.get();
+        }
 
+        public @Nullable Long getLastAccessed(String key)
+        {
+            return _lastAccessed.get(key);
+        }
+
+        /**
+         * Closes readers idle past the time limit, then the least recently used readers until under the open index limit.
+         */
+        public void evictIfNeeded()
+        {
+            synchronized (_evictionLock)
+            {
+                long now = System.currentTimeMillis();
+                _lastSweep = now;
+
+                long maxIdle = getMaxIdleMillis();
+                for (String key : getKeys())
+                {
+                    Long lastAccessed = _lastAccessed.get(key);
+                    if (lastAccessed != null && now - lastAccessed > maxIdle)
+                    {
+                        _log.debug("Closing idle JBrowse/Lucene index reader: " + key);
+                        evict(key);
+                    }
+                }
+
+                int maxOpen = getMaxOpenIndexes();
+                Set<String> keys = getKeys();
+                if (keys.size() > maxOpen)
+                {
+                    List<String> lru = new ArrayList<>(keys);
+                    lru.sort(Comparator.comparingLong(key -> _lastAccessed.getOrDefault(key, 0L)));
+                    for (String key : lru.subList(0, keys.size() - maxOpen))
+                    {
+                        _log.debug("Closing least recently used JBrowse/Lucene index reader: " + key);
+                        evict(key);
+                    }
+                }
+            }
+        }
+
+        private void evict(String key)
+        {
+            // Only evict the entry that was checked. If the key was concurrently reopened, the new entry is left alone:
+            CacheEntry e = _cache.get(key);
+            if (e != null && remove(key, e))
+            {
+                _evictionCount.incrementAndGet();
+            }
+        }
+
+        private void maybeSweep()
+        {
+            if (System.currentTimeMillis() - _lastSweep > SWEEP_INTERVAL)
+            {
+                evictIfNeeded();
+            }
         }
 
         @Override
         public void remove(@NotNull String key)
         {
-            CacheEntry e = get(key);
-            _cache.remove(key);
+            CacheEntry e;
+            synchronized (_lock)
+            {
+                e = _cache.get(key);
+                _cache.remove(key);
+                _lastAccessed.remove(key);
+            }
 
             closeReader(e);
         }
 
+        /**
+         * Removes and closes the entry only if the key is still mapped to it.
+         * @return True if the entry was removed
+         */
+        public boolean remove(@NotNull String key, @NotNull CacheEntry expected)
+        {
+            synchronized (_lock)
+            {
+                if (_cache.get(key) != expected)
+                {
+                    return false;
+                }
+
+                _cache.remove(key);
+                _lastAccessed.remove(key);
+            }
+
+            closeReader(expected);
+
+            return true;
+        }
+
+        /**
+         * Swaps in a new entry only if the key is still mapped to the expected one, and closes the expected entry.
+         * @return True if the entry was replaced. Otherwise the caller is responsible for closing the new entry.
+         */
+        public boolean replace(@NotNull String key, @NotNull CacheEntry expected, @NotNull CacheEntry value)
+        {
+            synchronized (_lock)
+            {
+                if (_cache.get(key) != expected)
+                {
+                    return false;
+                }
+
+                _cache.put(key, value);
+                _lastAccessed.put(key, System.currentTimeMillis());
+            }
+
+            closeReader(expected);
+
+            return true;
+        }
+
         @Override
         public void clear()
         {
-            for (String key : getKeys())
+            List<CacheEntry> removed;
+            synchronized (_lock)
             {
-                closeReader(get(key));
+                removed = getAll();
+                _cache.clear();
+                _lastAccessed.clear();
             }
 
-            _cache.clear();
+            removed.forEach(this::closeReader);
         }
 
         @Override
         public void close()
         {
+            List<CacheEntry> removed;
+            synchronized (_lock)
+            {
+                removed = getAll();
+                _cache.close();
+                _lastAccessed.clear();
+            }
+
+            removed.forEach(this::closeReader);
+        }
+
+        private List<CacheEntry> getAll()
+        {
+            List<CacheEntry> ret = new ArrayList<>();
             for (String key : getKeys())
             {
-                closeReader(get(key));
+                CacheEntry e = _cache.get(key);
+                if (e != null)
+                {
+                    ret.add(e);
+                }
             }
 
-            _cache.close();
+            return ret;
         }
 
         private void closeReader(@Nullable CacheEntry entry)
@@ -473,7 +1130,7 @@ private void closeReader(@Nullable CacheEntry entry)
 
             try
             {
-                entry.getIndexSearcher().getIndexReader().close();
+                entry.close();
             }
             catch (IOException e)
             {
@@ -484,17 +1141,59 @@ private void closeReader(@Nullable CacheEntry entry)
         @Override
         public void put(@NotNull String key, CacheEntry value)
         {
-            _cache.put(key, value);
+            put(key, value, null);
         }
 
         @Override
         public void put(@NotNull String key, CacheEntry value, long timeToLive)
         {
-            _cache.put(key, value, timeToLive);
+            put(key, value, (Long)timeToLive);
+        }
+
+        private void put(@NotNull String key, CacheEntry value, @Nullable Long timeToLive)
+        {
+            CacheEntry previous;
+            synchronized (_lock)
+            {
+                previous = _cache.get(key);
+                if (timeToLive == null)
+                {
+                    _cache.put(key, value);
+                }
+                else
+                {
+                    _cache.put(key, value, timeToLive);
+                }
+                _lastAccessed.put(key, System.currentTimeMillis());
+            }
+
+            // A replaced entry would otherwise never be closed:
+            if (previous != value)
+            {
+                closeReader(previous);
+            }
+
+            evictIfNeeded();
         }
 
         @Override
         public CacheEntry get(@NotNull String key)
+        {
+            maybeSweep();
+
+            CacheEntry ret = _cache.get(key);
+            if (ret != null)
+            {
+                _lastAccessed.put(key, System.currentTimeMillis());
+            }
+
+            return ret;
+        }
+
+        /**
+         * Returns the entry without counting this as an access.
+         */
+        public CacheEntry peek(@NotNull String key)
         {
             return _cache.get(key);
         }
@@ -502,13 +1201,29 @@ public CacheEntry get(@NotNull String key)
         @Override
         public CacheEntry get(@NotNull String key, @Nullable Object arg, CacheLoader<String, CacheEntry> loader)
         {
-            return _cache.get(key, arg, loader);
+            CacheEntry ret = _cache.get(key, arg, loader);
+            if (ret != null)
+            {
+                _lastAccessed.put(key, System.currentTimeMillis());
+            }
+
+            return ret;
         }
 
         @Override
         public int removeUsingFilter(Filter<String> filter)
         {
-            return _cache.removeUsingFilter(filter);
+            int removed = 0;
+            for (String key : getKeys())
+            {
+                if (filter.accept(key))
+                {
+                    remove(key);
+                    removed++;
+                }
+            }
+
+            return removed;
         }
 
         @Override
@@ -530,50 +1245,110 @@ public Cache<String, CacheEntry> createTemporaryCache()
         }
     }
 
-    public static class CacheEntry
+    public static class CacheEntry implements Closeable
     {
-        private final LRUQueryCache queryCache;
-        private final IndexSearcher indexSearcher;
+        private final SearcherManager searcherManager;
+        private final Directory indexDirectory;
         private final File luceneIndexDir;
+        private final long openedTime = System.currentTimeMillis();
 
-        public CacheEntry(LRUQueryCache queryCache, IndexSearcher indexSearcher, File luceneIndexDir)
+        public CacheEntry(SearcherManager searcherManager, Directory indexDirectory, File luceneIndexDir)
         {
-            this.queryCache = queryCache;
-            this.indexSearcher = indexSearcher;
+            this.searcherManager = searcherManager;
+            this.indexDirectory = indexDirectory;
             this.luceneIndexDir = luceneIndexDir;
         }
 
-        public LRUQueryCache getQueryCache()
+        public long getOpenedTime()
         {
-            return queryCache;
+            return openedTime;
         }
 
-        public IndexSearcher getIndexSearcher()
+        /**
+         * Callers must pass the searcher to releaseSearcher() when finished.
+         */
+        public IndexSearcher acquireSearcher() throws IOException
         {
-            return indexSearcher;
+            return searcherManager.acquire();
+        }
+
+        public void releaseSearcher(IndexSearcher indexSearcher)
+        {
+            try
+            {
+                searcherManager.release(indexSearcher);
+            }
+            catch (IOException e)
+            {
+                _log.error("Error releasing JBrowseLuceneSearch index searcher", e);
+            }
         }
 
         public File getLuceneIndexDir()
         {
             return luceneIndexDir;
         }
+
+        /**
+         * The underlying reader is closed once any in-flight searches release it. Those searches already hold open
+         * inputs for the index files, so the directory itself can be closed now.
+         */
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                searcherManager.close();
+            }
+            finally
+            {
+                indexDirectory.close();
+            }
+        }
     }
 
-    public static JSONArray reportCacheInfo()
+    public static JSONObject reportCacheInfo()
     {
-        JSONArray cacheInfo = new JSONArray();
-        for (String sessionId : _cache.getKeys())
+        JSONObject cacheInfo = new JSONObject();
+
+        LRUQueryCache qc = getSharedQueryCache();
+        JSONObject queryCacheInfo = new JSONObject();
+        queryCacheInfo.put("maxRamBytesUsed", getQueryCacheMaxRamBytes());
+        queryCacheInfo.put("ramBytesUsed", qc.ramBytesUsed());
+        queryCacheInfo.put("cacheSize", qc.getCacheSize());
+        queryCacheInfo.put("cacheCount", qc.getCacheCount());
+        queryCacheInfo.put("hitCount", qc.getHitCount());
+        queryCacheInfo.put("missCount", qc.getMissCount());
+        queryCacheInfo.put("evictionCount", qc.getEvictionCount());
+        queryCacheInfo.put("totalCount", qc.getTotalCount());
+        cacheInfo.put("queryCache", queryCacheInfo);
+
+        JSONObject readerInfo = new JSONObject();
+        readerInfo.put("maxOpenIndexes", _cache.getMaxOpenIndexes());
+        readerInfo.put("maxIdleMinutes", _cache.getMaxIdleMillis() / (60 * 1000));
+        readerInfo.put("evictionCount", _cache.getEvictionCount());
+
+        JSONArray indexes = new JSONArray();
+        for (String trackId : _cache.getKeys())
         {
-            LRUQueryCache qc = _cache.get(sessionId).getQueryCache();
+            CacheEntry entry = _cache.peek(trackId);
+            if (entry == null)
+            {
+                continue;
+            }
+
             JSONObject info = new JSONObject();
-            info.put("cacheSize", qc.getCacheSize());
-            info.put("cacheCount", qc.getCacheCount());
-            info.put("hitCount", qc.getHitCount());
-            info.put("missCount", qc.getMissCount());
-            info.put("evictionCount", qc.getEvictionCount());
-            info.put("totalCount", qc.getTotalCount());
-            cacheInfo.put(info);
+            info.put("trackId", trackId);
+            info.put("luceneIndexDir", entry.getLuceneIndexDir().getPath());
+            info.put("opened", new Date(entry.getOpenedTime()));
+            Long lastAccessed = _cache.getLastAccessed(trackId);
+            info.put("lastAccessed", lastAccessed == null ? null : new Date(lastAccessed));
+            indexes.put(info);
         }
+        readerInfo.put("openIndexes", indexes);
+        readerInfo.put("openIndexCount", indexes.length());
+        cacheInfo.put("readers", readerInfo);
+        cacheInfo.put("searchExecutor", LuceneSearchExecutor.get().getMetrics());
 
         return cacheInfo;
     }
@@ -583,7 +1358,10 @@ public void cacheDefaultQuery()
         try
         {
             JBrowseLuceneSearch.clearCache(_jsonFile.getObjectId());
-            doSearch(_user, ALL_DOCS, 100, 0, GENOMIC_POSITION, false);
+            try (SearchResults ignored = doSearch(_user, ALL_DOCS, 100, 0, GENOMIC_POSITION, false, null))
+            {
+                // The search is executed only to populate the query cache
+            }
         }
         catch (ParseException | IOException e)
         {
@@ -600,10 +1378,55 @@ public static void clearCacheForFile(@NotNull File luceneIndexDir)
     {
         for (String key : _cache.getKeys())
         {
-            CacheEntry entry = _cache.get(key);
+            CacheEntry entry = _cache.peek(key);
             if (entry != null && luceneIndexDir.equals(entry.getLuceneIndexDir()))
             {
-                _cache.remove(key);
+                clearCache(key);
+            }
+        }
+    }
+
+    /**
+     * Picks up a rebuilt index for this track, which is swapped into place as a new directory. SearcherManager.maybeRefresh()
+     * cannot be used for this, since the new index is unrelated to the open one, so a new reader is opened and replaces
+     * the cached reader. Unlike clearCache(), searches remain available throughout and in-flight searches finish against
+     * the prior reader. If the track is not open, the new index is simply opened on the next search.
+     */
+    public static void refreshCache(@NotNull String jbrowseTrackId)
+    {
+        // Compiled queries depend on the indexed fields, which may have changed with the rebuild:
+        String prefix = getQueryCacheKeyPrefix(jbrowseTrackId);
+        _queryCache.removeUsingFilter(key -> key.startsWith(prefix));
+        _schemaCache.removeUsingFilter(key -> key.startsWith(prefix));
+
+        CacheEntry entry = _cache.peek(jbrowseTrackId);
+        if (entry == null)
+        {
+            return;
+        }
+
+        CacheEntry reopened;
+        try
+        {
+            reopened = openCacheEntry(jbrowseTrackId, entry.getLuceneIndexDir());
+        }
+        catch (IllegalStateException e)
+        {
+            _log.error("Unable to refresh JBrowseLuceneSearch index reader for: " + jbrowseTrackId + ", closing it", e);
+            clearCache(jbrowseTrackId);
+            return;
+        }
+
+        if (!_cache.replace(jbrowseTrackId, entry, reopened))
+        {
+            // The entry was concurrently closed or reopened, and any reopen already reflects the new index
+            try
+            {
+                reopened.close();
+            }
+            catch (IOException e)
+            {
+                _log.error("Error closing JBrowseLuceneSearch index reader", e);
             }
         }
     }
@@ -613,10 +1436,16 @@ public static void clearCache(@Nullable String jbrowseTrackId)
         if (jbrowseTrackId == null)
         {
             _cache.clear();
+            _queryCache.clear();
+            _schemaCache.clear();
         }
         else
         {
             _cache.remove(jbrowseTrackId);
+
+            String prefix = getQueryCacheKeyPrefix(jbrowseTrackId);
+            _queryCache.removeUsingFilter(key -> key.startsWith(prefix));
+            _schemaCache.removeUsingFilter(key -> key.startsWith(prefix));
         }
     }
 
@@ -639,6 +1468,7 @@ public void shutdownStarted()
         {
             _log.info("Clearing all open JBrowse/Lucene cached readers");
             JBrowseLuceneSearch.emptyCache();
+            LuceneSearchExecutor.shutdown();
         }
     }
 }
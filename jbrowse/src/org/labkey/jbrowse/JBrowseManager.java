@@ -16,6 +16,7 @@
 
 package org.labkey.jbrowse;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.SystemUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -32,6 +33,7 @@
 import org.labkey.api.files.FileContentService;
 import org.labkey.api.module.Module;
 import org.labkey.api.module.ModuleLoader;
+import org.labkey.api.module.ModuleProperty;
 import org.labkey.api.pipeline.PipeRoot;
 import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.api.pipeline.PipelineService;
@@ -63,8 +65,14 @@
 public class JBrowseManager
 {
     private static final JBrowseManager _instance = new JBrowseManager();
+    private static final Logger _log = LogManager.getLogger(JBrowseManager.class);
     public final static String SEQUENCE_ANALYSIS = "sequenceanalysis";
 
+    public final static String LUCENE_QUERY_CACHE_MAX_MB = "LuceneQueryCacheMaxMB";
+    public final static String LUCENE_MAX_OPEN_INDEXES = "LuceneMaxOpenIndexes";
+    public final static String LUCENE_INDEX_IDLE_MINUTES = "LuceneIndexIdleMinutes";
+    public final static String LUCENE_SEARCH_THREADS = "LuceneSearchThreads";
+
     public static final List<FileType> ALLOWABLE_TRACK_EXTENSIONS = Arrays.asList(
             new FileType("vcf", FileType.gzSupportLevel.SUPPORT_GZ),
             new FileType("bcf", FileType.gzSupportLevel.NO_GZ),
@@ -88,6 +96,27 @@ public static JBrowseManager get()
         return _instance;
     }
 
+    public int getIntModuleProperty(String name, int defaultValue)
+    {
+        Module m = ModuleLoader.getInstance().getModule(JBrowseModule.NAME);
+        ModuleProperty mp = m == null ? null : m.getModuleProperties().get(name);
+        String val = mp == null ? null : StringUtils.trimToNull(mp.getValueContainerSpecific(ContainerManager.getRoot()));
+        if (val == null)
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            return Integer.parseInt(val);
+        }
+        catch (NumberFormatException e)
+        {
+            _log.error("Invalid value for JBrowse module property " + name + ": " + val);
+            return defaultValue;
+        }
+    }
+
     public void createDatabase(Container c, User u, String name, String description, Integer libraryId, List<Integer> trackIds, List<Integer> outputFileIds, boolean isTemporary) throws IOException
     {
         try
@@ -117,6 +117,7 @@ public void doStartupAfterSpringConfig(ModuleContext moduleContext)
         ContentSecurityPolicyFilter.registerAllowedConnectionSource(this.getClass().getName(), "https://jbrowse.org", "https://s3.amazonaws.com", "https://ftp.ncbi.nlm.nih.gov");
 
         ContextListener.addShutdownListener(new JBrowseLuceneSearch.ShutdownHandler());
+        ContextListener.addShutdownListener(new VcfReaderCache.ShutdownHandler());
     }
 
     public static void registerPipelineSteps()
@@ -144,7 +145,8 @@ public Set<String> getSchemaNames()
     public Set<Class> getUnitTests()
     {
         return PageFlowUtil.set(
-                JBrowseManager.TestCase.class
+                JBrowseManager.TestCase.class,
+                JBrowseController.TestCase.class
         );
     }
 }
\ No newline at end of file
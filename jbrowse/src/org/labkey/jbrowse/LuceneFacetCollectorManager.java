@@ -0,0 +1,463 @@
+package org.labkey.jbrowse;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.ScoreMode;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes term counts for string fields and histograms for numeric fields over all documents matching a query,
+ * in a single pass using the doc values written for sorting (i.e. {field}_sort). Each search slice gets its own collector,
+ * and these are merged in reduce().
+ */
+public class LuceneFacetCollectorManager implements CollectorManager<LuceneFacetCollectorManager.FacetCollector, JSONObject>
+{
+    private final List<FacetSpec> _facets;
+
+    public LuceneFacetCollectorManager(List<FacetSpec> facets)
+    {
+        _facets = facets;
+    }
+
+    @Override
+    public FacetCollector newCollector()
+    {
+        List<Accumulator> accumulators = new ArrayList<>();
+        for (FacetSpec spec : _facets)
+        {
+            accumulators.add(spec.newAccumulator());
+        }
+
+        return new FacetCollector(accumulators);
+    }
+
+    @Override
+    public JSONObject reduce(Collection<FacetCollector> collectors) throws IOException
+    {
+        long totalHits = 0;
+        List<Accumulator> merged = null;
+        for (FacetCollector collector : collectors)
+        {
+            collector.finish();
+            totalHits += collector._totalHits;
+
+            if (merged == null)
+            {
+                merged = collector._accumulators;
+            }
+            else
+            {
+                for (int i = 0; i < merged.size(); i++)
+                {
+                    merged.get(i).merge(collector._accumulators.get(i));
+                }
+            }
+        }
+
+        JSONObject facets = new JSONObject();
+        for (int i = 0; i < _facets.size(); i++)
+        {
+            facets.put(_facets.get(i).getFieldName(), merged == null ? _facets.get(i).newAccumulator().toJSON() : merged.get(i).toJSON());
+        }
+
+        JSONObject ret = new JSONObject();
+        ret.put("totalHits", totalHits);
+        ret.put("facets", facets);
+
+        return ret;
+    }
+
+    public static abstract class FacetSpec
+    {
+        private final String _fieldName;
+
+        protected FacetSpec(String fieldName)
+        {
+            _fieldName = fieldName;
+        }
+
+        public String getFieldName()
+        {
+            return _fieldName;
+        }
+
+        public String getDocValuesField()
+        {
+            return _fieldName + "_sort";
+        }
+
+        protected abstract Accumulator newAccumulator();
+    }
+
+    public static class TermsFacet extends FacetSpec
+    {
+        private final int _maxTerms;
+
+        public TermsFacet(String fieldName, int maxTerms)
+        {
+            super(fieldName);
+            _maxTerms = maxTerms;
+        }
+
+        @Override
+        protected Accumulator newAccumulator()
+        {
+            return new TermsAccumulator(this);
+        }
+    }
+
+    public static class HistogramFacet extends FacetSpec
+    {
+        private final boolean _isDouble;
+        private final int _numBuckets;
+        private final Double _min;
+        private final Double _max;
+
+        /**
+         * @param min The lower bound of the first bucket. If either bound is null, only summary statistics are computed.
+         * @param max The upper bound of the last bucket
+         */
+        public HistogramFacet(String fieldName, boolean isDouble, int numBuckets, @Nullable Double min, @Nullable Double max)
+        {
+            super(fieldName);
+            _isDouble = isDouble;
+            _numBuckets = numBuckets;
+            _min = min;
+            _max = max;
+        }
+
+        @Override
+        protected Accumulator newAccumulator()
+        {
+            return new HistogramAccumulator(this);
+        }
+    }
+
+    public static class FacetCollector implements Collector
+    {
+        private final List<Accumulator> _accumulators;
+        private long _totalHits = 0;
+
+        public FacetCollector(List<Accumulator> accumulators)
+        {
+            _accumulators = accumulators;
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException
+        {
+            for (Accumulator a : _accumulators)
+            {
+                a.setNextReader(context);
+            }
+
+            return new LeafCollector()
+            {
+                @Override
+                public void setScorer(Scorable scorer)
+                {
+
+                }
+
+                @Override
+                public void collect(int doc) throws IOException
+                {
+                    _totalHits++;
+                    for (Accumulator a : _accumulators)
+                    {
+                        a.collect(doc);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public ScoreMode scoreMode()
+        {
+            return ScoreMode.COMPLETE_NO_SCORES;
+        }
+
+        private void finish() throws IOException
+        {
+            for (Accumulator a : _accumulators)
+            {
+                a.finishReader();
+            }
+        }
+    }
+
+    static abstract class Accumulator
+    {
+        protected long _missing = 0;
+
+        abstract void setNextReader(LeafReaderContext context) throws IOException;
+
+        abstract void collect(int doc) throws IOException;
+
+        void finishReader() throws IOException
+        {
+
+        }
+
+        abstract void merge(Accumulator other);
+
+        abstract JSONObject toJSON();
+
+        protected static boolean hasDocValues(LeafReaderContext context, String field, DocValuesType... allowedTypes)
+        {
+            FieldInfo fi = context.reader().getFieldInfos().fieldInfo(field);
+            if (fi == null || fi.getDocValuesType() == DocValuesType.NONE)
+            {
+                return false;
+            }
+
+            for (DocValuesType t : allowedTypes)
+            {
+                if (t == fi.getDocValuesType())
+                {
+                    return true;
+                }
+            }
+
+            throw new IllegalArgumentException("Field cannot be summarized: " + field);
+        }
+    }
+
+    /**
+     * Counts are tallied per segment by ordinal, and only resolved to strings once per segment.
+     */
+    private static class TermsAccumulator extends Accumulator
+    {
+        private final TermsFacet _spec;
+        private final Map<String, Long> _counts = new HashMap<>();
+
+        private SortedSetDocValues _values = null;
+        private long[] _ordCounts = null;
+
+        public TermsAccumulator(TermsFacet spec)
+        {
+            _spec = spec;
+        }
+
+        @Override
+        void setNextReader(LeafReaderContext context) throws IOException
+        {
+            finishReader();
+
+            if (hasDocValues(context, _spec.getDocValuesField(), DocValuesType.SORTED, DocValuesType.SORTED_SET))
+            {
+                _values = DocValues.getSortedSet(context.reader(), _spec.getDocValuesField());
+                _ordCounts = new long[Math.toIntExact(_values.getValueCount())];
+            }
+        }
+
+        @Override
+        void collect(int doc) throws IOException
+        {
+            if (_values == null || !_values.advanceExact(doc))
+            {
+                _missing++;
+                return;
+            }
+
+            for (int i = 0; i < _values.docValueCount(); i++)
+            {
+                _ordCounts[(int)_values.nextOrd()]++;
+            }
+        }
+
+        @Override
+        void finishReader() throws IOException
+        {
+            if (_values == null)
+            {
+                return;
+            }
+
+            for (int ord = 0; ord < _ordCounts.length; ord++)
+            {
+                if (_ordCounts[ord] > 0)
+                {
+                    _counts.merge(_values.lookupOrd(ord).utf8ToString(), _ordCounts[ord], Long::sum);
+                }
+            }
+
+            _values = null;
+            _ordCounts = null;
+        }
+
+        @Override
+        void merge(Accumulator other)
+        {
+            TermsAccumulator o = (TermsAccumulator)other;
+            o._counts.forEach((term, count) -> _counts.merge(term, count, Long::sum));
+            _missing += o._missing;
+        }
+
+        @Override
+        JSONObject toJSON()
+        {
+            List<Map.Entry<String, Long>> sorted = new ArrayList<>(_counts.entrySet());
+            sorted.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+
+            JSONArray buckets = new JSONArray();
+            long otherCount = 0;
+            for (int i = 0; i < sorted.size(); i++)
+            {
+                if (i < _spec._maxTerms)
+                {
+                    JSONObject bucket = new JSONObject();
+                    bucket.put("value", sorted.get(i).getKey());
+                    bucket.put("count", sorted.get(i).getValue());
+                    buckets.put(bucket);
+                }
+                else
+                {
+                    otherCount += sorted.get(i).getValue();
+                }
+            }
+
+            JSONObject ret = new JSONObject();
+            ret.put("type", "terms");
+            ret.put("buckets", buckets);
+            ret.put("distinctValues", sorted.size());
+            ret.put("otherCount", otherCount);
+            ret.put("missingCount", _missing);
+
+            return ret;
+        }
+    }
+
+    private static class HistogramAccumulator extends Accumulator
+    {
+        private final HistogramFacet _spec;
+        private final long[] _buckets;
+        private final double _bucketWidth;
+
+        private SortedNumericDocValues _values = null;
+        private long _count = 0;
+        private double _sum = 0;
+        private double _min = Double.POSITIVE_INFINITY;
+        private double _max = Double.NEGATIVE_INFINITY;
+
+        public HistogramAccumulator(HistogramFacet spec)
+        {
+            _spec = spec;
+            if (spec._min != null && spec._max != null && spec._numBuckets > 0)
+            {
+                _buckets = new long[spec._numBuckets];
+                _bucketWidth = (spec._max - spec._min) / spec._numBuckets;
+            }
+            else
+            {
+                _buckets = null;
+                _bucketWidth = 0;
+            }
+        }
+
+        @Override
+        void setNextReader(LeafReaderContext context) throws IOException
+        {
+            _values = null;
+            if (hasDocValues(context, _spec.getDocValuesField(), DocValuesType.NUMERIC, DocValuesType.SORTED_NUMERIC))
+            {
+                _values = DocValues.getSortedNumeric(context.reader(), _spec.getDocValuesField());
+            }
+        }
+
+        @Override
+        void collect(int doc) throws IOException
+        {
+            if (_values == null || !_values.advanceExact(doc))
+            {
+                _missing++;
+                return;
+            }
+
+            for (int i = 0; i < _values.docValueCount(); i++)
+            {
+                long raw = _values.nextValue();
+
+                // Floats are indexed using DoubleDocValuesField, which stores the raw bits of the double
+                double val = _spec._isDouble ? Double.longBitsToDouble(raw) : raw;
+                _count++;
+                _sum += val;
+                _min = Math.min(_min, val);
+                _max = Math.max(_max, val);
+
+                if (_buckets != null)
+                {
+                    int idx = _bucketWidth == 0 ? 0 : (int)Math.floor((val - _spec._min) / _bucketWidth);
+                    _buckets[Math.max(0, Math.min(_buckets.length - 1, idx))]++;
+                }
+            }
+        }
+
+        @Override
+        void merge(Accumulator other)
+        {
+            HistogramAccumulator o = (HistogramAccumulator)other;
+            _count += o._count;
+            _sum += o._sum;
+            _min = Math.min(_min, o._min);
+            _max = Math.max(_max, o._max);
+            _missing += o._missing;
+
+            if (_buckets != null)
+            {
+                for (int i = 0; i < _buckets.length; i++)
+                {
+                    _buckets[i] += o._buckets[i];
+                }
+            }
+        }
+
+        @Override
+        JSONObject toJSON()
+        {
+            JSONObject ret = new JSONObject();
+            ret.put("type", "histogram");
+            ret.put("count", _count);
+            ret.put("missingCount", _missing);
+            if (_count > 0)
+            {
+                ret.put("min", _min);
+                ret.put("max", _max);
+                ret.put("mean", _sum / _count);
+            }
+
+            if (_buckets != null)
+            {
+                JSONArray buckets = new JSONArray();
+                for (int i = 0; i < _buckets.length; i++)
+                {
+                    JSONObject bucket = new JSONObject();
+                    bucket.put("start", _spec._min + (i * _bucketWidth));
+                    bucket.put("end", i == _buckets.length - 1 ? _spec._max : _spec._min + ((i + 1) * _bucketWidth));
+                    bucket.put("count", _buckets[i]);
+                    buckets.put(bucket);
+                }
+                ret.put("buckets", buckets);
+            }
+
+            return ret;
+        }
+    }
+}
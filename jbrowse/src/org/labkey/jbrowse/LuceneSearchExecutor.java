@@ -0,0 +1,116 @@
+package org.labkey.jbrowse;
+
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONObject;
+import org.labkey.api.util.logging.LogHelper;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A server-wide, bounded thread pool used by JBrowse/Lucene index searchers to search segment slices in parallel.
+ * The number of threads is set by the LuceneSearchThreads module property, and a value of 0 disables parallel search.
+ * When the pool and its queue are saturated, or the pool has been shut down, slices run on the requesting thread rather than failing the query.
+ */
+public class LuceneSearchExecutor
+{
+    private static final Logger _log = LogHelper.getLogger(LuceneSearchExecutor.class, "Logger related to the JBrowse/Lucene search thread pool");
+    private static final int QUEUE_SIZE_PER_THREAD = 16;
+
+    private static LuceneSearchExecutor _instance = null;
+
+    private final ThreadPoolExecutor _executor;
+    private final int _threads;
+    private final AtomicLong _callerRunsCount = new AtomicLong();
+
+    private LuceneSearchExecutor(int threads)
+    {
+        _threads = threads;
+        if (threads > 0)
+        {
+            // NOTE: tasks are also run on the caller after shutdown. IndexSearcher waits on every slice it submits, so
+            // dropping one would leave that search blocked indefinitely
+            RejectedExecutionHandler callerRuns = (r, executor) -> {
+                _callerRunsCount.incrementAndGet();
+                r.run();
+            };
+
+            _executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(threads * QUEUE_SIZE_PER_THREAD), new SearchThreadFactory(), callerRuns);
+            _executor.allowCoreThreadTimeOut(true);
+            _log.info("Created JBrowse/Lucene search thread pool with " + threads + " threads");
+        }
+        else
+        {
+            _executor = null;
+        }
+    }
+
+    public static synchronized LuceneSearchExecutor get()
+    {
+        if (_instance == null)
+        {
+            int defaultThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            _instance = new LuceneSearchExecutor(Math.max(0, JBrowseManager.get().getIntModuleProperty(JBrowseManager.LUCENE_SEARCH_THREADS, defaultThreads)));
+        }
+
+        return _instance;
+    }
+
+    /**
+     * @return The executor to pass to IndexSearcher, or null if parallel search is disabled
+     */
+    public @Nullable ExecutorService getExecutor()
+    {
+        return _executor;
+    }
+
+    public JSONObject getMetrics()
+    {
+        JSONObject ret = new JSONObject();
+        ret.put("threads", _threads);
+        if (_executor != null)
+        {
+            ret.put("poolSize", _executor.getPoolSize());
+            ret.put("largestPoolSize", _executor.getLargestPoolSize());
+            ret.put("activeCount", _executor.getActiveCount());
+            ret.put("queueSize", _executor.getQueue().size());
+            ret.put("taskCount", _executor.getTaskCount());
+            ret.put("completedTaskCount", _executor.getCompletedTaskCount());
+            ret.put("callerRunsCount", _callerRunsCount.get());
+        }
+
+        return ret;
+    }
+
+    public static synchronized void shutdown()
+    {
+        if (_instance != null && _instance._executor != null)
+        {
+            _log.info("Shutting down JBrowse/Lucene search thread pool");
+            _instance._executor.shutdownNow();
+        }
+
+        _instance = null;
+    }
+
+    private static class SearchThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger _threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "JBrowseLuceneSearch-" + _threadNumber.getAndIncrement());
+            t.setDaemon(true);
+
+            return t;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package org.labkey.jbrowse;
+
+import htsjdk.variant.vcf.VCFFileReader;
+import org.apache.logging.log4j.Logger;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.Container;
+import org.labkey.api.security.User;
+import org.labkey.api.util.ShutdownListener;
+import org.labkey.api.util.logging.LogHelper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a small pool of open, indexed VCF readers per track file, so the header and index are parsed once rather than on every
+ * genotype request. VCFFileReader is not thread-safe, so each request borrows its own reader and returns it when done.
+ * Pools are discarded if the file is modified, or after they have been idle for IDLE_MILLIS.
+ */
+public class VcfReaderCache
+{
+    private static final Logger _log = LogHelper.getLogger(VcfReaderCache.class, "Messages related to cached JBrowse VCF readers");
+    private static final VcfReaderCache _instance = new VcfReaderCache();
+
+    private static final int MAX_IDLE_READERS_PER_FILE = 4;
+    private static final long IDLE_MILLIS = 30 * 60 * 1000L;
+    private static final long SWEEP_INTERVAL_MILLIS = 60 * 1000L;
+
+    // Resolved demographics depend on the user's permissions, so these are keyed on file, container and user
+    private final Cache<String, Map<String, Map<String, Object>>> _demographicsCache = CacheManager.getStringKeyCache(500, CacheManager.MINUTE * 5, "JBrowseGenotypeDemographicsCache");
+
+    private final Map<String, FilePool> _pools = new ConcurrentHashMap<>();
+    private volatile long _lastSweep = System.currentTimeMillis();
+
+    private VcfReaderCache()
+    {
+
+    }
+
+    public static VcfReaderCache get()
+    {
+        return _instance;
+    }
+
+    public Lease borrow(File vcf)
+    {
+        sweepIfNeeded();
+
+        long lastModified = vcf.lastModified();
+        FilePool pool = _pools.compute(vcf.getAbsolutePath(), (path, existing) -> {
+            if (existing != null && existing._lastModified == lastModified)
+            {
+                return existing;
+            }
+
+            if (existing != null)
+            {
+                _log.debug("VCF has been modified, discarding cached readers: " + path);
+                existing.retire();
+            }
+
+            return new FilePool(vcf, lastModified);
+        });
+
+        return pool.borrow();
+    }
+
+    public Map<String, Map<String, Object>> getDemographics(Lease lease, User u, Container c)
+    {
+        String key = lease._pool._vcf.getAbsolutePath() + "||" + lease._pool._lastModified + "||" + c.getId() + "||" + u.getUserId();
+
+        return _demographicsCache.get(key, null, (k, arg) -> Collections.unmodifiableMap(JBrowseServiceImpl.get().resolveSubjects(lease.getSamples(), u, c)));
+    }
+
+    private void sweepIfNeeded()
+    {
+        long now = System.currentTimeMillis();
+        if (now - _lastSweep < SWEEP_INTERVAL_MILLIS)
+        {
+            return;
+        }
+
+        _lastSweep = now;
+        _pools.entrySet().removeIf(e -> {
+            if (now - e.getValue()._lastAccessed > IDLE_MILLIS)
+            {
+                e.getValue().retire();
+                return true;
+            }
+
+            return false;
+        });
+    }
+
+    public void closeAll()
+    {
+        _pools.values().forEach(FilePool::retire);
+        _pools.clear();
+        _demographicsCache.clear();
+    }
+
+    public class Lease implements Closeable
+    {
+        private final FilePool _pool;
+        private final VCFFileReader _reader;
+        private boolean _closed = false;
+
+        private Lease(FilePool pool, VCFFileReader reader)
+        {
+            _pool = pool;
+            _reader = reader;
+        }
+
+        public VCFFileReader getReader()
+        {
+            return _reader;
+        }
+
+        /**
+         * @return The header sample names, in order. This is cached with the pool and shared across requests.
+         */
+        public List<String> getSamples()
+        {
+            return _pool.getSamples(_reader);
+        }
+
+        @Override
+        public synchronized void close()
+        {
+            if (!_closed)
+            {
+                _closed = true;
+                _pool.release(_reader);
+            }
+        }
+    }
+
+    private class FilePool
+    {
+        private final File _vcf;
+        private final long _lastModified;
+        private final ConcurrentLinkedDeque<VCFFileReader> _idle = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger _idleCount = new AtomicInteger();
+
+        private volatile List<String> _samples = null;
+        private volatile long _lastAccessed = System.currentTimeMillis();
+        private volatile boolean _retired = false;
+
+        public FilePool(File vcf, long lastModified)
+        {
+            _vcf = vcf;
+            _lastModified = lastModified;
+        }
+
+        public Lease borrow()
+        {
+            _lastAccessed = System.currentTimeMillis();
+
+            VCFFileReader reader = _idle.pollFirst();
+            if (reader != null)
+            {
+                _idleCount.decrementAndGet();
+            }
+            else
+            {
+                reader = new VCFFileReader(_vcf);
+            }
+
+            return new Lease(this, reader);
+        }
+
+        public List<String> getSamples(VCFFileReader reader)
+        {
+            if (_samples == null)
+            {
+                _samples = Collections.unmodifiableList(reader.getFileHeader().getSampleNamesInOrder());
+            }
+
+            return _samples;
+        }
+
+        public void release(VCFFileReader reader)
+        {
+            if (!_retired && _idleCount.incrementAndGet() <= MAX_IDLE_READERS_PER_FILE)
+            {
+                _idle.offerFirst(reader);
+
+                // retire() could have drained the pool between the check and the offer
+                if (_retired)
+                {
+                    closeIdle();
+                }
+
+                return;
+            }
+
+            if (!_retired)
+            {
+                _idleCount.decrementAndGet();
+            }
+
+            reader.close();
+        }
+
+        public void retire()
+        {
+            _retired = true;
+            closeIdle();
+        }
+
+        private void closeIdle()
+        {
+            VCFFileReader reader;
+            while ((reader = _idle.pollFirst()) != null)
+            {
+                _idleCount.decrementAndGet();
+                try
+                {
+                    reader.close();
+                }
+                catch (Exception e)
+                {
+                    _log.error("Unable to close VCF reader for: " + _vcf.getPath(), e);
+                }
+            }
+        }
+    }
+
+    public static class ShutdownHandler implements ShutdownListener
+    {
+        @Override
+        public String getName()
+        {
+            return "JBrowse VCF Reader Shutdown Listener";
+        }
+
+        @Override
+        public void shutdownPre()
+        {
+
+        }
+
+        @Override
+        public void shutdownStarted()
+        {
+            _log.info("Closing all cached JBrowse VCF readers");
+            VcfReaderCache.get().closeAll();
+        }
+    }
+}
@@ -958,7 +958,8 @@ public File prepareResource(User u, Logger log, boolean throwIfNotPrepared, bool
             long sizeInGb = targetFile.length() / (1024 * 1024 * 1024);
             log.debug("preparing lucene index, VCF size: " + sizeInGb);
 
-            if (!forceReprocess && doesLuceneIndexExist())
+            boolean canReuseIndex = doesLuceneIndexExist() && JBrowseLucenePipelineJob.canReuseExistingIndex(luceneDir, getInfoFieldsToIndex(), log);
+            if (!forceReprocess && canReuseIndex)
             {
                 log.debug("Existing lucene index found, will not re-create: " + luceneDir.getPath());
             }
@@ -998,6 +999,10 @@ else if (existingLuceneDir != null && existingLuceneDir.exists())
                     throw new PipelineJobException(e);
                 }
             }
+            else if (sizeInGb > 50 && JBrowseLucenePipelineJob.isIndexJobActive(getContainerObj(), getObjectId()))
+            {
+                log.info("A VcfToLuceneIndexer pipeline job has already been submitted for this track and has not finished, will not submit another: " + luceneDir.getPath());
+            }
             else if (sizeInGb > 50)
             {
                 log.info("VCF is too large, submitting VcfToLuceneIndexer as a separate pipeline job");
@@ -1016,28 +1021,10 @@ else if (sizeInGb > 50)
             }
             else
             {
-                if (forceReprocess && luceneDir.exists())
-                {
-                    try
-                    {
-                        log.debug("Deleting existing index: " + luceneDir.getPath());
-                        FileUtils.deleteDirectory(luceneDir);
-                    }
-                    catch (IOException e)
-                    {
-                        throw new PipelineJobException(e);
-                    }
-                }
-
-                if (forceReprocess || !doesLuceneIndexExist())
-                {
-                    JBrowseLucenePipelineJob.prepareLuceneIndex(targetFile, luceneDir, log, getInfoFieldsToIndex(), allowLenientLuceneProcessing());
-                    JBrowseLuceneSearch.clearCache(getObjectId());
-                }
-                else
-                {
-                    log.debug("Existing lucene index found, will not re-create: " + luceneDir.getPath());
-                }
+                // NOTE: the existing index is not deleted up front. The new index is built in a separate directory and
+                // swapped into place, so searches against this track continue to work during the rebuild.
+                JBrowseLucenePipelineJob.prepareLuceneIndex(targetFile, luceneDir, log, getInfoFieldsToIndex(), allowLenientLuceneProcessing());
+                JBrowseLuceneSearch.refreshCache(getObjectId());
             }
         }
 
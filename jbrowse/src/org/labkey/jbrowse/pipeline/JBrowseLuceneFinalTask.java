@@ -73,7 +73,7 @@ public RecordedActionSet run() throws PipelineJobException
             throw new PipelineJobException("This task must run on the webserver!");
         }
 
-        JBrowseLuceneSearch.clearCache(getPipelineJob().getJbrowseTrackId());
+        JBrowseLuceneSearch.refreshCache(getPipelineJob().getJbrowseTrackId());
         return new RecordedActionSet(Collections.singleton(new RecordedAction("JBrowse-Lucene")));
     }
 
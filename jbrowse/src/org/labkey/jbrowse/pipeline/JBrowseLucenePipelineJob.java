@@ -1,10 +1,18 @@
 package org.labkey.jbrowse.pipeline;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.SystemUtils;
 import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 import org.labkey.api.assay.AssayFileWriter;
+import org.labkey.api.data.CompareType;
 import org.labkey.api.data.Container;
+import org.labkey.api.data.DbSchema;
+import org.labkey.api.data.DbSchemaType;
+import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.TableSelector;
 import org.labkey.api.files.FileUrls;
 import org.labkey.api.module.Module;
 import org.labkey.api.pipeline.PipeRoot;
@@ -15,6 +23,8 @@
 import org.labkey.api.pipeline.PipelineProvider;
 import org.labkey.api.pipeline.TaskId;
 import org.labkey.api.pipeline.TaskPipeline;
+import org.labkey.api.query.FieldKey;
+import org.labkey.api.reader.Readers;
 import org.labkey.api.security.User;
 import org.labkey.api.sequenceanalysis.pipeline.SequencePipelineService;
 import org.labkey.api.sequenceanalysis.run.DISCVRSeqRunner;
@@ -26,10 +36,24 @@
 import org.labkey.api.writer.PrintWriters;
 import org.labkey.jbrowse.JBrowseManager;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
 
 /**
  * User: bimber
@@ -81,7 +105,12 @@ public void updateFileProperties(ViewContext context, PipeRoot pr, PipelineDirec
     @Override
     public String getDescription()
     {
-        return "Preparing VCF index";
+        return getDescription(_jbrowseTrackId);
+    }
+
+    private static String getDescription(String jbrowseTrackId)
+    {
+        return "Preparing VCF index: " + jbrowseTrackId;
     }
 
 
@@ -158,11 +187,14 @@ public static void prepareLuceneIndex(File vcf, File indexDir, Logger log, List<
             return;
         }
 
-        if (indexDir.exists())
+        // The new index is built alongside the existing one, which remains searchable until it is swapped into place
+        File stagingDir = new File(indexDir.getParentFile(), indexDir.getName() + ".staging");
+        if (stagingDir.exists())
         {
             try
             {
-                FileUtils.deleteDirectory(indexDir);
+                log.debug("Deleting existing staging directory: " + stagingDir.getPath());
+                FileUtils.deleteDirectory(stagingDir);
             }
             catch (IOException e)
             {
@@ -175,7 +207,7 @@ public static void prepareLuceneIndex(File vcf, File indexDir, Logger log, List<
         args.add(vcf.getPath());
 
         args.add("-O");
-        args.add(indexDir.getPath());
+        args.add(stagingDir.getPath());
 
         if (allowLenientLuceneProcessing)
         {
@@ -215,7 +247,7 @@ public static void prepareLuceneIndex(File vcf, File indexDir, Logger log, List<
             try
             {
                 log.debug("Updating file permissions");
-                recursivelyChangeDirectoryPermissions(indexDir);
+                recursivelyChangeDirectoryPermissions(stagingDir);
             }
             catch (IOException e)
             {
@@ -223,7 +255,7 @@ public static void prepareLuceneIndex(File vcf, File indexDir, Logger log, List<
             }
         }
 
-        File fieldFile = getFieldListFile(indexDir);
+        File fieldFile = getFieldListFile(stagingDir);
         try (PrintWriter writer = PrintWriters.getPrintWriter(fieldFile))
         {
             infoFieldsForFullTextSearch.forEach(writer::println);
@@ -232,31 +264,193 @@ public static void prepareLuceneIndex(File vcf, File indexDir, Logger log, List<
         {
             throw new PipelineJobException(e);
         }
+
+        swapIndexDirectory(stagingDir, indexDir, log);
     }
 
-    public static File getExpectedLocationOfLuceneIndexStats(File indexDir)
+    /**
+     * Moves the newly built index into place using two renames: the prior index is moved aside, then the new one is moved
+     * into the final location. Each rename is atomic, but the pair is not, so there is a brief window in which the final
+     * location does not exist and a reader opened at that moment will fail. The final location never holds a partially
+     * written index. Readers already open against the prior index keep their file handles, and the server picks up the
+     * new index once JBrowseLuceneSearch.refreshCache() is called for this track. If the new index cannot be moved into
+     * place, the prior index is restored.
+     */
+    private static void swapIndexDirectory(File stagingDir, File indexDir, Logger log) throws PipelineJobException
     {
-        return new File(indexDir.getPath() + ".stats.txt");
+        File previousDir = new File(indexDir.getParentFile(), indexDir.getName() + ".previous");
+        try
+        {
+            if (Files.exists(previousDir.toPath(), LinkOption.NOFOLLOW_LINKS))
+            {
+                FileUtils.deleteDirectory(previousDir);
+            }
+
+            boolean hasExisting = Files.exists(indexDir.toPath(), LinkOption.NOFOLLOW_LINKS);
+            if (hasExisting)
+            {
+                Files.move(indexDir.toPath(), previousDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            try
+            {
+                Files.move(stagingDir.toPath(), indexDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException e)
+            {
+                if (hasExisting)
+                {
+                    log.error("Unable to move new lucene index into place, restoring the prior index: " + indexDir.getPath());
+                    Files.move(previousDir.toPath(), indexDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+
+                throw e;
+            }
+
+            log.debug("Moved new lucene index into place: " + indexDir.getPath());
+
+            if (hasExisting)
+            {
+                try
+                {
+                    FileUtils.deleteDirectory(previousDir);
+                }
+                catch (IOException e)
+                {
+                    log.warn("Unable to delete prior lucene index, it may still be in use: " + previousDir.getPath(), e);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
     }
 
-    private static void recursivelyChangeDirectoryPermissions(File f) throws IOException
+    /**
+     * Reads the INFO fields recorded in fieldList.txt when this index was built.
+     * @return The fields, or null if the index does not have this file
+     */
+    public static @Nullable List<String> readIndexedFields(File indexDir) throws IOException
     {
-        if (f.isDirectory())
+        File fieldFile = getFieldListFile(indexDir);
+        if (!fieldFile.exists())
         {
-            Runtime.getRuntime().exec(new String[]{"chmod", "775", f.getPath()});
+            return null;
+        }
 
-            File[] children = f.listFiles();
-            if (children != null)
+        List<String> fields = new ArrayList<>();
+        try (BufferedReader reader = Readers.getReader(fieldFile))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
             {
-                for (File child : children)
+                line = StringUtils.trimToNull(line);
+                if (line != null)
                 {
-                    recursivelyChangeDirectoryPermissions(child);
+                    fields.add(line);
                 }
             }
         }
-        else
+
+        return fields;
+    }
+
+    /**
+     * An existing index can be reused if it already contains every requested INFO field. Fields that are no longer requested
+     * are simply not exposed, so they do not require a rebuild. File modification times are not compared, since the index can be
+     * shared with or symlinked from another track, so rebuilding after the VCF changes requires forceReprocess.
+     */
+    public static boolean canReuseExistingIndex(File indexDir, List<String> infoFieldsForFullTextSearch, Logger log)
+    {
+        List<String> indexedFields;
+        try
+        {
+            indexedFields = readIndexedFields(indexDir);
+        }
+        catch (IOException e)
+        {
+            log.error("Unable to read " + getFieldListFile(indexDir).getPath(), e);
+            return false;
+        }
+
+        // Indexes created before this file was written are assumed to be current
+        if (indexedFields == null)
+        {
+            return true;
+        }
+
+        Set<String> newFields = new TreeSet<>(infoFieldsForFullTextSearch);
+        indexedFields.forEach(newFields::remove);
+        if (!newFields.isEmpty())
+        {
+            log.info("The existing lucene index lacks the fields: " + StringUtils.join(newFields, ", ") + ", and will be rebuilt");
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Indexing a large VCF can take hours, so this is used to avoid queuing a second job for the same track
+     * @return True if a JBrowseLucenePipelineJob for this track has been queued and has not finished
+     */
+    public static boolean isIndexJobActive(Container c, String jbrowseTrackId)
+    {
+        List<String> finishedStatuses = new ArrayList<>();
+        for (PipelineJob.TaskStatus status : Arrays.asList(PipelineJob.TaskStatus.complete, PipelineJob.TaskStatus.error, PipelineJob.TaskStatus.cancelled))
+        {
+            finishedStatuses.add(status.name().toUpperCase());
+        }
+
+        SimpleFilter filter = new SimpleFilter(FieldKey.fromString("Container"), c.getId());
+        filter.addCondition(FieldKey.fromString("Description"), getDescription(jbrowseTrackId));
+        filter.addCondition(FieldKey.fromString("Status"), finishedStatuses, CompareType.NOT_IN);
+
+        TableInfo ti = DbSchema.get("pipeline", DbSchemaType.Module).getTable("StatusFiles");
+        return new TableSelector(ti, filter, null).exists();
+    }
+
+    public static File getExpectedLocationOfLuceneIndexStats(File indexDir)
+    {
+        return new File(indexDir.getPath() + ".stats.txt");
+    }
+
+    private static final Set<PosixFilePermission> DIRECTORY_PERMISSIONS = PosixFilePermissions.fromString("rwxrwxr-x");
+    private static final Set<PosixFilePermission> FILE_PERMISSIONS = PosixFilePermissions.fromString("rw-rw-r--");
+
+    /**
+     * Applies 775 to directories and 664 to files, in-process. Indexes can contain thousands of segment files, so this
+     * avoids forking a chmod process per file.
+     */
+    private static void recursivelyChangeDirectoryPermissions(File f) throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(f.toPath()))
+        {
+            paths.parallel().forEach(path -> {
+                try
+                {
+                    Set<PosixFilePermission> expected = Files.isDirectory(path) ? DIRECTORY_PERMISSIONS : FILE_PERMISSIONS;
+                    PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+                    if (view == null)
+                    {
+                        return;
+                    }
+
+                    if (!expected.equals(view.readAttributes().permissions()))
+                    {
+                        view.setPermissions(expected);
+                    }
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        catch (UncheckedIOException e)
         {
-            Runtime.getRuntime().exec(new String[]{"chmod", "664", f.getPath()});
+            throw e.getCause();
         }
     }
 
@@ -576,6 +576,48 @@ private void testFullTextSearch() throws Exception
         JSONArray jsonArray = mainJsonObject.getJSONArray("data");
         Assert.assertEquals(143, jsonArray.length());
 
+        // cursor-based paging: the first page should return a cursor, which returns the remaining 43 results
+        url = "/jbrowse/" + getProjectName() + "/luceneQuery.view?sessionId=" + sessionId + "&trackId=" + trackId + "&searchString=all&pageSize=100";
+        beginAt(url);
+        waitForText("data");
+        waitAndClick(Locator.tagWithId("a", "rawdata-tab"));
+        jsonString = getText(Locator.tagWithClass("pre", "data"));
+        mainJsonObject = new JSONObject(jsonString);
+        Assert.assertEquals(100, mainJsonObject.getJSONArray("data").length());
+        String cursor = mainJsonObject.getString("cursor");
+        long lastGenomicPosition = mainJsonObject.getJSONArray("data").getJSONObject(99).getLong("genomicPosition");
+
+        url = "/jbrowse/" + getProjectName() + "/luceneQuery.view?sessionId=" + sessionId + "&trackId=" + trackId + "&searchString=all&pageSize=100&searchAfter=" + cursor;
+        beginAt(url);
+        waitForText("data");
+        waitAndClick(Locator.tagWithId("a", "rawdata-tab"));
+        jsonString = getText(Locator.tagWithClass("pre", "data"));
+        mainJsonObject = new JSONObject(jsonString);
+        jsonArray = mainJsonObject.getJSONArray("data");
+        Assert.assertEquals(43, jsonArray.length());
+        Assert.assertTrue(jsonArray.getJSONObject(0).getLong("genomicPosition") >= lastGenomicPosition);
+        Assert.assertTrue(mainJsonObject.isNull("cursor"));
+
+        // facets: string fields return term counts and numeric fields return histograms, both over all 143 hits
+        url = "/jbrowse/" + getProjectName() + "/luceneFacets.view?sessionId=" + sessionId + "&trackId=" + trackId + "&searchString=all&facetFields=ref&facetFields=AF&numBuckets=10";
+        beginAt(url);
+        waitForText("facets");
+        waitAndClick(Locator.tagWithId("a", "rawdata-tab"));
+        jsonString = getText(Locator.tagWithClass("pre", "data"));
+        mainJsonObject = new JSONObject(jsonString);
+        Assert.assertEquals(143, mainJsonObject.getLong("totalHits"));
+        JSONObject refFacet = mainJsonObject.getJSONObject("facets").getJSONObject("ref");
+        Assert.assertEquals("terms", refFacet.getString("type"));
+        long termTotal = refFacet.getLong("otherCount") + refFacet.getLong("missingCount");
+        for (int i = 0; i < refFacet.getJSONArray("buckets").length(); i++)
+        {
+            termTotal += refFacet.getJSONArray("buckets").getJSONObject(i).getLong("count");
+        }
+        Assert.assertEquals(143, termTotal);
+        JSONObject afFacet = mainJsonObject.getJSONObject("facets").getJSONObject("AF");
+        Assert.assertEquals("histogram", afFacet.getString("type"));
+        Assert.assertEquals(10, afFacet.getJSONArray("buckets").length());
+
         // stringType:
         // ref equals A
         url = "/jbrowse/" + getProjectName() + "/luceneQuery.view?sessionId=" + sessionId + "&trackId=" + trackId + "&searchString=ref%3AA";
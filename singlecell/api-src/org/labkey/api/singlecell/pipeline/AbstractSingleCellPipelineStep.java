@@ -67,7 +67,7 @@ public Output execute(SequenceOutputHandler.JobContext ctx, List<SeuratObjectWra
         }
         else
         {
-            executeR(ctx, rmd, outputPrefix);
+            executeR(ctx, rmd, outputPrefix, inputObjects);
         }
 
         ctx.getFileManager().addIntermediateFile(rmd);
@@ -87,6 +87,9 @@ public Output execute(SequenceOutputHandler.JobContext ctx, List<SeuratObjectWra
         }
         output.setHtmlFile(htmlFile);
 
+        // NOTE: when running in a shared R session, seurat objects are not written until the session checkpoints
+        boolean inMemory = FusedRSession.getActive(ctx) != null;
+
         List<SeuratObjectWrapper> outputs = new ArrayList<>();
         if (!tracker.exists())
         {
@@ -100,7 +103,7 @@ public Output execute(SequenceOutputHandler.JobContext ctx, List<SeuratObjectWra
             while ((line = reader.readNext()) != null)
             {
                 File f = new File(ctx.getOutputDir(), line[2]);
-                if (!f.exists())
+                if (!inMemory && !f.exists())
                 {
                     throw new PipelineJobException("File not found: " + f.getPath());
                 }
@@ -268,30 +271,69 @@ protected boolean hasCompleted()
         return false;
     }
 
-    protected void executeR(SequenceOutputHandler.JobContext ctx, File rmd, String outputPrefix) throws PipelineJobException
+    protected void executeR(SequenceOutputHandler.JobContext ctx, File rmd, String outputPrefix, List<SeuratObjectWrapper> inputObjects) throws PipelineJobException
     {
-        List<String> lines = new ArrayList<>();
-        lines.add("rmarkdown::render(output_file = '" + getExpectedHtmlFile(ctx, outputPrefix).getName() + "', input = '" + rmd.getName() + "', intermediates_dir  = '/work')");
-        lines.add("print('Rmarkdown complete')");
-        lines.add("");
-
         File errorFile = getSeuratErrorFile(ctx);
         if (errorFile.exists())
         {
             errorFile.delete();
         }
 
-        Integer seuratThreads = null;
-        if (getProvider().getParameterByName(SEURAT_THREADS) != null)
+        FusedRSession session = FusedRSession.getActive(ctx);
+        if (session != null)
         {
-            seuratThreads = getProvider().getParameterByName(SEURAT_THREADS).extractValue(ctx.getJob(), getProvider(), getStepIdx(), Integer.class, null);
+            session.render(rmd, getExpectedHtmlFile(ctx, outputPrefix), inputObjects.stream().map(SeuratObjectWrapper::getFile).toList());
         }
+        else
+        {
+            List<String> lines = new ArrayList<>();
+            lines.add("rmarkdown::render(output_file = '" + getExpectedHtmlFile(ctx, outputPrefix).getName() + "', input = '" + rmd.getName() + "', intermediates_dir  = '/work')");
+            lines.add("print('Rmarkdown complete')");
+            lines.add("");
 
-        executeR(ctx, getDockerContainerName(), outputPrefix, lines, seuratThreads, getDockerHomeDir());
+            executeR(ctx, getDockerContainerName(), outputPrefix, lines, getSeuratThreads(ctx), getDockerHomeDir());
+        }
 
         handlePossibleFailure(ctx, outputPrefix);
     }
 
+    private @Nullable Integer getSeuratThreads(SequenceOutputHandler.JobContext ctx)
+    {
+        if (getProvider().getParameterByName(SEURAT_THREADS) == null)
+        {
+            return null;
+        }
+
+        return getProvider().getParameterByName(SEURAT_THREADS).extractValue(ctx.getJob(), getProvider(), getStepIdx(), Integer.class, null);
+    }
+
+    /**
+     * @return The settings used to run this step in an R session shared with adjacent steps, or null if this step must run in its own session.
+     * Steps that override execute() may act on the saved seurat objects outside of R, so they always run alone. A step whose hasCompleted()
+     * returns true also runs alone, since execute() will skip it using its existing outputs.
+     */
+    public @Nullable FusedRSession.Settings getFusedSessionSettings(SequenceOutputHandler.JobContext ctx)
+    {
+        try
+        {
+            if (getClass().getMethod("execute", SequenceOutputHandler.JobContext.class, List.class, String.class).getDeclaringClass() != AbstractSingleCellPipelineStep.class)
+            {
+                return null;
+            }
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+
+        if (hasCompleted())
+        {
+            return null;
+        }
+
+        return new FusedRSession.Settings(getDockerContainerName(), getSeuratThreads(ctx), getDockerHomeDir());
+    }
+
     protected static SeuratToolParameter getSeuratThreadsParam()
     {
         return SeuratToolParameter.create(SEURAT_THREADS, "Max Threads", "If provided, the docker session will set future::plan(strategy='multisession', workers=XXX), which is supported by certain Seurat functions.", "ldk-integerfield", new JSONObject(){{
@@ -312,6 +354,21 @@ public static void executeR(SequenceOutputHandler.JobContext ctx, String dockerC
         }
 
         File localBashScript = new File(ctx.getOutputDir(), "dockerWrapper.sh");
+        writeDockerWrapper(ctx, localBashScript, dockerContainerName, localRScript.getName(), seuratThreads, dockerHomeDir);
+
+        SimpleScriptWrapper rWrapper = new SimpleScriptWrapper(ctx.getLogger());
+        rWrapper.setWorkingDir(ctx.getOutputDir());
+        rWrapper.execute(Arrays.asList("/bin/bash", localBashScript.getName()));
+
+        localRScript.delete();
+        localBashScript.delete();
+    }
+
+    /**
+     * Writes a bash script that pulls the container and runs the R script, which must be in the job's output directory, using Rscript
+     */
+    public static void writeDockerWrapper(SequenceOutputHandler.JobContext ctx, File localBashScript, String dockerContainerName, String rScriptName, @Nullable Integer seuratThreads, @Nullable String dockerHomeDir) throws PipelineJobException
+    {
         try (PrintWriter writer = PrintWriters.getPrintWriter(localBashScript))
         {
             writer.println("#!/bin/bash");
@@ -362,7 +419,7 @@ public static void executeR(SequenceOutputHandler.JobContext ctx, String dockerC
             //NOTE: this seems to disrupt packages installed into home
             //writer.println("\t-e HOME=/homeDir \\");
             writer.println("\t" + dockerContainerName + " \\");
-            writer.println("\tRscript --vanilla '" + localRScript.getName() + "'");
+            writer.println("\tRscript --vanilla '" + rScriptName + "'");
             writer.println("EXIT_CODE=$?");
             writer.println("echo 'Bash script complete: '$EXIT_CODE");
             writer.println("exit $EXIT_CODE");
@@ -371,13 +428,6 @@ public static void executeR(SequenceOutputHandler.JobContext ctx, String dockerC
         {
             throw new PipelineJobException(e);
         }
-
-        SimpleScriptWrapper rWrapper = new SimpleScriptWrapper(ctx.getLogger());
-        rWrapper.setWorkingDir(ctx.getOutputDir());
-        rWrapper.execute(Arrays.asList("/bin/bash", localBashScript.getName()));
-
-        localRScript.delete();
-        localBashScript.delete();
     }
 
     public String getDockerHomeDir()
@@ -0,0 +1,320 @@
+package org.labkey.api.singlecell.pipeline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.pipeline.PipelineJobException;
+import org.labkey.api.reader.Readers;
+import org.labkey.api.sequenceanalysis.SequenceAnalysisService;
+import org.labkey.api.sequenceanalysis.pipeline.SequenceOutputHandler;
+import org.labkey.api.util.StringUtilsLabKey;
+import org.labkey.api.writer.PrintWriters;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single docker container/R session that renders the markdown for consecutive single cell steps. Seurat objects saved by one step
+ * are held in memory and handed to the next, rather than being written to and read from disk. Objects are only written when checkpoint() is called,
+ * which the handler does at the boundaries it records with the Resumer.
+ *
+ * Java and R communicate through numbered command files in COMMAND_DIR (see chunks/FusedSession.R). R writes a matching .done file
+ * with either OK or ERROR and a message when each command completes.
+ */
+public class FusedRSession implements Closeable
+{
+    public static final String FUSE_STEPS_PARAM = "fuseSteps";
+
+    private static final String COMMAND_DIR = "fusedRSession";
+    private static final String DRIVER_SCRIPT = "fusedRSession.R";
+    private static final String WRAPPER_SCRIPT = "fusedRSessionWrapper.sh";
+    private static final long POLL_MILLIS = 1000;
+    private static final long EXIT_WAIT_SECONDS = 120;
+
+    private static final Map<String, FusedRSession> _activeSessions = new ConcurrentHashMap<>();
+
+    private final SequenceOutputHandler.JobContext _ctx;
+    private final Settings _settings;
+    private final File _commandDir;
+    private final Process _process;
+    private int _commandIdx = 0;
+    private boolean _failed = false;
+
+    private FusedRSession(SequenceOutputHandler.JobContext ctx, Settings settings, File commandDir, Process process)
+    {
+        _ctx = ctx;
+        _settings = settings;
+        _commandDir = commandDir;
+        _process = process;
+    }
+
+    /**
+     * @return The session currently open for this job, or null if steps should run in their own R session
+     */
+    public static @Nullable FusedRSession getActive(SequenceOutputHandler.JobContext ctx)
+    {
+        return _activeSessions.get(ctx.getJob().getJobGUID());
+    }
+
+    public static FusedRSession start(SequenceOutputHandler.JobContext ctx, Settings settings) throws PipelineJobException
+    {
+        if (getActive(ctx) != null)
+        {
+            throw new IllegalStateException("There is already an R session open for this job");
+        }
+
+        File commandDir = new File(ctx.getOutputDir(), COMMAND_DIR);
+        File driver = new File(ctx.getOutputDir(), DRIVER_SCRIPT);
+        File wrapper = new File(ctx.getOutputDir(), WRAPPER_SCRIPT);
+        try
+        {
+            if (commandDir.exists())
+            {
+                FileUtils.deleteDirectory(commandDir);
+            }
+            FileUtils.forceMkdir(commandDir);
+
+            File driverSource = new File(SequenceAnalysisService.get().getScriptPath("singlecell", "chunks/FusedSession.R"));
+            if (!driverSource.exists())
+            {
+                throw new PipelineJobException("Unable to find file: " + driverSource.getPath());
+            }
+
+            try (PrintWriter writer = PrintWriters.getPrintWriter(driver))
+            {
+                writer.println("commandDir <- '" + COMMAND_DIR + "'");
+                writer.println(FileUtils.readFileToString(driverSource, StringUtilsLabKey.DEFAULT_CHARSET));
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+
+        AbstractSingleCellPipelineStep.writeDockerWrapper(ctx, wrapper, settings.getDockerContainerName(), DRIVER_SCRIPT, settings.getSeuratThreads(), settings.getDockerHomeDir());
+
+        ctx.getLogger().info("Starting R session for consecutive steps using: " + settings.getDockerContainerName());
+        Process process;
+        try
+        {
+            process = new ProcessBuilder("/bin/bash", wrapper.getName()).directory(ctx.getOutputDir()).redirectErrorStream(true).start();
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+
+        Thread outputReader = new Thread(() -> {
+            try (BufferedReader reader = Readers.getReader(process.getInputStream()))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    ctx.getLogger().info(line);
+                }
+            }
+            catch (IOException e)
+            {
+                ctx.getLogger().error("Error reading output from R session", e);
+            }
+        }, "FusedRSession-" + ctx.getJob().getJobGUID());
+        outputReader.setDaemon(true);
+        outputReader.start();
+
+        FusedRSession ret = new FusedRSession(ctx, settings, commandDir, process);
+        _activeSessions.put(ctx.getJob().getJobGUID(), ret);
+
+        return ret;
+    }
+
+    public Settings getSettings()
+    {
+        return _settings;
+    }
+
+    /**
+     * Renders one step's markdown. Any objects held in memory that are not inputs to this step are dropped first.
+     */
+    public void render(File rmd, File html, Collection<File> inputs) throws PipelineJobException
+    {
+        List<String> args = new ArrayList<>(Arrays.asList(rmd.getName(), html.getName()));
+        inputs.forEach(f -> args.add(f.getName()));
+
+        sendCommand("render", args);
+    }
+
+    /**
+     * Writes the in-memory copy of each file to disk. Files that were never loaded into this session are expected to exist already.
+     */
+    public void checkpoint(Collection<File> seuratObjects) throws PipelineJobException
+    {
+        _ctx.getLogger().info("Saving " + seuratObjects.size() + " seurat object(s) from the R session");
+        sendCommand("checkpoint", seuratObjects.stream().map(File::getName).toList());
+
+        for (File f : seuratObjects)
+        {
+            if (!f.exists())
+            {
+                throw new PipelineJobException("File not found: " + f.getPath());
+            }
+        }
+    }
+
+    private void sendCommand(String action, List<String> args) throws PipelineJobException
+    {
+        if (_failed)
+        {
+            throw new PipelineJobException("The R session has already failed");
+        }
+
+        _commandIdx++;
+        File cmd = new File(_commandDir, String.format("%04d.cmd", _commandIdx));
+        File done = new File(_commandDir, String.format("%04d.done", _commandIdx));
+        File tmp = new File(_commandDir, cmd.getName() + ".tmp");
+        try
+        {
+            try (PrintWriter writer = PrintWriters.getPrintWriter(tmp))
+            {
+                writer.println(action);
+                args.forEach(writer::println);
+            }
+
+            // NOTE: the R side only looks for the final filename, so it never reads a partial command
+            Files.move(tmp.toPath(), cmd.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+            while (!done.exists())
+            {
+                if (!_process.isAlive())
+                {
+                    _failed = true;
+                    throw new PipelineJobException("The R session exited unexpectedly with code: " + _process.exitValue());
+                }
+
+                Thread.sleep(POLL_MILLIS);
+            }
+
+            String status = StringUtils.trimToEmpty(FileUtils.readFileToString(done, StringUtilsLabKey.DEFAULT_CHARSET));
+            if (!"OK".equals(status))
+            {
+                _failed = true;
+                throw new PipelineJobException("Error running " + action + " in R session: " + StringUtils.removeStart(status, "ERROR\t"));
+            }
+        }
+        catch (IOException e)
+        {
+            _failed = true;
+            throw new PipelineJobException(e);
+        }
+        catch (InterruptedException e)
+        {
+            _failed = true;
+            Thread.currentThread().interrupt();
+            throw new PipelineJobException("Interrupted while waiting for the R session", e);
+        }
+    }
+
+    /**
+     * Ends the R session. Objects that have not been checkpointed are discarded.
+     */
+    @Override
+    public void close()
+    {
+        _activeSessions.remove(_ctx.getJob().getJobGUID(), this);
+
+        try
+        {
+            if (!_failed && _process.isAlive())
+            {
+                try
+                {
+                    sendCommand("exit", List.of());
+                }
+                catch (PipelineJobException e)
+                {
+                    _ctx.getLogger().error("Unable to cleanly exit R session: " + e.getMessage());
+                }
+            }
+
+            // Removing the command directory also tells the R session to exit, if it is still polling for commands
+            FileUtils.deleteDirectory(_commandDir);
+
+            if (!_process.waitFor(EXIT_WAIT_SECONDS, TimeUnit.SECONDS))
+            {
+                _ctx.getLogger().warn("R session did not exit, killing process");
+                _process.destroyForcibly();
+            }
+        }
+        catch (IOException e)
+        {
+            _ctx.getLogger().error("Unable to delete R session command directory: " + _commandDir.getPath(), e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            _process.destroyForcibly();
+        }
+
+        new File(_ctx.getOutputDir(), DRIVER_SCRIPT).delete();
+        new File(_ctx.getOutputDir(), WRAPPER_SCRIPT).delete();
+    }
+
+    /**
+     * Steps can only share a session if they would otherwise have run with the same container and environment.
+     */
+    public static class Settings
+    {
+        private final String _dockerContainerName;
+        private final Integer _seuratThreads;
+        private final String _dockerHomeDir;
+
+        public Settings(String dockerContainerName, @Nullable Integer seuratThreads, @Nullable String dockerHomeDir)
+        {
+            _dockerContainerName = dockerContainerName;
+            _seuratThreads = seuratThreads;
+            _dockerHomeDir = dockerHomeDir;
+        }
+
+        public String getDockerContainerName()
+        {
+            return _dockerContainerName;
+        }
+
+        public @Nullable Integer getSeuratThreads()
+        {
+            return _seuratThreads;
+        }
+
+        public @Nullable String getDockerHomeDir()
+        {
+            return _dockerHomeDir;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) return true;
+            if (!(o instanceof Settings s)) return false;
+
+            return Objects.equals(_dockerContainerName, s._dockerContainerName) && Objects.equals(_seuratThreads, s._seuratThreads) && Objects.equals(_dockerHomeDir, s._dockerHomeDir);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(_dockerContainerName, _seuratThreads, _dockerHomeDir);
+        }
+    }
+}
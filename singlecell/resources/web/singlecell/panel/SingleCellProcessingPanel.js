@@ -106,6 +106,14 @@ Ext4.define('SingleCell.panel.SingleCellProcessingPanel', {
                 uncheckedValue: false,
                 checked: true,
                 xtype: 'checkbox'
+            },{
+                fieldLabel: 'Run Steps In One R Session',
+                helpPopup: 'If selected, adjacent steps that use the same container will run in a single R session, keeping the seurat objects in memory between steps rather than saving and reloading them. Objects are only saved when a group of steps completes, so if the job is restarted, it will resume from the start of the last incomplete group. This can be much faster for large objects, but requires enough memory to hold the objects between steps.',
+                name: 'fuseSteps',
+                inputValue: true,
+                uncheckedValue: false,
+                checked: false,
+                xtype: 'checkbox'
             }, this.getSaveTemplateCfg()]
         };
     },
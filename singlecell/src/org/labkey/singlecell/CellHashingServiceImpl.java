@@ -61,8 +61,11 @@
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
@@ -80,6 +83,9 @@ public class CellHashingServiceImpl extends CellHashingService
 
     public static final String CALL_EXTENSION = ".calls.txt";
 
+    // Reading a map back from the job support round-trips it through JSON, so the deserialized maps are held for the life of each support instance
+    private final Map<SequenceAnalysisJobSupport, Map<String, Map<?, ?>>> _cachedMaps = Collections.synchronizedMap(new WeakHashMap<>());
+
     private CellHashingServiceImpl()
     {
 
@@ -128,7 +134,8 @@ public void prepareHashingAndCiteSeqFilesIfNeeded(File sourceDir, PipelineJob jo
                 FieldKey.fromString("citeseqPanel"),
                 FieldKey.fromString("status"),
                 FieldKey.fromString("plateId"),
-                FieldKey.fromString("readsetId"))
+                FieldKey.fromString("readsetId"),
+                FieldKey.fromString(filterField))
         );
 
         Set<Integer> uniqueGex = new HashSet<>();
@@ -147,6 +154,9 @@ public void prepareHashingAndCiteSeqFilesIfNeeded(File sourceDir, PipelineJob jo
             throw new PipelineJobException("There are no cached readsets. This might indicate hashing or CITE-seq is being selected for an input not associated with readsets, like a multi-dataset object");
         }
 
+        Map<Integer, Readset> readsetMap = new HashMap<>();
+        cachedReadsets.forEach(rs -> readsetMap.put(rs.getRowId(), rs));
+
         try (CSVWriter writer = new CSVWriter(PrintWriters.getPrintWriter(output), '\t', CSVWriter.NO_QUOTE_CHARACTER); CSVWriter bcWriter = new CSVWriter(PrintWriters.getPrintWriter(barcodeOutput), ',', CSVWriter.NO_QUOTE_CHARACTER))
         {
             writer.writeNext(new String[]{"ReadsetId", "CDNA_ID", "SubjectId", "Stim", "Population", "HashingReadsetId", "HasHashingReads", "HTO_Name", "HTO_Seq", "CiteSeqReadsetId", "HasCiteSeqReads", "CiteSeqPanel"});
@@ -154,116 +164,114 @@ public void prepareHashingAndCiteSeqFilesIfNeeded(File sourceDir, PipelineJob jo
             Set<Boolean> hashingStatus = new HashSet<>();
             Map<String, Set<String>> plateToHto = new HashMap<>();
             AtomicInteger totalWritten = new AtomicInteger(0);
-            for (Readset rs : cachedReadsets)
-            {
-                job.getLogger().debug("Preparing: " + rs.getName() + " (" + rs.getRowId() + ")");
-                AtomicBoolean hasError = new AtomicBoolean(false);
-                //find cDNA records using this readset
-                new TableSelector(cDNAs, colMap.values(), new SimpleFilter(FieldKey.fromString(filterField), rs.getRowId()), null).forEachResults(results -> {
-                    // NOTE: removed b/c newer callers probably dont need this:
-                    //if (skipFailedCdna && results.getObject(FieldKey.fromString("status")) != null)
-                    //{
-                    //    job.getLogger().info("skipping cDNA with non-null status: " + results.getString(FieldKey.fromString("rowid")));
-                    //    return;
-                    //}
-
-                    writer.writeNext(new String[]{
-                            String.valueOf(rs.getRowId()),
-                            results.getString(FieldKey.fromString("rowid")),
-                            results.getString(FieldKey.fromString("sortId/sampleId/subjectId")),
-                            results.getString(FieldKey.fromString("sortId/sampleId/stim")),
-                            results.getString(FieldKey.fromString("sortId/population")),
-                            String.valueOf(results.getObject(FieldKey.fromString("hashingReadsetId")) == null ? "" : results.getInt(FieldKey.fromString("hashingReadsetId"))),
-                            String.valueOf(results.getObject(FieldKey.fromString("hashingReadsetId/totalFiles")) != null && results.getInt(FieldKey.fromString("hashingReadsetId/totalFiles")) > 0),
-                            results.getString(FieldKey.fromString("sortId/hto")),
-                            results.getString(FieldKey.fromString("sortId/hto/adaptersequence")),
-                            String.valueOf(results.getObject(FieldKey.fromString("citeseqReadsetId")) == null ? "" : results.getInt(FieldKey.fromString("citeseqReadsetId"))),
-                            String.valueOf(results.getObject(FieldKey.fromString("citeseqReadsetId/totalFiles")) != null && results.getInt(FieldKey.fromString("citeseqReadsetId/totalFiles")) > 0),
-                            results.getString(FieldKey.fromString("citeseqPanel"))
-                    });
-                    totalWritten.getAndIncrement();
-
-                    if (results.getObject(FieldKey.fromString("readsetId")) != null)
-                    {
-                        uniqueGex.add(results.getInt(FieldKey.fromString("readsetId")));
-                    }
+            AtomicBoolean hasError = new AtomicBoolean(false);
+
+            //find cDNA records using any of these readsets. Sorting on the readset keeps each readset's rows together in the output
+            new TableSelector(cDNAs, colMap.values(), new SimpleFilter(FieldKey.fromString(filterField), readsetMap.keySet(), CompareType.IN), new org.labkey.api.data.Sort(filterField + ",rowid")).forEachResults(results -> {
+                Readset rs = readsetMap.get(results.getInt(FieldKey.fromString(filterField)));
+                // NOTE: removed b/c newer callers probably dont need this:
+                //if (skipFailedCdna && results.getObject(FieldKey.fromString("status")) != null)
+                //{
+                //    job.getLogger().info("skipping cDNA with non-null status: " + results.getString(FieldKey.fromString("rowid")));
+                //    return;
+                //}
+
+                writer.writeNext(new String[]{
+                        String.valueOf(rs.getRowId()),
+                        results.getString(FieldKey.fromString("rowid")),
+                        results.getString(FieldKey.fromString("sortId/sampleId/subjectId")),
+                        results.getString(FieldKey.fromString("sortId/sampleId/stim")),
+                        results.getString(FieldKey.fromString("sortId/population")),
+                        String.valueOf(results.getObject(FieldKey.fromString("hashingReadsetId")) == null ? "" : results.getInt(FieldKey.fromString("hashingReadsetId"))),
+                        String.valueOf(results.getObject(FieldKey.fromString("hashingReadsetId/totalFiles")) != null && results.getInt(FieldKey.fromString("hashingReadsetId/totalFiles")) > 0),
+                        results.getString(FieldKey.fromString("sortId/hto")),
+                        results.getString(FieldKey.fromString("sortId/hto/adaptersequence")),
+                        String.valueOf(results.getObject(FieldKey.fromString("citeseqReadsetId")) == null ? "" : results.getInt(FieldKey.fromString("citeseqReadsetId"))),
+                        String.valueOf(results.getObject(FieldKey.fromString("citeseqReadsetId/totalFiles")) != null && results.getInt(FieldKey.fromString("citeseqReadsetId/totalFiles")) > 0),
+                        results.getString(FieldKey.fromString("citeseqPanel"))
+                });
+                totalWritten.getAndIncrement();
 
-                    boolean hasHTO = results.getObject(FieldKey.fromString("sortId/hto")) != null;
+                if (results.getObject(FieldKey.fromString("readsetId")) != null)
+                {
+                    uniqueGex.add(results.getInt(FieldKey.fromString("readsetId")));
+                }
+
+                boolean hasHTO = results.getObject(FieldKey.fromString("sortId/hto")) != null;
 
-                    if (!plateToHto.containsKey(results.getString(FieldKey.fromString("plateId"))))
+                if (!plateToHto.containsKey(results.getString(FieldKey.fromString("plateId"))))
+                {
+                    plateToHto.put(results.getString(FieldKey.fromString("plateId")), new HashSet<>());
+                }
+
+                if (hasHTO)
+                {
+                    plateToHto.get(results.getString(FieldKey.fromString("plateId"))).add(results.getString(FieldKey.fromString("sortId/hto")));
+
+                    if (results.getObject(FieldKey.fromString("hashingReadsetId")) == null)
                     {
-                        plateToHto.put(results.getString(FieldKey.fromString("plateId")), new HashSet<>());
+                        // NOTE: there can be lanes with single HTOs/lane. This will fail down the line
+                        job.getLogger().warn("cDNA specifies HTO, but does not list a hashing readset: " + results.getString(FieldKey.fromString("rowid")) + ". This may not be a problem if there is a single sample per lane");
                     }
-
-                    if (hasHTO)
+                    else
                     {
-                        plateToHto.get(results.getString(FieldKey.fromString("plateId"))).add(results.getString(FieldKey.fromString("sortId/hto")));
+                        readsetToHashingMap.put(rs.getReadsetId(), results.getInt(FieldKey.fromString("hashingReadsetId")));
 
-                        if (results.getObject(FieldKey.fromString("hashingReadsetId")) == null)
+                        String hto = results.getString(FieldKey.fromString("sortId/hto")) + "<>" + results.getString(FieldKey.fromString("sortId/hto/adaptersequence"));
+                        if (!distinctHTOs.contains(hto) && !StringUtils.isEmpty(results.getString(FieldKey.fromString("sortId/hto/adaptersequence"))))
                         {
-                            // NOTE: there can be lanes with single HTOs/lane. This will fail down the line
-                            job.getLogger().warn("cDNA specifies HTO, but does not list a hashing readset: " + results.getString(FieldKey.fromString("rowid")) + ". This may not be a problem if there is a single sample per lane");
+                            distinctHTOs.add(hto);
+                            bcWriter.writeNext(new String[]{results.getString(FieldKey.fromString("sortId/hto/adaptersequence")), results.getString(FieldKey.fromString("sortId/hto"))});
                         }
-                        else
-                        {
-                            readsetToHashingMap.put(rs.getReadsetId(), results.getInt(FieldKey.fromString("hashingReadsetId")));
-
-                            String hto = results.getString(FieldKey.fromString("sortId/hto")) + "<>" + results.getString(FieldKey.fromString("sortId/hto/adaptersequence"));
-                            if (!distinctHTOs.contains(hto) && !StringUtils.isEmpty(results.getString(FieldKey.fromString("sortId/hto/adaptersequence"))))
-                            {
-                                distinctHTOs.add(hto);
-                                bcWriter.writeNext(new String[]{results.getString(FieldKey.fromString("sortId/hto/adaptersequence")), results.getString(FieldKey.fromString("sortId/hto"))});
-                            }
 
-                            if (results.getObject(FieldKey.fromString("sortId/hto/adaptersequence")) == null)
-                            {
-                                job.getLogger().error("Unable to find sequence for HTO: " + results.getString(FieldKey.fromString("sortId/hto")));
-                                hasError.set(true);
-                            }
+                        if (results.getObject(FieldKey.fromString("sortId/hto/adaptersequence")) == null)
+                        {
+                            job.getLogger().error("Unable to find sequence for HTO: " + results.getString(FieldKey.fromString("sortId/hto")));
+                            hasError.set(true);
                         }
                     }
+                }
 
-                    boolean useCiteSeq = results.getObject(FieldKey.fromString("citeseqPanel")) != null;
-                    if (useCiteSeq)
+                boolean useCiteSeq = results.getObject(FieldKey.fromString("citeseqPanel")) != null;
+                if (useCiteSeq)
+                {
+                    if (results.getObject(FieldKey.fromString("citeseqReadsetId")) == null)
                     {
-                        if (results.getObject(FieldKey.fromString("citeseqReadsetId")) == null)
-                        {
-                            job.getLogger().error("cDNA specifies cite-seq panel, but cite-seq readset is empty: " + results.getString(FieldKey.fromString("rowid")));
-                            hasError.set(true);
-                        }
-                        else
-                        {
-                            Set<String> panels = gexToPanels.getOrDefault(rs.getRowId(), new HashSet<>());
-                            panels.add(results.getString(FieldKey.fromString("citeseqPanel")));
-                            gexToPanels.put(rs.getRowId(), panels);
+                        job.getLogger().error("cDNA specifies cite-seq panel, but cite-seq readset is empty: " + results.getString(FieldKey.fromString("rowid")));
+                        hasError.set(true);
+                    }
+                    else
+                    {
+                        Set<String> panels = gexToPanels.getOrDefault(rs.getRowId(), new HashSet<>());
+                        panels.add(results.getString(FieldKey.fromString("citeseqPanel")));
+                        gexToPanels.put(rs.getRowId(), panels);
 
-                            readsetToCiteSeqMap.put(rs.getReadsetId(), results.getInt(FieldKey.fromString("citeseqReadsetId")));
-                        }
+                        readsetToCiteSeqMap.put(rs.getReadsetId(), results.getInt(FieldKey.fromString("citeseqReadsetId")));
                     }
+                }
 
-                    readsetToGexMap.put(rs.getReadsetId(), results.getInt(FieldKey.fromString("readsetId")));
-                });
+                readsetToGexMap.put(rs.getReadsetId(), results.getInt(FieldKey.fromString("readsetId")));
+            });
 
-                job.getLogger().debug("total readset to hashing pairs: " + readsetToHashingMap.size());
-                job.getLogger().debug("total readset to cite-seq pairs: " + readsetToCiteSeqMap.size());
-                job.getLogger().debug("total readset to GEX pairs: " + readsetToGexMap.size());
+            job.getLogger().debug("total readset to hashing pairs: " + readsetToHashingMap.size());
+            job.getLogger().debug("total readset to cite-seq pairs: " + readsetToCiteSeqMap.size());
+            job.getLogger().debug("total readset to GEX pairs: " + readsetToGexMap.size());
 
-                if (hasError.get())
-                {
-                    throw new PipelineJobException("There is a problem with either cell hashing or CITE-seq. See the file: " + output.getName());
-                }
+            if (hasError.get())
+            {
+                throw new PipelineJobException("There is a problem with either cell hashing or CITE-seq. See the file: " + output.getName());
+            }
 
-                // If there is one HTO per plate, hashing is not actually needed:
-                for (String plateId : plateToHto.keySet())
-                {
-                    Set<String> htos = plateToHto.get(plateId);
-                    hashingStatus.add(htos.size() > 1);
-                }
+            // If there is one HTO per plate, hashing is not actually needed:
+            for (String plateId : plateToHto.keySet())
+            {
+                Set<String> htos = plateToHto.get(plateId);
+                hashingStatus.add(htos.size() > 1);
+            }
 
-                if (hashingStatus.size() > 1)
-                {
-                    job.getLogger().info("The selected readsets/cDNA records use a mixture of cell hashing and non-hashing.");
-                }
+            if (hashingStatus.size() > 1)
+            {
+                job.getLogger().info("The selected readsets/cDNA records use a mixture of cell hashing and non-hashing.");
             }
 
             if (doH5Caching)
@@ -276,14 +284,12 @@ public void prepareHashingAndCiteSeqFilesIfNeeded(File sourceDir, PipelineJob jo
             if (distinctHTOs.size() > 1)
             {
                 Set<Integer> hashingToRemove = new HashSet<>();
+                Map<Integer, List<SequenceOutputFile>> hashingCountMatrices = cacheCountMatrixFiles ? getOutputsByReadset(sequenceOutputs, CellRangerFeatureBarcodeHandler.HASHING_CATEGORY, readsetToHashingMap.values()) : Collections.emptyMap();
                 readsetToHashingMap.forEach((readsetId, hashingReadsetId) -> {
                     if (cacheCountMatrixFiles)
                     {
-                        SimpleFilter filter = new SimpleFilter(FieldKey.fromString("category"), CellRangerFeatureBarcodeHandler.HASHING_CATEGORY);
-                        filter.addCondition(FieldKey.fromString("readset"), hashingReadsetId, CompareType.EQUAL);
-
-                        TableSelector ts = new TableSelector(sequenceOutputs, filter, new org.labkey.api.data.Sort("-rowid"));
-                        if (!ts.exists())
+                        List<SequenceOutputFile> sos = hashingCountMatrices.get(hashingReadsetId);
+                        if (sos == null)
                         {
                             if (requireExistingHashingCountsIfUsed)
                             {
@@ -297,13 +303,12 @@ public void prepareHashingAndCiteSeqFilesIfNeeded(File sourceDir, PipelineJob jo
                         }
                         else
                         {
-                            List<SequenceOutputFile> sos = ts.getArrayList(SequenceOutputFile.class);
                             if (sos.size() > 1)
                             {
                                 job.getLogger().info("Multiple hashing count matrices found, using most recent: " + sos.get(0).getRowid());
                             }
 
-                            SequenceOutputFile so = ts.getArrayList(SequenceOutputFile.class).get(0);
+                            SequenceOutputFile so = sos.get(0);
                             readsetToCountMap.put(BARCODE_TYPE.hashing.name() + "-" + hashingReadsetId, so.getFile().getParentFile());  //this is the umi_counts dir
                         }
                     }
@@ -339,14 +344,12 @@ else if (distinctHTOs.size() == 1)
             }
 
             Set<Integer> citeToRemove = new HashSet<>();
+            Map<Integer, List<SequenceOutputFile>> citeSeqCountMatrices = cacheCountMatrixFiles ? getOutputsByReadset(sequenceOutputs, CellRangerFeatureBarcodeHandler.CITESEQ_CATEGORY, readsetToCiteSeqMap.values()) : Collections.emptyMap();
             readsetToCiteSeqMap.forEach((readsetId, citeseqReadsetId) -> {
                 if (cacheCountMatrixFiles)
                 {
-                    SimpleFilter filter = new SimpleFilter(FieldKey.fromString("category"), CellRangerFeatureBarcodeHandler.CITESEQ_CATEGORY);
-                    filter.addCondition(FieldKey.fromString("readset"), citeseqReadsetId, CompareType.EQUAL);
-
-                    TableSelector ts = new TableSelector(sequenceOutputs, filter, new org.labkey.api.data.Sort("-rowid"));
-                    if (!ts.exists())
+                    List<SequenceOutputFile> sos = citeSeqCountMatrices.get(citeseqReadsetId);
+                    if (sos == null)
                     {
                         if (requireExistingCiteSeqCountIfUsed)
                         {
@@ -360,7 +363,6 @@ else if (distinctHTOs.size() == 1)
                     }
                     else
                     {
-                        List<SequenceOutputFile> sos = ts.getArrayList(SequenceOutputFile.class);
                         if (sos.size() > 1)
                         {
                             job.getLogger().info("Multiple CITE-seq count matrices found, using most recent: " + sos.get(0).getRowid());
@@ -375,10 +377,10 @@ else if (distinctHTOs.size() == 1)
 
             citeToRemove.forEach(readsetToCiteSeqMap::remove);
 
-            support.cacheObject(READSET_AND_GENOME_TO_H5_MAP, gexReadsetToH5Map);
-            support.cacheObject(READSET_TO_HASHING_MAP, readsetToHashingMap);
-            support.cacheObject(READSET_TO_CITESEQ_MAP, readsetToCiteSeqMap);
-            support.cacheObject(READSET_TO_COUNTS_MAP, readsetToCountMap);
+            cacheMap(support, READSET_AND_GENOME_TO_H5_MAP, gexReadsetToH5Map);
+            cacheMap(support, READSET_TO_HASHING_MAP, readsetToHashingMap);
+            cacheMap(support, READSET_TO_CITESEQ_MAP, readsetToCiteSeqMap);
+            cacheMap(support, READSET_TO_COUNTS_MAP, readsetToCountMap);
 
             //infer groups:
             TableInfo hashtagOligos = QueryService.get().getUserSchema(job.getUser(), target, SingleCellSchema.NAME).getTable(SingleCellSchema.TABLE_HASHING_LABELS);
@@ -437,13 +439,22 @@ private Map<String, Integer> cacheH5Files(PipelineJob job, SequenceAnalysisJobSu
         TableInfo ti = QueryService.get().getUserSchema(job.getUser(), job.getContainer().isWorkbook() ? job.getContainer().getParent() : job.getContainer(), SingleCellSchema.SEQUENCE_SCHEMA_NAME).getTable("outputfiles");
         Set<Integer> cachedGenomes = support.getCachedGenomes().stream().map(ReferenceGenome::getGenomeId).collect(Collectors.toSet());
 
+        // Load the loupe files for all GEX readsets at once, most recent first:
+        Map<Integer, List<LoupeFile>> loupeFilesByReadset = new HashMap<>();
+        if (!readsetToGexMap.isEmpty())
+        {
+            SimpleFilter filter = new SimpleFilter(FieldKey.fromString("readset"), new HashSet<>(readsetToGexMap.values()), CompareType.IN);
+            filter.addCondition(FieldKey.fromString("category"), LOUPE_CATEGORY, CompareType.EQUAL);
+            new TableSelector(ti, PageFlowUtil.set("readset", "library_id", "dataid"), filter, new org.labkey.api.data.Sort("-rowid")).forEachResults(rs -> {
+                loupeFilesByReadset.computeIfAbsent(rs.getInt("readset"), x -> new ArrayList<>()).add(new LoupeFile((Integer)rs.getObject("library_id"), rs.getInt("dataid")));
+            });
+        }
+
         for (int readsetId : readsetToGexMap.keySet())
         {
             boolean isGEX = uniqueGex.contains(readsetId);
             int gexReadset = readsetToGexMap.get(readsetId);
-
-            SimpleFilter filter = new SimpleFilter(FieldKey.fromString("readset"), gexReadset, CompareType.EQUAL);
-            filter.addCondition(FieldKey.fromString("category"), LOUPE_CATEGORY, CompareType.EQUAL);
+            List<LoupeFile> loupeFiles = loupeFilesByReadset.getOrDefault(gexReadset, Collections.emptyList());
 
             int gexGenomeId;
             if (isGEX)
@@ -454,12 +465,11 @@ private Map<String, Integer> cacheH5Files(PipelineJob job, SequenceAnalysisJobSu
                 }
 
                 gexGenomeId = cachedGenomes.iterator().next();
-                filter.addCondition(FieldKey.fromString("library_id"), gexGenomeId, CompareType.EQUAL);
             }
             else
             {
                 job.getLogger().debug("Readset is not GEX, attempting to infer the loupe file genome");
-                HashSet<Integer> genomeIds = new HashSet<>(new TableSelector(ti, PageFlowUtil.set("library_id"), filter, new org.labkey.api.data.Sort("-rowid")).getArrayList(Integer.class));
+                Set<Integer> genomeIds = loupeFiles.stream().map(LoupeFile::genomeId).filter(Objects::nonNull).collect(Collectors.toSet());
                 if (genomeIds.isEmpty())
                 {
                     throw new PipelineJobException("demuxEM/demuxmix was selected, but no suitable loupe files were found for GEX readset: " + gexReadset);
@@ -470,13 +480,11 @@ else if (genomeIds.size() > 1)
                 }
 
                 gexGenomeId = genomeIds.iterator().next();
-                filter.addCondition(FieldKey.fromString("library_id"), gexGenomeId, CompareType.EQUAL);
             }
 
-            TableSelector ts = new TableSelector(ti, PageFlowUtil.set("dataid"), filter, new org.labkey.api.data.Sort("-rowid"));
-            if (ts.exists())
+            List<Integer> dataIds = loupeFiles.stream().filter(lf -> lf.genomeId() != null && lf.genomeId() == gexGenomeId).map(LoupeFile::dataId).toList();
+            if (!dataIds.isEmpty())
             {
-                List<Integer> dataIds = ts.getArrayList(Integer.class);
                 int dataId = dataIds.get(0);
                 if (dataIds.size() > 1)
                 {
@@ -510,6 +518,28 @@ else if (genomeIds.size() > 1)
         return gexReadsetToH5Map;
     }
 
+    private record LoupeFile(@Nullable Integer genomeId, int dataId) {}
+
+    /**
+     * @return The outputs of the given category for each readset, with the most recent first. Readsets without any outputs are omitted.
+     */
+    private Map<Integer, List<SequenceOutputFile>> getOutputsByReadset(TableInfo sequenceOutputs, String category, Collection<Integer> readsetIds)
+    {
+        Map<Integer, List<SequenceOutputFile>> ret = new HashMap<>();
+        if (readsetIds.isEmpty())
+        {
+            return ret;
+        }
+
+        SimpleFilter filter = new SimpleFilter(FieldKey.fromString("category"), category);
+        filter.addCondition(FieldKey.fromString("readset"), new HashSet<>(readsetIds), CompareType.IN);
+        new TableSelector(sequenceOutputs, filter, new org.labkey.api.data.Sort("-rowid")).forEach(SequenceOutputFile.class, so -> {
+            ret.computeIfAbsent(so.getReadset(), x -> new ArrayList<>()).add(so);
+        });
+
+        return ret;
+    }
+
     public File getValidCiteSeqBarcodeFile(File sourceDir, int gexReadsetId)
     {
         return new File(sourceDir, "validADTS." + gexReadsetId + ".csv");
@@ -719,7 +749,33 @@ public File generateHashingCallsForRawMatrix(Readset parentReadset, PipelineOutp
 
     private Map<Integer, Integer> getCachedCiteSeqReadsetMap(SequenceAnalysisJobSupport support) throws PipelineJobException
     {
-        return support.getCachedObject(READSET_TO_CITESEQ_MAP, PipelineJob.createObjectMapper().getTypeFactory().constructParametricType(Map.class, Integer.class, Integer.class));
+        return getCachedMap(support, READSET_TO_CITESEQ_MAP, Integer.class, Integer.class);
+    }
+
+    private void cacheMap(SequenceAnalysisJobSupport support, String key, HashMap<?, ?> map)
+    {
+        support.cacheObject(key, map);
+        _cachedMaps.computeIfAbsent(support, x -> new ConcurrentHashMap<>()).put(key, Collections.unmodifiableMap(new HashMap<>(map)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <K, V> @Nullable Map<K, V> getCachedMap(SequenceAnalysisJobSupport support, String key, Class<K> keyClass, Class<V> valueClass) throws PipelineJobException
+    {
+        Map<String, Map<?, ?>> maps = _cachedMaps.computeIfAbsent(support, x -> new ConcurrentHashMap<>());
+        Map<?, ?> ret = maps.get(key);
+        if (ret == null)
+        {
+            Map<K, V> map = support.getCachedObject(key, PipelineJob.createObjectMapper().getTypeFactory().constructParametricType(Map.class, keyClass, valueClass));
+            if (map == null)
+            {
+                return null;
+            }
+
+            ret = Collections.unmodifiableMap(map);
+            maps.put(key, ret);
+        }
+
+        return (Map<K, V>)ret;
     }
 
     @Override
@@ -759,7 +815,7 @@ public boolean usesCiteSeq(SequenceAnalysisJobSupport support, List<SequenceOutp
     @Override
     public File getH5FileForGexReadset(SequenceAnalysisJobSupport support, int readsetId, int genomeId) throws PipelineJobException
     {
-        Map<String, Integer> map = support.getCachedObject(READSET_AND_GENOME_TO_H5_MAP, PipelineJob.createObjectMapper().getTypeFactory().constructParametricType(Map.class, String.class, Integer.class));
+        Map<String, Integer> map = getCachedMap(support, READSET_AND_GENOME_TO_H5_MAP, String.class, Integer.class);
         String key = readsetId + "-" + genomeId;
         Integer dataId = map.get(key);
         if (dataId == null)
@@ -795,12 +851,12 @@ public File getCDNAInfoFile(File sourceDir)
     
     public Map<Integer, Integer> getCachedHashingReadsetMap(SequenceAnalysisJobSupport support) throws PipelineJobException
     {
-        return support.getCachedObject(READSET_TO_HASHING_MAP, PipelineJob.createObjectMapper().getTypeFactory().constructParametricType(Map.class, Integer.class, Integer.class));
+        return getCachedMap(support, READSET_TO_HASHING_MAP, Integer.class, Integer.class);
     }
 
     public File getCachedReadsetToCountMatrix(SequenceAnalysisJobSupport support, int readsetId, CellHashingService.BARCODE_TYPE type) throws PipelineJobException
     {
-        Map<String, File> map = support.getCachedObject(READSET_TO_COUNTS_MAP, PipelineJob.createObjectMapper().getTypeFactory().constructParametricType(Map.class, String.class, File.class));
+        Map<String, File> map = getCachedMap(support, READSET_TO_COUNTS_MAP, String.class, File.class);
         String key = type.name() + "-" + readsetId;
 
         return(map.get(key));
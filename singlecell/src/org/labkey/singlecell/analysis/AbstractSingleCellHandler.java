@@ -37,6 +37,7 @@
 import org.labkey.api.singlecell.CellHashingService;
 import org.labkey.api.singlecell.pipeline.AbstractSingleCellPipelineStep;
 import org.labkey.api.singlecell.pipeline.AbstractSingleCellStep;
+import org.labkey.api.singlecell.pipeline.FusedRSession;
 import org.labkey.api.singlecell.pipeline.SingleCellRawDataStep;
 import org.labkey.api.singlecell.pipeline.SingleCellStep;
 import org.labkey.api.util.FileUtil;
@@ -469,93 +470,135 @@ public void processFilesRemote(List<SequenceOutputFile> inputFiles, JobContext c
                 }
             }
 
-            // Step 2: iterate seurat processing:
+            // Step 2: iterate seurat processing.
+            // If requested, adjacent steps that can share an R session are run together. Their seurat objects stay in memory
+            // and only the group's final objects are written when the group ends. The Resumer records every step of the group
+            // as complete at that point, each pointing to the final objects, so resuming at any of them continues after the group.
+            boolean fuseSteps = ctx.getParams().optBoolean(FusedRSession.FUSE_STEPS_PARAM, false);
+            FusedRSession session = null;
+            List<PendingStep> pendingSteps = new ArrayList<>();
+
             String outputPrefix = basename;
             int stepIdx = 0;
-            for (PipelineStepCtx<SingleCellStep> stepCtx : steps)
+            try
             {
-                ctx.getLogger().info("Starting to run: " + stepCtx.getProvider().getLabel());
-                stepIdx++;
-
-                SingleCellStep step = stepCtx.getProvider().create(ctx);
-                step.setStepIdx(stepCtx.getStepIdx());
-
-                if (!step.isIncluded(ctx, inputFiles))
+                for (PipelineStepCtx<SingleCellStep> stepCtx : steps)
                 {
-                    ctx.getLogger().info("Step not required, skipping");
-                    continue;
-                }
+                    ctx.getLogger().info("Starting to run: " + stepCtx.getProvider().getLabel());
+                    stepIdx++;
 
-                // NOTE: always set this upfront, so we have consistent outputPrefix after resume:
-                outputPrefix = outputPrefix + "." + step.getFileSuffix() + (step.getStepIdx() == 0 ? "" : "-" + step.getStepIdx());
-                outputPrefix = outputPrefix.replaceAll(" ", "_");
+                    SingleCellStep step = stepCtx.getProvider().create(ctx);
+                    step.setStepIdx(stepCtx.getStepIdx());
 
-                if (_resumer.isStepComplete(stepIdx))
-                {
-                    ctx.getLogger().info("resuming from saved state");
-                    if (_resumer.getSeuratFromStep(stepIdx) != null)
+                    if (!step.isIncluded(ctx, inputFiles))
                     {
-                        currentFiles = _resumer.getSeuratFromStep(stepIdx);
+                        ctx.getLogger().info("Step not required, skipping");
+                        continue;
                     }
-                    else if (step.createsSeuratObjects())
+
+                    // NOTE: always set this upfront, so we have consistent outputPrefix after resume:
+                    outputPrefix = outputPrefix + "." + step.getFileSuffix() + (step.getStepIdx() == 0 ? "" : "-" + step.getStepIdx());
+                    outputPrefix = outputPrefix.replaceAll(" ", "_");
+
+                    if (_resumer.isStepComplete(stepIdx))
                     {
-                        throw new PipelineJobException("Expected step to create seurat objects but none were cached");
+                        ctx.getLogger().info("resuming from saved state");
+                        if (_resumer.getSeuratFromStep(stepIdx) != null)
+                        {
+                            currentFiles = _resumer.getSeuratFromStep(stepIdx);
+                        }
+                        else if (step.createsSeuratObjects())
+                        {
+                            throw new PipelineJobException("Expected step to create seurat objects but none were cached");
+                        }
+                        else
+                        {
+                            ctx.getLogger().debug("No cached seurat objects found from step, using prior step's output");
+                        }
+
+                        continue;
                     }
-                    else
+
+                    FusedRSession.Settings sessionSettings = fuseSteps && step instanceof AbstractSingleCellPipelineStep ps ? ps.getFusedSessionSettings(ctx) : null;
+                    if (session != null && !session.getSettings().equals(sessionSettings))
                     {
-                        ctx.getLogger().debug("No cached seurat objects found from step, using prior step's output");
+                        checkpointSession(ctx, session, currentFiles, pendingSteps);
+                        session = null;
                     }
 
-                    continue;
-                }
-
-                ctx.getJob().setStatus(PipelineJob.TaskStatus.running, "Running: " + stepCtx.getProvider().getLabel());
-                currentFiles.forEach(currentFile -> {
-                    if (currentFile.getSequenceOutputFileId() != null)
+                    if (session == null && sessionSettings != null)
                     {
-                        currentFile.setSequenceOutputFile(inputMap.get(currentFile.getSequenceOutputFileId()));
+                        session = FusedRSession.start(ctx, sessionSettings);
                     }
-                });
 
-                RecordedAction action = new RecordedAction(stepCtx.getProvider().getLabel());
-                Date start = new Date();
-                action.setStartTime(start);
-                currentFiles.forEach(currentFile -> action.addInput(currentFile.getFile(), "Input Seurat Object"));
-                ctx.getFileManager().addIntermediateFiles(currentFiles.stream().map(SingleCellStep.SeuratObjectWrapper::getFile).collect(Collectors.toList()));
+                    ctx.getJob().setStatus(PipelineJob.TaskStatus.running, "Running: " + stepCtx.getProvider().getLabel());
+                    currentFiles.forEach(currentFile -> {
+                        if (currentFile.getSequenceOutputFileId() != null)
+                        {
+                            currentFile.setSequenceOutputFile(inputMap.get(currentFile.getSequenceOutputFileId()));
+                        }
+                    });
 
-                SingleCellStep.Output output = step.execute(ctx, currentFiles, outputPrefix);
+                    RecordedAction action = new RecordedAction(stepCtx.getProvider().getLabel());
+                    Date start = new Date();
+                    action.setStartTime(start);
+                    currentFiles.forEach(currentFile -> action.addInput(currentFile.getFile(), "Input Seurat Object"));
+                    ctx.getFileManager().addIntermediateFiles(currentFiles.stream().map(SingleCellStep.SeuratObjectWrapper::getFile).collect(Collectors.toList()));
 
-                _resumer.getFileManager().addStepOutputs(action, output);
+                    SingleCellStep.Output output = step.execute(ctx, currentFiles, outputPrefix);
 
-                if (step.createsSeuratObjects())
-                {
-                    if (output.getSeuratObjects() != null && !output.getSeuratObjects().isEmpty())
+                    _resumer.getFileManager().addStepOutputs(action, output);
+
+                    if (step.createsSeuratObjects())
                     {
-                        currentFiles = new ArrayList<>(output.getSeuratObjects());
-                        Set<File> possibleIntermediates = currentFiles.stream().map(SingleCellStep.SeuratObjectWrapper::getFile).collect(Collectors.toSet());
-                        possibleIntermediates.removeAll(originalInputs);
-                        if (!possibleIntermediates.isEmpty())
+                        if (output.getSeuratObjects() != null && !output.getSeuratObjects().isEmpty())
+                        {
+                            currentFiles = new ArrayList<>(output.getSeuratObjects());
+                            Set<File> possibleIntermediates = currentFiles.stream().map(SingleCellStep.SeuratObjectWrapper::getFile).collect(Collectors.toSet());
+                            possibleIntermediates.removeAll(originalInputs);
+                            if (!possibleIntermediates.isEmpty())
+                            {
+                                _resumer.getFileManager().addIntermediateFiles(possibleIntermediates);
+                                _resumer.getFileManager().addIntermediateFiles(possibleIntermediates.stream().map(x -> CellHashingServiceImpl.get().getCellBarcodesFromSeurat(x)).collect(Collectors.toSet()));
+                                _resumer.getFileManager().addIntermediateFiles(possibleIntermediates.stream().map(x -> CellHashingServiceImpl.get().getMetaTableFromSeurat(x)).collect(Collectors.toSet()));
+                            }
+                        }
+                        else
                         {
-                            _resumer.getFileManager().addIntermediateFiles(possibleIntermediates);
-                            _resumer.getFileManager().addIntermediateFiles(possibleIntermediates.stream().map(x -> CellHashingServiceImpl.get().getCellBarcodesFromSeurat(x)).collect(Collectors.toSet()));
-                            _resumer.getFileManager().addIntermediateFiles(possibleIntermediates.stream().map(x -> CellHashingServiceImpl.get().getMetaTableFromSeurat(x)).collect(Collectors.toSet()));
+                            throw new PipelineJobException("Expected step to create seurat objects but none reported");
                         }
                     }
                     else
                     {
-                        throw new PipelineJobException("Expected step to create seurat objects but none reported");
+                        ctx.getLogger().info("No seurat objects were produced");
+                    }
+
+                    Date end = new Date();
+                    action.setEndTime(end);
+                    ctx.getJob().getLogger().info(stepCtx.getProvider().getLabel() + " Duration: " + DurationFormatUtils.formatDurationWords(end.getTime() - start.getTime(), true, true));
+
+                    if (session != null)
+                    {
+                        pendingSteps.add(new PendingStep(step, stepIdx, action, output.getMarkdownFile(), output.getHtmlFile()));
+                    }
+                    else
+                    {
+                        _resumer.setStepComplete(ctx.getLogger(), step, stepIdx, action, currentFiles, output.getMarkdownFile(), output.getHtmlFile());
                     }
                 }
-                else
+
+                if (session != null)
                 {
-                    ctx.getLogger().info("No seurat objects were produced");
+                    checkpointSession(ctx, session, currentFiles, pendingSteps);
+                    session = null;
+                }
+            }
+            finally
+            {
+                if (session != null)
+                {
+                    session.close();
                 }
-
-                Date end = new Date();
-                action.setEndTime(end);
-                ctx.getJob().getLogger().info(stepCtx.getProvider().getLabel() + " Duration: " + DurationFormatUtils.formatDurationWords(end.getTime() - start.getTime(), true, true));
-
-                _resumer.setStepComplete(ctx.getLogger(), step, stepIdx, action, currentFiles, output.getMarkdownFile(), output.getHtmlFile());
             }
 
             for (SingleCellStep.SeuratObjectWrapper seurat : currentFiles)
@@ -719,6 +762,29 @@ else if (inputFiles.size() == 1)
         }
     }
 
+    private record PendingStep(SingleCellStep step, int stepIdx, RecordedAction action, File markdown, File html) {}
+
+    private void checkpointSession(JobContext ctx, FusedRSession session, List<SingleCellStep.SeuratObjectWrapper> currentFiles, List<PendingStep> pendingSteps) throws PipelineJobException
+    {
+        try
+        {
+            session.checkpoint(currentFiles.stream().map(SingleCellStep.SeuratObjectWrapper::getFile).toList());
+        }
+        finally
+        {
+            session.close();
+        }
+
+        // NOTE: the intermediate objects of the group were never written, so only the final step reports the saved objects as outputs
+        for (int i = 0; i < pendingSteps.size(); i++)
+        {
+            PendingStep ps = pendingSteps.get(i);
+            boolean isLast = i == pendingSteps.size() - 1;
+            _resumer.setStepComplete(ctx.getLogger(), ps.step(), ps.stepIdx(), ps.action(), new ArrayList<>(currentFiles), ps.markdown(), ps.html(), isLast);
+        }
+        pendingSteps.clear();
+    }
+
     private List<SingleCellStep.SeuratObjectWrapper> processRawCounts(JobContext ctx, List<SequenceOutputFile> inputFiles, String basename) throws PipelineJobException
     {
         List<SingleCellStep.SeuratObjectWrapper> currentFiles;
@@ -848,10 +914,19 @@ public List<SingleCellStep.SeuratObjectWrapper> getSeuratFromStep(int stepIdx)
         }
 
         public void setStepComplete(Logger log, SingleCellStep step, int stepIdx, RecordedAction action, List<SingleCellStep.SeuratObjectWrapper> seurat, File markdown, File html) throws PipelineJobException
+        {
+            setStepComplete(log, step, stepIdx, action, seurat, markdown, html, true);
+        }
+
+        /**
+         * @param recordSeuratOutputs If false, the seurat objects are used when resuming from this step, but are not added as outputs of the action.
+         * This is used for steps that shared an R session, where the objects were written by the last step of the group.
+         */
+        public void setStepComplete(Logger log, SingleCellStep step, int stepIdx, RecordedAction action, List<SingleCellStep.SeuratObjectWrapper> seurat, File markdown, File html, boolean recordSeuratOutputs) throws PipelineJobException
         {
             log.info("Marking step complete: " + step.getProvider().getName() + ", " + stepIdx + ", total seurat objects: " + (seurat == null ? 0 : seurat.size()));
 
-            if (seurat != null)
+            if (seurat != null && recordSeuratOutputs)
             {
                 seurat.forEach(x -> {
                     List<RecordedAction.DataFile> matching = action.getOutputs().stream().filter(o -> x.getFile().toURI().equals(o.getURI())).toList();